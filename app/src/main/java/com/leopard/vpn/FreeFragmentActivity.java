@@ -63,7 +63,23 @@ public class FreeFragmentActivity extends Fragment {
     private String server_url = "";
     private static final int RESULT_OK = -1;
 
-    private ArrayList<HashMap<String, Object>> lmap = new ArrayList<>();
+    private ServerList servers = new ServerList();
+    private Handler handler = new Handler(Looper.getMainLooper());
+    /* Rows were added or removed, saved and probed once for a burst of child events */
+    private Runnable refreshList = new Runnable() {
+        @Override
+        public void run() {
+            if (servers.size() > 0) {
+                _reportListVisible(false);
+            }
+            _saveCatalog();
+            _probeServers();
+        }
+    };
+    private long openedAt;
+    private boolean listShown;
+    /* The database was read in full, the list no longer needs the catalog */
+    private boolean reconciled;
 
     private ListView listview1;
 
@@ -75,6 +91,9 @@ public class FreeFragmentActivity extends Fragment {
     @NonNull
     @Override
     public View onCreateView(@NonNull LayoutInflater _inflater, @Nullable ViewGroup _container, @Nullable Bundle _savedInstanceState) {
+        openedAt = SystemClock.elapsedRealtime();
+        listShown = false;
+        reconciled = false;
         View _view = _inflater.inflate(R.layout.free_fragment, _container, false);
         initialize(_savedInstanceState, _view);
         FirebaseApp.initializeApp(getContext());
@@ -86,74 +105,53 @@ public class FreeFragmentActivity extends Fragment {
         listview1 = _view.findViewById(R.id.listview1);
         ConnectionManagement = getContext().getSharedPreferences("connectionManagement", Activity.MODE_PRIVATE);
 
+        listview1.setAdapter(new Listview1Adapter(servers));
+        // The servers of the last run show as soon as the catalog is read, the database updates them below
+        final LatencyProber prober = LatencyProber.getInstance(getContext());
+        final ServerList _list = servers;
+        ServerCatalog.getInstance(getContext()).restore(ServerCatalog.TIER_FREE, prober, new ServerCatalog.RestoreListener() {
+                @Override
+                public void onRestored(ArrayList<ServerList.Server> _stored) {
+                    if (getView() == null || _list != servers || reconciled) {
+                        return;
+                    }
+                    boolean _added = false;
+                    for (ServerList.Server _server : _stored) {
+                        // Servers the database already sent are newer
+                        if (servers.get(_server.key) == null) {
+                            servers.put(_server);
+                            _added = true;
+                        }
+                    }
+                    if (_added) {
+                        servers.sortByLatency(prober);
+                        ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
+                        _reportListVisible(true);
+                    }
+                }
+            });
+
         _firedb_child_listener = new ChildEventListener() {
             @Override
             public void onChildAdded(DataSnapshot _param1, String _param2) {
-                GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
-                final String _childKey = _param1.getKey();
-                final HashMap<String, Object> _childValue = _param1.getValue(_ind);
-                firedb.addListenerForSingleValueEvent(new ValueEventListener() {
-                        @Override
-                        public void onDataChange(DataSnapshot _dataSnapshot) {
-                            lmap = new ArrayList<>();
-                            try {
-                                GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
-                                for (DataSnapshot _data : _dataSnapshot.getChildren()) {
-                                    HashMap<String, Object> _map = _data.getValue(_ind);
-                                    lmap.add(_map);
-                                }
-                            }
-                            catch (Exception _e) {
-                                _e.printStackTrace();
-                            }
-                            listview1.setAdapter(new Listview1Adapter(lmap));
-                            ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
-                        }
-                        @Override
-                        public void onCancelled(DatabaseError _databaseError) {
-                        }
-                    });
+                _applyChild(_param1);
             }
 
             @Override
             public void onChildChanged(DataSnapshot _param1, String _param2) {
-                GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
-                final String _childKey = _param1.getKey();
-                final HashMap<String, Object> _childValue = _param1.getValue(_ind);
-                firedb.addListenerForSingleValueEvent(new ValueEventListener() {
-                        @Override
-                        public void onDataChange(DataSnapshot _dataSnapshot) {
-                            lmap = new ArrayList<>();
-                            try {
-                                GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
-                                for (DataSnapshot _data : _dataSnapshot.getChildren()) {
-                                    HashMap<String, Object> _map = _data.getValue(_ind);
-                                    lmap.add(_map);
-                                }
-                            }
-                            catch (Exception _e) {
-                                _e.printStackTrace();
-                            }
-                            listview1.setAdapter(new Listview1Adapter(lmap));
-                            ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
-                        }
-                        @Override
-                        public void onCancelled(DatabaseError _databaseError) {
-                        }
-                    });
+                _applyChild(_param1);
             }
 
             @Override
             public void onChildMoved(DataSnapshot _param1, String _param2) {
-
+                // The list is ordered by latency, not by the database
             }
 
             @Override
             public void onChildRemoved(DataSnapshot _param1) {
-                GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
-                final String _childKey = _param1.getKey();
-                final HashMap<String, Object> _childValue = _param1.getValue(_ind);
-
+                if (servers.remove(_param1.getKey())) {
+                    _listChanged();
+                }
             }
 
             @Override
@@ -164,19 +162,149 @@ public class FreeFragmentActivity extends Fragment {
             }
         };
         firedb.addChildEventListener(_firedb_child_listener);
+        // Servers of the catalog that were deleted in the meantime get no child event
+        firedb.addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot _dataSnapshot) {
+                    reconciled = true;
+                    HashSet<String> _keys = new HashSet<>();
+                    for (DataSnapshot _data : _dataSnapshot.getChildren()) {
+                        _keys.add(_data.getKey());
+                    }
+                    if (servers.retain(_keys)) {
+                        _listChanged();
+                    }
+                }
+                @Override
+                public void onCancelled(DatabaseError _databaseError) {
+                }
+            });
     }
 
     private void initializeLogic() {
     }
 
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        firedb.removeEventListener(_firedb_child_listener);
+        handler.removeCallbacks(refreshList);
+        // A new view gets all children again, removals in between would be missed
+        servers = new ServerList();
+    }
+
     public void _more() {
     }
 
+
+    public void _applyChild(final DataSnapshot _child) {
+        GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
+        HashMap<String, Object> _childValue;
+        try {
+            _childValue = _child.getValue(_ind);
+        }
+        catch (Exception _e) {
+            _e.printStackTrace();
+            return;
+        }
+        switch (servers.put(_child.getKey(), _childValue)) {
+            case ADDED:
+                _listChanged();
+                break;
+            case CHANGED:
+                _updateRow(_child.getKey());
+                _saveCatalog();
+                // A changed url needs a new measurement
+                _probeServers();
+                break;
+            default:
+                break;
+        }
+    }
+
+
+    /**
+     * Tells the list about added or removed rows right away, a layout pass or a touch before the
+     * notify would read positions the list no longer has. ListView batches the relayout itself.
+     */
+    public void _listChanged() {
+        ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
+        _scheduleRefresh();
+    }
+
+
+    public void _scheduleRefresh() {
+        handler.removeCallbacks(refreshList);
+        handler.post(refreshList);
+    }
+
+
+    /**
+     * Rebinds the row of a changed server if it is on screen, the other rows stay as they are
+     */
+    public void _updateRow(final String _key) {
+        int _position = servers.indexOf(_key);
+        int _row = _position - listview1.getFirstVisiblePosition();
+        if (_position < 0 || _row < 0 || _row >= listview1.getChildCount()) {
+            return;
+        }
+        // Only works because getView binds into the convertView it is given and never inflates a
+        // new one for it, the returned view is the row already on screen
+        listview1.getAdapter().getView(_position, listview1.getChildAt(_row), listview1);
+    }
+
+
+    public void _probeServers() {
+        final LatencyProber prober = LatencyProber.getInstance(getContext());
+        // Recent results order the list right away, the list is sorted again once all are in
+        if (servers.sortByLatency(prober)) {
+            ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
+        }
+        prober.probe(servers.getUrls(), new LatencyProber.Listener() {
+                @Override
+                public void onLatency(String _url, long _rttMs) {
+                }
+                @Override
+                public void onFinished() {
+                    if (getView() == null) {
+                        return;
+                    }
+                    if (servers.sortByLatency(prober)) {
+                        ((BaseAdapter)listview1.getAdapter()).notifyDataSetChanged();
+                    }
+                    _saveCatalog();
+                }
+            });
+    }
+
+
+    public void _saveCatalog() {
+        ServerCatalog.getInstance(getContext()).update(ServerCatalog.TIER_FREE, servers, LatencyProber.getInstance(getContext()));
+    }
+
+
+    /**
+     * Reports the time from opening the list until the first servers are drawn
+     */
+    public void _reportListVisible(final boolean _warm) {
+        if (listShown) {
+            return;
+        }
+        listShown = true;
+        final long _openedAt = openedAt;
+        listview1.post(new Runnable() {
+                @Override
+                public void run() {
+                    ServerCatalog.reportListVisible(_warm, SystemClock.elapsedRealtime() - _openedAt);
+                }
+            });
+    }
+
     private class Listview1Adapter extends BaseAdapter {
 
-        ArrayList<HashMap<String, Object>> _data;
+        ServerList _data;
 
-        public Listview1Adapter(ArrayList<HashMap<String, Object>> _arr) {
+        public Listview1Adapter(ServerList _arr) {
             _data = _arr;
         }
 
@@ -186,13 +314,18 @@ public class FreeFragmentActivity extends Fragment {
         }
 
         @Override
-        public HashMap<String, Object> getItem(int _index) {
+        public ServerList.Server getItem(int _index) {
             return _data.get(_index);
         }
 
         @Override
         public long getItemId(int _index) {
-            return _index;
+            return _data.getId(_index);
+        }
+
+        @Override
+        public boolean hasStableIds() {
+            return true;
         }
 
         @Override
@@ -210,27 +343,27 @@ public class FreeFragmentActivity extends Fragment {
             final ImageView imageview1 = _view.findViewById(R.id.imageview1);
             final ImageView condition = _view.findViewById(R.id.condition);
 
-            if (_data.get((int)_position).containsKey("title")) {
-                title.setText(_data.get((int)_position).get("title").toString());
+            final ServerList.Server _server = _data.get(_position);
+            title.setText(_server.title);
+            // A recycled row must never keep the icon of the server it showed before
+            if (_server.icon.isEmpty()) {
+                Glide.with(getContext().getApplicationContext()).clear(server_icon);
+                server_icon.setImageResource(R.drawable.icon_background);
             }
-            if (_data.get((int)_position).containsKey("country_icon")) {
-                Glide.with(getContext().getApplicationContext()).load(Uri.parse(_data.get((int)_position).get("country_icon").toString())).into(server_icon);
+            else {
+                Glide.with(getContext().getApplicationContext()).load(Uri.parse(_server.icon)).placeholder(R.drawable.icon_background).into(server_icon);
             }
-            if (_data.get((int)_position).containsKey("url")) {
-                server_url = _data.get((int)_position).get("url").toString();
+            server_url = _server.url;
+            if (_server.condition) {
+                condition.setImageResource(R.drawable.network_monitor_1);
             }
-            if (_data.get((int)_position).containsKey("condition")) {
-                if (_data.get((int)_position).get("condition").toString().equals("true")) {
-                    condition.setImageResource(R.drawable.network_monitor_1);
-                }
-                else {
-                    condition.setImageResource(R.drawable.network_monitor_2);
-                }
+            else {
+                condition.setImageResource(R.drawable.network_monitor_2);
             }
             container.setOnClickListener(new View.OnClickListener(){
                     @Override
                     public void onClick(View _view){
-                        _transferDataToHone(_data.get((int)_position).get("title").toString(), _data.get((int)_position).get("url").toString(), _data.get((int)_position).get("country_icon").toString());
+                        _transferDataToHone(_server.title, _server.url, _server.icon);
                     }
                 });
 
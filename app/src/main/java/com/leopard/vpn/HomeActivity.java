@@ -52,8 +52,15 @@ import com.google.android.gms.ads.AdView;
 import com.google.android.gms.ads.MobileAds;
 import com.google.android.gms.ads.RequestConfiguration;
 import com.google.firebase.FirebaseApp;
+import com.google.firebase.database.DataSnapshot;
+import com.google.firebase.database.DatabaseError;
+import com.google.firebase.database.FirebaseDatabase;
+import com.google.firebase.database.GenericTypeIndicator;
+import com.google.firebase.database.ValueEventListener;
+import com.google.gson.reflect.TypeToken;
 import com.sanojpunchihewa.glowbutton.*;
 import de.hdodenhof.circleimageview.*;
+import okhttp3.Headers;
 import java.io.*;
 import java.io.InputStream;
 import java.text.*;
@@ -113,6 +120,7 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
     private String ICON = "";
     private String name = "";
     private boolean isEmpty = false;
+    private boolean selectingFastest = false;
     private boolean runningTimer = false;
     private double stopwatch2 = 0;
     private double stopwatch3 = 0;
@@ -170,7 +178,7 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
     private Intent intent = new Intent();
     private TimerTask t;
     private RequestNetwork ip_request;
-    private RequestNetwork.RequestListener _ip_request_request_listener;
+    private RequestNetwork.JsonListener<HashMap<String, String>> _ip_request_request_listener;
 
     @Override
     protected void onCreate(Bundle _savedInstanceState) {
@@ -244,6 +252,10 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
         line = findViewById(R.id.line);
         ConnectionManagement = getSharedPreferences("connectionManagement", Activity.MODE_PRIVATE);
         ip_request = new RequestNetwork(this);
+        // The address changes with the VPN, it must never come from the HTTP cache
+        HashMap<String, Object> _ipHeaders = new HashMap<>();
+        _ipHeaders.put("Cache-Control", "no-store");
+        ip_request.setHeaders(_ipHeaders);
 
         linear10.setOnClickListener(new View.OnClickListener() {
                 @Override
@@ -308,7 +320,11 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
                         }
                         else {
                             if (isEmpty) {
-                                showMessage(getApplicationContext(), "Please select a server!");
+                                // Nothing is downloaded before the user asks to connect
+                                if (!selectingFastest) {
+                                    showMessage(getApplicationContext(), "Finding the fastest server...");
+                                    _selectFastestServer();
+                                }
                             }
                             else {
                                 Runnable r = new Runnable() {
@@ -358,12 +374,12 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
                 }
             });
 
-        _ip_request_request_listener = new RequestNetwork.RequestListener() {
+        _ip_request_request_listener = new RequestNetwork.JsonListener<HashMap<String, String>>() {
             @Override
-            public void onResponse(String _param1, String _param2, HashMap<String, Object> _param3) {
+            public void onResponse(String _param1, HashMap<String, String> _param2, Headers _param3) {
                 final String _tag = _param1;
-                final String _response = _param2;
-                final HashMap<String, Object> _responseHeaders = _param3;
+                // Decoded while the response was read, off the UI thread
+                final String _response = String.valueOf(_param2.get("ip"));
                 if (connected) {
                     ip.setText("IP : ".concat(_response));
                     ip.setVisibility(View.VISIBLE);
@@ -540,6 +556,9 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
     @Override
     public void onDestroy() {
         super.onDestroy();
+        if (ip_request != null) {
+            ip_request.cancel();
+        }
         if (adview2 != null) {
             adview2.destroy();
         }
@@ -796,6 +815,86 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
     }
 
 
+    public void _selectFastestServer() {
+        selectingFastest = true;
+        // The stored servers are probed while the database is read, a server is only picked if the
+        // database still has it
+        final LatencyProber _prober = LatencyProber.getInstance(this);
+        ServerCatalog.getInstance(this).restore(ServerCatalog.TIER_FREE, _prober, new ServerCatalog.RestoreListener() {
+                @Override
+                public void onRestored(ArrayList<ServerList.Server> _stored) {
+                    ArrayList<String> _urls = new ArrayList<>();
+                    for (ServerList.Server _server : _stored) {
+                        if (_server.isComplete()) {
+                            _urls.add(_server.url);
+                        }
+                    }
+                    _prober.probe(_urls, new LatencyProber.Listener() {
+                            @Override
+                            public void onLatency(String _url, long _rttMs) {
+                            }
+                            @Override
+                            public void onFinished() {
+                            }
+                        });
+                }
+            });
+        FirebaseDatabase.getInstance().getReference("configData").addListenerForSingleValueEvent(new ValueEventListener() {
+                @Override
+                public void onDataChange(DataSnapshot _dataSnapshot) {
+                    final ArrayList<ServerList.Server> servers = new ArrayList<>();
+                    try {
+                        GenericTypeIndicator<HashMap<String, Object>> _ind = new GenericTypeIndicator<HashMap<String, Object>>() {};
+                        for (DataSnapshot _data : _dataSnapshot.getChildren()) {
+                            ServerList.Server _server = ServerList.Server.fromMap(_data.getKey(), _data.getValue(_ind));
+                            if (_server.isComplete()) {
+                                servers.add(_server);
+                            }
+                        }
+                    }
+                    catch (Exception _e) {
+                        _e.printStackTrace();
+                    }
+                    _selectFastestOf(servers);
+                }
+                @Override
+                public void onCancelled(DatabaseError _databaseError) {
+                    selectingFastest = false;
+                }
+            });
+    }
+
+
+    public void _selectFastestOf(final ArrayList<ServerList.Server> servers) {
+        final LatencyProber prober = LatencyProber.getInstance(HomeActivity.this);
+        ArrayList<String> _urls = new ArrayList<>();
+        for (ServerList.Server _server : servers) {
+            _urls.add(_server.url);
+        }
+        prober.probe(_urls, new LatencyProber.Listener() {
+                @Override
+                public void onLatency(String _url, long _rttMs) {
+                }
+                @Override
+                public void onFinished() {
+                    selectingFastest = false;
+                    ServerList.Server _fastest = prober.getFastest(servers);
+                    // The user may have picked a server in the meantime
+                    if (!isEmpty || App.isStart || isFinishing()) {
+                        return;
+                    }
+                    if (_fastest == null) {
+                        showMessage(getApplicationContext(), "Please select a server!");
+                        return;
+                    }
+                    isEmpty = false;
+                    ConnectionManagement.edit().putString("name", _fastest.title).putString("link", _fastest.url).putString("icon", _fastest.icon).commit();
+                    _getServerData(_fastest.title, _fastest.url, _fastest.icon);
+                }
+            });
+    }
+
+
     public void _getServerData(final String _name, final String _link, final String _icon) {
         _startVPNFromURL(_link);
         textview2.setText(_name);
@@ -841,7 +940,9 @@ public class HomeActivity extends AppCompatActivity implements VpnStatus.StateLi
         if (connected) {
             if (!(time == 0)) {
                 ip.setVisibility(View.GONE);
-                ip_request.startRequestNetwork(RequestNetworkController.GET, "https://api.ipify.org/?format=txt", "SamiunNafis", _ip_request_request_listener);
+                // Idle connections were opened outside of the tunnel
+                RequestNetworkController.getInstance().evictConnections();
+                ip_request.startJsonRequest(RequestNetworkController.GET, "https://api.ipify.org/?format=json", "SamiunNafis", new TypeToken<HashMap<String, String>>() {}, _ip_request_request_listener);
                 try{
                     l1.setVisibility(View.GONE);
                 }catch(Exception e){
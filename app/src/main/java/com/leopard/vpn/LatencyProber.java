@@ -0,0 +1,396 @@
+package com.leopard.vpn;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.Connection;
+import okhttp3.HttpUrl;
+import okhttp3.Request;
+import okhttp3.Response;
+
+/**
+ * Measures the round trip time to the servers of the server list.
+ *
+ * The remotes of a server come from its .ovpn profile. TCP remotes are timed by the TCP
+ * handshake, UDP remotes by the answer to an OpenVPN hard reset packet (servers using tls-auth or
+ * tls-crypt drop it, they count as unreachable). Name resolution is not part of the measurement.
+ * At most {@link #MAX_CONCURRENT} servers are probed at the same time and results are reused for
+ * {@link #TTL_MS}, so reopening the server list does not probe again.
+ */
+public class LatencyProber {
+    public static final long UNREACHABLE = -1;
+    static final long TTL_MS = 5 * 60 * 1000;
+    static final int MAX_CONCURRENT = 6;
+    static final int TIMEOUT_MS = 2000;
+    /* Remotes tried per server, in the order openvpn would try them */
+    static final int MAX_REMOTES = 3;
+    /* P_CONTROL_HARD_RESET_CLIENT_V2 with key id 0 */
+    private static final int OPCODE_HARD_RESET_CLIENT = 7 << 3;
+
+    private static LatencyProber instance;
+
+    public static class Endpoint {
+        final String host;
+        final int port;
+        final boolean udp;
+
+        Endpoint(String host, int port, boolean udp) {
+            this.host = host;
+            this.port = port;
+            this.udp = udp;
+        }
+    }
+
+    /**
+     * Finds the remotes of a server
+     */
+    interface EndpointResolver {
+        List<Endpoint> resolve(String url) throws IOException;
+    }
+
+    public interface Listener {
+        /**
+         * @param rttMs the round trip time or {@link #UNREACHABLE}
+         */
+        void onLatency(String url, long rttMs);
+
+        /**
+         * Called after the last {@link #onLatency} of a {@link #probe} call
+         */
+        void onFinished();
+    }
+
+    private static class Result {
+        final long rttMs;
+        final long measuredAt;
+
+        Result(long rttMs, long measuredAt) {
+            this.rttMs = rttMs;
+            this.measuredAt = measuredAt;
+        }
+    }
+
+    private static class Batch {
+        final Listener listener;
+        final AtomicInteger remaining = new AtomicInteger();
+
+        Batch(Listener listener) {
+            this.listener = listener;
+        }
+    }
+
+    private final EndpointResolver resolver;
+    private final Executor callbackExecutor;
+    private final ThreadPoolExecutor pool;
+    private final HashMap<String, Result> results = new HashMap<>();
+    /* Remotes of the servers, kept until a probe of the server fails */
+    private final HashMap<String, List<Endpoint>> endpoints = new HashMap<>();
+    /* Batches waiting for a server that is being probed */
+    private final HashMap<String, ArrayList<Batch>> pending = new HashMap<>();
+
+    LatencyProber(EndpointResolver resolver, Executor callbackExecutor) {
+        this.resolver = resolver;
+        this.callbackExecutor = callbackExecutor;
+        pool = new ThreadPoolExecutor(MAX_CONCURRENT, MAX_CONCURRENT, 30, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "LatencyProbe");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        pool.allowCoreThreadTimeOut(true);
+    }
+
+    /**
+     * @return the prober that calls its listeners on the main thread
+     */
+    public static synchronized LatencyProber getInstance(Context context) {
+        if (instance == null) {
+            final ProfileCache cache = ProfileCache.getInstance(context);
+            final Handler handler = new Handler(Looper.getMainLooper());
+            instance = new LatencyProber(new EndpointResolver() {
+                @Override
+                public List<Endpoint> resolve(String url) throws IOException {
+                    return endpointsOf(loadProfile(cache, url));
+                }
+            }, new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Uses the cached profile of the server if there is one. Otherwise the profile is downloaded
+     * and parsed while it is read, without adding it to the profile cache, which only holds the
+     * profiles that were connected to.
+     */
+    private static VpnProfile loadProfile(ProfileCache cache, String url) throws IOException {
+        try {
+            ProfileCache.Entry cached = cache.get(url);
+            VpnProfile profile = cached != null ? cache.read(cached) : null;
+            if (profile != null)
+                return profile;
+            HttpUrl httpUrl = HttpUrl.parse(url);
+            if (httpUrl == null)
+                throw new IOException("Invalid url " + url);
+            Response response = RequestNetworkController.getInstance().getClient().newCall(new Request.Builder().url(httpUrl).build()).execute();
+            ConfigParser cp = new ConfigParser();
+            try {
+                if (!response.isSuccessful())
+                    throw new IOException("HTTP " + response.code() + " for " + url);
+                cp.parseConfig(response.body().charStream());
+            } finally {
+                response.close();
+            }
+            return cp.convertProfile();
+        } catch (ConfigParser.ConfigParseError e) {
+            throw new IOException(e.getMessage());
+        }
+    }
+
+    static List<Endpoint> endpointsOf(VpnProfile profile) {
+        ArrayList<Endpoint> remotes = new ArrayList<>();
+        for (Connection connection : profile.mConnections) {
+            if (!connection.mEnabled)
+                continue;
+            try {
+                remotes.add(new Endpoint(connection.mServerName, Integer.parseInt(connection.mServerPort.trim()), connection.mUseUdp));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+        return remotes;
+    }
+
+    /**
+     * Probes the servers that have no recent result, the others are reported right away
+     */
+    public void probe(Collection<String> urls, Listener listener) {
+        final Batch batch = new Batch(listener);
+        LinkedHashSet<String> unique = new LinkedHashSet<>(urls);
+        if (unique.isEmpty()) {
+            finish(batch);
+            return;
+        }
+        batch.remaining.set(unique.size());
+        long now = System.currentTimeMillis();
+        synchronized (this) {
+            for (final String url : unique) {
+                Result result = results.get(url);
+                if (result != null && now - result.measuredAt < TTL_MS) {
+                    deliver(batch, url, result.rttMs);
+                    continue;
+                }
+                ArrayList<Batch> waiting = pending.get(url);
+                if (waiting == null) {
+                    waiting = new ArrayList<>();
+                    pending.put(url, waiting);
+                    pool.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            complete(url, measure(url));
+                        }
+                    });
+                }
+                waiting.add(batch);
+            }
+        }
+    }
+
+    /**
+     * @return the last measured round trip time, {@link #UNREACHABLE} if there is none
+     */
+    public synchronized long getLatency(String url) {
+        Result result = results.get(url);
+        return result == null ? UNREACHABLE : result.rttMs;
+    }
+
+    /**
+     * @return when the last round trip time was measured, 0 if it never was
+     */
+    public synchronized long getMeasuredAt(String url) {
+        Result result = results.get(url);
+        return result == null ? 0 : result.measuredAt;
+    }
+
+    /**
+     * Adds a result measured earlier, e.g. in the last run of the app. It is not used if there
+     * is a newer one and counts as recent only within {@link #TTL_MS} of measuredAt.
+     */
+    public synchronized void seed(String url, long rttMs, long measuredAt) {
+        Result result = results.get(url);
+        if (result == null || result.measuredAt < measuredAt)
+            results.put(url, new Result(rttMs, measuredAt));
+    }
+
+    /**
+     * Orders latencies from fast to slow, {@link #UNREACHABLE} last
+     */
+    public static int compareLatency(long a, long b) {
+        if (a == b)
+            return 0;
+        if (a == UNREACHABLE)
+            return 1;
+        if (b == UNREACHABLE)
+            return -1;
+        return a < b ? -1 : 1;
+    }
+
+    /**
+     * @return the server with the lowest measured latency, null if no server was reachable
+     */
+    public synchronized ServerList.Server getFastest(Collection<ServerList.Server> servers) {
+        ServerList.Server fastest = null;
+        long best = UNREACHABLE;
+        for (ServerList.Server server : servers) {
+            long latency = getLatency(server.url);
+            if (latency != UNREACHABLE && (best == UNREACHABLE || latency < best)) {
+                best = latency;
+                fastest = server;
+            }
+        }
+        return fastest;
+    }
+
+    private long measure(String url) {
+        List<Endpoint> remotes;
+        synchronized (this) {
+            remotes = endpoints.get(url);
+        }
+        if (remotes == null) {
+            try {
+                remotes = resolver.resolve(url);
+            } catch (IOException | RuntimeException e) {
+                return UNREACHABLE;
+            }
+            synchronized (this) {
+                endpoints.put(url, remotes);
+            }
+        }
+        for (int i = 0; i < remotes.size() && i < MAX_REMOTES; i++) {
+            Endpoint remote = remotes.get(i);
+            long rtt = remote.udp ? probeUdp(remote) : probeTcp(remote);
+            if (rtt != UNREACHABLE)
+                return rtt;
+        }
+        synchronized (this) {
+            // The remotes may have changed, resolve them again next time
+            endpoints.remove(url);
+        }
+        return UNREACHABLE;
+    }
+
+    private void complete(String url, long rttMs) {
+        ArrayList<Batch> waiting;
+        synchronized (this) {
+            results.put(url, new Result(rttMs, System.currentTimeMillis()));
+            waiting = pending.remove(url);
+        }
+        if (waiting != null) {
+            for (Batch batch : waiting)
+                deliver(batch, url, rttMs);
+        }
+    }
+
+    private void deliver(final Batch batch, final String url, final long rttMs) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                batch.listener.onLatency(url, rttMs);
+                if (batch.remaining.decrementAndGet() == 0)
+                    batch.listener.onFinished();
+            }
+        });
+    }
+
+    private void finish(final Batch batch) {
+        callbackExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                batch.listener.onFinished();
+            }
+        });
+    }
+
+    static long probeTcp(Endpoint remote) {
+        InetSocketAddress address = new InetSocketAddress(remote.host, remote.port);
+        if (address.isUnresolved())
+            return UNREACHABLE;
+        Socket socket = new Socket();
+        try {
+            long start = System.nanoTime();
+            socket.connect(address, TIMEOUT_MS);
+            return (System.nanoTime() - start) / 1000000;
+        } catch (IOException e) {
+            return UNREACHABLE;
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    static long probeUdp(Endpoint remote) {
+        InetSocketAddress address = new InetSocketAddress(remote.host, remote.port);
+        if (address.isUnresolved())
+            return UNREACHABLE;
+        DatagramSocket socket = null;
+        try {
+            socket = new DatagramSocket();
+            socket.setSoTimeout(TIMEOUT_MS);
+            // Connected, so an ICMP port unreachable fails the receive right away
+            socket.connect(address);
+            byte[] reset = hardResetPacket();
+            byte[] answer = new byte[1500];
+            long start = System.nanoTime();
+            socket.send(new DatagramPacket(reset, reset.length));
+            socket.receive(new DatagramPacket(answer, answer.length));
+            return (System.nanoTime() - start) / 1000000;
+        } catch (IOException e) {
+            return UNREACHABLE;
+        } finally {
+            if (socket != null)
+                socket.close();
+        }
+    }
+
+    /**
+     * @return the first packet of an openvpn client: opcode, random session id, an empty ack
+     * array and packet id 0
+     */
+    private static byte[] hardResetPacket() {
+        byte[] packet = new byte[1 + 8 + 1 + 4];
+        packet[0] = (byte) OPCODE_HARD_RESET_CLIENT;
+        byte[] sessionId = new byte[8];
+        new Random().nextBytes(sessionId);
+        System.arraycopy(sessionId, 0, packet, 1, sessionId.length);
+        return packet;
+    }
+}
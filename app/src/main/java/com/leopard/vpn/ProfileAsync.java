@@ -6,18 +6,21 @@ import android.net.NetworkInfo;
 import android.os.AsyncTask;
 import android.os.Build;
 
-import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.lang.ref.WeakReference;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
-import java.net.URL;
 
 import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.ConfigParser;
 import de.blinkt.openvpn.core.ProfileManager;
+import okhttp3.CacheControl;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
 
 
 public class ProfileAsync extends AsyncTask<Void, Void, Boolean> {
@@ -38,7 +41,7 @@ public class ProfileAsync extends AsyncTask<Void, Void, Boolean> {
         Context context = this.context.get();
         if (context == null || onProfileLoadListener == null) {
             cancel(true);
-        } else if (!isNetworkAvailable(context)) {
+        } else if (!isNetworkAvailable(context) && !ProfileCache.getInstance(context).contains(ovpnUrl)) {
             cancel(true);
             onProfileLoadListener.onProfileLoadFailed("No Network");
         }
@@ -47,20 +50,15 @@ public class ProfileAsync extends AsyncTask<Void, Void, Boolean> {
     @Override
     protected Boolean doInBackground(Void... voids) {
         try {
-            URL url = new URL(ovpnUrl);
-            HttpURLConnection httpURLConnection = (HttpURLConnection) url.openConnection();
-            httpURLConnection.setConnectTimeout(10 * 1000);
-            httpURLConnection.setReadTimeout(10 * 1000);
-            InputStream inputStream = httpURLConnection.getInputStream();
-		    BufferedReader bufferedReader = new BufferedReader(new InputStreamReader(inputStream));
-			
-            ConfigParser cp = new ConfigParser();
-            cp.parseConfig(bufferedReader);
-            VpnProfile vp = cp.convertProfile();
+            VpnProfile vp = loadProfile(RequestNetworkController.getInstance().getClient(),
+                    ProfileCache.getInstance(context.get()), ovpnUrl);
             ProfileManager vpl = ProfileManager.getInstance(context.get());
             vp.mName = Build.MODEL;
             vp.mUsername = null;
             vp.mPassword = null;
+            // Cached profiles keep their UUID, drop the ones of the other servers so the
+            // profile is found by its name
+            vpl.removeProfilesByName(context.get(), Build.MODEL, vp);
             vpl.addProfile(vp);
             vpl.saveProfile(context.get(), vp);
             vpl.saveProfileList(context.get());
@@ -75,16 +73,87 @@ public class ProfileAsync extends AsyncTask<Void, Void, Boolean> {
         } catch (IOException e) {
             cancel(true);
             onProfileLoadListener.onProfileLoadFailed("IOException");
-       /*} finally {
-			try{
-			inputStream.close();
-			}catch(Exception e){
-				
-			}*/
-		}
+        }
         return false;
     }
 
+    /**
+     * Returns the profile for the URL, from the cache if the server confirms it is still
+     * current or if it was validated recently, otherwise downloads and parses it. A cached
+     * profile is also used if the server cannot be reached, but not if it answers with an error.
+     * A cached profile that cannot be read is dropped and downloaded again.
+     */
+    static VpnProfile loadProfile(OkHttpClient client, ProfileCache cache, String ovpnUrl) throws IOException, ConfigParser.ConfigParseError {
+        ProfileCache.Entry cached = cache.get(ovpnUrl);
+        VpnProfile cachedProfile = cached != null ? cache.read(cached) : null;
+        if (cachedProfile == null)
+            cached = null;
+        if (cached != null && cached.isFresh()) {
+            ProfileCache.countHit();
+            return cachedProfile;
+        }
+        HttpUrl url = HttpUrl.parse(ovpnUrl);
+        if (url == null)
+            throw new MalformedURLException(ovpnUrl);
+        // The parsed profile is cached, there is no point in keeping the file in the HTTP cache
+        Request.Builder request = new Request.Builder().url(url).cacheControl(new CacheControl.Builder().noStore().build());
+        if (cached != null) {
+            if (cached.getETag() != null)
+                request.header("If-None-Match", cached.getETag());
+            if (cached.getLastModified() != null)
+                request.header("If-Modified-Since", cached.getLastModified());
+        }
+        byte[] body = null;
+        int code;
+        String etag;
+        String lastModified;
+        Response response = null;
+        try {
+            response = client.newCall(request.build()).execute();
+            code = response.code();
+            etag = response.header("ETag");
+            lastModified = response.header("Last-Modified");
+            if (cached != null && code == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                ProfileCache.countRevalidated();
+                cache.revalidate(cached, etag, lastModified);
+                return cachedProfile;
+            }
+            if (response.isSuccessful())
+                body = response.body().bytes();
+        } catch (IOException e) {
+            if (cached == null)
+                throw e;
+            // Server not reachable, a stale profile is better than none
+            ProfileCache.countFallback();
+            return cachedProfile;
+        } finally {
+            if (response != null)
+                response.close();
+        }
+        // The server answered, an error means the profile is gone or broken, not that it is stale
+        if (body == null)
+            throw new IOException("HTTP " + code + " for " + ovpnUrl);
+
+        String contentHash = ProfileCache.hash(body);
+        ProfileCache.Entry sameContent = cached != null && cached.contentHash.equals(contentHash) ? cached : cache.findByContent(contentHash);
+        VpnProfile sameProfile = sameContent == null ? null : sameContent == cached ? cachedProfile : cache.read(sameContent);
+        if (sameProfile != null) {
+            ProfileCache.countRevalidated();
+            if (sameContent == cached)
+                cache.revalidate(cached, etag, lastModified);
+            else
+                cache.put(ovpnUrl, etag, lastModified, contentHash, sameProfile);
+            return sameProfile;
+        }
+
+        ProfileCache.countMiss();
+        ConfigParser cp = new ConfigParser();
+        cp.parseConfig(new InputStreamReader(new ByteArrayInputStream(body)));
+        VpnProfile vp = cp.convertProfile();
+        cache.put(ovpnUrl, etag, lastModified, contentHash, vp);
+        return vp;
+    }
+
     @Override
     protected void onPostExecute(Boolean aVoid) {
         super.onPostExecute(aVoid);
@@ -0,0 +1,407 @@
+package com.leopard.vpn;
+
+import android.content.Context;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.VpnStatus;
+
+/**
+ * Cache of parsed server profiles, keyed by the URL of the .ovpn file and by the hash of its
+ * content.
+ *
+ * Entries keep the ETag and Last-Modified of the download, so a stale entry is revalidated with
+ * a conditional request instead of being downloaded and parsed again. A download whose content
+ * hash matches a cached profile reuses that profile too. Entries are kept in memory and in the
+ * app's files directory (the cache directory is wiped on every server switch) and the least
+ * recently used ones are dropped beyond {@link #MAX_ENTRIES}.
+ *
+ * The entries are read in the background when the cache is created. Only their headers are read
+ * then, a profile is read from its file when it is first used. An entry that cannot be read is
+ * dropped, see {@link #read(Entry)}.
+ */
+public class ProfileCache {
+    /* Entries used within this time are reused without asking the server */
+    static final long FRESH_MS = 10 * 60 * 1000;
+    static final int MAX_ENTRIES = 16;
+    private static final String DIR_NAME = "profilecache";
+    private static final String ENTRY_SUFFIX = ".entry";
+    private static final int ENTRY_VERSION = 2;
+    private static final int MAX_PROFILE_BYTES = 16 * 1024 * 1024;
+
+    private static ProfileCache instance;
+
+    private static final ExecutorService loadExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ProfileCache");
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private static final AtomicInteger hits = new AtomicInteger();
+    private static final AtomicInteger revalidated = new AtomicInteger();
+    private static final AtomicInteger misses = new AtomicInteger();
+    private static final AtomicInteger fallbacks = new AtomicInteger();
+
+    private final File dir;
+    /* Access ordered, the eldest entry is the least recently used */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(MAX_ENTRIES, 0.75f, true);
+    /* Counted down once the entries were read from disk */
+    private final CountDownLatch loaded = new CountDownLatch(1);
+
+    public static class Entry {
+        final String url;
+        String etag;
+        String lastModified;
+        final String contentHash;
+        long validatedAt;
+        /* The profile is read from this file when it is first used */
+        private final File file;
+        private byte[] profile;
+
+        Entry(String url, String etag, String lastModified, String contentHash, long validatedAt, File file, byte[] profile) {
+            this.url = url;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.contentHash = contentHash;
+            this.validatedAt = validatedAt;
+            this.file = file;
+            this.profile = profile;
+        }
+
+        public boolean isFresh() {
+            return System.currentTimeMillis() - validatedAt < FRESH_MS;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public String getLastModified() {
+            return lastModified;
+        }
+
+        /**
+         * @return a new copy of the cached profile, callers may modify it freely
+         */
+        public VpnProfile getProfile() throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(getProfileBytes()));
+            try {
+                return VpnProfile.readFrom(in);
+            } finally {
+                in.close();
+            }
+        }
+
+        synchronized byte[] getProfileBytes() throws IOException {
+            if (profile == null)
+                profile = readEntry(file, true).profile;
+            return profile;
+        }
+    }
+
+    private ProfileCache(Context context) {
+        this(new File(context.getFilesDir(), DIR_NAME));
+    }
+
+    ProfileCache(File dir) {
+        this.dir = dir;
+        // The first caller is on the main thread
+        loadExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    load();
+                } finally {
+                    loaded.countDown();
+                }
+            }
+        });
+    }
+
+    private void awaitLoad() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                loaded.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
+    }
+
+    public static synchronized ProfileCache getInstance(Context context) {
+        if (instance == null)
+            instance = new ProfileCache(context.getApplicationContext());
+        return instance;
+    }
+
+    public static int getHits() {
+        return hits.get();
+    }
+
+    public static int getRevalidated() {
+        return revalidated.get();
+    }
+
+    public static int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return how often a stale profile was used because its server could not be reached
+     */
+    public static int getFallbacks() {
+        return fallbacks.get();
+    }
+
+    static void countHit() {
+        hits.incrementAndGet();
+    }
+
+    static void countRevalidated() {
+        revalidated.incrementAndGet();
+    }
+
+    static void countMiss() {
+        misses.incrementAndGet();
+    }
+
+    static void countFallback() {
+        fallbacks.incrementAndGet();
+    }
+
+    public static String hash(byte[] data) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            byte[] sum = digest.digest(data);
+            StringBuilder hex = new StringBuilder(sum.length * 2);
+            for (byte b : sum)
+                hex.append(String.format("%02x", b & 0xff));
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /*
+     * The methods below wait for the entries to be read before they lock the cache, the read
+     * takes the lock too
+     */
+
+    public Entry get(String url) {
+        awaitLoad();
+        synchronized (this) {
+            return entries.get(url);
+        }
+    }
+
+    /**
+     * Does not wait for the entries to be read, it can be called on the main thread
+     */
+    public boolean contains(String url) {
+        if (loaded.getCount() > 0)
+            return fileFor(url).isFile();
+        synchronized (this) {
+            return entries.containsKey(url);
+        }
+    }
+
+    /**
+     * @return an entry with the given content, possibly downloaded from another URL
+     */
+    public Entry findByContent(String contentHash) {
+        awaitLoad();
+        synchronized (this) {
+            for (Entry entry : entries.values()) {
+                if (entry.contentHash.equals(contentHash))
+                    return entry;
+            }
+            return null;
+        }
+    }
+
+    /**
+     * @return a copy of the cached profile, or null if it cannot be read, e.g. because the file
+     * is damaged or was written by another version of the app. Such an entry is dropped, so the
+     * profile is downloaded again.
+     */
+    public VpnProfile read(Entry entry) {
+        try {
+            return entry.getProfile();
+        } catch (IOException | RuntimeException e) {
+            remove(entry);
+            return null;
+        }
+    }
+
+    private synchronized void remove(Entry entry) {
+        if (entries.get(entry.url) == entry)
+            entries.remove(entry.url);
+        //noinspection ResultOfMethodCallIgnored
+        fileFor(entry.url).delete();
+    }
+
+    /**
+     * Marks an entry as confirmed by the server, optionally with new validators
+     */
+    public void revalidate(Entry entry, String etag, String lastModified) {
+        awaitLoad();
+        synchronized (this) {
+            if (etag != null)
+                entry.etag = etag;
+            if (lastModified != null)
+                entry.lastModified = lastModified;
+            entry.validatedAt = System.currentTimeMillis();
+            write(entry);
+        }
+    }
+
+    /**
+     * Stores a freshly parsed profile. The profile is copied, later changes to it are not cached.
+     */
+    public Entry put(String url, String etag, String lastModified, String contentHash, VpnProfile profile) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        profile.writeTo(out);
+        out.close();
+        Entry entry = new Entry(url, etag, lastModified, contentHash, System.currentTimeMillis(), fileFor(url), bytes.toByteArray());
+        awaitLoad();
+        synchronized (this) {
+            entries.put(url, entry);
+            write(entry);
+            trim();
+        }
+        return entry;
+    }
+
+    private void trim() {
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while (entries.size() > MAX_ENTRIES && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            it.remove();
+            //noinspection ResultOfMethodCallIgnored
+            fileFor(eldest.url).delete();
+        }
+    }
+
+    private File fileFor(String url) {
+        try {
+            return new File(dir, hash(url.getBytes("UTF-8")) + ENTRY_SUFFIX);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void write(Entry entry) {
+        if (!dir.isDirectory() && !dir.mkdirs())
+            return;
+        File file = fileFor(entry.url);
+        File tmp = new File(dir, file.getName() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp));
+            try {
+                out.writeInt(ENTRY_VERSION);
+                out.writeUTF(entry.url);
+                out.writeUTF(entry.etag == null ? "" : entry.etag);
+                out.writeUTF(entry.lastModified == null ? "" : entry.lastModified);
+                out.writeUTF(entry.contentHash);
+                out.writeLong(entry.validatedAt);
+                byte[] profile = entry.getProfileBytes();
+                out.writeInt(profile.length);
+                out.write(profile);
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+        } catch (IOException e) {
+            VpnStatus.logException("Writing the profile cache", e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    /**
+     * Reads an entry file, the profile only if withProfile is set
+     */
+    private static Entry readEntry(File file, boolean withProfile) throws IOException {
+        DataInputStream in = new DataInputStream(new FileInputStream(file));
+        try {
+            if (in.readInt() != ENTRY_VERSION)
+                throw new IOException("Unknown cache entry version");
+            String url = in.readUTF();
+            String etag = in.readUTF();
+            String lastModified = in.readUTF();
+            String contentHash = in.readUTF();
+            long validatedAt = in.readLong();
+            int length = in.readInt();
+            if (length < 0 || length > MAX_PROFILE_BYTES)
+                throw new IOException("Invalid cached profile size " + length);
+            byte[] profile = null;
+            if (withProfile) {
+                profile = new byte[length];
+                in.readFully(profile);
+            } else if (in.skipBytes(length) != length) {
+                throw new IOException("Truncated cache entry");
+            }
+            return new Entry(url, etag.isEmpty() ? null : etag, lastModified.isEmpty() ? null : lastModified,
+                    contentHash, validatedAt, file, profile);
+        } finally {
+            in.close();
+        }
+    }
+
+    private synchronized void load() {
+        File[] files = dir.listFiles();
+        if (files == null)
+            return;
+        // Oldest first, so the access order ends up with the most recently validated entry last
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(File a, File b) {
+                long diff = a.lastModified() - b.lastModified();
+                return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+            }
+        });
+        for (File file : files) {
+            if (!file.getName().endsWith(ENTRY_SUFFIX))
+                continue;
+            try {
+                Entry entry = readEntry(file, false);
+                entries.put(entry.url, entry);
+            } catch (IOException | RuntimeException e) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+        trim();
+    }
+}
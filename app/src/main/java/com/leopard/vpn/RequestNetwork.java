@@ -1,52 +1,109 @@
-package com.leopard.vpn;
-
-import android.app.Activity;
-
-import java.util.HashMap;
-
-public class RequestNetwork {
-	private HashMap<String, Object> params = new HashMap<>();
-	private HashMap<String, Object> headers = new HashMap<>();
-	
-	private Activity activity;
-	
-	private int requestType = 0;
-	
-	public RequestNetwork(Activity activity) {
-		this.activity = activity;
-	}
-	
-	public void setHeaders(HashMap<String, Object> headers) {
-		this.headers = headers;
-	}
-	
-	public void setParams(HashMap<String, Object> params, int requestType) {
-		this.params = params;
-		this.requestType = requestType;
-	}
-	
-	public HashMap<String, Object> getParams() {
-		return params;
-	}
-	
-	public HashMap<String, Object> getHeaders() {
-		return headers;
-	}
-	
-	public Activity getActivity() {
-		return activity;
-	}
-	
-	public int getRequestType() {
-		return requestType;
-	}
-	
-	public void startRequestNetwork(String method, String url, String tag, RequestListener requestListener) {
-		RequestNetworkController.getInstance().execute(this, method, url, tag, requestListener);
-	}
-	
-	public interface RequestListener {
-		public void onResponse(String tag, String response, HashMap<String, Object> responseHeaders);
-		public void onErrorResponse(String tag, String message);
-	}
-}
+package com.leopard.vpn;
+
+import android.app.Activity;
+
+import com.google.gson.reflect.TypeToken;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+
+import okhttp3.Headers;
+
+public class RequestNetwork {
+	private HashMap<String, Object> params = new HashMap<>();
+	private HashMap<String, Object> headers = new HashMap<>();
+	
+	private Activity activity;
+	
+	private int requestType = 0;
+	
+	private Executor dispatchExecutor;
+	
+	public RequestNetwork(Activity activity) {
+		this.activity = activity;
+	}
+	
+	/**
+	 * Calls the listeners with dispatchExecutor instead of on the UI thread of an Activity
+	 */
+	RequestNetwork(Executor dispatchExecutor) {
+		setDispatchExecutor(dispatchExecutor);
+	}
+	
+	public void setHeaders(HashMap<String, Object> headers) {
+		this.headers = headers;
+	}
+	
+	public void setParams(HashMap<String, Object> params, int requestType) {
+		this.params = params;
+		this.requestType = requestType;
+	}
+	
+	public HashMap<String, Object> getParams() {
+		return params;
+	}
+	
+	public HashMap<String, Object> getHeaders() {
+		return headers;
+	}
+	
+	public Activity getActivity() {
+		return activity;
+	}
+	
+	public int getRequestType() {
+		return requestType;
+	}
+	
+	/**
+	 * Sets where listeners are called, the UI thread of the Activity if null. See
+	 * {@link RequestNetworkController#DIRECT}, {@link RequestNetworkController#BACKGROUND} and
+	 * {@link RequestNetworkController#MAIN}.
+	 */
+	public void setDispatchExecutor(Executor dispatchExecutor) {
+		this.dispatchExecutor = dispatchExecutor;
+	}
+	
+	public Executor getDispatchExecutor() {
+		return dispatchExecutor;
+	}
+	
+	public void startRequestNetwork(String method, String url, String tag, RequestListener requestListener) {
+		RequestNetworkController.getInstance().execute(this, method, url, tag, requestListener);
+	}
+	
+	public <T> void startJsonRequest(String method, String url, String tag, TypeToken<T> type, JsonListener<T> jsonListener) {
+		RequestNetworkController.getInstance().executeJson(this, method, url, tag, type, jsonListener);
+	}
+	
+	/**
+	 * Drops the listeners of the running requests, to be called when the Activity is destroyed
+	 */
+	public void cancel() {
+		RequestNetworkController.getInstance().cancel(this);
+	}
+	
+	public void startStreamRequest(String method, String url, String tag, StreamListener streamListener) {
+		RequestNetworkController.getInstance().executeStream(this, method, url, tag, streamListener);
+	}
+	
+	public interface RequestListener {
+		public void onResponse(String tag, String response, Headers responseHeaders);
+		public void onErrorResponse(String tag, String message);
+	}
+	
+	public interface StreamListener {
+		/**
+		 * Called on a background thread, the body is closed when this returns
+		 */
+		public void onResponse(String tag, InputStream body, Headers responseHeaders) throws IOException;
+		public void onErrorResponse(String tag, String message);
+	}
+	
+	public interface JsonListener<T> {
+		public void onResponse(String tag, T response, Headers responseHeaders);
+		public void onErrorResponse(String tag, String message);
+	}
+}
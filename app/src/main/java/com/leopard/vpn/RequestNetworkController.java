@@ -1,32 +1,68 @@
 package com.leopard.vpn;
 
+import android.app.Activity;
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
 import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.reflect.TypeToken;
+import com.google.gson.stream.JsonReader;
 
+import java.io.File;
 import java.io.IOException;
-import java.security.SecureRandom;
-import java.security.cert.CertificateException;
-import java.security.cert.X509Certificate;
+import java.net.InetSocketAddress;
+import java.net.Proxy;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
-import javax.net.ssl.HostnameVerifier;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSession;
-import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManager;
-import javax.net.ssl.X509TrustManager;
-
+import okhttp3.Cache;
+import okhttp3.CacheControl;
 import okhttp3.Call;
 import okhttp3.Callback;
+import okhttp3.Connection;
+import okhttp3.ConnectionPool;
+import okhttp3.Dispatcher;
+import okhttp3.EventListener;
 import okhttp3.FormBody;
 import okhttp3.Headers;
 import okhttp3.HttpUrl;
 import okhttp3.MediaType;
 import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
 import okhttp3.Request;
 import okhttp3.RequestBody;
 import okhttp3.Response;
 
+/**
+ * The HTTP client of the app, shared by all requests.
+ *
+ * One OkHttpClient keeps a pool of connections (HTTP/2 where the server supports it, so requests
+ * to the same host share one connection), a bounded dispatcher and an on-disk response cache of
+ * {@link #CACHE_SIZE}. Responses are gzip compressed transparently as long as the caller does not
+ * set Accept-Encoding itself. Cache hits and connection reuse are counted.
+ *
+ * Identical GET requests share one call while it runs and the answer is reused for
+ * {@link #MEMO_TTL_MS} after it, so a burst of the same request only reaches the network once.
+ * Requests with Cache-Control no-store or no-cache still share a running call, but never get an
+ * answer that arrived before they were made.
+ *
+ * Listeners are called on the UI thread of the request's Activity unless the request has its own
+ * dispatch executor, e.g. {@link #DIRECT} to stay on the thread that read the response or
+ * {@link #BACKGROUND} to keep them off the UI thread and out of the client's threads. They get the
+ * response headers as they came, nothing is copied for them. JSON responses can be decoded into
+ * typed objects straight from the stream, on the thread that reads the response, with a shared
+ * Gson instance.
+ */
 public class RequestNetworkController {
 	public static final String GET = "GET";
 	public static final String POST = "POST";
@@ -38,9 +74,115 @@ public class RequestNetworkController {
 	
 	private static final int SOCKETTIMEOUT = 15000;
 	private static final int READTIMEOUT = 25000;
+	private static final int MAX_REQUESTS = 16;
+	private static final int MAX_REQUESTS_PER_HOST = 4;
+	private static final int MAX_IDLE_CONNECTIONS = 5;
+	private static final long KEEP_ALIVE_MINUTES = 5;
+	/* A subdirectory, DataCleanManager only deletes the files at the top of the cache dir */
+	private static final String CACHE_DIR = "http";
+	static final long CACHE_SIZE = 10 * 1024 * 1024;
+	/* Answers to GET requests are given to identical requests for this long */
+	static final long MEMO_TTL_MS = 2000;
+	
+	/**
+	 * Calls listeners on the background thread that read the response
+	 */
+	public static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(Runnable command) {
+			command.run();
+		}
+	};
+	
+	/**
+	 * Calls listeners one after the other on a thread of their own
+	 */
+	public static final Executor BACKGROUND = Executors.newSingleThreadExecutor(new ThreadFactory() {
+		@Override
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, "RequestNetwork");
+			t.setDaemon(true);
+			return t;
+		}
+	});
+	
+	/**
+	 * Calls listeners on the main thread, also without an Activity
+	 */
+	public static final Executor MAIN = new Executor() {
+		/* Created on first use, so the class also loads where there is no main looper */
+		private Handler handler;
+		
+		@Override
+		public synchronized void execute(Runnable command) {
+			if (handler == null) {
+				handler = new Handler(Looper.getMainLooper());
+			}
+			handler.post(command);
+		}
+	};
+	
+	private static final Gson GSON = new Gson();
 	
 	protected OkHttpClient client;
 	
+	private final AtomicInteger connectionsAcquired = new AtomicInteger();
+	private final AtomicInteger connectionsOpened = new AtomicInteger();
+	private final AtomicInteger callsSaved = new AtomicInteger();
+	
+	/* All running calls */
+	private final HashSet<Flight> flights = new HashSet<>();
+	/* Running GET calls, by request */
+	private final HashMap<String, Flight> sharedFlights = new HashMap<>();
+	private final HashMap<String, Memo> memos = new HashMap<>();
+	
+	/**
+	 * Turns the response of a call into the answer for its listeners, on the thread that reads it
+	 */
+	private interface BodyReader {
+		Object read(Response response) throws IOException;
+	}
+	
+	private abstract static class Waiter {
+		final RequestNetwork requestNetwork;
+		final String tag;
+		
+		Waiter(RequestNetwork requestNetwork, String tag) {
+			this.requestNetwork = requestNetwork;
+			this.tag = tag;
+		}
+		
+		abstract void onResponse(Object body, Headers headers);
+		
+		abstract void onError(String message);
+	}
+	
+	private static class Flight {
+		/* null if the call is not shared */
+		final String key;
+		/* If the answer may be given to identical requests after the call */
+		final boolean memoize;
+		final ArrayList<Waiter> waiters = new ArrayList<>();
+		Call call;
+		
+		Flight(String key, boolean memoize) {
+			this.key = key;
+			this.memoize = memoize;
+		}
+	}
+	
+	private static class Memo {
+		final Object body;
+		final Headers headers;
+		final long at;
+		
+		Memo(Object body, Headers headers, long at) {
+			this.body = body;
+			this.headers = headers;
+			this.at = at;
+		}
+	}
+	
 	private static RequestNetworkController mInstance;
 	
 	public static synchronized RequestNetworkController getInstance() {
@@ -50,53 +192,398 @@ public class RequestNetworkController {
 		return mInstance;
 	}
 	
-	private OkHttpClient getClient() {
+	public synchronized OkHttpClient getClient() {
 		if (client == null) {
 			OkHttpClient.Builder builder = new OkHttpClient.Builder();
 			
-			try {
-				final TrustManager[] trustAllCerts = new TrustManager[]{
-					new X509TrustManager() {
-						@Override
-						public void checkClientTrusted(X509Certificate[] chain, String authType)
-						throws CertificateException {
+			Dispatcher dispatcher = new Dispatcher();
+			dispatcher.setMaxRequests(MAX_REQUESTS);
+			dispatcher.setMaxRequestsPerHost(MAX_REQUESTS_PER_HOST);
+			builder.dispatcher(dispatcher);
+			builder.connectionPool(new ConnectionPool(MAX_IDLE_CONNECTIONS, KEEP_ALIVE_MINUTES, TimeUnit.MINUTES));
+			builder.protocols(Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1));
+			builder.eventListener(new EventListener() {
+				@Override
+				public void connectEnd(Call call, InetSocketAddress inetSocketAddress, Proxy proxy, Protocol protocol) {
+					connectionsOpened.incrementAndGet();
+				}
+				
+				@Override
+				public void connectionAcquired(Call call, Connection connection) {
+					connectionsAcquired.incrementAndGet();
+				}
+			});
+			Context context = SamiunApplication.getContext();
+			if (context != null) {
+				builder.cache(new Cache(new File(context.getCacheDir(), CACHE_DIR), CACHE_SIZE));
+			}
+			
+			// Certificates and host names are checked by the platform, the profiles downloaded with
+			// this client carry the CA that openvpn trusts
+			builder.connectTimeout(SOCKETTIMEOUT, TimeUnit.MILLISECONDS);
+			builder.readTimeout(READTIMEOUT, TimeUnit.MILLISECONDS);
+			builder.writeTimeout(READTIMEOUT, TimeUnit.MILLISECONDS);
+			
+			client = builder.build();
+		}
+		
+		return client;
+	}
+	
+	/**
+	 * Drops the idle connections, e.g. because the VPN changed the route they were opened on
+	 */
+	public void evictConnections() {
+		getClient().connectionPool().evictAll();
+	}
+	
+	/**
+	 * @return the share of the requests that used the cache, 0 if nothing was requested yet
+	 */
+	public double getCacheHitRatio() {
+		Cache cache = getClient().cache();
+		if (cache == null || cache.requestCount() == 0) {
+			return 0;
+		}
+		return (double) cache.hitCount() / cache.requestCount();
+	}
+	
+	public int getCacheHitCount() {
+		Cache cache = getClient().cache();
+		return cache == null ? 0 : cache.hitCount();
+	}
+	
+	/**
+	 * @return how often a request was sent over a connection that was already open
+	 */
+	public int getConnectionReuseCount() {
+		return Math.max(0, connectionsAcquired.get() - connectionsOpened.get());
+	}
+	
+	public int getConnectionOpenCount() {
+		return connectionsOpened.get();
+	}
+	
+	/**
+	 * @return how many requests were answered by a running or a just finished identical call
+	 */
+	public int getSavedCallCount() {
+		return callsSaved.get();
+	}
+	
+	public void execute(final RequestNetwork requestNetwork, String method, String url, final String tag, final RequestNetwork.RequestListener requestListener) {
+		Request req;
+		try {
+			req = buildRequest(requestNetwork, method, url);
+		} catch (Exception e) {
+			deliverError(requestNetwork, tag, requestListener, e.getMessage());
+			return;
+		}
+		start(req, "text", new Waiter(requestNetwork, tag) {
+			@Override
+			void onResponse(Object body, Headers headers) {
+				deliverResponse(this, requestListener, (String) body, headers);
+			}
+			
+			@Override
+			void onError(String message) {
+				deliverError(this, requestListener, message);
+			}
+		}, new BodyReader() {
+			@Override
+			public Object read(Response response) throws IOException {
+				return response.body().string().trim();
+			}
+		});
+	}
+	
+	/**
+	 * Starts a call for a request, or adds the waiter to an identical GET call that is running.
+	 * The answer is remembered for {@link #MEMO_TTL_MS} unless the request forbids it.
+	 *
+	 * @param kind what the reader makes of the body, requests of another kind never share a call.
+	 *             null if the body can be read only once.
+	 */
+	private void start(Request req, String kind, Waiter waiter, final BodyReader reader) {
+		String key = kind != null && req.method().equals(GET) ? kind + "\n" + req.url() + "\n" + req.headers() : null;
+		boolean memoize = key != null && isStorable(req);
+		Memo memo = null;
+		synchronized (this) {
+			if (memoize) {
+				memo = memos.get(key);
+				if (memo != null && now() - memo.at >= MEMO_TTL_MS) {
+					memo = null;
+				}
+			}
+			if (memo == null) {
+				Flight running = key != null ? sharedFlights.get(key) : null;
+				if (running != null) {
+					callsSaved.incrementAndGet();
+					running.waiters.add(waiter);
+					return;
+				}
+				final Flight flight = new Flight(key, memoize);
+				flight.waiters.add(waiter);
+				flights.add(flight);
+				if (key != null) {
+					sharedFlights.put(key, flight);
+				}
+				flight.call = getClient().newCall(req);
+				flight.call.enqueue(new Callback() {
+					@Override
+					public void onFailure(Call call, IOException e) {
+						for (Waiter waiting : land(flight, null)) {
+							waiting.onError(e.getMessage());
+						}
+					}
+					
+					@Override
+					public void onResponse(Call call, Response response) {
+						synchronized (RequestNetworkController.this) {
+							// Cancelled while the headers were on their way
+							if (flight.waiters.isEmpty()) {
+								response.close();
+								return;
+							}
 						}
-						
-						@Override
-						public void checkServerTrusted(X509Certificate[] chain, String authType)
-						throws CertificateException {
+						Object body;
+						try {
+							body = reader.read(response);
+						} catch (IOException e) {
+							onFailure(call, e);
+							return;
+						} catch (RuntimeException e) {
+							// E.g. a throwing stream listener, the call must still end for its waiters
+							onFailure(call, new IOException(e.getMessage(), e));
+							return;
+						} finally {
+							response.close();
 						}
-						
-						@Override
-						public X509Certificate[] getAcceptedIssuers() {
-							return new X509Certificate[]{};
+						Headers headers = response.headers();
+						Memo memo = flight.memoize && response.isSuccessful() ? new Memo(body, headers, now()) : null;
+						for (Waiter waiting : land(flight, memo)) {
+							waiting.onResponse(body, headers);
 						}
 					}
-				};
-				
-				final SSLContext sslContext = SSLContext.getInstance("TLS");
-				sslContext.init(null, trustAllCerts, new SecureRandom());
-				final SSLSocketFactory sslSocketFactory = sslContext.getSocketFactory();
-				builder.sslSocketFactory(sslSocketFactory, (X509TrustManager) trustAllCerts[0]);
-				builder.connectTimeout(SOCKETTIMEOUT, TimeUnit.MILLISECONDS);
-				builder.readTimeout(READTIMEOUT, TimeUnit.MILLISECONDS);
-				builder.writeTimeout(READTIMEOUT, TimeUnit.MILLISECONDS);
-				builder.hostnameVerifier(new HostnameVerifier() {
+				});
+				return;
+			}
+		}
+		// Outside of the lock, the listener may run right here
+		callsSaved.incrementAndGet();
+		waiter.onResponse(memo.body, memo.headers);
+	}
+	
+	/**
+	 * @return if the answer to a request may be kept after its call ended
+	 */
+	private static boolean isStorable(Request req) {
+		CacheControl cacheControl = req.cacheControl();
+		return !cacheControl.noStore() && !cacheControl.noCache();
+	}
+	
+	/* Monotonic, and unlike SystemClock also there in unit tests */
+	private static long now() {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+	}
+	
+	/**
+	 * Ends a call
+	 *
+	 * @return the listeners waiting for its answer
+	 */
+	private synchronized ArrayList<Waiter> land(Flight flight, Memo memo) {
+		flights.remove(flight);
+		if (flight.key != null) {
+			if (sharedFlights.get(flight.key) == flight) {
+				sharedFlights.remove(flight.key);
+			}
+			long now = now();
+			Iterator<Memo> it = memos.values().iterator();
+			while (it.hasNext()) {
+				if (now - it.next().at >= MEMO_TTL_MS) {
+					it.remove();
+				}
+			}
+			if (memo != null) {
+				memos.put(flight.key, memo);
+			}
+		}
+		return new ArrayList<>(flight.waiters);
+	}
+	
+	/**
+	 * Drops the listeners of a RequestNetwork, e.g. because its Activity is destroyed. Calls
+	 * nobody waits for anymore are cancelled.
+	 */
+	public synchronized void cancel(RequestNetwork requestNetwork) {
+		Iterator<Flight> it = flights.iterator();
+		while (it.hasNext()) {
+			Flight flight = it.next();
+			Iterator<Waiter> waiters = flight.waiters.iterator();
+			while (waiters.hasNext()) {
+				if (waiters.next().requestNetwork == requestNetwork) {
+					waiters.remove();
+				}
+			}
+			if (flight.waiters.isEmpty()) {
+				it.remove();
+				if (flight.key != null && sharedFlights.get(flight.key) == flight) {
+					sharedFlights.remove(flight.key);
+				}
+				flight.call.cancel();
+			}
+		}
+	}
+	
+	/**
+	 * Runs a callback on the UI thread of the request's Activity, unless the Activity is gone.
+	 * Requests with their own executor call their listeners with it, requests with neither an
+	 * executor nor an Activity on the main thread.
+	 */
+	private static void dispatch(RequestNetwork requestNetwork, final Runnable callback) {
+		final Activity activity = requestNetwork.getActivity();
+		Runnable guarded = new Runnable() {
+			@Override
+			public void run() {
+				if (activity == null || !activity.isDestroyed()) {
+					callback.run();
+				}
+			}
+		};
+		Executor executor = requestNetwork.getDispatchExecutor();
+		if (executor != null) {
+			executor.execute(guarded);
+		} else if (activity != null) {
+			activity.runOnUiThread(guarded);
+		} else {
+			MAIN.execute(guarded);
+		}
+	}
+	
+	private static void deliverResponse(final Waiter waiter, final RequestNetwork.RequestListener listener, final String responseBody, final Headers headers) {
+		dispatch(waiter.requestNetwork, new Runnable() {
+			@Override
+			public void run() {
+				listener.onResponse(waiter.tag, responseBody, headers);
+			}
+		});
+	}
+	
+	private static void deliverError(final Waiter waiter, final RequestNetwork.RequestListener listener, final String message) {
+		deliverError(waiter.requestNetwork, waiter.tag, listener, message);
+	}
+	
+	/* Also for requests that could not be built, listeners always get their calls the same way */
+	private static void deliverError(RequestNetwork requestNetwork, final String tag, final RequestNetwork.RequestListener listener, final String message) {
+		dispatch(requestNetwork, new Runnable() {
+			@Override
+			public void run() {
+				listener.onErrorResponse(tag, message);
+			}
+		});
+	}
+	
+	/**
+	 * Decodes a JSON response into an object of the given type while it is read, on the thread
+	 * that reads the response. Only the decoded object is handed to the dispatch executor.
+	 * Listeners of identical requests that share a call get the same object.
+	 */
+	public <T> void executeJson(final RequestNetwork requestNetwork, String method, String url, final String tag, TypeToken<T> type, final RequestNetwork.JsonListener<T> jsonListener) {
+		Request req;
+		try {
+			req = buildRequest(requestNetwork, method, url);
+		} catch (final Exception e) {
+			dispatch(requestNetwork, new Runnable() {
+				@Override
+				public void run() {
+					jsonListener.onErrorResponse(tag, e.getMessage());
+				}
+			});
+			return;
+		}
+		// Gson keeps the adapter of a type once it was created
+		final TypeAdapter<T> adapter = GSON.getAdapter(type);
+		start(req, "json " + type, new Waiter(requestNetwork, tag) {
+			@Override
+			@SuppressWarnings("unchecked")
+			void onResponse(final Object body, final Headers headers) {
+				dispatch(requestNetwork, new Runnable() {
 					@Override
-					public boolean verify(String hostname, SSLSession session) {
-						return true;
+					public void run() {
+						jsonListener.onResponse(tag, (T) body, headers);
 					}
 				});
-			} catch (Exception e) {
 			}
 			
-			client = builder.build();
+			@Override
+			void onError(final String message) {
+				dispatch(requestNetwork, new Runnable() {
+					@Override
+					public void run() {
+						jsonListener.onErrorResponse(tag, message);
+					}
+				});
+			}
+		}, new BodyReader() {
+			@Override
+			public Object read(Response response) throws IOException {
+				if (!response.isSuccessful()) {
+					throw new IOException("HTTP " + response.code());
+				}
+				try {
+					return adapter.read(new JsonReader(response.body().charStream()));
+				} catch (RuntimeException e) {
+					// Gson reports malformed JSON with unchecked exceptions
+					throw new IOException(e.getMessage());
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Like {@link #execute} but hands the body to the listener as a stream, on a background
+	 * thread, so large responses are never held in memory as a whole. The body can be read only
+	 * once, so the call is never shared.
+	 */
+	public void executeStream(final RequestNetwork requestNetwork, String method, String url, final String tag, final RequestNetwork.StreamListener streamListener) {
+		Request req;
+		try {
+			req = buildRequest(requestNetwork, method, url);
+		} catch (final Exception e) {
+			dispatch(requestNetwork, new Runnable() {
+				@Override
+				public void run() {
+					streamListener.onErrorResponse(tag, e.getMessage());
+				}
+			});
+			return;
 		}
-		
-		return client;
+		start(req, null, new Waiter(requestNetwork, tag) {
+			@Override
+			void onResponse(Object body, Headers headers) {
+				// The listener already had the body
+			}
+			
+			@Override
+			void onError(final String message) {
+				dispatch(requestNetwork, new Runnable() {
+					@Override
+					public void run() {
+						streamListener.onErrorResponse(tag, message);
+					}
+				});
+			}
+		}, new BodyReader() {
+			@Override
+			public Object read(Response response) throws IOException {
+				streamListener.onResponse(tag, response.body().byteStream(), response.headers());
+				return null;
+			}
+		});
 	}
 	
-	public void execute(final RequestNetwork requestNetwork, String method, String url, final String tag, final RequestNetwork.RequestListener requestListener) {
+	private Request buildRequest(RequestNetwork requestNetwork, String method, String url) {
 		Request.Builder reqBuilder = new Request.Builder();
 		Headers.Builder headerBuilder = new Headers.Builder();
 		
@@ -108,81 +595,49 @@ public class RequestNetworkController {
 			}
 		}
 		
-		try {
-			if (requestNetwork.getRequestType() == REQUESTPARAM) {
-				if (method.equals(GET)) {
-					HttpUrl.Builder httpBuilder;
-					
-					try {
-						httpBuilder = HttpUrl.parse(url).newBuilder();
-					} catch (NullPointerException ne) {
-						throw new NullPointerException("unexpected url: " + url);
-					}
+		if (requestNetwork.getRequestType() == REQUESTPARAM) {
+			if (method.equals(GET)) {
+				HttpUrl.Builder httpBuilder;
+				
+				try {
+					httpBuilder = HttpUrl.parse(url).newBuilder();
+				} catch (NullPointerException ne) {
+					throw new NullPointerException("unexpected url: " + url);
+				}
+				
+				if (requestNetwork.getParams().size() > 0) {
+					HashMap<String, Object> params = requestNetwork.getParams();
 					
-					if (requestNetwork.getParams().size() > 0) {
-						HashMap<String, Object> params = requestNetwork.getParams();
-						
-						for (HashMap.Entry<String, Object> param : params.entrySet()) {
-							httpBuilder.addQueryParameter(param.getKey(), String.valueOf(param.getValue()));
-						}
+					for (HashMap.Entry<String, Object> param : params.entrySet()) {
+						httpBuilder.addQueryParameter(param.getKey(), String.valueOf(param.getValue()));
 					}
+				}
+				
+				reqBuilder.url(httpBuilder.build()).headers(headerBuilder.build()).get();
+			} else {
+				FormBody.Builder formBuilder = new FormBody.Builder();
+				if (requestNetwork.getParams().size() > 0) {
+					HashMap<String, Object> params = requestNetwork.getParams();
 					
-					reqBuilder.url(httpBuilder.build()).headers(headerBuilder.build()).get();
-				} else {
-					FormBody.Builder formBuilder = new FormBody.Builder();
-					if (requestNetwork.getParams().size() > 0) {
-						HashMap<String, Object> params = requestNetwork.getParams();
-						
-						for (HashMap.Entry<String, Object> param : params.entrySet()) {
-							formBuilder.add(param.getKey(), String.valueOf(param.getValue()));
-						}
+					for (HashMap.Entry<String, Object> param : params.entrySet()) {
+						formBuilder.add(param.getKey(), String.valueOf(param.getValue()));
 					}
-					
-					RequestBody reqBody = formBuilder.build();
-					
-					reqBuilder.url(url).headers(headerBuilder.build()).method(method, reqBody);
 				}
-			} else {
-				RequestBody reqBody = RequestBody.create(MediaType.parse("application/json"), new Gson().toJson(requestNetwork.getParams()));
 				
-				if (method.equals(GET)) {
-					reqBuilder.url(url).headers(headerBuilder.build()).get();
-				} else {
-					reqBuilder.url(url).headers(headerBuilder.build()).method(method, reqBody);
-				}
+				RequestBody reqBody = formBuilder.build();
+				
+				reqBuilder.url(url).headers(headerBuilder.build()).method(method, reqBody);
 			}
+		} else {
+			RequestBody reqBody = RequestBody.create(MediaType.parse("application/json"), GSON.toJson(requestNetwork.getParams()));
 			
-			Request req = reqBuilder.build();
-			
-			getClient().newCall(req).enqueue(new Callback() {
-				@Override
-				public void onFailure(Call call, final IOException e) {
-					requestNetwork.getActivity().runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							requestListener.onErrorResponse(tag, e.getMessage());
-						}
-					});
-				}
-				
-				@Override
-				public void onResponse(Call call, final Response response) throws IOException {
-					final String responseBody = response.body().string().trim();
-					requestNetwork.getActivity().runOnUiThread(new Runnable() {
-						@Override
-						public void run() {
-							Headers b = response.headers();
-							HashMap<String, Object> map = new HashMap<>();
-							for (String s : b.names()) {
-								map.put(s, b.get(s) != null ? b.get(s) : "null");
-							}
-							requestListener.onResponse(tag, responseBody, map);
-						}
-					});
-				}
-			});
-		} catch (Exception e) {
-			requestListener.onErrorResponse(tag, e.getMessage());
+			if (method.equals(GET)) {
+				reqBuilder.url(url).headers(headerBuilder.build()).get();
+			} else {
+				reqBuilder.url(url).headers(headerBuilder.build()).method(method, reqBody);
+			}
 		}
+		
+		return reqBuilder.build();
 	}
 }
\ No newline at end of file
@@ -0,0 +1,294 @@
+package com.leopard.vpn;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import de.blinkt.openvpn.core.VpnStatus;
+
+/**
+ * The server lists of the last run, so they can be shown before the database answers.
+ *
+ * For every tier the catalog keeps the servers (name, ovpn url, icon) with their last measured
+ * latency in a small file in the app's files directory. The lists update it as child events
+ * arrive; only a state that differs from the stored one is written, a second after the last
+ * change, as a new revision of the file. Restoring a tier also hands the stored latencies to the
+ * {@link LatencyProber}, so the list is sorted right away.
+ *
+ * The file is read and written on the catalog's own thread, never on the main thread. A restore
+ * waits there for the file to be read and reports the servers to its listener afterwards.
+ */
+public class ServerCatalog {
+    public static final String TIER_FREE = "free";
+    static final String FILE_NAME = "servers.catalog";
+    private static final int MAGIC = 0x53435447; // "SCTG"
+    private static final int CATALOG_VERSION = 1;
+    static final long SAVE_DELAY_MS = 1000;
+
+    private static ServerCatalog instance;
+
+    private static long coldStartMillis = -1;
+    private static long warmStartMillis = -1;
+
+    private static final ScheduledExecutorService saveExecutor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ServerCatalog");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+
+    public interface RestoreListener {
+        /**
+         * @param servers the stored servers of the tier in display order, empty if there are none
+         */
+        void onRestored(ArrayList<ServerList.Server> servers);
+    }
+
+    private static class Record {
+        final ServerList.Server server;
+        final long rttMs;
+        final long measuredAt;
+
+        Record(ServerList.Server server, long rttMs, long measuredAt) {
+            this.server = server;
+            this.rttMs = rttMs;
+            this.measuredAt = measuredAt;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Record))
+                return false;
+            Record other = (Record) o;
+            return server.equals(other.server) && rttMs == other.rttMs && measuredAt == other.measuredAt;
+        }
+
+        @Override
+        public int hashCode() {
+            return server.hashCode();
+        }
+    }
+
+    private final File file;
+    private final Executor callbackExecutor;
+    /* Servers of every tier in display order */
+    private final HashMap<String, ArrayList<Record>> tiers = new HashMap<>();
+    /* Number of the last written state of the file */
+    private long revision;
+    private boolean savePending;
+
+    ServerCatalog(File file, Executor callbackExecutor) {
+        this.file = file;
+        this.callbackExecutor = callbackExecutor;
+        // Restores and saves are queued behind the read
+        saveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                load();
+            }
+        });
+    }
+
+    /**
+     * @return the catalog that calls its listeners on the main thread
+     */
+    public static synchronized ServerCatalog getInstance(Context context) {
+        if (instance == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            instance = new ServerCatalog(new File(context.getApplicationContext().getFilesDir(), FILE_NAME), new Executor() {
+                @Override
+                public void execute(Runnable command) {
+                    handler.post(command);
+                }
+            });
+        }
+        return instance;
+    }
+
+    /**
+     * Records how long it took from opening the server list until servers were visible
+     *
+     * @param warm true if the servers came from the catalog, false if they had to be fetched
+     */
+    public static void reportListVisible(boolean warm, long millis) {
+        if (warm)
+            warmStartMillis = millis;
+        else
+            coldStartMillis = millis;
+        VpnStatus.logDebug(String.format(Locale.US, "Server list visible after %d ms (%s start)", millis, warm ? "warm" : "cold"));
+    }
+
+    /**
+     * @return the time until the list was visible without a catalog, -1 if not measured
+     */
+    public static long getColdStartMillis() {
+        return coldStartMillis;
+    }
+
+    /**
+     * @return the time until the list was visible from the catalog, -1 if not measured
+     */
+    public static long getWarmStartMillis() {
+        return warmStartMillis;
+    }
+
+    public synchronized long getRevision() {
+        return revision;
+    }
+
+    /**
+     * Hands the stored servers of a tier to the listener and their latencies to the prober, once
+     * the file is read
+     */
+    public void restore(final String tier, final LatencyProber prober, final RestoreListener listener) {
+        saveExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                final ArrayList<ServerList.Server> servers = new ArrayList<>();
+                synchronized (ServerCatalog.this) {
+                    ArrayList<Record> records = tiers.get(tier);
+                    if (records != null) {
+                        for (Record record : records) {
+                            servers.add(record.server);
+                            if (record.measuredAt > 0)
+                                prober.seed(record.server.url, record.rttMs, record.measuredAt);
+                        }
+                    }
+                }
+                callbackExecutor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        listener.onRestored(servers);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Stores the current servers of a tier, the file is written in the background if they
+     * differ from the stored ones
+     */
+    public synchronized void update(String tier, ServerList list, LatencyProber prober) {
+        ArrayList<Record> records = new ArrayList<>(list.size());
+        for (ServerList.Server server : list.getServers())
+            records.add(new Record(server, prober.getLatency(server.url), prober.getMeasuredAt(server.url)));
+        if (records.equals(tiers.get(tier)))
+            return;
+        tiers.put(tier, records);
+        if (savePending)
+            return;
+        savePending = true;
+        saveExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                save();
+            }
+        }, SAVE_DELAY_MS, TimeUnit.MILLISECONDS);
+    }
+
+    private void load() {
+        if (!file.exists())
+            return;
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC || in.readInt() != CATALOG_VERSION)
+                    throw new IOException("Unknown server catalog version");
+                long fileRevision = in.readLong();
+                int tierCount = in.readInt();
+                HashMap<String, ArrayList<Record>> read = new HashMap<>();
+                for (int t = 0; t < tierCount; t++) {
+                    String tier = in.readUTF();
+                    int count = in.readInt();
+                    ArrayList<Record> records = new ArrayList<>(Math.min(count, 1024));
+                    for (int i = 0; i < count; i++) {
+                        ServerList.Server server = new ServerList.Server(in.readUTF(), in.readUTF(),
+                                in.readUTF(), in.readUTF(), in.readBoolean());
+                        records.add(new Record(server, in.readLong(), in.readLong()));
+                    }
+                    read.put(tier, records);
+                }
+                synchronized (this) {
+                    // Tiers updated while the file was read are newer than the file
+                    for (Map.Entry<String, ArrayList<Record>> tier : read.entrySet()) {
+                        if (!tiers.containsKey(tier.getKey()))
+                            tiers.put(tier.getKey(), tier.getValue());
+                    }
+                    revision = fileRevision;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (IOException | RuntimeException e) {
+            // Only a copy of the database, it is filled again once it answers
+            //noinspection ResultOfMethodCallIgnored
+            file.delete();
+        }
+    }
+
+    private void save() {
+        HashMap<String, ArrayList<Record>> snapshot;
+        long nextRevision;
+        synchronized (this) {
+            savePending = false;
+            snapshot = new HashMap<>(tiers);
+            nextRevision = revision + 1;
+        }
+        File tmp = new File(file.getParentFile(), FILE_NAME + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(CATALOG_VERSION);
+                out.writeLong(nextRevision);
+                out.writeInt(snapshot.size());
+                for (Map.Entry<String, ArrayList<Record>> tier : snapshot.entrySet()) {
+                    out.writeUTF(tier.getKey());
+                    out.writeInt(tier.getValue().size());
+                    for (Record record : tier.getValue()) {
+                        out.writeUTF(record.server.key);
+                        out.writeUTF(record.server.title);
+                        out.writeUTF(record.server.url);
+                        out.writeUTF(record.server.icon);
+                        out.writeBoolean(record.server.condition);
+                        out.writeLong(record.rttMs);
+                        out.writeLong(record.measuredAt);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Could not replace " + file);
+            synchronized (this) {
+                revision = nextRevision;
+            }
+        } catch (IOException e) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            VpnStatus.logException("Saving the server catalog", e);
+        }
+    }
+}
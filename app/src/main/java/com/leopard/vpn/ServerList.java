@@ -0,0 +1,201 @@
+package com.leopard.vpn;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The servers of the server list, kept up to date from the child events of the database.
+ *
+ * Servers are stored by their child key, so an added or changed child is a single map update and
+ * only a removal has to search the display order. The display order is a list of keys, a changed
+ * server keeps its row. {@link #put} tells the caller whether a row changed or the rows moved, so
+ * the view can rebind one row instead of reloading the list.
+ */
+public class ServerList {
+    public enum Change {
+        /* The child is new, a row was added at the end */
+        ADDED,
+        /* Only the content of the server's row changed */
+        CHANGED,
+        /* The child is identical to the stored one */
+        UNCHANGED
+    }
+
+    /**
+     * One entry of the server list
+     */
+    public static class Server {
+        public final String key;
+        public final String title;
+        public final String url;
+        public final String icon;
+        /* False if the server is marked as busy, a server without a condition is not */
+        public final boolean condition;
+
+        Server(String key, String title, String url, String icon, boolean condition) {
+            this.key = key;
+            this.title = title;
+            this.url = url;
+            this.icon = icon;
+            this.condition = condition;
+        }
+
+        /**
+         * @param value the child as read from the database, missing fields become empty strings
+         */
+        public static Server fromMap(String key, Map<String, Object> value) {
+            if (value == null)
+                value = Collections.emptyMap();
+            Object condition = value.get("condition");
+            return new Server(key, stringOf(value.get("title")), stringOf(value.get("url")),
+                    stringOf(value.get("country_icon")), condition == null || "true".equals(condition.toString()));
+        }
+
+        private static String stringOf(Object value) {
+            return value == null ? "" : value.toString();
+        }
+
+        /**
+         * @return true if the server has everything needed to connect to it
+         */
+        public boolean isComplete() {
+            return !title.isEmpty() && !url.isEmpty();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Server))
+                return false;
+            Server other = (Server) o;
+            return key.equals(other.key) && title.equals(other.title) && url.equals(other.url)
+                    && icon.equals(other.icon) && condition == other.condition;
+        }
+
+        @Override
+        public int hashCode() {
+            return key.hashCode();
+        }
+    }
+
+    private final HashMap<String, Server> servers = new HashMap<>();
+    /* Keys in display order */
+    private final ArrayList<String> order = new ArrayList<>();
+    /* Ids that stay with a key as long as this list exists, for stable adapter ids */
+    private final HashMap<String, Long> ids = new HashMap<>();
+    private long nextId = 0;
+
+    /**
+     * Adds or updates the server of a child
+     */
+    public Change put(String key, Map<String, Object> value) {
+        return put(Server.fromMap(key, value));
+    }
+
+    public Change put(Server server) {
+        String key = server.key;
+        Server old = servers.put(key, server);
+        if (old == null) {
+            order.add(key);
+            if (!ids.containsKey(key))
+                ids.put(key, nextId++);
+            return Change.ADDED;
+        }
+        return old.equals(server) ? Change.UNCHANGED : Change.CHANGED;
+    }
+
+    /**
+     * @return false if there was no server with this key
+     */
+    public boolean remove(String key) {
+        if (servers.remove(key) == null)
+            return false;
+        order.remove(key);
+        return true;
+    }
+
+    /**
+     * Removes the servers whose keys are not in keys, e.g. after a full read of the database
+     *
+     * @return true if a server was removed
+     */
+    public boolean retain(Set<String> keys) {
+        boolean removed = false;
+        Iterator<String> it = order.iterator();
+        while (it.hasNext()) {
+            String key = it.next();
+            if (!keys.contains(key)) {
+                it.remove();
+                servers.remove(key);
+                removed = true;
+            }
+        }
+        return removed;
+    }
+
+    public int size() {
+        return order.size();
+    }
+
+    public Server get(int position) {
+        return servers.get(order.get(position));
+    }
+
+    public Server get(String key) {
+        return servers.get(key);
+    }
+
+    /**
+     * @return the row of the server, -1 if it is not in the list
+     */
+    public int indexOf(String key) {
+        return servers.containsKey(key) ? order.indexOf(key) : -1;
+    }
+
+    public long getId(int position) {
+        return ids.get(order.get(position));
+    }
+
+    /**
+     * @return the servers in display order
+     */
+    public ArrayList<Server> getServers() {
+        ArrayList<Server> list = new ArrayList<>(order.size());
+        for (String key : order)
+            list.add(servers.get(key));
+        return list;
+    }
+
+    /**
+     * @return the urls of all servers
+     */
+    public Collection<String> getUrls() {
+        ArrayList<String> urls = new ArrayList<>(order.size());
+        for (String key : order)
+            urls.add(servers.get(key).url);
+        return urls;
+    }
+
+    /**
+     * Orders the servers by their last measured latency, servers without one keep their order
+     * at the end
+     *
+     * @return true if the order changed
+     */
+    public boolean sortByLatency(final LatencyProber prober) {
+        ArrayList<String> before = new ArrayList<>(order);
+        Collections.sort(order, new Comparator<String>() {
+            @Override
+            public int compare(String a, String b) {
+                return LatencyProber.compareLatency(prober.getLatency(servers.get(a).url),
+                        prober.getLatency(servers.get(b).url));
+            }
+        });
+        return !before.equals(order);
+    }
+}
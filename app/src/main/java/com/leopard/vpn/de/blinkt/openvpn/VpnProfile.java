@@ -23,6 +23,9 @@ import com.leopard.vpn.R;
 import org.spongycastle.util.io.pem.PemObject;
 import org.spongycastle.util.io.pem.PemWriter;
 
+import java.io.BufferedWriter;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
@@ -30,6 +33,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.io.Serializable;
 import java.io.StringWriter;
+import java.io.Writer;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.security.InvalidKeyException;
@@ -38,6 +42,7 @@ import java.security.PrivateKey;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashSet;
 import java.util.Locale;
@@ -53,6 +58,7 @@ import de.blinkt.openvpn.core.Connection;
 import de.blinkt.openvpn.core.NativeUtils;
 import de.blinkt.openvpn.core.OpenVPNService;
 import de.blinkt.openvpn.core.PasswordCache;
+import de.blinkt.openvpn.core.ProfileStore;
 import de.blinkt.openvpn.core.VPNLaunchHelper;
 import de.blinkt.openvpn.core.VpnStatus;
 import de.blinkt.openvpn.core.X509Utils;
@@ -88,6 +94,8 @@ public class VpnProfile implements Serializable, Cloneable {
     public static final int AUTH_RETRY_NOINTERACT = 2;
     public static final boolean mIsOpenVPN22 = false;
     private static final long serialVersionUID = 7085688938959334563L;
+    /* Version of the format written by writeTo, bump it when fields are added */
+    private static final int BINARY_FORMAT_VERSION = 1;
     private static final int AUTH_RETRY_NONE_KEEP = 1;
     private static final int AUTH_RETRY_INTERACT = 3;
     public static String DEFAULT_DNS1 = "8.8.8.8";
@@ -162,6 +170,9 @@ public class VpnProfile implements Serializable, Cloneable {
     public String mServerPort = "11940";
     public boolean mUseUdp = true;
     private transient PrivateKey mPrivateKey;
+    /* Last rendered config and the inputs it was rendered from */
+    private transient Object[] mCachedConfigInputs;
+    private transient String mCachedConfig;
     // Public attributes, since I got mad with getter/setter
     // set members to default values
     private UUID mUuid;
@@ -177,6 +188,10 @@ public class VpnProfile implements Serializable, Cloneable {
         mLastUsed = System.currentTimeMillis();
     }
 
+    /* Only for readFrom, which sets all fields */
+    private VpnProfile() {
+    }
+
     public static String openVpnEscape(String unescaped) {
         if (unescaped == null) return null;
         String escapedString = unescaped.replace("\\", "\\\\");
@@ -198,6 +213,26 @@ public class VpnProfile implements Serializable, Cloneable {
         }
     }
 
+    /* TextUtils.isEmpty, without the framework so that writeConfig also runs in unit tests */
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+    private static void writeFileData(Writer out, String cfgentry, String filedata) throws IOException {
+        if (filedata == null) {
+            out.append(cfgentry).append(" file missing in config profile\n");
+        } else if (isEmbedded(filedata)) {
+            // Same as getEmbeddedContent, without copying the data
+            int tag = filedata.indexOf(INLINE_TAG);
+            int start = tag < 0 ? 0 : tag + INLINE_TAG.length();
+            out.append('<').append(cfgentry).append(">\n");
+            out.append(filedata, start, filedata.length());
+            out.append("\n</").append(cfgentry).append(">\n");
+        } else {
+            out.append(cfgentry).append(' ').append(openVpnEscape(filedata)).append('\n');
+        }
+    }
+
     public static String getDisplayName(String embeddedFile) {
         int start = DISPLAYNAME_TAG.length();
         int end = embeddedFile.indexOf(INLINE_TAG);
@@ -275,218 +310,321 @@ public class VpnProfile implements Serializable, Cloneable {
         mConnections[0] = conn;
     }
 
+    /**
+     * Returns the config for openvpn. It is rendered again only if the profile or one of the
+     * other inputs of the config changed since the last call.
+     */
     public String getConfigFile(Context context, boolean configForOvpn3) {
-        File cacheDir = context.getCacheDir();
-        String cfg = "";
+        return getConfigFile(context, getConfigEnvironment(context, configForOvpn3), configForOvpn3);
+    }
+
+    String getConfigFile(Context context, ConfigEnvironment env, boolean configForOvpn3) {
+        boolean cacheable = isConfigCacheable(configForOvpn3);
+        if (cacheable) {
+            Object[] inputs = getConfigInputs(env, configForOvpn3);
+            synchronized (this) {
+                if (Arrays.equals(inputs, mCachedConfigInputs)) return mCachedConfig;
+            }
+        }
+        StringWriter cfg = new StringWriter();
+        try {
+            writeConfig(cfg, context, env, configForOvpn3);
+        } catch (IOException e) {
+            // StringWriter does not throw
+            throw new RuntimeException(e);
+        }
+        String config = cfg.toString();
+        if (cacheable) {
+            // Taken after writeConfig, which fills in the connect-retry defaults
+            Object[] inputs = getConfigInputs(env, configForOvpn3);
+            synchronized (this) {
+                mCachedConfigInputs = inputs;
+                mCachedConfig = config;
+            }
+        }
+        return config;
+    }
+
+    /**
+     * @return false if the config contains certificates from the keystore, which are read again
+     * every time
+     */
+    private boolean isConfigCacheable(boolean configForOvpn3) {
+        return configForOvpn3 || (mAuthenticationType != TYPE_KEYSTORE && mAuthenticationType != TYPE_USERPASS_KEYSTORE);
+    }
+
+    /**
+     * Everything writeConfig reads. The profile version alone is not enough: the fields are
+     * public and get changed without saveProfile, which is what bumps the version. Unchanged
+     * Strings are the same instances, so comparing the inline certificates is cheap.
+     */
+    private Object[] getConfigInputs(ConfigEnvironment env, boolean configForOvpn3) {
+        Object[] profile = {mVersion, configForOvpn3, env.cacheDir, env.guiVersion, env.platformVersion, env.useSystemProxy,
+                mAuthenticationType, mUsePull, mConnectRetryMax, mConnectRetry, mConnectRetryMaxTime, mIsOpenVPN22, mUseUdp,
+                mRemoteRandom, mCaFilename, mClientKeyFilename, mClientCertFilename, mPKCS12Filename, mCrlFilename, mUseLzo,
+                mUseTLSAuth, mTLSAuthDirection, mTLSAuthFilename, mIPv4Address, mIPv6Address, mRoutenopull, mUseDefaultRoute,
+                mUseDefaultRoutev6, mCustomRoutes, mExcludedRoutes, mCustomRoutesv6, mOverrideDNS, mDNS1, mDNS2,
+                mSearchDomain, mMssFix, mTunMtu, mNobind, mCheckRemoteCN, mRemoteCN, mX509AuthType, mx509UsernameField,
+                mExpectTLSCert, mCipher, mAuth, mUseRandomHostname, mUseFloat, mPersistTun, mPushPeerInfo,
+                mUseCustomConfig, mCustomConfigOptions};
+        final int perConnection = 7;
+        Object[] inputs = Arrays.copyOf(profile, profile.length + perConnection * mConnections.length);
+        int i = profile.length;
+        for (Connection conn : mConnections) {
+            inputs[i++] = conn.mServerName;
+            inputs[i++] = conn.mServerPort;
+            inputs[i++] = conn.mUseUdp;
+            inputs[i++] = conn.mCustomConfiguration;
+            inputs[i++] = conn.mUseCustomConfig;
+            inputs[i++] = conn.mEnabled;
+            inputs[i++] = conn.mConnectTimeout;
+        }
+        return inputs;
+    }
+
+    /**
+     * The inputs of the config that come from the device and the app instead of the profile
+     */
+    static class ConfigEnvironment {
+        final String cacheDir;
+        final String guiVersion;
+        final String platformVersion;
+        final boolean useSystemProxy;
+
+        ConfigEnvironment(String cacheDir, String guiVersion, String platformVersion, boolean useSystemProxy) {
+            this.cacheDir = cacheDir;
+            this.guiVersion = guiVersion;
+            this.platformVersion = platformVersion;
+            this.useSystemProxy = useSystemProxy;
+        }
+    }
+
+    private ConfigEnvironment getConfigEnvironment(Context context, boolean configForOvpn3) {
+        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
+        String guiVersion = null;
+        String platformVersion = null;
+        if (!configForOvpn3) {
+            guiVersion = getVersionEnvString(context);
+            platformVersion = String.format(Locale.US, "%d %s %s %s %s %s", Build.VERSION.SDK_INT, Build.VERSION.RELEASE, NativeUtils.getNativeAPI(), Build.BRAND, Build.BOARD, Build.MODEL);
+        }
+        return new ConfigEnvironment(context.getCacheDir().getAbsolutePath(), guiVersion, platformVersion, prefs.getBoolean("usesystemproxy", true));
+    }
+
+    /**
+     * Writes the config for openvpn without building it as one String first
+     */
+    public void writeConfig(Writer out, Context context, boolean configForOvpn3) throws IOException {
+        writeConfig(out, context, getConfigEnvironment(context, configForOvpn3), configForOvpn3);
+    }
+
+    /**
+     * @param context only used for the certificates of keystore profiles
+     */
+    void writeConfig(Writer out, Context context, ConfigEnvironment env, boolean configForOvpn3) throws IOException {
         // Enable management interface
-        cfg += "# Enables connection to GUI\n";
-        cfg += "management ";
-        cfg += cacheDir.getAbsolutePath() + "/" + "mgmtsocket";
-        cfg += " unix\n";
-        cfg += "management-client\n";
+        out.append("# Enables connection to GUI\n");
+        out.append("management ");
+        out.append(env.cacheDir).append("/").append("mgmtsocket");
+        out.append(" unix\n");
+        out.append("management-client\n");
         // Not needed, see updated man page in 2.3
-        //cfg += "management-signal\n";
-        cfg += "management-query-passwords\n";
-        cfg += "management-hold\n\n";
+        //out.append("management-signal\n");
+        out.append("management-query-passwords\n");
+        out.append("management-hold\n\n");
         if (!configForOvpn3) {
-            cfg += String.format("setenv IV_GUI_VER %s \n", openVpnEscape(getVersionEnvString(context)));
-            String versionString = String.format(Locale.US, "%d %s %s %s %s %s", Build.VERSION.SDK_INT, Build.VERSION.RELEASE, NativeUtils.getNativeAPI(), Build.BRAND, Build.BOARD, Build.MODEL);
-            cfg += String.format("setenv IV_PLAT_VER %s\n", openVpnEscape(versionString));
+            out.append(String.format("setenv IV_GUI_VER %s \n", openVpnEscape(env.guiVersion)));
+            out.append(String.format("setenv IV_PLAT_VER %s\n", openVpnEscape(env.platformVersion)));
         }
-        cfg += "machine-readable-output\n";
-        cfg += "allow-recursive-routing\n";
+        out.append("machine-readable-output\n");
+        out.append("allow-recursive-routing\n");
         // Users are confused by warnings that are misleading...
-        cfg += "ifconfig-nowarn\n";
+        out.append("ifconfig-nowarn\n");
         boolean useTLSClient = (mAuthenticationType != TYPE_STATICKEYS);
-        if (useTLSClient && mUsePull) cfg += "client\n";
-        else if (mUsePull) cfg += "pull\n";
-        else if (useTLSClient) cfg += "tls-client\n";
-        //cfg += "verb " + mVerb + "\n";
-        cfg += "verb " + MAXLOGLEVEL + "\n";
+        if (useTLSClient && mUsePull) out.append("client\n");
+        else if (mUsePull) out.append("pull\n");
+        else if (useTLSClient) out.append("tls-client\n");
+        //out.append("verb " + mVerb + "\n");
+        out.append("verb " + MAXLOGLEVEL + "\n");
         if (mConnectRetryMax == null) {
             mConnectRetryMax = "-1";
         }
-        if (!mConnectRetryMax.equals("-1")) cfg += "connect-retry-max " + mConnectRetryMax + "\n";
-        if (TextUtils.isEmpty(mConnectRetry)) mConnectRetry = "2";
-        if (TextUtils.isEmpty(mConnectRetryMaxTime)) mConnectRetryMaxTime = "300";
-        if (!mIsOpenVPN22) cfg += "connect-retry " + mConnectRetry + " " + mConnectRetryMaxTime + "\n";
-        else if (mIsOpenVPN22 && mUseUdp) cfg += "connect-retry " + mConnectRetry + "\n";
-        cfg += "resolv-retry 60\n";
+        if (!mConnectRetryMax.equals("-1")) out.append("connect-retry-max " + mConnectRetryMax + "\n");
+        if (isEmpty(mConnectRetry)) mConnectRetry = "2";
+        if (isEmpty(mConnectRetryMaxTime)) mConnectRetryMaxTime = "300";
+        if (!mIsOpenVPN22) out.append("connect-retry " + mConnectRetry + " " + mConnectRetryMaxTime + "\n");
+        else if (mIsOpenVPN22 && mUseUdp) out.append("connect-retry " + mConnectRetry + "\n");
+        out.append("resolv-retry 60\n");
         // We cannot use anything else than tun
-        cfg += "dev tun\n";
+        out.append("dev tun\n");
         boolean canUsePlainRemotes = true;
         if (mConnections.length == 1) {
-            cfg += mConnections[0].getConnectionBlock();
+            mConnections[0].writeConnectionBlock(out);
         } else {
             for (Connection conn : mConnections) {
                 canUsePlainRemotes = canUsePlainRemotes && conn.isOnlyRemote();
             }
-            if (mRemoteRandom) cfg += "remote-random\n";
+            if (mRemoteRandom) out.append("remote-random\n");
             if (canUsePlainRemotes) {
                 for (Connection conn : mConnections) {
                     if (conn.mEnabled) {
-                        cfg += conn.getConnectionBlock();
+                        conn.writeConnectionBlock(out);
                     }
                 }
             }
         }
         switch (mAuthenticationType) {
             case VpnProfile.TYPE_USERPASS_CERTIFICATES:
-                cfg += "auth-user-pass\n";
+                out.append("auth-user-pass\n");
             case VpnProfile.TYPE_CERTIFICATES:
                 // Ca
-                cfg += insertFileData("ca", mCaFilename);
+                writeFileData(out, "ca", mCaFilename);
                 // Client Cert + Key
-                cfg += insertFileData("key", mClientKeyFilename);
-                cfg += insertFileData("cert", mClientCertFilename);
+                writeFileData(out, "key", mClientKeyFilename);
+                writeFileData(out, "cert", mClientCertFilename);
                 break;
             case VpnProfile.TYPE_USERPASS_PKCS12:
-                cfg += "auth-user-pass\n";
+                out.append("auth-user-pass\n");
             case VpnProfile.TYPE_PKCS12:
-                cfg += insertFileData("pkcs12", mPKCS12Filename);
+                writeFileData(out, "pkcs12", mPKCS12Filename);
                 break;
             case VpnProfile.TYPE_USERPASS_KEYSTORE:
-                cfg += "auth-user-pass\n";
+                out.append("auth-user-pass\n");
             case VpnProfile.TYPE_KEYSTORE:
                 if (!configForOvpn3) {
                     String[] ks = getKeyStoreCertificates(context);
-                    cfg += "### From Keystore ####\n";
+                    out.append("### From Keystore ####\n");
                     if (ks != null) {
-                        cfg += "<ca>\n" + ks[0] + "\n</ca>\n";
-                        if (ks[1] != null) cfg += "<extra-certs>\n" + ks[1] + "\n</extra-certs>\n";
-                        cfg += "<cert>\n" + ks[2] + "\n</cert>\n";
-                        cfg += "management-external-key\n";
+                        out.append("<ca>\n").append(ks[0]).append("\n</ca>\n");
+                        if (ks[1] != null) out.append("<extra-certs>\n").append(ks[1]).append("\n</extra-certs>\n");
+                        out.append("<cert>\n").append(ks[2]).append("\n</cert>\n");
+                        out.append("management-external-key\n");
                     } else {
-                        cfg += context.getString(R.string.keychain_access) + "\n";
-                        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.JELLY_BEAN) if (!mAlias.matches("^[a-zA-Z0-9]$")) cfg += context.getString(R.string.jelly_keystore_alphanumeric_bug) + "\n";
+                        out.append(context.getString(R.string.keychain_access) + "\n");
+                        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.JELLY_BEAN) if (!mAlias.matches("^[a-zA-Z0-9]$")) out.append(context.getString(R.string.jelly_keystore_alphanumeric_bug) + "\n");
                     }
                 }
                 break;
             case VpnProfile.TYPE_USERPASS:
-                cfg += "auth-user-pass\n";
-                cfg += insertFileData("ca", mCaFilename);
+                out.append("auth-user-pass\n");
+                writeFileData(out, "ca", mCaFilename);
         }
         if (isUserPWAuth()) {
-            if (mAuthenticationType == AUTH_RETRY_NOINTERACT) cfg += "auth-retry nointeract";
+            if (mAuthenticationType == AUTH_RETRY_NOINTERACT) out.append("auth-retry nointeract");
         }
-        if (!TextUtils.isEmpty(mCrlFilename)) cfg += insertFileData("crl-verify", mCrlFilename);
+        if (!isEmpty(mCrlFilename)) writeFileData(out, "crl-verify", mCrlFilename);
         if (mUseLzo) {
-            cfg += "comp-lzo\n";
+            out.append("comp-lzo\n");
         }
         if (mUseTLSAuth) {
             boolean useTlsCrypt = mTLSAuthDirection.equals("tls-crypt");
-            if (mAuthenticationType == TYPE_STATICKEYS) cfg += insertFileData("secret", mTLSAuthFilename);
-            else if (useTlsCrypt) cfg += insertFileData("tls-crypt", mTLSAuthFilename);
-            else cfg += insertFileData("tls-auth", mTLSAuthFilename);
-            if (!TextUtils.isEmpty(mTLSAuthDirection) && !useTlsCrypt) {
-                cfg += "key-direction ";
-                cfg += mTLSAuthDirection;
-                cfg += "\n";
+            if (mAuthenticationType == TYPE_STATICKEYS) writeFileData(out, "secret", mTLSAuthFilename);
+            else if (useTlsCrypt) writeFileData(out, "tls-crypt", mTLSAuthFilename);
+            else writeFileData(out, "tls-auth", mTLSAuthFilename);
+            if (!isEmpty(mTLSAuthDirection) && !useTlsCrypt) {
+                out.append("key-direction ");
+                out.append(mTLSAuthDirection);
+                out.append("\n");
             }
         }
         if (!mUsePull) {
-            if (!TextUtils.isEmpty(mIPv4Address)) cfg += "ifconfig " + cidrToIPAndNetmask(mIPv4Address) + "\n";
-            if (!TextUtils.isEmpty(mIPv6Address)) cfg += "ifconfig-ipv6 " + mIPv6Address + "\n";
+            if (!isEmpty(mIPv4Address)) out.append("ifconfig " + cidrToIPAndNetmask(mIPv4Address) + "\n");
+            if (!isEmpty(mIPv6Address)) out.append("ifconfig-ipv6 " + mIPv6Address + "\n");
         }
-        if (mUsePull && mRoutenopull) cfg += "route-nopull\n";
-        String routes = "";
-        if (mUseDefaultRoute) routes += "route 0.0.0.0 0.0.0.0 vpn_gateway\n";
+        if (mUsePull && mRoutenopull) out.append("route-nopull\n");
+        // The IPv6 default route has always been written before the other routes
+        if (mUseDefaultRoutev6) out.append("route-ipv6 ::/0\n");
+        if (mUseDefaultRoute) out.append("route 0.0.0.0 0.0.0.0 vpn_gateway\n");
         else {
             for (String route : getCustomRoutes(mCustomRoutes)) {
-                routes += "route " + route + " vpn_gateway\n";
+                out.append("route " + route + " vpn_gateway\n");
             }
             for (String route : getCustomRoutes(mExcludedRoutes)) {
-                routes += "route " + route + " net_gateway\n";
+                out.append("route " + route + " net_gateway\n");
             }
         }
-        if (mUseDefaultRoutev6) cfg += "route-ipv6 ::/0\n";
-        else for (String route : getCustomRoutesv6(mCustomRoutesv6)) {
-            routes += "route-ipv6 " + route + "\n";
+        if (!mUseDefaultRoutev6) for (String route : getCustomRoutesv6(mCustomRoutesv6)) {
+            out.append("route-ipv6 " + route + "\n");
         }
-        cfg += routes;
         if (mOverrideDNS || !mUsePull) {
-            if (!TextUtils.isEmpty(mDNS1)) {
-                if (mDNS1.contains(":")) cfg += "dhcp-option DNS6 " + mDNS1 + "\n";
-                else cfg += "dhcp-option DNS " + mDNS1 + "\n";
+            if (!isEmpty(mDNS1)) {
+                if (mDNS1.contains(":")) out.append("dhcp-option DNS6 " + mDNS1 + "\n");
+                else out.append("dhcp-option DNS " + mDNS1 + "\n");
             }
-            if (!TextUtils.isEmpty(mDNS2)) {
-                if (mDNS2.contains(":")) cfg += "dhcp-option DNS6 " + mDNS2 + "\n";
-                else cfg += "dhcp-option DNS " + mDNS2 + "\n";
+            if (!isEmpty(mDNS2)) {
+                if (mDNS2.contains(":")) out.append("dhcp-option DNS6 " + mDNS2 + "\n");
+                else out.append("dhcp-option DNS " + mDNS2 + "\n");
             }
-            if (!TextUtils.isEmpty(mSearchDomain)) cfg += "dhcp-option DOMAIN " + mSearchDomain + "\n";
+            if (!isEmpty(mSearchDomain)) out.append("dhcp-option DOMAIN " + mSearchDomain + "\n");
         }
         if (mMssFix != 0) {
             if (mMssFix != 1450) {
-                cfg += String.format(Locale.US, "mssfix %d\n", mMssFix);
-            } else cfg += "mssfix\n";
+                out.append(String.format(Locale.US, "mssfix %d\n", mMssFix));
+            } else out.append("mssfix\n");
         }
         if (mTunMtu >= 48 && mTunMtu != 1500) {
-            cfg += String.format(Locale.US, "tun-mtu %d\n", mTunMtu);
+            out.append(String.format(Locale.US, "tun-mtu %d\n", mTunMtu));
         }
-        if (mNobind) cfg += "nobind\n";
+        if (mNobind) out.append("nobind\n");
         // Authentication
         if (mAuthenticationType != TYPE_STATICKEYS) {
             if (mCheckRemoteCN) {
-                if (mRemoteCN == null || mRemoteCN.equals("")) cfg += "verify-x509-name " + openVpnEscape(mConnections[0].mServerName) + " name\n";
+                if (mRemoteCN == null || mRemoteCN.equals("")) out.append("verify-x509-name " + openVpnEscape(mConnections[0].mServerName) + " name\n");
                 else switch (mX509AuthType) {
                     // 2.2 style x509 checks
                     case X509_VERIFY_TLSREMOTE_COMPAT_NOREMAPPING:
-                        cfg += "compat-names no-remapping\n";
+                        out.append("compat-names no-remapping\n");
                     case X509_VERIFY_TLSREMOTE:
-                        cfg += "tls-remote " + openVpnEscape(mRemoteCN) + "\n";
+                        out.append("tls-remote " + openVpnEscape(mRemoteCN) + "\n");
                         break;
                     case X509_VERIFY_TLSREMOTE_RDN:
-                        cfg += "verify-x509-name " + openVpnEscape(mRemoteCN) + " name\n";
+                        out.append("verify-x509-name " + openVpnEscape(mRemoteCN) + " name\n");
                         break;
                     case X509_VERIFY_TLSREMOTE_RDN_PREFIX:
-                        cfg += "verify-x509-name " + openVpnEscape(mRemoteCN) + " name-prefix\n";
+                        out.append("verify-x509-name " + openVpnEscape(mRemoteCN) + " name-prefix\n");
                         break;
                     case X509_VERIFY_TLSREMOTE_DN:
-                        cfg += "verify-x509-name " + openVpnEscape(mRemoteCN) + "\n";
+                        out.append("verify-x509-name " + openVpnEscape(mRemoteCN) + "\n");
                         break;
                 }
-                if (!TextUtils.isEmpty(mx509UsernameField)) cfg += "x509-username-field " + openVpnEscape(mx509UsernameField) + "\n";
+                if (!isEmpty(mx509UsernameField)) out.append("x509-username-field " + openVpnEscape(mx509UsernameField) + "\n");
             }
-            if (mExpectTLSCert) cfg += "remote-cert-tls server\n";
+            if (mExpectTLSCert) out.append("remote-cert-tls server\n");
         }
-        if (!TextUtils.isEmpty(mCipher)) {
-            cfg += "cipher " + mCipher + "\n";
+        if (!isEmpty(mCipher)) {
+            out.append("cipher " + mCipher + "\n");
         }
-        if (!TextUtils.isEmpty(mAuth)) {
-            cfg += "auth " + mAuth + "\n";
+        if (!isEmpty(mAuth)) {
+            out.append("auth " + mAuth + "\n");
         }
         // Obscure Settings dialog
-        if (mUseRandomHostname) cfg += "#my favorite options :)\nremote-random-hostname\n";
-        if (mUseFloat) cfg += "float\n";
+        if (mUseRandomHostname) out.append("#my favorite options :)\nremote-random-hostname\n");
+        if (mUseFloat) out.append("float\n");
         if (mPersistTun) {
-            cfg += "persist-tun\n";
-            cfg += "# persist-tun also enables pre resolving to avoid DNS resolve problem\n";
-            cfg += "preresolve\n";
+            out.append("persist-tun\n");
+            out.append("# persist-tun also enables pre resolving to avoid DNS resolve problem\n");
+            out.append("preresolve\n");
         }
-        if (mPushPeerInfo) cfg += "push-peer-info\n";
-        SharedPreferences prefs = PreferenceManager.getDefaultSharedPreferences(context);
-        boolean usesystemproxy = prefs.getBoolean("usesystemproxy", true);
-        if (usesystemproxy && !mIsOpenVPN22) {
-            cfg += "# Use system proxy setting\n";
-            cfg += "management-query-proxy\n";
+        if (mPushPeerInfo) out.append("push-peer-info\n");
+        if (env.useSystemProxy && !mIsOpenVPN22) {
+            out.append("# Use system proxy setting\n");
+            out.append("management-query-proxy\n");
         }
         if (mUseCustomConfig) {
-            cfg += "# Custom configuration options\n";
-            cfg += "# You are on your on own here :)\n";
-            cfg += mCustomConfigOptions;
-            cfg += "\n";
+            out.append("# Custom configuration options\n");
+            out.append("# You are on your on own here :)\n");
+            out.append(mCustomConfigOptions);
+            out.append("\n");
         }
         if (!canUsePlainRemotes) {
-            cfg += "# Connection Options are at the end to allow global options (and global custom options) to influence connection blocks\n";
+            out.append("# Connection Options are at the end to allow global options (and global custom options) to influence connection blocks\n");
             for (Connection conn : mConnections) {
                 if (conn.mEnabled) {
-                    cfg += "<connection>\n";
-                    cfg += conn.getConnectionBlock();
-                    cfg += "</connection>\n";
+                    out.append("<connection>\n");
+                    conn.writeConnectionBlock(out);
+                    out.append("</connection>\n");
                 }
             }
         }
-        return cfg;
     }
 
     public String getVersionEnvString(Context c) {
@@ -560,10 +698,13 @@ public class VpnProfile implements Serializable, Cloneable {
     }
 
     public void writeConfigFile(Context context) throws IOException {
-        FileWriter cfg = new FileWriter(VPNLaunchHelper.getConfigFilePath(context));
-        cfg.write(getConfigFile(context, false));
-        cfg.flush();
-        cfg.close();
+        Writer cfg = new BufferedWriter(new FileWriter(VPNLaunchHelper.getConfigFilePath(context)));
+        try {
+            if (!isConfigCacheable(false)) writeConfig(cfg, context, false);
+            else cfg.write(getConfigFile(context, false));
+        } finally {
+            cfg.close();
+        }
     }
 
     public Intent getStartServiceIntent(Context context) {
@@ -600,9 +741,169 @@ public class VpnProfile implements Serializable, Cloneable {
             copy.mConnections[i++] = conn.clone();
         }
         copy.mAllowedAppsVpn = (HashSet<String>) mAllowedAppsVpn.clone();
+        copy.mCachedConfigInputs = null;
+        copy.mCachedConfig = null;
         return copy;
     }
 
+    /**
+     * Writes the profile in the compact format of {@link ProfileStore}. Unlike Java serialization
+     * this only writes the field values, without class descriptors and reflection.
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(BINARY_FORMAT_VERSION);
+        out.writeInt(mAuthenticationType);
+        ProfileStore.writeString(out, mName);
+        ProfileStore.writeString(out, mAlias);
+        ProfileStore.writeString(out, mClientCertFilename);
+        ProfileStore.writeString(out, mTLSAuthDirection);
+        ProfileStore.writeString(out, mTLSAuthFilename);
+        ProfileStore.writeString(out, mClientKeyFilename);
+        ProfileStore.writeString(out, mCaFilename);
+        out.writeBoolean(mUseLzo);
+        ProfileStore.writeString(out, mPKCS12Filename);
+        ProfileStore.writeString(out, mPKCS12Password);
+        out.writeBoolean(mUseTLSAuth);
+        ProfileStore.writeString(out, mDNS1);
+        ProfileStore.writeString(out, mDNS2);
+        ProfileStore.writeString(out, mIPv4Address);
+        ProfileStore.writeString(out, mIPv6Address);
+        out.writeBoolean(mOverrideDNS);
+        ProfileStore.writeString(out, mSearchDomain);
+        out.writeBoolean(mUseDefaultRoute);
+        out.writeBoolean(mUsePull);
+        ProfileStore.writeString(out, mCustomRoutes);
+        out.writeBoolean(mCheckRemoteCN);
+        out.writeBoolean(mExpectTLSCert);
+        ProfileStore.writeString(out, mRemoteCN);
+        ProfileStore.writeString(out, mPassword);
+        ProfileStore.writeString(out, mUsername);
+        out.writeBoolean(mRoutenopull);
+        out.writeBoolean(mUseRandomHostname);
+        out.writeBoolean(mUseFloat);
+        out.writeBoolean(mUseCustomConfig);
+        ProfileStore.writeString(out, mCustomConfigOptions);
+        ProfileStore.writeString(out, mVerb);
+        ProfileStore.writeString(out, mCipher);
+        out.writeBoolean(mNobind);
+        out.writeBoolean(mUseDefaultRoutev6);
+        ProfileStore.writeString(out, mCustomRoutesv6);
+        ProfileStore.writeString(out, mKeyPassword);
+        out.writeBoolean(mPersistTun);
+        ProfileStore.writeString(out, mConnectRetryMax);
+        ProfileStore.writeString(out, mConnectRetry);
+        ProfileStore.writeString(out, mConnectRetryMaxTime);
+        out.writeBoolean(mUserEditable);
+        ProfileStore.writeString(out, mAuth);
+        out.writeInt(mX509AuthType);
+        ProfileStore.writeString(out, mx509UsernameField);
+        out.writeBoolean(mAllowLocalLAN);
+        ProfileStore.writeString(out, mExcludedRoutes);
+        ProfileStore.writeString(out, mExcludedRoutesv6);
+        out.writeInt(mMssFix);
+        out.writeInt(mConnections.length);
+        for (Connection conn : mConnections)
+            conn.writeTo(out);
+        out.writeBoolean(mRemoteRandom);
+        out.writeInt(mAllowedAppsVpn == null ? 0 : mAllowedAppsVpn.size());
+        if (mAllowedAppsVpn != null) {
+            for (String app : mAllowedAppsVpn)
+                ProfileStore.writeString(out, app);
+        }
+        out.writeBoolean(mAllowedAppsVpnAreDisallowed);
+        ProfileStore.writeString(out, mCrlFilename);
+        ProfileStore.writeString(out, mProfileCreator);
+        out.writeInt(mAuthRetry);
+        out.writeInt(mTunMtu);
+        out.writeBoolean(mPushPeerInfo);
+        out.writeInt(mVersion);
+        out.writeLong(mLastUsed);
+        ProfileStore.writeString(out, mServerName);
+        ProfileStore.writeString(out, mServerPort);
+        out.writeBoolean(mUseUdp);
+        out.writeLong(mUuid.getMostSignificantBits());
+        out.writeLong(mUuid.getLeastSignificantBits());
+        out.writeInt(mProfileVersion);
+    }
+
+    public static VpnProfile readFrom(DataInputStream in) throws IOException {
+        int version = in.readInt();
+        if (version != BINARY_FORMAT_VERSION)
+            throw new IOException("Unknown profile format version " + version);
+        VpnProfile vp = new VpnProfile();
+        vp.mAuthenticationType = in.readInt();
+        vp.mName = ProfileStore.readString(in);
+        vp.mAlias = ProfileStore.readString(in);
+        vp.mClientCertFilename = ProfileStore.readString(in);
+        vp.mTLSAuthDirection = ProfileStore.readString(in);
+        vp.mTLSAuthFilename = ProfileStore.readString(in);
+        vp.mClientKeyFilename = ProfileStore.readString(in);
+        vp.mCaFilename = ProfileStore.readString(in);
+        vp.mUseLzo = in.readBoolean();
+        vp.mPKCS12Filename = ProfileStore.readString(in);
+        vp.mPKCS12Password = ProfileStore.readString(in);
+        vp.mUseTLSAuth = in.readBoolean();
+        vp.mDNS1 = ProfileStore.readString(in);
+        vp.mDNS2 = ProfileStore.readString(in);
+        vp.mIPv4Address = ProfileStore.readString(in);
+        vp.mIPv6Address = ProfileStore.readString(in);
+        vp.mOverrideDNS = in.readBoolean();
+        vp.mSearchDomain = ProfileStore.readString(in);
+        vp.mUseDefaultRoute = in.readBoolean();
+        vp.mUsePull = in.readBoolean();
+        vp.mCustomRoutes = ProfileStore.readString(in);
+        vp.mCheckRemoteCN = in.readBoolean();
+        vp.mExpectTLSCert = in.readBoolean();
+        vp.mRemoteCN = ProfileStore.readString(in);
+        vp.mPassword = ProfileStore.readString(in);
+        vp.mUsername = ProfileStore.readString(in);
+        vp.mRoutenopull = in.readBoolean();
+        vp.mUseRandomHostname = in.readBoolean();
+        vp.mUseFloat = in.readBoolean();
+        vp.mUseCustomConfig = in.readBoolean();
+        vp.mCustomConfigOptions = ProfileStore.readString(in);
+        vp.mVerb = ProfileStore.readString(in);
+        vp.mCipher = ProfileStore.readString(in);
+        vp.mNobind = in.readBoolean();
+        vp.mUseDefaultRoutev6 = in.readBoolean();
+        vp.mCustomRoutesv6 = ProfileStore.readString(in);
+        vp.mKeyPassword = ProfileStore.readString(in);
+        vp.mPersistTun = in.readBoolean();
+        vp.mConnectRetryMax = ProfileStore.readString(in);
+        vp.mConnectRetry = ProfileStore.readString(in);
+        vp.mConnectRetryMaxTime = ProfileStore.readString(in);
+        vp.mUserEditable = in.readBoolean();
+        vp.mAuth = ProfileStore.readString(in);
+        vp.mX509AuthType = in.readInt();
+        vp.mx509UsernameField = ProfileStore.readString(in);
+        vp.mAllowLocalLAN = in.readBoolean();
+        vp.mExcludedRoutes = ProfileStore.readString(in);
+        vp.mExcludedRoutesv6 = ProfileStore.readString(in);
+        vp.mMssFix = in.readInt();
+        vp.mConnections = new Connection[in.readInt()];
+        for (int i = 0; i < vp.mConnections.length; i++)
+            vp.mConnections[i] = Connection.readFrom(in);
+        vp.mRemoteRandom = in.readBoolean();
+        int apps = in.readInt();
+        vp.mAllowedAppsVpn = new HashSet<>(Math.max(16, apps * 2));
+        for (int i = 0; i < apps; i++)
+            vp.mAllowedAppsVpn.add(ProfileStore.readString(in));
+        vp.mAllowedAppsVpnAreDisallowed = in.readBoolean();
+        vp.mCrlFilename = ProfileStore.readString(in);
+        vp.mProfileCreator = ProfileStore.readString(in);
+        vp.mAuthRetry = in.readInt();
+        vp.mTunMtu = in.readInt();
+        vp.mPushPeerInfo = in.readBoolean();
+        vp.mVersion = in.readInt();
+        vp.mLastUsed = in.readLong();
+        vp.mServerName = ProfileStore.readString(in);
+        vp.mServerPort = ProfileStore.readString(in);
+        vp.mUseUdp = in.readBoolean();
+        vp.mUuid = new UUID(in.readLong(), in.readLong());
+        vp.mProfileVersion = in.readInt();
+        return vp;
+    }
+
     public VpnProfile copy(String name) {
         try {
             VpnProfile copy = clone();
@@ -50,6 +50,7 @@ private Thread.UncaughtExceptionHandler uncaughtExceptionHandler;
         }
         StatusListener mStatus = new StatusListener();
         mStatus.init(getApplicationContext());
+        VPNLaunchHelper.prepareMiniVPN(this);
        
     }
 
@@ -3,16 +3,16 @@
  * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
  */
 package de.blinkt.openvpn.core;
-import androidx.core.util.Pair;
-import android.text.TextUtils;
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.Reader;
 import java.io.StringReader;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
-import java.util.Vector;
+import java.util.Map;
 import de.blinkt.openvpn.VpnProfile;
 //! Openvpn Config FIle Parser, probably not 100% accurate but close enough
 // And remember, this is valid :)
@@ -21,13 +21,13 @@ import de.blinkt.openvpn.VpnProfile;
 // </foo>
 public class ConfigParser {
     public static final String CONVERTED_PROFILE = "converted Profile";
-    final String[] unsupportedOptions = {"config",
+    static final String[] unsupportedOptions = {"config",
             "tls-server"
     };
     // Ignore all scripts
     // in most cases these won't work and user who wish to execute scripts will
     // figure out themselves
-    final String[] ignoreOptions = {"tls-client",
+    static final String[] ignoreOptions = {"tls-client",
             "askpass",
             "auth-nocache",
             "up",
@@ -77,14 +77,14 @@ public class ConfigParser {
             "user",
             "win-sys",
     };
-    final String[][] ignoreOptionsWithArg =
+    static final String[][] ignoreOptionsWithArg =
             {
                     {"setenv", "IV_GUI_VER"},
                     {"setenv", "IV_OPENVPN_GUI_VERSION"},
                     {"engine", "dynamic"},
                     {"setenv", "CLIENT_CERT"}
             };
-    final String[] connectionOptions = {
+    static final String[] connectionOptions = {
             "local",
             "remote",
             "float",
@@ -110,8 +110,557 @@ public class ConfigParser {
             "socks-proxy-retry",
             "explicit-exit-notify",
     };
-    private HashMap<String, Vector<Vector<String>>> options = new HashMap<String, Vector<Vector<String>>>();
-    private HashMap<String, Vector<String>> meta = new HashMap<String, Vector<String>>();
+    /* Option tables above compiled into lookups by option name, built once for all parsers */
+    private static final HashSet<String> UNSUPPORTED_OPTIONS = new HashSet<>(Arrays.asList(unsupportedOptions));
+    private static final HashSet<String> IGNORED_OPTIONS = new HashSet<>(Arrays.asList(ignoreOptions));
+    private static final HashMap<String, ArrayList<String[]>> IGNORED_OPTIONS_WITH_ARG = new HashMap<>();
+    static {
+        for (String[] ignoreOption : ignoreOptionsWithArg) {
+            ArrayList<String[]> withSameName = IGNORED_OPTIONS_WITH_ARG.get(ignoreOption[0]);
+            if (withSameName == null) {
+                withSameName = new ArrayList<>();
+                IGNORED_OPTIONS_WITH_ARG.put(ignoreOption[0], withSameName);
+            }
+            withSameName.add(ignoreOption);
+        }
+    }
+    private static final int ANY = Integer.MAX_VALUE;
+    //! Applies all lines of one option, in the order of the config file, to the conversion
+    private interface OptionHandler {
+        void apply(Conversion c, ArrayList<String[]> lines) throws ConfigParseError, IOException;
+    }
+    //! Handler of an option of which only the last occurrence counts
+    private static abstract class LastOption implements OptionHandler {
+        @Override
+        public final void apply(Conversion c, ArrayList<String[]> lines) throws ConfigParseError {
+            applyLast(c, lines.get(lines.size() - 1));
+        }
+        abstract void applyLast(Conversion c, String[] line) throws ConfigParseError;
+    }
+    private static class OptionSpec {
+        /* null for a step that runs for every config */
+        final String name;
+        final int minArgs;
+        final int maxArgs;
+        /* null for options that are only read by the handlers of other options */
+        final OptionHandler handler;
+        OptionSpec(String name, int minArgs, int maxArgs, OptionHandler handler) {
+            this.name = name;
+            this.minArgs = minArgs;
+            this.maxArgs = maxArgs;
+            this.handler = handler;
+        }
+        void checkArgs(String[] line) throws ConfigParseError {
+            int args = line.length - 1;
+            if (args < minArgs || args > maxArgs) {
+                String err = String.format(Locale.getDefault(), "Option %s has %d parameters, expected between %d and %d",
+                        name, args, minArgs, maxArgs);
+                throw new ConfigParseError(err);
+            }
+        }
+    }
+    private static OptionSpec step(OptionHandler handler) {
+        return new OptionSpec(null, 0, 0, handler);
+    }
+    //! Option table and its index by option name. The handlers run in the order of the table.
+    private static class OptionRegistry {
+        final OptionSpec[] table;
+        final HashMap<String, Integer> slots = new HashMap<>();
+        OptionRegistry(OptionSpec... table) {
+            this.table = table;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i].name != null)
+                    slots.put(table[i].name, i);
+            }
+        }
+    }
+    //! One conversion of the parsed options, sorted into the slots of a registry in one pass
+    private static class Conversion {
+        final OptionRegistry registry;
+        final ArrayList<String[]>[] slots;
+        /* Options not in the registry in the order of the config, they become custom options */
+        final LinkedHashMap<String, ArrayList<String[]>> unhandled = new LinkedHashMap<>();
+        final VpnProfile np;
+        boolean noauthtypeset = true;
+        String authUserPassFile;
+        Connection defaultConnection;
+        /**
+         * @param np the profile to convert to, null for a connection block. Only profiles check
+         *           for unsupported options and drop the ignored ones.
+         */
+        @SuppressWarnings("unchecked")
+        Conversion(OptionRegistry registry, Map<String, ArrayList<String[]>> options, VpnProfile np) throws ConfigParseError {
+            this.registry = registry;
+            this.np = np;
+            slots = new ArrayList[registry.table.length];
+            for (Map.Entry<String, ArrayList<String[]>> option : options.entrySet()) {
+                String name = option.getKey();
+                Integer slot = registry.slots.get(name);
+                if (slot != null) {
+                    for (String[] line : option.getValue())
+                        registry.table[slot].checkArgs(line);
+                    slots[slot] = option.getValue();
+                } else if (np != null && UNSUPPORTED_OPTIONS.contains(name)) {
+                    throw new ConfigParseError(String.format("Unsupported Option %s encountered in config file. Aborting", name));
+                } else if (np == null || !IGNORED_OPTIONS.contains(name)) {
+                    unhandled.put(name, option.getValue());
+                }
+            }
+        }
+        ArrayList<String[]> all(String option) {
+            return slots[registry.slots.get(option)];
+        }
+        String[] last(String option) {
+            ArrayList<String[]> lines = all(option);
+            return lines == null ? null : lines.get(lines.size() - 1);
+        }
+        void run() throws ConfigParseError, IOException {
+            OptionSpec[] table = registry.table;
+            for (int i = 0; i < table.length; i++) {
+                if (table[i].name == null)
+                    table[i].handler.apply(this, null);
+                else if (slots[i] != null && table[i].handler != null)
+                    table[i].handler.apply(this, slots[i]);
+            }
+        }
+    }
+    // Read by buildConnections for the profile and for every <connection> block
+    private static final OptionSpec PORT = new OptionSpec("port", 1, 1, null);
+    private static final OptionSpec RPORT = new OptionSpec("rport", 1, 1, null);
+    private static final OptionSpec PROTO = new OptionSpec("proto", 1, 1, null);
+    private static final OptionSpec CONNECT_TIMEOUT = new OptionSpec("connect-timeout", 1, 1, null);
+    private static final OptionSpec REMOTE = new OptionSpec("remote", 1, 3, null);
+    private static final OptionRegistry CONNECTION_OPTIONS = new OptionRegistry(PORT, RPORT, PROTO, CONNECT_TIMEOUT, REMOTE);
+    private static final OptionRegistry PROFILE_OPTIONS = new OptionRegistry(
+            // Pull, client, tls-client
+            new OptionSpec("client", 0, ANY, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> lines) {
+                    c.np.mUsePull = true;
+                }
+            }),
+            new OptionSpec("pull", 0, ANY, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> lines) {
+                    c.np.mUsePull = true;
+                }
+            }),
+            new OptionSpec("secret", 1, 2, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] secret) {
+                    c.np.mAuthenticationType = VpnProfile.TYPE_STATICKEYS;
+                    c.noauthtypeset = false;
+                    c.np.mUseTLSAuth = true;
+                    c.np.mTLSAuthFilename = secret[1];
+                    if (secret.length == 3)
+                        c.np.mTLSAuthDirection = secret[2];
+                }
+            }),
+            new OptionSpec("route", 1, 4, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> routes) throws ConfigParseError {
+                    StringBuilder routeopt = new StringBuilder();
+                    StringBuilder routeExcluded = new StringBuilder();
+                    for (String[] route : routes) {
+                        String netmask = "255.255.255.255";
+                        String gateway = "vpn_gateway";
+                        if (route.length >= 3)
+                            netmask = route[2];
+                        if (route.length >= 4)
+                            gateway = route[3];
+                        String net = route[1];
+                        try {
+                            CIDRIP cidr = new CIDRIP(net, netmask);
+                            if (gateway.equals("net_gateway"))
+                                routeExcluded.append(cidr.toString()).append(' ');
+                            else
+                                routeopt.append(cidr.toString()).append(' ');
+                        } catch (ArrayIndexOutOfBoundsException aioob) {
+                            throw new ConfigParseError("Could not parse netmask of route " + netmask);
+                        } catch (NumberFormatException ne) {
+                            throw new ConfigParseError("Could not parse netmask of route " + netmask);
+                        }
+                    }
+                    c.np.mCustomRoutes = routeopt.toString();
+                    c.np.mExcludedRoutes = routeExcluded.toString();
+                }
+            }),
+            new OptionSpec("route-ipv6", 1, 4, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> routesV6) {
+                    StringBuilder customIPv6Routes = new StringBuilder();
+                    for (String[] route : routesV6)
+                        customIPv6Routes.append(route[1]).append(' ');
+                    c.np.mCustomRoutesv6 = customIPv6Routes.toString();
+                }
+            }),
+            new OptionSpec("route-nopull", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mRoutenopull = true;
+                }
+            }),
+            // Also recognize tls-auth [inline] direction ...
+            new OptionSpec("tls-auth", 1, 2, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> tlsauthoptions) {
+                    for (String[] tlsauth : tlsauthoptions) {
+                        if (!tlsauth[1].equals("[inline]")) {
+                            c.np.mTLSAuthFilename = tlsauth[1];
+                            c.np.mUseTLSAuth = true;
+                        }
+                        if (tlsauth.length == 3)
+                            c.np.mTLSAuthDirection = tlsauth[2];
+                    }
+                }
+            }),
+            new OptionSpec("key-direction", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] direction) {
+                    c.np.mTLSAuthDirection = direction[1];
+                }
+            }),
+            new OptionSpec("tls-crypt", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] tlscrypt) {
+                    c.np.mUseTLSAuth = true;
+                    c.np.mTLSAuthFilename = tlscrypt[1];
+                    c.np.mTLSAuthDirection = "tls-crypt";
+                }
+            }),
+            new OptionSpec("redirect-gateway", 0, 7, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> defgw) {
+                    checkRedirectParameters(c.np, defgw, true);
+                }
+            }),
+            new OptionSpec("redirect-private", 0, 5, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> redirectPrivate) {
+                    checkRedirectParameters(c.np, redirectPrivate, false);
+                }
+            }),
+            new OptionSpec("dev", 1, 1, null),
+            new OptionSpec("dev-type", 1, 1, null),
+            step(new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> unused) throws ConfigParseError {
+                    String[] dev = c.last("dev");
+                    String[] devtype = c.last("dev-type");
+                    if ((devtype != null && devtype[1].equals("tun")) ||
+                            (dev != null && dev[1].startsWith("tun")) ||
+                            (devtype == null && dev == null)) {
+                        //everything okay
+                    } else {
+                        throw new ConfigParseError("Sorry. Only tun mode is supported. See the FAQ for more detail");
+                    }
+                }
+            }),
+            new OptionSpec("mssfix", 0, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] mssfix) throws ConfigParseError {
+                    if (mssfix.length >= 2) {
+                        try {
+                            c.np.mMssFix = Integer.parseInt(mssfix[1]);
+                        } catch (NumberFormatException e) {
+                            throw new ConfigParseError("Argument to --mssfix has to be an integer");
+                        }
+                    } else {
+                        c.np.mMssFix = 1450; // OpenVPN default size
+                    }
+                }
+            }),
+            new OptionSpec("mtu", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] tunmtu) throws ConfigParseError {
+                    try {
+                        c.np.mTunMtu = Integer.parseInt(tunmtu[1]);
+                    } catch (NumberFormatException e) {
+                        throw new ConfigParseError("Argument to --tun-mtu has to be an integer");
+                    }
+                }
+            }),
+            new OptionSpec("mode", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] mode) throws ConfigParseError {
+                    if (!mode[1].equals("p2p"))
+                        throw new ConfigParseError("Invalid mode for --mode specified, need p2p");
+                }
+            }),
+            new OptionSpec("dhcp-option", 2, 2, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> dhcpoptions) {
+                    for (String[] dhcpoption : dhcpoptions) {
+                        String type = dhcpoption[1];
+                        String arg = dhcpoption[2];
+                        if (type.equals("DOMAIN")) {
+                            c.np.mSearchDomain = arg;
+                        } else if (type.equals("DNS")) {
+                            c.np.mOverrideDNS = true;
+                            if (c.np.mDNS1.equals(VpnProfile.DEFAULT_DNS1))
+                                c.np.mDNS1 = arg;
+                            else
+                                c.np.mDNS2 = arg;
+                        }
+                    }
+                }
+            }),
+            new OptionSpec("ifconfig", 2, 2, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] ifconfig) throws ConfigParseError {
+                    try {
+                        CIDRIP cidr = new CIDRIP(ifconfig[1], ifconfig[2]);
+                        c.np.mIPv4Address = cidr.toString();
+                    } catch (NumberFormatException nfe) {
+                        throw new ConfigParseError("Could not pase ifconfig IP address: " + nfe.getLocalizedMessage());
+                    }
+                }
+            }),
+            new OptionSpec("remote-random-hostname", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mUseRandomHostname = true;
+                }
+            }),
+            new OptionSpec("float", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mUseFloat = true;
+                }
+            }),
+            new OptionSpec("comp-lzo", 0, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mUseLzo = true;
+                }
+            }),
+            new OptionSpec("cipher", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] cipher) {
+                    c.np.mCipher = cipher[1];
+                }
+            }),
+            new OptionSpec("auth", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] auth) {
+                    c.np.mAuth = auth[1];
+                }
+            }),
+            new OptionSpec("ca", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] ca) {
+                    c.np.mCaFilename = ca[1];
+                }
+            }),
+            new OptionSpec("cert", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] cert) {
+                    c.np.mClientCertFilename = cert[1];
+                    c.np.mAuthenticationType = VpnProfile.TYPE_CERTIFICATES;
+                    c.noauthtypeset = false;
+                }
+            }),
+            new OptionSpec("key", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] key) {
+                    c.np.mClientKeyFilename = key[1];
+                }
+            }),
+            new OptionSpec("pkcs12", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] pkcs12) {
+                    c.np.mPKCS12Filename = pkcs12[1];
+                    c.np.mAuthenticationType = VpnProfile.TYPE_KEYSTORE;
+                    c.noauthtypeset = false;
+                }
+            }),
+            new OptionSpec("cryptoapicert", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] cryptoapicert) {
+                    c.np.mAuthenticationType = VpnProfile.TYPE_KEYSTORE;
+                    c.noauthtypeset = false;
+                }
+            }),
+            new OptionSpec("compat-names", 1, 2, null),
+            new OptionSpec("no-name-remapping", 1, 1, null),
+            new OptionSpec("tls-remote", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] tlsremote) {
+                    String[] compatnames = c.last("compat-names");
+                    c.np.mRemoteCN = tlsremote[1];
+                    c.np.mCheckRemoteCN = true;
+                    c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE;
+                    if ((compatnames != null && compatnames.length > 2) ||
+                            (c.last("no-name-remapping") != null))
+                        c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_COMPAT_NOREMAPPING;
+                }
+            }),
+            new OptionSpec("verify-x509-name", 1, 2, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] verifyx509name) throws ConfigParseError {
+                    c.np.mRemoteCN = verifyx509name[1];
+                    c.np.mCheckRemoteCN = true;
+                    if (verifyx509name.length > 2) {
+                        if (verifyx509name[2].equals("name"))
+                            c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_RDN;
+                        else if (verifyx509name[2].equals("subject"))
+                            c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_DN;
+                        else if (verifyx509name[2].equals("name-prefix"))
+                            c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_RDN_PREFIX;
+                        else
+                            throw new ConfigParseError("Unknown parameter to verify-x509-name: " + verifyx509name[2]);
+                    } else {
+                        c.np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_DN;
+                    }
+                }
+            }),
+            new OptionSpec("x509-username-field", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] x509usernamefield) {
+                    c.np.mx509UsernameField = x509usernamefield[1];
+                }
+            }),
+            new OptionSpec("verb", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] verb) {
+                    c.np.mVerb = verb[1];
+                }
+            }),
+            new OptionSpec("nobind", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mNobind = true;
+                }
+            }),
+            new OptionSpec("persist-tun", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mPersistTun = true;
+                }
+            }),
+            new OptionSpec("push-peer-info", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mPushPeerInfo = true;
+                }
+            }),
+            new OptionSpec("connect-retry", 1, 2, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] connectretry) {
+                    c.np.mConnectRetry = connectretry[1];
+                    if (connectretry.length > 2)
+                        c.np.mConnectRetryMaxTime = connectretry[2];
+                }
+            }),
+            new OptionSpec("connect-retry-max", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] connectretrymax) {
+                    c.np.mConnectRetryMax = connectretrymax[1];
+                }
+            }),
+            new OptionSpec("remote-cert-tls", 1, 1, new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> remotetls) {
+                    if (remotetls.get(0)[1].equals("server"))
+                        c.np.mExpectTLSCert = true;
+                    else
+                        c.unhandled.put("remote-cert-tls", remotetls);
+                }
+            }),
+            new OptionSpec("auth-user-pass", 0, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] authuser) {
+                    if (c.noauthtypeset) {
+                        c.np.mAuthenticationType = VpnProfile.TYPE_USERPASS;
+                    } else if (c.np.mAuthenticationType == VpnProfile.TYPE_CERTIFICATES) {
+                        c.np.mAuthenticationType = VpnProfile.TYPE_USERPASS_CERTIFICATES;
+                    } else if (c.np.mAuthenticationType == VpnProfile.TYPE_KEYSTORE) {
+                        c.np.mAuthenticationType = VpnProfile.TYPE_USERPASS_KEYSTORE;
+                    }
+                    if (authuser.length > 1) {
+                        if (!authuser[1].startsWith(VpnProfile.INLINE_TAG))
+                            c.authUserPassFile = authuser[1];
+                        c.np.mUsername = null;
+                        useEmbbedUserAuth(c.np, authuser[1]);
+                    }
+                }
+            }),
+            new OptionSpec("auth-retry", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] authretry) throws ConfigParseError {
+                    if (authretry[1].equals("none"))
+                        c.np.mAuthRetry = VpnProfile.AUTH_RETRY_NONE_FORGET;
+                    else if (authretry[1].equals("nointeract"))
+                        c.np.mAuthRetry = VpnProfile.AUTH_RETRY_NOINTERACT;
+                    else if (authretry[1].equals("interact"))
+                        c.np.mAuthRetry = VpnProfile.AUTH_RETRY_NOINTERACT;
+                    else
+                        throw new ConfigParseError("Unknown parameter to auth-retry: " + authretry[1]);
+                }
+            }),
+            new OptionSpec("crl-verify", 1, 2, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] crlfile) {
+                    // If the 'dir' parameter is present just add it as custom option ..
+                    if (crlfile.length == 3 && crlfile[2].equals("dir"))
+                        c.np.mCustomConfigOptions += crlfile[0] + " " + crlfile[1] + " " + crlfile[2] + "\n";
+                    else
+                        // Save the filename for the config converter to add later
+                        c.np.mCrlFilename = crlfile[1];
+                }
+            }),
+            PORT,
+            RPORT,
+            PROTO,
+            CONNECT_TIMEOUT,
+            REMOTE,
+            new OptionSpec("connection", 1, 1, null),
+            step(new OptionHandler() {
+                @Override
+                public void apply(Conversion c, ArrayList<String[]> unused) throws ConfigParseError, IOException {
+                    c.np.mConnections = buildConnections(c, null);
+                    ArrayList<String[]> connectionBlocks = c.all("connection");
+                    if (c.np.mConnections.length > 0 && connectionBlocks != null) {
+                        throw new ConfigParseError("Using a <connection> block and --remote is not allowed.");
+                    }
+                    if (connectionBlocks != null) {
+                        c.np.mConnections = new Connection[connectionBlocks.size()];
+                        int connIndex = 0;
+                        for (String[] conn : connectionBlocks) {
+                            Connection[] connectionBlockConnection = parseConnection(conn[1], c.defaultConnection);
+                            if (connectionBlockConnection.length != 1)
+                                throw new ConfigParseError("A <connection> block must have exactly one remote");
+                            c.np.mConnections[connIndex] = connectionBlockConnection[0];
+                            connIndex++;
+                        }
+                    }
+                }
+            }),
+            new OptionSpec("remote-random", 0, 0, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] line) {
+                    c.np.mRemoteRandom = true;
+                }
+            }),
+            new OptionSpec("proto-force", 1, 1, new LastOption() {
+                @Override
+                void applyLast(Conversion c, String[] protoforce) throws ConfigParseError {
+                    boolean disableUDP;
+                    String protoToDisable = protoforce[1];
+                    if (protoToDisable.equals("udp"))
+                        disableUDP = true;
+                    else if (protoToDisable.equals("tcp"))
+                        disableUDP = false;
+                    else
+                        throw new ConfigParseError(String.format("Unknown protocol %s in proto-force", protoToDisable));
+                    for (Connection conn : c.np.mConnections)
+                        if (conn.mUseUdp == disableUDP)
+                            conn.mEnabled = false;
+                }
+            })
+    );
+    private final LinkedHashMap<String, ArrayList<String[]>> options = new LinkedHashMap<>();
+    private final HashMap<String, String[]> meta = new HashMap<>();
     private String auth_user_pass_file;
     static public void useEmbbedUserAuth(VpnProfile np, String inlinedata) {
         String data = VpnProfile.getEmbeddedContent(inlinedata);
@@ -124,75 +673,56 @@ public class ConfigParser {
     public void parseConfig(Reader reader) throws IOException, ConfigParseError {
         HashMap<String, String> optionAliases = new HashMap<>();
         optionAliases.put("server-poll-timeout", "timeout-connect");
-        BufferedReader br = new BufferedReader(reader);
+        ConfigTokenizer tokenizer = new ConfigTokenizer(reader);
         int lineno = 0;
         try {
-            while (true) {
-                String line = br.readLine();
+            while (tokenizer.nextLine()) {
                 lineno++;
-                if (line == null)
-                    break;
                 if (lineno == 1) {
-                    if ((line.startsWith("PK\003\004")
-                            || (line.startsWith("PK\007\008")))) {
+                    if ((tokenizer.lineStartsWith("PK\003\004")
+                            || (tokenizer.lineStartsWith("PK\007\008")))) {
                         throw new ConfigParseError("Input looks like a ZIP Archive. Import is only possible for OpenVPN config files (.ovpn/.conf)");
                     }
-                    if (line.startsWith("\uFEFF")) {
-                        line = line.substring(1);
+                    if (tokenizer.lineStartsWith("\uFEFF")) {
+                        tokenizer.skipChars(1);
                     }
                 }
                 // Check for OpenVPN Access Server Meta information
-                if (line.startsWith("# OVPN_ACCESS_SERVER_")) {
-                    Vector<String> metaarg = parsemeta(line);
-                    meta.put(metaarg.get(0), metaarg);
+                if (tokenizer.lineStartsWith("# OVPN_ACCESS_SERVER_")) {
+                    String[] metaarg = parsemeta(tokenizer.getLine());
+                    meta.put(metaarg[0], metaarg);
                     continue;
                 }
-                Vector<String> args = parseline(line);
+                ArrayList<String> args = tokenizer.parseLine();
                 if (args.size() == 0)
                     continue;
                 if (args.get(0).startsWith("--"))
                     args.set(0, args.get(0).substring(2));
-                checkinlinefile(args, br);
+                checkinlinefile(args, tokenizer);
                 String optionname = args.get(0);
                 if (optionAliases.get(optionname) != null)
                     optionname = optionAliases.get(optionname);
-                if (!options.containsKey(optionname)) {
-                    options.put(optionname, new Vector<Vector<String>>());
+                ArrayList<String[]> lines = options.get(optionname);
+                if (lines == null) {
+                    lines = new ArrayList<>(1);
+                    options.put(optionname, lines);
                 }
-                options.get(optionname).add(args);
+                lines.add(args.toArray(new String[args.size()]));
             }
         } catch (java.lang.OutOfMemoryError memoryError) {
             throw new ConfigParseError("File too large to parse: " + memoryError.getLocalizedMessage());
         }
     }
-    private Vector<String> parsemeta(String line) {
+    private String[] parsemeta(String line) {
         String meta = line.split("#\\sOVPN_ACCESS_SERVER_", 2)[1];
-        String[] parts = meta.split("=", 2);
-        Vector<String> rval = new Vector<String>();
-        Collections.addAll(rval, parts);
-        return rval;
+        return meta.split("=", 2);
     }
-    private void checkinlinefile(Vector<String> args, BufferedReader br) throws IOException, ConfigParseError {
+    private void checkinlinefile(ArrayList<String> args, ConfigTokenizer tokenizer) throws IOException, ConfigParseError {
         String arg0 = args.get(0).trim();
         // CHeck for <foo>
         if (arg0.startsWith("<") && arg0.endsWith(">")) {
             String argname = arg0.substring(1, arg0.length() - 1);
-            String inlinefile = VpnProfile.INLINE_TAG;
-            String endtag = String.format("</%s>", argname);
-            do {
-                String line = br.readLine();
-                if (line == null) {
-                    throw new ConfigParseError(String.format("No endtag </%s> for starttag <%s> found", argname, argname));
-                }
-                if (line.trim().equals(endtag))
-                    break;
-                else {
-                    inlinefile += line;
-                    inlinefile += "\n";
-                }
-            } while (true);
-            if (inlinefile.endsWith("\n"))
-                inlinefile = inlinefile.substring(0, inlinefile.length() - 1);
+            String inlinefile = tokenizer.readInlineBlock(argname);
             args.clear();
             args.add(argname);
             args.add(inlinefile);
@@ -201,413 +731,48 @@ public class ConfigParser {
     public String getAuthUserPassFile() {
         return auth_user_pass_file;
     }
-    private boolean space(char c) {
-        // I really hope nobody is using zero bytes inside his/her config file
-        // to sperate parameter but here we go:
-        return Character.isWhitespace(c) || c == '\0';
-    }
-    // adapted openvpn's parse function to java
-    private Vector<String> parseline(String line) throws ConfigParseError {
-        Vector<String> parameters = new Vector<String>();
-        if (line.length() == 0)
-            return parameters;
-        linestate state = linestate.initial;
-        boolean backslash = false;
-        char out = 0;
-        int pos = 0;
-        String currentarg = "";
-        do {
-            // Emulate the c parsing ...
-            char in;
-            if (pos < line.length())
-                in = line.charAt(pos);
-            else
-                in = '\0';
-            if (!backslash && in == '\\' && state != linestate.readin_single_quote) {
-                backslash = true;
-            } else {
-                if (state == linestate.initial) {
-                    if (!space(in)) {
-                        if (in == ';' || in == '#') /* comment */
-                            break;
-                        if (!backslash && in == '\"')
-                            state = linestate.reading_quoted;
-                        else if (!backslash && in == '\'')
-                            state = linestate.readin_single_quote;
-                        else {
-                            out = in;
-                            state = linestate.reading_unquoted;
-                        }
-                    }
-                } else if (state == linestate.reading_unquoted) {
-                    if (!backslash && space(in))
-                        state = linestate.done;
-                    else
-                        out = in;
-                } else if (state == linestate.reading_quoted) {
-                    if (!backslash && in == '\"')
-                        state = linestate.done;
-                    else
-                        out = in;
-                } else if (state == linestate.readin_single_quote) {
-                    if (in == '\'')
-                        state = linestate.done;
-                    else
-                        out = in;
-                }
-                if (state == linestate.done) {
-                    /* ASSERT (parm_len > 0); */
-                    state = linestate.initial;
-                    parameters.add(currentarg);
-                    currentarg = "";
-                    out = 0;
-                }
-                if (backslash && out != 0) {
-                    if (!(out == '\\' || out == '\"' || space(out))) {
-                        throw new ConfigParseError("Options warning: Bad backslash ('\\') usage");
-                    }
-                }
-                backslash = false;
-            }
-			/* store parameter character */
-            if (out != 0) {
-                currentarg += out;
-            }
-        } while (pos++ < line.length());
-        return parameters;
-    }
-    // This method is far too long
-    @SuppressWarnings("ConstantConditions")
+    /**
+     * Sorts the parsed options into the slots of PROFILE_OPTIONS in one pass, checking the number
+     * of arguments of every line, and then runs the handlers in the order of the table. Options
+     * without handler that are neither unsupported nor ignored are kept as custom options.
+     */
     public VpnProfile convertProfile() throws ConfigParseError, IOException {
-        boolean noauthtypeset = true;
         VpnProfile np = new VpnProfile(CONVERTED_PROFILE);
-        // Pull, client, tls-client
         np.clearDefaults();
-        if (options.containsKey("client") || options.containsKey("pull")) {
-            np.mUsePull = true;
-            options.remove("pull");
-            options.remove("client");
-        }
-        Vector<String> secret = getOption("secret", 1, 2);
-        if (secret != null) {
-            np.mAuthenticationType = VpnProfile.TYPE_STATICKEYS;
-            noauthtypeset = false;
-            np.mUseTLSAuth = true;
-            np.mTLSAuthFilename = secret.get(1);
-            if (secret.size() == 3)
-                np.mTLSAuthDirection = secret.get(2);
-        }
-        Vector<Vector<String>> routes = getAllOption("route", 1, 4);
-        if (routes != null) {
-            String routeopt = "";
-            String routeExcluded = "";
-            for (Vector<String> route : routes) {
-                String netmask = "255.255.255.255";
-                String gateway = "vpn_gateway";
-                if (route.size() >= 3)
-                    netmask = route.get(2);
-                if (route.size() >= 4)
-                    gateway = route.get(3);
-                String net = route.get(1);
-                try {
-                    CIDRIP cidr = new CIDRIP(net, netmask);
-                    if (gateway.equals("net_gateway"))
-                        routeExcluded += cidr.toString() + " ";
-                    else
-                        routeopt += cidr.toString() + " ";
-                } catch (ArrayIndexOutOfBoundsException aioob) {
-                    throw new ConfigParseError("Could not parse netmask of route " + netmask);
-                } catch (NumberFormatException ne) {
-                    throw new ConfigParseError("Could not parse netmask of route " + netmask);
-                }
-            }
-            np.mCustomRoutes = routeopt;
-            np.mExcludedRoutes = routeExcluded;
-        }
-        Vector<Vector<String>> routesV6 = getAllOption("route-ipv6", 1, 4);
-        if (routesV6 != null) {
-            String customIPv6Routes = "";
-            for (Vector<String> route : routesV6) {
-                customIPv6Routes += route.get(1) + " ";
-            }
-            np.mCustomRoutesv6 = customIPv6Routes;
-        }
-        Vector<String> routeNoPull = getOption("route-nopull", 1, 1);
-        if (routeNoPull != null)
-            np.mRoutenopull = true;
-        // Also recognize tls-auth [inline] direction ...
-        Vector<Vector<String>> tlsauthoptions = getAllOption("tls-auth", 1, 2);
-        if (tlsauthoptions != null) {
-            for (Vector<String> tlsauth : tlsauthoptions) {
-                if (tlsauth != null) {
-                    if (!tlsauth.get(1).equals("[inline]")) {
-                        np.mTLSAuthFilename = tlsauth.get(1);
-                        np.mUseTLSAuth = true;
-                    }
-                    if (tlsauth.size() == 3)
-                        np.mTLSAuthDirection = tlsauth.get(2);
-                }
-            }
-        }
-        Vector<String> direction = getOption("key-direction", 1, 1);
-        if (direction != null)
-            np.mTLSAuthDirection = direction.get(1);
-        Vector<String> tlscrypt = getOption("tls-crypt", 1, 1);
-        if (tlscrypt != null) {
-            np.mUseTLSAuth = true;
-            np.mTLSAuthFilename = tlscrypt.get(1);
-            np.mTLSAuthDirection = "tls-crypt";
-        }
-        Vector<Vector<String>> defgw = getAllOption("redirect-gateway", 0, 7);
-        if (defgw != null) {
-            checkRedirectParameters(np, defgw, true);
-        }
-        Vector<Vector<String>> redirectPrivate = getAllOption("redirect-private", 0, 5);
-        if (redirectPrivate != null) {
-            checkRedirectParameters(np, redirectPrivate, false);
-        }
-        Vector<String> dev = getOption("dev", 1, 1);
-        Vector<String> devtype = getOption("dev-type", 1, 1);
-        if ((devtype != null && devtype.get(1).equals("tun")) ||
-                (dev != null && dev.get(1).startsWith("tun")) ||
-                (devtype == null && dev == null)) {
-            //everything okay
-        } else {
-            throw new ConfigParseError("Sorry. Only tun mode is supported. See the FAQ for more detail");
-        }
-        Vector<String> mssfix = getOption("mssfix", 0, 1);
-        if (mssfix != null) {
-            if (mssfix.size() >= 2) {
-                try {
-                    np.mMssFix = Integer.parseInt(mssfix.get(1));
-                } catch (NumberFormatException e) {
-                    throw new ConfigParseError("Argument to --mssfix has to be an integer");
-                }
-            } else {
-                np.mMssFix = 1450; // OpenVPN default size
-            }
-        }
-        Vector<String> tunmtu = getOption("mtu", 1, 1);
-        if (tunmtu != null) {
-            try {
-                np.mTunMtu = Integer.parseInt(tunmtu.get(1));
-            } catch (NumberFormatException e) {
-                throw new ConfigParseError("Argument to --tun-mtu has to be an integer");
-            }
-        }
-        Vector<String> mode = getOption("mode", 1, 1);
-        if (mode != null) {
-            if (!mode.get(1).equals("p2p"))
-                throw new ConfigParseError("Invalid mode for --mode specified, need p2p");
-        }
-        Vector<Vector<String>> dhcpoptions = getAllOption("dhcp-option", 2, 2);
-        if (dhcpoptions != null) {
-            for (Vector<String> dhcpoption : dhcpoptions) {
-                String type = dhcpoption.get(1);
-                String arg = dhcpoption.get(2);
-                if (type.equals("DOMAIN")) {
-                    np.mSearchDomain = dhcpoption.get(2);
-                } else if (type.equals("DNS")) {
-                    np.mOverrideDNS = true;
-                    if (np.mDNS1.equals(VpnProfile.DEFAULT_DNS1))
-                        np.mDNS1 = arg;
-                    else
-                        np.mDNS2 = arg;
-                }
-            }
-        }
-        Vector<String> ifconfig = getOption("ifconfig", 2, 2);
-        if (ifconfig != null) {
-            try {
-                CIDRIP cidr = new CIDRIP(ifconfig.get(1), ifconfig.get(2));
-                np.mIPv4Address = cidr.toString();
-            } catch (NumberFormatException nfe) {
-                throw new ConfigParseError("Could not pase ifconfig IP address: " + nfe.getLocalizedMessage());
-            }
-        }
-        if (getOption("remote-random-hostname", 0, 0) != null)
-            np.mUseRandomHostname = true;
-        if (getOption("float", 0, 0) != null)
-            np.mUseFloat = true;
-        if (getOption("comp-lzo", 0, 1) != null)
-            np.mUseLzo = true;
-        Vector<String> cipher = getOption("cipher", 1, 1);
-        if (cipher != null)
-            np.mCipher = cipher.get(1);
-        Vector<String> auth = getOption("auth", 1, 1);
-        if (auth != null)
-            np.mAuth = auth.get(1);
-        Vector<String> ca = getOption("ca", 1, 1);
-        if (ca != null) {
-            np.mCaFilename = ca.get(1);
-        }
-        Vector<String> cert = getOption("cert", 1, 1);
-        if (cert != null) {
-            np.mClientCertFilename = cert.get(1);
-            np.mAuthenticationType = VpnProfile.TYPE_CERTIFICATES;
-            noauthtypeset = false;
-        }
-        Vector<String> key = getOption("key", 1, 1);
-        if (key != null)
-            np.mClientKeyFilename = key.get(1);
-        Vector<String> pkcs12 = getOption("pkcs12", 1, 1);
-        if (pkcs12 != null) {
-            np.mPKCS12Filename = pkcs12.get(1);
-            np.mAuthenticationType = VpnProfile.TYPE_KEYSTORE;
-            noauthtypeset = false;
-        }
-        Vector<String> cryptoapicert = getOption("cryptoapicert", 1, 1);
-        if (cryptoapicert != null) {
-            np.mAuthenticationType = VpnProfile.TYPE_KEYSTORE;
-            noauthtypeset = false;
-        }
-        Vector<String> compatnames = getOption("compat-names", 1, 2);
-        Vector<String> nonameremapping = getOption("no-name-remapping", 1, 1);
-        Vector<String> tlsremote = getOption("tls-remote", 1, 1);
-        if (tlsremote != null) {
-            np.mRemoteCN = tlsremote.get(1);
-            np.mCheckRemoteCN = true;
-            np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE;
-            if ((compatnames != null && compatnames.size() > 2) ||
-                    (nonameremapping != null))
-                np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_COMPAT_NOREMAPPING;
-        }
-        Vector<String> verifyx509name = getOption("verify-x509-name", 1, 2);
-        if (verifyx509name != null) {
-            np.mRemoteCN = verifyx509name.get(1);
-            np.mCheckRemoteCN = true;
-            if (verifyx509name.size() > 2) {
-                if (verifyx509name.get(2).equals("name"))
-                    np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_RDN;
-                else if (verifyx509name.get(2).equals("subject"))
-                    np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_DN;
-                else if (verifyx509name.get(2).equals("name-prefix"))
-                    np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_RDN_PREFIX;
-                else
-                    throw new ConfigParseError("Unknown parameter to verify-x509-name: " + verifyx509name.get(2));
-            } else {
-                np.mX509AuthType = VpnProfile.X509_VERIFY_TLSREMOTE_DN;
-            }
-        }
-        Vector<String> x509usernamefield = getOption("x509-username-field", 1, 1);
-        if (x509usernamefield != null) {
-            np.mx509UsernameField = x509usernamefield.get(1);
-        }
-        Vector<String> verb = getOption("verb", 1, 1);
-        if (verb != null) {
-            np.mVerb = verb.get(1);
-        }
-        if (getOption("nobind", 0, 0) != null)
-            np.mNobind = true;
-        if (getOption("persist-tun", 0, 0) != null)
-            np.mPersistTun = true;
-        if (getOption("push-peer-info", 0, 0) != null)
-            np.mPushPeerInfo = true;
-        Vector<String> connectretry = getOption("connect-retry", 1, 2);
-        if (connectretry != null) {
-            np.mConnectRetry = connectretry.get(1);
-            if (connectretry.size() > 2)
-                np.mConnectRetryMaxTime = connectretry.get(2);
-        }
-        Vector<String> connectretrymax = getOption("connect-retry-max", 1, 1);
-        if (connectretrymax != null)
-            np.mConnectRetryMax = connectretrymax.get(1);
-        Vector<Vector<String>> remotetls = getAllOption("remote-cert-tls", 1, 1);
-        if (remotetls != null)
-            if (remotetls.get(0).get(1).equals("server"))
-                np.mExpectTLSCert = true;
-            else
-                options.put("remotetls", remotetls);
-        Vector<String> authuser = getOption("auth-user-pass", 0, 1);
-        if (authuser != null) {
-            if (noauthtypeset) {
-                np.mAuthenticationType = VpnProfile.TYPE_USERPASS;
-            } else if (np.mAuthenticationType == VpnProfile.TYPE_CERTIFICATES) {
-                np.mAuthenticationType = VpnProfile.TYPE_USERPASS_CERTIFICATES;
-            } else if (np.mAuthenticationType == VpnProfile.TYPE_KEYSTORE) {
-                np.mAuthenticationType = VpnProfile.TYPE_USERPASS_KEYSTORE;
-            }
-            if (authuser.size() > 1) {
-                if (!authuser.get(1).startsWith(VpnProfile.INLINE_TAG))
-                    auth_user_pass_file = authuser.get(1);
-                np.mUsername = null;
-                useEmbbedUserAuth(np, authuser.get(1));
-            }
-        }
-        Vector<String> authretry = getOption("auth-retry", 1, 1);
-        if (authretry != null) {
-            if (authretry.get(1).equals("none"))
-                np.mAuthRetry = VpnProfile.AUTH_RETRY_NONE_FORGET;
-            else if (authretry.get(1).equals("nointeract"))
-                np.mAuthRetry = VpnProfile.AUTH_RETRY_NOINTERACT;
-            else if (authretry.get(1).equals("interact"))
-                np.mAuthRetry = VpnProfile.AUTH_RETRY_NOINTERACT;
-            else
-                throw new ConfigParseError("Unknown parameter to auth-retry: " + authretry.get(2));
-        }
-        Vector<String> crlfile = getOption("crl-verify", 1, 2);
-        if (crlfile != null) {
-            // If the 'dir' parameter is present just add it as custom option ..
-            if (crlfile.size() == 3 && crlfile.get(2).equals("dir"))
-                np.mCustomConfigOptions += TextUtils.join(" ", crlfile) + "\n";
-            else
-                // Save the filename for the config converter to add later
-                np.mCrlFilename = crlfile.get(1);
-        }
-        Pair<Connection, Connection[]> conns = parseConnectionOptions(null);
-        np.mConnections = conns.second;
-        Vector<Vector<String>> connectionBlocks = getAllOption("connection", 1, 1);
-        if (np.mConnections.length > 0 && connectionBlocks != null) {
-            throw new ConfigParseError("Using a <connection> block and --remote is not allowed.");
-        }
-        if (connectionBlocks != null) {
-            np.mConnections = new Connection[connectionBlocks.size()];
-            int connIndex = 0;
-            for (Vector<String> conn : connectionBlocks) {
-                Pair<Connection, Connection[]> connectionBlockConnection =
-                        parseConnection(conn.get(1), conns.first);
-                if (connectionBlockConnection.second.length != 1)
-                    throw new ConfigParseError("A <connection> block must have exactly one remote");
-                np.mConnections[connIndex] = connectionBlockConnection.second[0];
-                connIndex++;
+        Conversion c = new Conversion(PROFILE_OPTIONS, options, np);
+        c.run();
+        auth_user_pass_file = c.authUserPassFile;
+        // Parse OpenVPN Access Server extra
+        String[] friendlyname = meta.get("FRIENDLY_NAME");
+        if (friendlyname != null && friendlyname.length > 1)
+            np.mName = friendlyname[1];
+        String[] ocusername = meta.get("USERNAME");
+        if (ocusername != null && ocusername.length > 1)
+            np.mUsername = ocusername[1];
+        if (c.unhandled.size() > 0) {
+            StringBuilder custom = new StringBuilder("# These options found in the config file do not map to config settings:\n");
+            custom.append(np.mCustomConfigOptions);
+            for (ArrayList<String[]> option : c.unhandled.values()) {
+                appendOptionStrings(custom, option);
             }
+            np.mCustomConfigOptions = custom.toString();
+            np.mUseCustomConfig = true;
         }
-        if (getOption("remote-random", 0, 0) != null)
-            np.mRemoteRandom = true;
-        Vector<String> protoforce = getOption("proto-force", 1, 1);
-        if (protoforce != null) {
-            boolean disableUDP;
-            String protoToDisable = protoforce.get(1);
-            if (protoToDisable.equals("udp"))
-                disableUDP = true;
-            else if (protoToDisable.equals("tcp"))
-                disableUDP = false;
-            else
-                throw new ConfigParseError(String.format("Unknown protocol %s in proto-force", protoToDisable));
-            for (Connection conn : np.mConnections)
-                if (conn.mUseUdp == disableUDP)
-                    conn.mEnabled = false;
-        }
-        // Parse OpenVPN Access Server extra
-        Vector<String> friendlyname = meta.get("FRIENDLY_NAME");
-        if (friendlyname != null && friendlyname.size() > 1)
-            np.mName = friendlyname.get(1);
-        Vector<String> ocusername = meta.get("USERNAME");
-        if (ocusername != null && ocusername.size() > 1)
-            np.mUsername = ocusername.get(1);
-        checkIgnoreAndInvalidOptions(np);
         fixup(np);
         return np;
     }
-    private Pair<Connection, Connection[]> parseConnection(String connection, Connection defaultValues) throws IOException, ConfigParseError {
+    private static Connection[] parseConnection(String connection, Connection defaultValues) throws IOException, ConfigParseError {
         // Parse a connection Block as a new configuration file
         ConfigParser connectionParser = new ConfigParser();
         StringReader reader = new StringReader(connection.substring(VpnProfile.INLINE_TAG.length()));
         connectionParser.parseConfig(reader);
-        Pair<Connection, Connection[]> conn = connectionParser.parseConnectionOptions(defaultValues);
-        return conn;
+        return buildConnections(new Conversion(CONNECTION_OPTIONS, connectionParser.options, null), defaultValues);
     }
-    private Pair<Connection, Connection[]> parseConnectionOptions(Connection connDefault) throws ConfigParseError {
+    /**
+     * Builds a connection per --remote from the connection options of c. The connection all of
+     * them are cloned from is kept as c.defaultConnection.
+     */
+    private static Connection[] buildConnections(Conversion c, Connection connDefault) throws ConfigParseError {
         Connection conn;
         if (connDefault != null)
             try {
@@ -618,78 +783,80 @@ public class ConfigParser {
             }
         else
             conn = new Connection();
-        Vector<String> port = getOption("port", 1, 1);
+        String[] port = c.last(PORT.name);
         if (port != null) {
-            conn.mServerPort = port.get(1);
+            conn.mServerPort = port[1];
         }
-        Vector<String> rport = getOption("rport", 1, 1);
+        String[] rport = c.last(RPORT.name);
         if (rport != null) {
-            conn.mServerPort = rport.get(1);
+            conn.mServerPort = rport[1];
         }
-        Vector<String> proto = getOption("proto", 1, 1);
+        String[] proto = c.last(PROTO.name);
         if (proto != null) {
-            conn.mUseUdp = isUdpProto(proto.get(1));
+            conn.mUseUdp = isUdpProto(proto[1]);
         }
-        Vector<String> connectTimeout = getOption("connect-timeout", 1, 1);
+        String[] connectTimeout = c.last(CONNECT_TIMEOUT.name);
         if (connectTimeout != null) {
             try {
-                conn.mConnectTimeout = Integer.parseInt(connectTimeout.get(1));
+                conn.mConnectTimeout = Integer.parseInt(connectTimeout[1]);
             } catch (NumberFormatException nfe) {
                 throw new ConfigParseError(String.format("Argument to connect-timeout (%s) must to be an integer: %s",
-                        connectTimeout.get(1), nfe.getLocalizedMessage()));
+                        connectTimeout[1], nfe.getLocalizedMessage()));
             }
         }
         // Parse remote config
-        Vector<Vector<String>> remotes = getAllOption("remote", 1, 3);
+        ArrayList<String[]> remotes = c.all(REMOTE.name);
         // Assume that we need custom options if connectionDefault are set
         if (connDefault != null) {
-            for (Vector<Vector<String>> option : options.values()) {
-                conn.mCustomConfiguration += getOptionStrings(option);
+            StringBuilder custom = new StringBuilder(conn.mCustomConfiguration);
+            for (ArrayList<String[]> option : c.unhandled.values()) {
+                appendOptionStrings(custom, option);
             }
-            if (!TextUtils.isEmpty(conn.mCustomConfiguration))
+            conn.mCustomConfiguration = custom.toString();
+            if (conn.mCustomConfiguration.length() > 0)
                 conn.mUseCustomConfig = true;
         }
-        // Make remotes empty to simplify code
+        c.defaultConnection = conn;
         if (remotes == null)
-            remotes = new Vector<Vector<String>>();
+            return new Connection[0];
         Connection[] connections = new Connection[remotes.size()];
         int i = 0;
-        for (Vector<String> remote : remotes) {
+        for (String[] remote : remotes) {
             try {
                 connections[i] = conn.clone();
             } catch (CloneNotSupportedException e) {
                 e.printStackTrace();
             }
-            switch (remote.size()) {
+            switch (remote.length) {
                 case 4:
-                    connections[i].mUseUdp = isUdpProto(remote.get(3));
+                    connections[i].mUseUdp = isUdpProto(remote[3]);
                 case 3:
-                    connections[i].mServerPort = remote.get(2);
+                    connections[i].mServerPort = remote[2];
                 case 2:
-                    connections[i].mServerName = remote.get(1);
+                    connections[i].mServerName = remote[1];
             }
             i++;
         }
-        return Pair.create(conn, connections);
+        return connections;
     }
-    private void checkRedirectParameters(VpnProfile np, Vector<Vector<String>> defgw, boolean defaultRoute) {
+    private static void checkRedirectParameters(VpnProfile np, ArrayList<String[]> defgw, boolean defaultRoute) {
         boolean noIpv4 = false;
         if (defaultRoute)
-            for (Vector<String> redirect : defgw)
-                for (int i = 1; i < redirect.size(); i++) {
-                    if (redirect.get(i).equals("block-local"))
+            for (String[] redirect : defgw)
+                for (int i = 1; i < redirect.length; i++) {
+                    if (redirect[i].equals("block-local"))
                         np.mAllowLocalLAN = false;
-                    else if (redirect.get(i).equals("unblock-local"))
+                    else if (redirect[i].equals("unblock-local"))
                         np.mAllowLocalLAN = true;
-                    else if (redirect.get(i).equals("!ipv4"))
+                    else if (redirect[i].equals("!ipv4"))
                         noIpv4 = true;
-                    else if (redirect.get(i).equals("ipv6"))
+                    else if (redirect[i].equals("ipv6"))
                         np.mUseDefaultRoutev6 = true;
                 }
         if (defaultRoute && !noIpv4)
             np.mUseDefaultRoute = true;
     }
-    private boolean isUdpProto(String proto) throws ConfigParseError {
+    private static boolean isUdpProto(String proto) throws ConfigParseError {
         boolean isudp;
         if (proto.equals("udp") || proto.equals("udp4") || proto.equals("udp6"))
             isudp = true;
@@ -704,29 +871,16 @@ public class ConfigParser {
             throw new ConfigParseError("Unsupported option to --proto " + proto);
         return isudp;
     }
-    private void checkIgnoreAndInvalidOptions(VpnProfile np) throws ConfigParseError {
-        for (String option : unsupportedOptions)
-            if (options.containsKey(option))
-                throw new ConfigParseError(String.format("Unsupported Option %s encountered in config file. Aborting", option));
-        for (String option : ignoreOptions)
-            // removing an item which is not in the map is no error
-            options.remove(option);
-        if (options.size() > 0) {
-            np.mCustomConfigOptions = "# These options found in the config file do not map to config settings:\n"
-                    + np.mCustomConfigOptions;
-            for (Vector<Vector<String>> option : options.values()) {
-                np.mCustomConfigOptions += getOptionStrings(option);
-            }
-            np.mUseCustomConfig = true;
-        }
-    }
-    boolean ignoreThisOption(Vector<String> option) {
-        for (String[] ignoreOption : ignoreOptionsWithArg) {
-            if (option.size() < ignoreOption.length)
+    static boolean ignoreThisOption(String[] option) {
+        ArrayList<String[]> candidates = IGNORED_OPTIONS_WITH_ARG.get(option[0]);
+        if (candidates == null)
+            return false;
+        for (String[] ignoreOption : candidates) {
+            if (option.length < ignoreOption.length)
                 continue;
             boolean ignore = true;
-            for (int i = 0; i < ignoreOption.length; i++) {
-                if (!ignoreOption[i].equals(option.get(i)))
+            for (int i = 1; i < ignoreOption.length; i++) {
+                if (!ignoreOption[i].equals(option[i]))
                     ignore = false;
             }
             if (ignore)
@@ -735,52 +889,26 @@ public class ConfigParser {
         return false;
     }
     //! Generate options for custom options
-    private String getOptionStrings(Vector<Vector<String>> option) {
-        String custom = "";
-        for (Vector<String> optionsline : option) {
+    private static void appendOptionStrings(StringBuilder custom, ArrayList<String[]> option) {
+        for (String[] optionsline : option) {
             if (!ignoreThisOption(optionsline)) {
                 // Check if option had been inlined and inline again
-                if (optionsline.size() == 2 &&
-                        ("extra-certs".equals(optionsline.get(0)) || "http-proxy-user-pass".equals(optionsline.get(0)))) {
-                    custom += VpnProfile.insertFileData(optionsline.get(0), optionsline.get(1));
+                if (optionsline.length == 2 &&
+                        ("extra-certs".equals(optionsline[0]) || "http-proxy-user-pass".equals(optionsline[0]))) {
+                    custom.append(VpnProfile.insertFileData(optionsline[0], optionsline[1]));
                 } else {
                     for (String arg : optionsline)
-                        custom += VpnProfile.openVpnEscape(arg) + " ";
-                    custom += "\n";
+                        custom.append(VpnProfile.openVpnEscape(arg)).append(' ');
+                    custom.append('\n');
                 }
             }
         }
-        return custom;
     }
     private void fixup(VpnProfile np) {
         if (np.mRemoteCN.equals(np.mServerName)) {
             np.mRemoteCN = "";
         }
     }
-    private Vector<String> getOption(String option, int minarg, int maxarg) throws ConfigParseError {
-        Vector<Vector<String>> alloptions = getAllOption(option, minarg, maxarg);
-        if (alloptions == null)
-            return null;
-        else
-            return alloptions.lastElement();
-    }
-    private Vector<Vector<String>> getAllOption(String option, int minarg, int maxarg) throws ConfigParseError {
-        Vector<Vector<String>> args = options.get(option);
-        if (args == null)
-            return null;
-        for (Vector<String> optionline : args)
-            if (optionline.size() < (minarg + 1) || optionline.size() > maxarg + 1) {
-                String err = String.format(Locale.getDefault(), "Option %s has %d parameters, expected between %d and %d",
-                        option, optionline.size() - 1, minarg, maxarg);
-                throw new ConfigParseError(err);
-            }
-        options.remove(option);
-        return args;
-    }
-    enum linestate {
-        initial,
-        readin_single_quote, reading_quoted, reading_unquoted, done
-    }
     public static class ConfigParseError extends Exception {
         private static final long serialVersionUID = -60L;
         public ConfigParseError(String msg) {
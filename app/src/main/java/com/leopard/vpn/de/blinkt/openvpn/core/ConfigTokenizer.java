@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Splits an OpenVPN config into lines and arguments in a single pass over a char buffer.
+ *
+ * The current line is only a range of the buffer, no String is created for it. Arguments are
+ * collected in one reused StringBuilder and inline blocks like &lt;ca&gt; are cut out of the buffer
+ * as one slice, so the work is linear in the size of the config. The buffer only holds the
+ * current line or inline block and grows if one of them does not fit.
+ */
+class ConfigTokenizer {
+    private enum linestate {
+        initial,
+        readin_single_quote, reading_quoted, reading_unquoted, done
+    }
+
+    private final Reader mReader;
+    private char[] mBuf = new char[8192];
+    private int mLimit = 0;
+    /* Scan position, everything before it has been split into lines */
+    private int mPos = 0;
+    private int mLineStart = 0;
+    private int mLineEnd = 0;
+    /* Range of the inline block being read, mBlockStart is -1 outside of blocks */
+    private int mBlockStart = -1;
+    private int mBlockEnd;
+    private final StringBuilder mArg = new StringBuilder();
+
+    ConfigTokenizer(Reader reader) {
+        mReader = reader;
+    }
+
+    /**
+     * Reads more input, keeping the current line or inline block in the buffer
+     *
+     * @return false at the end of the input
+     */
+    private boolean fill() throws IOException {
+        int keep = mBlockStart >= 0 ? mBlockStart : mLineStart;
+        if (keep > 0) {
+            System.arraycopy(mBuf, keep, mBuf, 0, mLimit - keep);
+            mLimit -= keep;
+            mPos -= keep;
+            mLineStart -= keep;
+            mLineEnd -= keep;
+            if (mBlockStart >= 0) {
+                mBlockStart -= keep;
+                mBlockEnd -= keep;
+            }
+        }
+        if (mLimit == mBuf.length)
+            mBuf = Arrays.copyOf(mBuf, mBuf.length * 2);
+        int read = mReader.read(mBuf, mLimit, mBuf.length - mLimit);
+        if (read <= 0)
+            return false;
+        mLimit += read;
+        return true;
+    }
+
+    /**
+     * Advances to the next line. Lines end with \n, \r or \r\n like with BufferedReader.
+     *
+     * @return false at the end of the input
+     */
+    boolean nextLine() throws IOException {
+        mLineStart = mPos;
+        while (true) {
+            if (mPos == mLimit && !fill()) {
+                mLineEnd = mPos;
+                return mLineStart != mPos;
+            }
+            char c = mBuf[mPos];
+            if (c == '\n' || c == '\r') {
+                mLineEnd = mPos++;
+                if (c == '\r' && (mPos < mLimit || fill()) && mBuf[mPos] == '\n')
+                    mPos++;
+                return true;
+            }
+            mPos++;
+        }
+    }
+
+    boolean lineStartsWith(String prefix) {
+        int len = prefix.length();
+        if (mLineEnd - mLineStart < len)
+            return false;
+        for (int i = 0; i < len; i++) {
+            if (mBuf[mLineStart + i] != prefix.charAt(i))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Drops the first chars of the current line
+     */
+    void skipChars(int count) {
+        mLineStart = Math.min(mLineStart + count, mLineEnd);
+    }
+
+    String getLine() {
+        return new String(mBuf, mLineStart, mLineEnd - mLineStart);
+    }
+
+    /**
+     * @return true if the current line equals str after trimming it like {@link String#trim()}
+     */
+    private boolean lineTrimmedEquals(String str) {
+        int start = mLineStart;
+        int end = mLineEnd;
+        while (start < end && mBuf[start] <= ' ')
+            start++;
+        while (end > start && mBuf[end - 1] <= ' ')
+            end--;
+        if (end - start != str.length())
+            return false;
+        for (int i = start; i < end; i++) {
+            if (mBuf[i] != str.charAt(i - start))
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Reads the lines up to the end tag of an inline block.
+     *
+     * @return the inline data prefixed with {@link VpnProfile#INLINE_TAG}, lines joined with \n
+     */
+    String readInlineBlock(String argname) throws IOException, ConfigParser.ConfigParseError {
+        String endtag = String.format("</%s>", argname);
+        mBlockStart = mPos;
+        mBlockEnd = mPos;
+        try {
+            while (true) {
+                if (!nextLine())
+                    throw new ConfigParser.ConfigParseError(String.format("No endtag </%s> for starttag <%s> found", argname, argname));
+                if (lineTrimmedEquals(endtag))
+                    break;
+                mBlockEnd = mLineEnd;
+            }
+            StringBuilder inline = new StringBuilder(VpnProfile.INLINE_TAG.length() + mBlockEnd - mBlockStart);
+            inline.append(VpnProfile.INLINE_TAG);
+            int copied = mBlockStart;
+            for (int i = mBlockStart; i < mBlockEnd; i++) {
+                // Only \r\n or \r line endings need rewriting, otherwise this is a single copy
+                if (mBuf[i] == '\r') {
+                    inline.append(mBuf, copied, i - copied).append('\n');
+                    if (i + 1 < mBlockEnd && mBuf[i + 1] == '\n')
+                        i++;
+                    copied = i + 1;
+                }
+            }
+            inline.append(mBuf, copied, mBlockEnd - copied);
+            return inline.toString();
+        } finally {
+            mBlockStart = -1;
+        }
+    }
+
+    private static boolean space(char c) {
+        // I really hope nobody is using zero bytes inside his/her config file
+        // to sperate parameter but here we go:
+        return Character.isWhitespace(c) || c == '\0';
+    }
+
+    // adapted openvpn's parse function to java
+    ArrayList<String> parseLine() throws ConfigParser.ConfigParseError {
+        ArrayList<String> parameters = new ArrayList<>();
+        int length = mLineEnd - mLineStart;
+        if (length == 0)
+            return parameters;
+        linestate state = linestate.initial;
+        boolean backslash = false;
+        char out = 0;
+        int pos = 0;
+        mArg.setLength(0);
+        do {
+            // Emulate the c parsing ...
+            char in;
+            if (pos < length)
+                in = mBuf[mLineStart + pos];
+            else
+                in = '\0';
+            if (!backslash && in == '\\' && state != linestate.readin_single_quote) {
+                backslash = true;
+            } else {
+                if (state == linestate.initial) {
+                    if (!space(in)) {
+                        if (in == ';' || in == '#') /* comment */
+                            break;
+                        if (!backslash && in == '\"')
+                            state = linestate.reading_quoted;
+                        else if (!backslash && in == '\'')
+                            state = linestate.readin_single_quote;
+                        else {
+                            out = in;
+                            state = linestate.reading_unquoted;
+                        }
+                    }
+                } else if (state == linestate.reading_unquoted) {
+                    if (!backslash && space(in))
+                        state = linestate.done;
+                    else
+                        out = in;
+                } else if (state == linestate.reading_quoted) {
+                    if (!backslash && in == '\"')
+                        state = linestate.done;
+                    else
+                        out = in;
+                } else if (state == linestate.readin_single_quote) {
+                    if (in == '\'')
+                        state = linestate.done;
+                    else
+                        out = in;
+                }
+                if (state == linestate.done) {
+                    /* ASSERT (parm_len > 0); */
+                    state = linestate.initial;
+                    parameters.add(mArg.toString());
+                    mArg.setLength(0);
+                    out = 0;
+                }
+                if (backslash && out != 0) {
+                    if (!(out == '\\' || out == '\"' || space(out))) {
+                        throw new ConfigParser.ConfigParseError("Options warning: Bad backslash ('\\') usage");
+                    }
+                }
+                backslash = false;
+            }
+            /* store parameter character */
+            if (out != 0) {
+                mArg.append(out);
+            }
+        } while (pos++ < length);
+        return parameters;
+    }
+}
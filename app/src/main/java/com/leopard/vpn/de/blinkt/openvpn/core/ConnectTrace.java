@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Timeline of the stages of one connection attempt, from writing the config to CONNECTED.
+ *
+ * Every stage is recorded once, the first time it is reached. The attempt ends with an outcome,
+ * CONNECTED or the state it failed with, and its trace is logged once at that point. The trace
+ * can be exported as JSON with the stages in the order they were reached and the time of every
+ * stage relative to the start and to the stage before it.
+ *
+ * Time is behind {@link Clock} so the trace can be driven by a fake clock.
+ */
+public class ConnectTrace {
+    public enum Stage {
+        CONFIG_WRITTEN,
+        ARGV_READY,
+        MANAGEMENT_BOUND,
+        OLD_PROCESS_STOPPED,
+        PROCESS_SPAWNED,
+        MANAGEMENT_ACCEPTED,
+        HOLD_RELEASED,
+        CONNECTED
+    }
+
+    interface Clock {
+        long nanoTime();
+    }
+
+    private static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+    };
+
+    private static volatile ConnectTrace sCurrent;
+
+    private final Clock mClock;
+    private final long mStartWallclock = System.currentTimeMillis();
+    private final long mStartNanos;
+    /* Nanoseconds since the start for every stage, -1 if not reached yet */
+    private final long[] mStageNanos = new long[Stage.values().length];
+    /* Stages in the order they were reached */
+    private final Stage[] mReached = new Stage[Stage.values().length];
+    private int mReachedCount;
+    /* null while the attempt is still going on */
+    private String mOutcome;
+
+    private ConnectTrace(Clock clock) {
+        mClock = clock;
+        mStartNanos = clock.nanoTime();
+        for (int i = 0; i < mStageNanos.length; i++)
+            mStageNanos[i] = -1;
+    }
+
+    /**
+     * Starts the trace of a new connection attempt
+     */
+    static ConnectTrace begin() {
+        return begin(SYSTEM_CLOCK);
+    }
+
+    static ConnectTrace begin(Clock clock) {
+        ConnectTrace trace = new ConnectTrace(clock);
+        sCurrent = trace;
+        return trace;
+    }
+
+    /**
+     * @return the trace of the current or last connection attempt, null if there was none yet
+     */
+    public static ConnectTrace getCurrent() {
+        return sCurrent;
+    }
+
+    /**
+     * Records a stage of the current attempt
+     *
+     * @return true if this is the first time the stage was reached in this attempt
+     */
+    static boolean mark(Stage stage) {
+        ConnectTrace trace = sCurrent;
+        return trace != null && trace.markStage(stage);
+    }
+
+    /**
+     * Ends the current attempt and logs its trace. Only the first outcome of an attempt counts,
+     * a NOPROCESS after CONNECTED is the end of the session and not of the attempt.
+     */
+    static void end(String outcome) {
+        ConnectTrace trace = sCurrent;
+        if (trace != null && trace.finish(outcome))
+            VpnStatus.logDebug("Connect trace: " + trace.toJson());
+    }
+
+    private synchronized boolean markStage(Stage stage) {
+        if (mOutcome != null || mStageNanos[stage.ordinal()] >= 0)
+            return false;
+        mStageNanos[stage.ordinal()] = mClock.nanoTime() - mStartNanos;
+        mReached[mReachedCount++] = stage;
+        return true;
+    }
+
+    private synchronized boolean finish(String outcome) {
+        if (mOutcome != null)
+            return false;
+        mOutcome = outcome;
+        return true;
+    }
+
+    /**
+     * @return the outcome the attempt ended with, null while it is still going on
+     */
+    public synchronized String getOutcome() {
+        return mOutcome;
+    }
+
+    /**
+     * @return milliseconds from the start of the attempt to the stage, -1 if it was not reached
+     */
+    public synchronized long getStageMillis(Stage stage) {
+        long nanos = mStageNanos[stage.ordinal()];
+        return nanos < 0 ? -1 : nanos / 1000000;
+    }
+
+    public synchronized String toJson() {
+        try {
+            JSONObject trace = new JSONObject();
+            trace.put("start", mStartWallclock);
+            if (mOutcome != null)
+                trace.put("outcome", mOutcome);
+            JSONArray stages = new JSONArray();
+            long previous = 0;
+            for (int i = 0; i < mReachedCount; i++) {
+                Stage stage = mReached[i];
+                long nanos = mStageNanos[stage.ordinal()];
+                JSONObject entry = new JSONObject();
+                entry.put("stage", stage.name());
+                entry.put("atMs", nanos / 1e6);
+                entry.put("deltaMs", (nanos - previous) / 1e6);
+                stages.put(entry);
+                previous = nanos;
+            }
+            trace.put("stages", stages);
+            return trace.toString();
+        } catch (JSONException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -3,8 +3,11 @@
  * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
  */
 package de.blinkt.openvpn.core;
-import android.text.TextUtils;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.io.Serializable;
+import java.io.Writer;
 import java.util.Locale;
 public class Connection implements Serializable, Cloneable {
     public static final int CONNECTION_DEFAULT_TIMEOUT = 120;
@@ -16,31 +19,52 @@ public class Connection implements Serializable, Cloneable {
     public boolean mUseCustomConfig = false;
     public boolean mEnabled = true;
     public int mConnectTimeout = 0;
-    public String getConnectionBlock() {
-        String cfg = "";
+    public void writeConnectionBlock(Writer out) throws IOException {
         // Server Address
-        cfg += "remote ";
-        cfg += mServerName;
-        cfg += " ";
-        cfg += mServerPort;
+        out.append("remote ");
+        out.append(mServerName);
+        out.append(" ");
+        out.append(mServerPort);
         if (mUseUdp)
-            cfg += " udp\n";
+            out.append(" udp\n");
         else
-            cfg += " tcp-client\n";
+            out.append(" tcp-client\n");
         if (mConnectTimeout != 0)
-            cfg += String.format(Locale.US, " connect-timeout  %d\n", mConnectTimeout);
-        if (!TextUtils.isEmpty(mCustomConfiguration) && mUseCustomConfig) {
-            cfg += mCustomConfiguration;
-            cfg += "\n";
+            out.append(String.format(Locale.US, " connect-timeout  %d\n", mConnectTimeout));
+        if (mCustomConfiguration != null && mCustomConfiguration.length() > 0 && mUseCustomConfig) {
+            out.append(mCustomConfiguration);
+            out.append("\n");
         }
-        return cfg;
+    }
+    /**
+     * Writes the connection for {@link ProfileStore}, read back with {@link #readFrom}
+     */
+    public void writeTo(DataOutputStream out) throws IOException {
+        ProfileStore.writeString(out, mServerName);
+        ProfileStore.writeString(out, mServerPort);
+        out.writeBoolean(mUseUdp);
+        ProfileStore.writeString(out, mCustomConfiguration);
+        out.writeBoolean(mUseCustomConfig);
+        out.writeBoolean(mEnabled);
+        out.writeInt(mConnectTimeout);
+    }
+    public static Connection readFrom(DataInputStream in) throws IOException {
+        Connection conn = new Connection();
+        conn.mServerName = ProfileStore.readString(in);
+        conn.mServerPort = ProfileStore.readString(in);
+        conn.mUseUdp = in.readBoolean();
+        conn.mCustomConfiguration = ProfileStore.readString(in);
+        conn.mUseCustomConfig = in.readBoolean();
+        conn.mEnabled = in.readBoolean();
+        conn.mConnectTimeout = in.readInt();
+        return conn;
     }
     @Override
     public Connection clone() throws CloneNotSupportedException {
         return (Connection) super.clone();
     }
     public boolean isOnlyRemote() {
-        return TextUtils.isEmpty(mCustomConfiguration) || !mUseCustomConfig;
+        return mCustomConfiguration == null || mCustomConfiguration.length() == 0 || !mUseCustomConfig;
     }
     public int getTimeout() {
         if (mConnectTimeout <= 0)
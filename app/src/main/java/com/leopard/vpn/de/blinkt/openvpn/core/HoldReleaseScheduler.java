@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
+
+import java.util.Random;
+
+/**
+ * Decides when a management hold is released, without ever blocking the calling thread.
+ *
+ * A release that follows the previous one within {@link #THROTTLE_WINDOW_MS} is delayed with
+ * exponential backoff and jitter instead of sleeping, so a device flapping between networks does
+ * not make openvpn reconnect in a tight loop. While a release is scheduled, further requests are
+ * coalesced into it, a burst of network change callbacks results in a single release.
+ *
+ * Time and scheduling are behind {@link Clock} and {@link Scheduler} so the policy can be driven
+ * by a fake clock.
+ */
+class HoldReleaseScheduler {
+    /* Releases closer together than this are throttled */
+    static final long THROTTLE_WINDOW_MS = 5000;
+    static final long BASE_DELAY_MS = 3000;
+    static final long MAX_DELAY_MS = 60000;
+    /* Delays are randomly shortened or lengthened by up to this fraction */
+    static final double JITTER = 0.2;
+
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    interface Scheduler {
+        void postDelayed(Runnable task, long delayMs);
+
+        void cancel(Runnable task);
+    }
+
+    private final Clock mClock;
+    private final Scheduler mScheduler;
+    private final Random mRandom;
+    private final Runnable mRelease;
+    private final Runnable mScheduledRelease = new Runnable() {
+        @Override
+        public void run() {
+            synchronized (HoldReleaseScheduler.this) {
+                // Cancelled after it was already queued
+                if (!mPending)
+                    return;
+                mPending = false;
+                release();
+            }
+        }
+    };
+    private boolean mPending;
+    /* Set once openvpn is told to exit, nothing is released after that */
+    private boolean mStopped;
+    /* -1 before the first release */
+    private long mLastRelease = -1;
+    /* Number of releases in a row that were throttled, each one doubles the delay */
+    private int mThrottled;
+
+    /**
+     * @param release sends the hold release, called on the thread requesting it or, if delayed,
+     *                on the thread of looper
+     */
+    HoldReleaseScheduler(Looper looper, Runnable release) {
+        this(new Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+        }, handlerScheduler(new Handler(looper)), new Random(), release);
+    }
+
+    HoldReleaseScheduler(Clock clock, Scheduler scheduler, Random random, Runnable release) {
+        mClock = clock;
+        mScheduler = scheduler;
+        mRandom = random;
+        mRelease = release;
+    }
+
+    private static Scheduler handlerScheduler(final Handler handler) {
+        return new Scheduler() {
+            @Override
+            public void postDelayed(Runnable task, long delayMs) {
+                handler.postDelayed(task, delayMs);
+            }
+
+            @Override
+            public void cancel(Runnable task) {
+                handler.removeCallbacks(task);
+            }
+        };
+    }
+
+    /**
+     * Releases the hold now or schedules the release if the last one was too recent
+     */
+    synchronized void requestRelease() {
+        if (mPending || mStopped)
+            return;
+        long delay = nextDelay();
+        if (delay == 0) {
+            mThrottled = 0;
+            release();
+        } else {
+            mThrottled++;
+            mPending = true;
+            mScheduler.postDelayed(mScheduledRelease, delay);
+        }
+    }
+
+    /**
+     * Drops a scheduled release, e.g. because the connection was paused
+     */
+    synchronized void cancel() {
+        if (mPending) {
+            mPending = false;
+            mScheduler.cancel(mScheduledRelease);
+        }
+    }
+
+    /**
+     * Drops a scheduled release and ignores all later requests, the connection is shutting down
+     */
+    synchronized void stop() {
+        mStopped = true;
+        cancel();
+    }
+
+    synchronized boolean isPending() {
+        return mPending;
+    }
+
+    /**
+     * @return the delay for a release requested now, 0 if it is not throttled
+     */
+    synchronized long nextDelay() {
+        long now = mClock.elapsedRealtime();
+        if (mLastRelease < 0 || now - mLastRelease >= THROTTLE_WINDOW_MS)
+            return 0;
+        long delay = BASE_DELAY_MS << Math.min(mThrottled, 16);
+        delay = Math.min(delay, MAX_DELAY_MS);
+        double jitter = (mRandom.nextDouble() * 2 - 1) * JITTER;
+        return Math.max(1, (long) (delay * (1 + jitter)));
+    }
+
+    private synchronized void release() {
+        mLastRelease = mClock.elapsedRealtime();
+        mRelease.run();
+    }
+}
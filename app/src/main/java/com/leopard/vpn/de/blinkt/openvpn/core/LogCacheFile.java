@@ -0,0 +1,441 @@
+/*
+ * Copyright (c) 2012-2015 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Segmented on-disk log cache.
+ *
+ * Every segment is a data file of records (int length, int crc32, payload) and an index file
+ * holding the offset of every record. Records are collected in a batch and go out with one write
+ * per file. A segment is rotated after a fixed number of records and only the previous segment is
+ * kept, so the cache never holds more than two segments worth of records. Reading maps the files
+ * and walks the index backwards, so replaying the newest N items does not touch older records.
+ */
+class LogCacheFile {
+    static final String SEGMENT_PREFIX = "logcache-";
+    static final String DATA_SUFFIX = ".seg";
+    static final String INDEX_SUFFIX = ".idx";
+    static final int SEGMENT_MAGIC = 0x4f564c43; // "OVLC"
+    static final int SEGMENT_VERSION = 1;
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_HEADER_SIZE = 8;
+    /* Records larger than this are considered corruption */
+    static final int MAX_RECORD_SIZE = 1024 * 1024;
+    /* Starts every item of the log cache file from before the segments */
+    static final int LEGACY_MAGIC_BYTE = 0x55;
+
+    interface RecordVisitor {
+        /**
+         * @return false to stop the replay
+         */
+        boolean onRecord(byte[] payload, int length) throws IOException;
+    }
+
+    private final File mDir;
+    private final int mRecordsPerSegment;
+    private final int mBatchBytes;
+    private final ByteBuffer mBatch;
+    private final ByteBuffer mIndexBatch;
+    private final CRC32 mCrc = new CRC32();
+
+    private long mSegment = -1;
+    private FileChannel mData;
+    private FileChannel mIndex;
+    /* Logical size of the data file including the pending batch */
+    private long mDataSize;
+    private int mSegmentRecords;
+    private boolean mSyncEveryBatch = false;
+
+    LogCacheFile(File dir, int recordsPerSegment, int batchBytes) {
+        mDir = dir;
+        mRecordsPerSegment = recordsPerSegment;
+        mBatchBytes = batchBytes;
+        mBatch = ByteBuffer.allocateDirect(2 * batchBytes);
+        // Index entries are much smaller than records, a quarter of the batch is plenty
+        mIndexBatch = ByteBuffer.allocateDirect(Math.max(64, batchBytes / 4));
+    }
+
+    void setSyncEveryBatch(boolean sync) {
+        mSyncEveryBatch = sync;
+    }
+
+    static File dataFile(File dir, long segment) {
+        return new File(dir, SEGMENT_PREFIX + segment + DATA_SUFFIX);
+    }
+
+    static File indexFile(File dir, long segment) {
+        return new File(dir, SEGMENT_PREFIX + segment + INDEX_SUFFIX);
+    }
+
+    /**
+     * @return numbers of the segments on disk, oldest first
+     */
+    long[] listSegments() {
+        File[] files = mDir.listFiles();
+        ArrayList<Long> segments = new ArrayList<>();
+        if (files != null) {
+            for (File f : files) {
+                String name = f.getName();
+                if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(DATA_SUFFIX))
+                    continue;
+                try {
+                    segments.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - DATA_SUFFIX.length())));
+                } catch (NumberFormatException ignored) {
+                }
+            }
+        }
+        long[] result = new long[segments.size()];
+        for (int i = 0; i < result.length; i++)
+            result[i] = segments.get(i);
+        Arrays.sort(result);
+        return result;
+    }
+
+    boolean isOpen() {
+        return mData != null;
+    }
+
+    /**
+     * Starts a fresh segment for writing, keeping only the newest existing segment for replay
+     */
+    void open() throws IOException {
+        long[] segments = listSegments();
+        long next = segments.length == 0 ? 0 : segments[segments.length - 1] + 1;
+        startSegment(next);
+    }
+
+    /**
+     * Drops all records on disk and starts over with an empty segment
+     */
+    void reset() throws IOException {
+        mBatch.clear();
+        mIndexBatch.clear();
+        closeSegment();
+        for (long segment : listSegments()) {
+            //noinspection ResultOfMethodCallIgnored
+            dataFile(mDir, segment).delete();
+            //noinspection ResultOfMethodCallIgnored
+            indexFile(mDir, segment).delete();
+        }
+        startSegment(mSegment + 1);
+    }
+
+    private void startSegment(long segment) throws IOException {
+        closeSegment();
+        mSegment = segment;
+        mData = new RandomAccessFile(dataFile(mDir, segment), "rw").getChannel();
+        mIndex = new RandomAccessFile(indexFile(mDir, segment), "rw").getChannel();
+        mData.truncate(0);
+        mIndex.truncate(0);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(SEGMENT_MAGIC).putInt(SEGMENT_VERSION).flip();
+        writeFully(mData, header);
+        mDataSize = HEADER_SIZE;
+        mSegmentRecords = 0;
+        // Keep the previous segment, everything older is beyond what we replay
+        for (long old : listSegments()) {
+            if (old < segment - 1) {
+                //noinspection ResultOfMethodCallIgnored
+                dataFile(mDir, old).delete();
+                //noinspection ResultOfMethodCallIgnored
+                indexFile(mDir, old).delete();
+            }
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (mData != null) {
+            mData.close();
+            mIndex.close();
+            mData = null;
+            mIndex = null;
+        }
+    }
+
+    void close() throws IOException {
+        writeBatch();
+        closeSegment();
+    }
+
+    /**
+     * Adds a record to the current batch.
+     *
+     * @return true if the record started a new batch, the caller should arrange a deadline flush
+     */
+    boolean append(byte[] payload, int length) throws IOException {
+        if (mSegmentRecords >= mRecordsPerSegment) {
+            writeBatch();
+            startSegment(mSegment + 1);
+        }
+        int recordSize = RECORD_HEADER_SIZE + length;
+        if (mBatch.remaining() < recordSize || mIndexBatch.remaining() < 4)
+            writeBatch();
+
+        int crc = crc(payload, length);
+
+        if (mBatch.remaining() < recordSize) {
+            // Larger than a whole batch, write it through on its own
+            ByteBuffer record = ByteBuffer.allocate(recordSize);
+            record.putInt(length).putInt(crc).put(payload, 0, length).flip();
+            writeFully(mData, record);
+            addIndexEntry(recordSize);
+            writeBatch();
+            return false;
+        }
+        boolean startedBatch = isBatchEmpty();
+        mBatch.putInt(length).putInt(crc).put(payload, 0, length);
+        addIndexEntry(recordSize);
+
+        if (mBatch.position() >= mBatchBytes) {
+            writeBatch();
+            return false;
+        }
+        return startedBatch;
+    }
+
+    /**
+     * @return true if no records wait in the batch
+     */
+    boolean isBatchEmpty() {
+        return mBatch.position() == 0 && mIndexBatch.position() == 0;
+    }
+
+    private void addIndexEntry(int recordSize) {
+        mIndexBatch.putInt((int) mDataSize);
+        mDataSize += recordSize;
+        mSegmentRecords++;
+    }
+
+    /**
+     * Writes the pending records with one write to the data file and one to the index
+     */
+    void writeBatch() throws IOException {
+        if (mData == null)
+            return;
+        if (mBatch.position() > 0) {
+            mBatch.flip();
+            writeFully(mData, mBatch);
+            mBatch.clear();
+        }
+        // Index after data, a crash in between leaves records that recovery finds by scanning
+        if (mIndexBatch.position() > 0) {
+            mIndexBatch.flip();
+            writeFully(mIndex, mIndexBatch);
+            mIndexBatch.clear();
+            if (mSyncEveryBatch)
+                force();
+        }
+    }
+
+    void force() throws IOException {
+        if (mData != null) {
+            mData.force(false);
+            mIndex.force(false);
+        }
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    /**
+     * Copies the items of a log cache file from before the segments into the current segment,
+     * oldest first, so they replay like records written by {@link #append}.
+     *
+     * @param maxRecords only the newest items up to this number are copied
+     * @return number of records copied
+     */
+    int migrateLegacy(File legacy, int maxRecords) throws IOException {
+        ArrayDeque<byte[]> records = new ArrayDeque<>();
+        InputStream in = new BufferedInputStream(new FileInputStream(legacy));
+        try {
+            int skipped = readLegacyRecords(in, records, maxRecords);
+            if (skipped > 0)
+                VpnStatus.logDebug(String.format(Locale.US, "Skipped %d bytes of the old log cache", skipped));
+        } finally {
+            in.close();
+        }
+        for (byte[] record : records)
+            append(record, record.length);
+        writeBatch();
+        return records.size();
+    }
+
+    /**
+     * Reads the items of the old log cache format: the magic byte, the length as a big endian int
+     * and the payload, in which the magic byte and the byte after it are escaped as
+     * (magic + 1, 0) and (magic + 1, 1). A broken item is skipped up to the next magic byte.
+     *
+     * @return number of bytes skipped
+     */
+    static int readLegacyRecords(InputStream in, ArrayDeque<byte[]> records, int maxRecords) throws IOException {
+        int skipped = 0;
+        int b = in.read();
+        readloop:
+        while (b != -1) {
+            if (b != LEGACY_MAGIC_BYTE) {
+                skipped++;
+                b = in.read();
+                continue;
+            }
+            int length = 0;
+            for (int i = 0; i < 4; i++) {
+                int lengthByte = in.read();
+                if (lengthByte == -1)
+                    break readloop;
+                length = length << 8 | lengthByte;
+            }
+            if (length < 0 || length > MAX_RECORD_SIZE) {
+                skipped += 5;
+                b = in.read();
+                continue;
+            }
+            byte[] payload = new byte[length];
+            for (int pos = 0; pos < length; pos++) {
+                int c = in.read();
+                if (c == -1)
+                    // Torn last item
+                    break readloop;
+                if (c == LEGACY_MAGIC_BYTE) {
+                    // Unexpected start of the next item
+                    skipped += 5 + pos;
+                    b = c;
+                    continue readloop;
+                }
+                if (c == LEGACY_MAGIC_BYTE + 1) {
+                    int escaped = in.read();
+                    if (escaped != 0 && escaped != 1) {
+                        skipped += 5 + pos;
+                        b = escaped;
+                        continue readloop;
+                    }
+                    c = LEGACY_MAGIC_BYTE + escaped;
+                }
+                payload[pos] = (byte) c;
+            }
+            records.addLast(payload);
+            if (records.size() > maxRecords)
+                records.removeFirst();
+            b = in.read();
+        }
+        return skipped;
+    }
+
+    /**
+     * Visits the records of all closed segments and of what is already written of the current one,
+     * newest first, until the visitor returns false.
+     *
+     * @return number of records visited
+     */
+    int replayNewestFirst(RecordVisitor visitor) throws IOException {
+        long[] segments = listSegments();
+        int visited = 0;
+        byte[] payload = new byte[4096];
+        for (int s = segments.length - 1; s >= 0; s--) {
+            if (segments[s] == mSegment && mData != null)
+                writeBatch();
+            RandomAccessFile dataRaf = new RandomAccessFile(dataFile(mDir, segments[s]), "r");
+            try {
+                FileChannel dataChannel = dataRaf.getChannel();
+                long size = dataChannel.size();
+                if (size < HEADER_SIZE)
+                    continue;
+                MappedByteBuffer data = dataChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                if (data.getInt(0) != SEGMENT_MAGIC || data.getInt(4) != SEGMENT_VERSION)
+                    continue;
+                int[] offsets = readOffsets(segments[s], data);
+                for (int i = offsets.length - 1; i >= 0; i--) {
+                    int offset = offsets[i];
+                    if (!isPlausibleRecord(data, offset))
+                        continue;
+                    int length = data.getInt(offset);
+                    if (length > payload.length)
+                        payload = new byte[length];
+                    data.position(offset + RECORD_HEADER_SIZE);
+                    data.get(payload, 0, length);
+                    if (crc(payload, length) != data.getInt(offset + 4))
+                        continue;
+                    visited++;
+                    if (!visitor.onRecord(payload, length))
+                        return visited;
+                }
+            } finally {
+                dataRaf.close();
+            }
+        }
+        return visited;
+    }
+
+    /**
+     * Reads the offset index of a segment. Records that made it into the data file but not into
+     * the index are recovered by scanning after the last intact indexed record.
+     */
+    private int[] readOffsets(long segment, MappedByteBuffer data) throws IOException {
+        int[] offsets = new int[0];
+        File index = indexFile(mDir, segment);
+        if (index.exists()) {
+            RandomAccessFile indexRaf = new RandomAccessFile(index, "r");
+            try {
+                FileChannel indexChannel = indexRaf.getChannel();
+                int entries = (int) (indexChannel.size() / 4);
+                offsets = new int[entries];
+                indexChannel.map(FileChannel.MapMode.READ_ONLY, 0, entries * 4L).asIntBuffer().get(offsets);
+            } finally {
+                indexRaf.close();
+            }
+        }
+        int count = offsets.length;
+        // A torn write can only damage the tail
+        while (count > 0 && !isValidRecord(data, offsets[count - 1]))
+            count--;
+        int offset = count == 0 ? HEADER_SIZE : offsets[count - 1] + RECORD_HEADER_SIZE + data.getInt(offsets[count - 1]);
+        while (isValidRecord(data, offset)) {
+            if (count == offsets.length)
+                offsets = Arrays.copyOf(offsets, Math.max(16, count * 2));
+            offsets[count++] = offset;
+            offset += RECORD_HEADER_SIZE + data.getInt(offset);
+        }
+        return Arrays.copyOf(offsets, count);
+    }
+
+    private static boolean isPlausibleRecord(MappedByteBuffer data, int offset) {
+        if (offset < HEADER_SIZE || offset + RECORD_HEADER_SIZE > data.limit())
+            return false;
+        int length = data.getInt(offset);
+        return length >= 0 && length <= MAX_RECORD_SIZE && offset + RECORD_HEADER_SIZE + (long) length <= data.limit();
+    }
+
+    private boolean isValidRecord(MappedByteBuffer data, int offset) {
+        if (!isPlausibleRecord(data, offset))
+            return false;
+        int length = data.getInt(offset);
+        byte[] bytes = new byte[length];
+        data.position(offset + RECORD_HEADER_SIZE);
+        data.get(bytes);
+        return crc(bytes, length) == data.getInt(offset + 4);
+    }
+
+    private int crc(byte[] bytes, int length) {
+        mCrc.reset();
+        mCrc.update(bytes, 0, length);
+        return (int) mCrc.getValue();
+    }
+}
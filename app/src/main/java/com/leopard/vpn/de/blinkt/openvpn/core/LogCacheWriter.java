@@ -0,0 +1,88 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes log items to the log cache, on the thread of {@link LogFileHandler}.
+ *
+ * Items are collected in the batch of the {@link LogCacheFile}, which goes out once it holds
+ * {@link #BATCH_FLUSH_BYTES} or {@link #BATCH_FLUSH_DELAY_MS} after its first item. When the
+ * written batches are synced to the storage device depends on the {@link VpnStatus.LogDurability}.
+ *
+ * The deadline is behind {@link Scheduler} so the policy can be driven by a fake clock.
+ */
+class LogCacheWriter {
+    /* Batch is written out once it holds this many bytes ... */
+    static final int BATCH_FLUSH_BYTES = 32 * 1024;
+    /* ... or this long after the first item went into it */
+    static final long BATCH_FLUSH_DELAY_MS = 2000;
+
+    interface Scheduler {
+        /**
+         * Arranges a call to {@link #writeBatch()} after the delay
+         */
+        void scheduleFlush(long delayMs);
+
+        void cancelFlush();
+    }
+
+    private final LogCacheFile mLogFile;
+    private final Scheduler mScheduler;
+    /* Reused for every item written to the cache */
+    private final ByteBuffer mEncodeBuffer = ByteBuffer.allocate(64 * 1024);
+    private VpnStatus.LogDurability mDurability;
+
+    LogCacheWriter(LogCacheFile logFile, VpnStatus.LogDurability durability, Scheduler scheduler) {
+        mLogFile = logFile;
+        mScheduler = scheduler;
+        setDurability(durability);
+    }
+
+    void setDurability(VpnStatus.LogDurability durability) {
+        mDurability = durability;
+        mLogFile.setSyncEveryBatch(durability == VpnStatus.LogDurability.EVERY_BATCH);
+    }
+
+    void write(LogItem li) throws IOException {
+        // We do not really care if the log cache breaks between Android upgrades,
+        // write binary format to disc
+        mEncodeBuffer.clear();
+        int len = LogItemCodec.encode(li, mEncodeBuffer);
+        if (mLogFile.append(mEncodeBuffer.array(), len))
+            mScheduler.scheduleFlush(BATCH_FLUSH_DELAY_MS);
+        else if (mLogFile.isBatchEmpty())
+            // The batch was full and went out, its deadline has nothing left to write
+            mScheduler.cancelFlush();
+    }
+
+    /**
+     * Writes the pending batch with a single write call
+     */
+    void writeBatch() throws IOException {
+        mScheduler.cancelFlush();
+        mLogFile.writeBatch();
+    }
+
+    /**
+     * Writes the pending batch and syncs it unless the durability says otherwise. With
+     * {@link VpnStatus.LogDurability#EVERY_BATCH} the batch was synced as it was written.
+     */
+    void flushToDisk() throws IOException {
+        writeBatch();
+        if (mDurability == VpnStatus.LogDurability.ON_FLUSH)
+            mLogFile.force();
+    }
+
+    /**
+     * Drops everything written so far, including the pending batch
+     */
+    void reset() throws IOException {
+        mScheduler.cancelFlush();
+        mLogFile.reset();
+    }
+}
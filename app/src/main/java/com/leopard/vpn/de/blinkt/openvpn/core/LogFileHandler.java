@@ -7,33 +7,49 @@ import android.os.Handler;
 import android.os.Looper;
 import android.os.Message;
 import com.leopard.vpn.R;
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.nio.BufferOverflowException;
-import java.nio.ByteBuffer;
 import java.util.Locale;
 /**
  * Created by arne on 23.01.16.
  */
 class LogFileHandler extends Handler {
     public static final int LOG_MESSAGE = 103;
-    public static final int MAGIC_BYTE = 0x55;
     public static final String LOGFILE_NAME = "logcache.dat";
     static final int TRIM_LOG_FILE = 100;
     static final int FLUSH_TO_DISK = 101;
     static final int LOG_INIT = 102;
+    static final int FLUSH_BATCH = 104;
     private final static char[] hexArray = "0123456789ABCDEF".toCharArray();
-    protected OutputStream mLogFile;
+    private LogCacheWriter mWriter;
+    private volatile VpnStatus.LogDurability mDurability = VpnStatus.LogDurability.ON_FLUSH;
+    /* The batch deadline is a FLUSH_BATCH message */
+    private final LogCacheWriter.Scheduler mFlushScheduler = new LogCacheWriter.Scheduler() {
+        @Override
+        public void scheduleFlush(long delayMs) {
+            sendEmptyMessageDelayed(FLUSH_BATCH, delayMs);
+        }
+
+        @Override
+        public void cancelFlush() {
+            removeMessages(FLUSH_BATCH);
+        }
+    };
     public LogFileHandler(Looper looper) {
         super(looper);
     }
+    void setDurability(final VpnStatus.LogDurability durability) {
+        mDurability = durability;
+        post(new Runnable() {
+            @Override
+            public void run() {
+                if (mWriter != null)
+                    mWriter.setDurability(durability);
+            }
+        });
+    }
     public static String bytesToHex(byte[] bytes, int len) {
         len = Math.min(bytes.length, len);
         char[] hexChars = new char[len * 2];
@@ -48,21 +64,29 @@ class LogFileHandler extends Handler {
     public void handleMessage(Message msg) {
         try {
             if (msg.what == LOG_INIT) {
-                if (mLogFile != null)
-                    throw new RuntimeException("mLogFile not null");
-                readLogCache((File) msg.obj);
-                openLogFile((File) msg.obj);
+                if (mWriter != null)
+                    throw new RuntimeException("mWriter not null");
+                initLogCache((File) msg.obj);
             } else if (msg.what == LOG_MESSAGE && msg.obj instanceof LogItem) {
                 // Ignore log messages if not yet initialized
-                if (mLogFile == null)
+                if (mWriter == null)
                     return;
-                writeLogItemToDisk((LogItem) msg.obj);
+                mWriter.write((LogItem) msg.obj);
             } else if (msg.what == TRIM_LOG_FILE) {
-                trimLogFile();
-                for (LogItem li : VpnStatus.getlogbuffer())
-                    writeLogItemToDisk(li);
+                if (mWriter == null)
+                    return;
+                // Everything still in the batch is part of the log buffer and gets rewritten
+                mWriter.reset();
+                // Items logged after the trim was requested follow as LOG_MESSAGE
+                long end = msg.obj instanceof Long ? (Long) msg.obj : VpnStatus.getLogSequence();
+                for (LogItem li : VpnStatus.getlogbuffer(end))
+                    mWriter.write(li);
+            } else if (msg.what == FLUSH_BATCH) {
+                if (mWriter != null)
+                    mWriter.writeBatch();
             } else if (msg.what == FLUSH_TO_DISK) {
-                flushToDisk();
+                if (mWriter != null)
+                    mWriter.flushToDisk();
             }
         } catch (IOException | BufferOverflowException e) {
             e.printStackTrace();
@@ -70,121 +94,65 @@ class LogFileHandler extends Handler {
             VpnStatus.logException(e);
         }
     }
-    private void flushToDisk() throws IOException {
-        mLogFile.flush();
-    }
-    private void trimLogFile() {
+    private void initLogCache(File cacheDir) throws IOException {
+        LogCacheFile cache = new LogCacheFile(cacheDir, VpnStatus.getLogBufferCapacity(), LogCacheWriter.BATCH_FLUSH_BYTES);
+        File legacy = new File(cacheDir, LOGFILE_NAME);
         try {
-            mLogFile.flush();
-            ((FileOutputStream) mLogFile).getChannel().truncate(0);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
-    }
-    private void writeLogItemToDisk(LogItem li) throws IOException {
-        // We do not really care if the log cache breaks between Android upgrades,
-        // write binary format to disc
-        byte[] liBytes = li.getMarschaledBytes();
-        writeEscapedBytes(liBytes);
-    }
-    public void writeEscapedBytes(byte[] bytes) throws IOException {
-        int magic = 0;
-        for (byte b : bytes)
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1)
-                magic++;
-        byte eBytes[] = new byte[bytes.length + magic];
-        int i = 0;
-        for (byte b : bytes) {
-            if (b == MAGIC_BYTE || b == MAGIC_BYTE + 1) {
-                eBytes[i++] = MAGIC_BYTE + 1;
-                eBytes[i++] = (byte) (b - MAGIC_BYTE);
-            } else {
-                eBytes[i++] = b;
+            if (legacy.exists()) {
+                // Log cache from before the segmented format, move its items into a segment once
+                cache.open();
+                migrateLogCache(cache, legacy);
+            }
+            replayLogCache(cache);
+        } finally {
+            synchronized (VpnStatus.readFileLock) {
+                VpnStatus.readFileLog = true;
+                VpnStatus.readFileLock.notifyAll();
             }
         }
-        byte[] lenBytes = ByteBuffer.allocate(4).putInt(bytes.length).array();
-        synchronized (mLogFile) {
-            mLogFile.write(MAGIC_BYTE);
-            mLogFile.write(lenBytes);
-            mLogFile.write(eBytes);
-        }
+        // Opened after the replay, opening drops all but the newest segment
+        if (!cache.isOpen())
+            cache.open();
+        mWriter = new LogCacheWriter(cache, mDurability, mFlushScheduler);
     }
-    private void openLogFile(File cacheDir) throws FileNotFoundException {
-        File logfile = new File(cacheDir, LOGFILE_NAME);
-        mLogFile = new FileOutputStream(logfile);
-    }
-    private void readLogCache(File cacheDir) {
+
+    private void migrateLogCache(LogCacheFile cache, File legacy) {
         try {
-            File logfile = new File(cacheDir, LOGFILE_NAME);
-            if (!logfile.exists() || !logfile.canRead())
-                return;
-            readCacheContents(new FileInputStream(logfile));
-        } catch (java.io.IOException | java.lang.RuntimeException e) {
+            cache.migrateLegacy(legacy, VpnStatus.getLogBufferCapacity());
+        } catch (IOException | RuntimeException e) {
             VpnStatus.logError("Reading cached logfile failed");
             VpnStatus.logException(e);
-            e.printStackTrace();
             // ignore reading file error
-        } finally {
-            synchronized (VpnStatus.readFileLock) {
-                VpnStatus.readFileLog = true;
-                VpnStatus.readFileLock.notifyAll();
-            }
         }
+        //noinspection ResultOfMethodCallIgnored
+        legacy.delete();
     }
-    protected void readCacheContents(InputStream in) throws IOException {
-        BufferedInputStream logFile = new BufferedInputStream(in);
-        byte[] buf = new byte[16384];
-        int read = logFile.read(buf, 0, 5);
-        int itemsRead = 0;
-        readloop:
-        while (read >= 5) {
-            int skipped = 0;
-            while (buf[skipped] != MAGIC_BYTE) {
-                skipped++;
-                if (!(logFile.read(buf, skipped + 4, 1) == 1) || skipped + 10 > buf.length) {
-                    VpnStatus.logDebug(String.format(Locale.US, "Skipped %d bytes and no a magic byte found", skipped));
-                    break readloop;
-                }
-            }
-            if (skipped > 0)
-                VpnStatus.logDebug(String.format(Locale.US, "Skipped %d bytes before finding a magic byte", skipped));
-            int len = ByteBuffer.wrap(buf, skipped + 1, 4).asIntBuffer().get();
-            // Marshalled LogItem
-            int pos = 0;
-            byte buf2[] = new byte[buf.length];
-            while (pos < len) {
-                byte b = (byte) logFile.read();
-                if (b == MAGIC_BYTE) {
-                    VpnStatus.logDebug(String.format(Locale.US, "Unexpected magic byte found at pos %d, abort current log item", pos));
-                    read = logFile.read(buf, 1, 4) + 1;
-                    continue readloop;
-                } else if (b == MAGIC_BYTE + 1) {
-                    b = (byte) logFile.read();
-                    if (b == 0)
-                        b = MAGIC_BYTE;
-                    else if (b == 1)
-                        b = MAGIC_BYTE + 1;
-                    else {
-                        VpnStatus.logDebug(String.format(Locale.US, "Escaped byte not 0 or 1: %d", b));
-                        read = logFile.read(buf, 1, 4) + 1;
-                        continue readloop;
-                    }
+
+    /**
+     * Restores the newest items of the cache. They are read newest first and put in front of
+     * the log, so replay stops as soon as the in memory log is full.
+     */
+    private void replayLogCache(LogCacheFile cache) {
+        final int maxItems = VpnStatus.getLogBufferCapacity();
+        try {
+            int itemsRead = cache.replayNewestFirst(new LogCacheFile.RecordVisitor() {
+                private int restored = 0;
+                @Override
+                public boolean onRecord(byte[] payload, int length) throws IOException {
+                    restoreLogItem(payload, length);
+                    return ++restored < maxItems;
                 }
-                buf2[pos++] = b;
-            }
-            restoreLogItem(buf2, len);
-            //Next item
-            read = logFile.read(buf, 0, 5);
-            itemsRead++;
-            if (itemsRead > 2 * VpnStatus.MAXLOGENTRIES) {
-                VpnStatus.logError("Too many logentries read from cache, aborting.");
-                read = 0;
-            }
+            });
+            VpnStatus.logDebug(R.string.reread_log, itemsRead);
+        } catch (IOException | RuntimeException e) {
+            VpnStatus.logError("Reading cached logfile failed");
+            VpnStatus.logException(e);
+            e.printStackTrace();
+            // ignore reading file error
         }
-        VpnStatus.logDebug(R.string.reread_log, itemsRead);
     }
     protected void restoreLogItem(byte[] buf, int len) throws UnsupportedEncodingException {
-        LogItem li = new LogItem(buf, len);
+        LogItem li = LogItemCodec.decode(buf, 0, len);
         if (li.verify()) {
             VpnStatus.newLogItem(li, true);
         } else {
@@ -54,6 +54,15 @@ public class LogItem implements Parcelable {
         mArgs = args;
     }
 
+    LogItem(VpnStatus.LogLevel level, int verblevel, String message, int ressourceId, Object[] args, long logtime) {
+        mLevel = level;
+        mVerbosityLevel = verblevel;
+        mMessage = message;
+        mRessourceId = ressourceId;
+        mArgs = args;
+        this.logtime = logtime;
+    }
+
     public LogItem(VpnStatus.LogLevel level, int verblevel, String message) {
         mMessage = message;
         mLevel = level;
@@ -300,6 +309,23 @@ public class LogItem implements Parcelable {
         return logtime;
     }
 
+    String getMessage() {
+        return mMessage;
+    }
+
+    int getResourceId() {
+        return mRessourceId;
+    }
+
+    Object[] getArgs() {
+        return mArgs;
+    }
+
+    /* Verbosity without the fallback to the log level of getVerbosityLevel() */
+    int getRawVerbosityLevel() {
+        return mVerbosityLevel;
+    }
+
     public int getVerbosityLevel() {
         if (mVerbosityLevel == -1) {
             // Hack:
@@ -0,0 +1,323 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+
+/**
+ * Compact binary format for {@link LogItem}, used by the log cache and the status service pipe.
+ *
+ * Numbers are varints (zigzag for values that can be negative). Messages starting with one of
+ * the common OpenVPN prefixes below store only the index of the prefix and the remainder.
+ * Resource ids are stored relative to the application package id. Encoding writes straight into
+ * the caller's buffer without allocating.
+ *
+ * The dictionary is static rather than built up while writing, because the log cache is replayed
+ * newest first and every record has to decode on its own. Entries may only be appended, and the
+ * version must be bumped if existing entries change.
+ */
+class LogItemCodec {
+    static final byte VERSION = 0x1;
+    /* Version written by {@link LogItem#getMarschaledBytes()} */
+    static final byte LEGACY_VERSION = 0x0;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int APP_PACKAGE_ID = 0x7f000000;
+
+    private static final String[] MESSAGE_PREFIXES = {
+            "",
+            "MANAGEMENT: ",
+            "MANAGEMENT: CMD '",
+            "MANAGEMENT: Client connected from ",
+            "Data Channel: ",
+            "Outgoing Data Channel: ",
+            "Incoming Data Channel: ",
+            "Control Channel: ",
+            "Outgoing Control Channel Authentication: ",
+            "Incoming Control Channel Authentication: ",
+            "VERIFY OK: depth=",
+            "VERIFY KU OK",
+            "VERIFY EKU OK",
+            "Validating certificate extended key usage",
+            "TLS: ",
+            "TLS Error: ",
+            "PUSH: Received control message: ",
+            "OPTIONS IMPORT: ",
+            "Peer Connection Initiated with ",
+            "Initialization Sequence Completed",
+            "TCP/UDP: ",
+            "UDP link local",
+            "UDP link remote: ",
+            "TCP connection established with ",
+            "Attempting to establish TCP connection with ",
+            "Socket Buffers: ",
+            "Restart pause, ",
+            "SIGUSR1[soft,",
+            "WARNING: ",
+            "NOTE: ",
+            "New OpenVPN Status (",
+            "Ignoring OpenVPN Status in CONNECTED state (",
+            "MGMT: Got unrecognized ",
+            "P:",
+    };
+
+    private static final byte ARG_NULL = 0;
+    private static final byte ARG_STRING = 1;
+    private static final byte ARG_INT = 2;
+    private static final byte ARG_LONG = 3;
+    private static final byte ARG_FLOAT = 4;
+    private static final byte ARG_DOUBLE = 5;
+
+    private LogItemCodec() {
+    }
+
+    /**
+     * Encodes the item at the current position of the buffer.
+     *
+     * @return number of bytes written
+     * @throws BufferOverflowException if the item does not fit, the buffer position is undefined then
+     */
+    static int encode(LogItem li, ByteBuffer bb) {
+        int start = bb.position();
+        bb.put(VERSION);
+        putVarLong(bb, li.getLogtime());
+        putVarInt(bb, zigzag(li.getRawVerbosityLevel()));
+        putVarInt(bb, zigzag(li.getLogLevel().getInt()));
+        int resourceId = li.getResourceId();
+        putVarInt(bb, resourceId == 0 ? 0 : zigzag(resourceId ^ APP_PACKAGE_ID) + 1);
+
+        String message = li.getMessage();
+        if (message == null) {
+            putVarInt(bb, 0);
+        } else {
+            int prefix = findPrefix(message);
+            // 0 marks a missing message, dictionary indexes are shifted by one
+            putVarInt(bb, prefix + 1);
+            putString(bb, message, MESSAGE_PREFIXES[prefix].length());
+        }
+
+        Object[] args = li.getArgs();
+        int numArgs = args == null ? 0 : args.length;
+        putVarInt(bb, numArgs);
+        for (int i = 0; i < numArgs; i++) {
+            Object o = args[i];
+            if (o == null) {
+                bb.put(ARG_NULL);
+            } else if (o instanceof String) {
+                bb.put(ARG_STRING);
+                putString(bb, (String) o, 0);
+            } else if (o instanceof Integer) {
+                bb.put(ARG_INT);
+                putVarInt(bb, zigzag((Integer) o));
+            } else if (o instanceof Long) {
+                bb.put(ARG_LONG);
+                putVarLong(bb, zigzag((Long) o));
+            } else if (o instanceof Float) {
+                bb.put(ARG_FLOAT);
+                bb.putInt(Float.floatToRawIntBits((Float) o));
+            } else if (o instanceof Double) {
+                bb.put(ARG_DOUBLE);
+                bb.putLong(Double.doubleToRawLongBits((Double) o));
+            } else {
+                bb.put(ARG_STRING);
+                putString(bb, o.toString(), 0);
+            }
+        }
+        return bb.position() - start;
+    }
+
+    /**
+     * Decodes an item written by {@link #encode} or by {@link LogItem#getMarschaledBytes()}
+     */
+    static LogItem decode(byte[] in, int offset, int length) throws UnsupportedEncodingException {
+        if (length < 1)
+            throw new UnsupportedEncodingException("Empty log item");
+        if (in[offset] == LEGACY_VERSION) {
+            if (offset == 0)
+                return new LogItem(in, length);
+            byte[] copy = new byte[length];
+            System.arraycopy(in, offset, copy, 0, length);
+            return new LogItem(copy, length);
+        }
+        if (in[offset] != VERSION)
+            throw new UnsupportedEncodingException("Unknown log item version " + in[offset]);
+
+        ByteBuffer bb = ByteBuffer.wrap(in, offset + 1, length - 1);
+        long logtime = getVarLong(bb);
+        int verbosity = unzigzag(getVarInt(bb));
+        VpnStatus.LogLevel level = VpnStatus.LogLevel.getEnumByValue(unzigzag(getVarInt(bb)));
+        int encodedId = getVarInt(bb);
+        int resourceId = encodedId == 0 ? 0 : unzigzag(encodedId - 1) ^ APP_PACKAGE_ID;
+
+        String message = null;
+        int prefix = getVarInt(bb);
+        if (prefix > MESSAGE_PREFIXES.length)
+            throw new UnsupportedEncodingException("Unknown message prefix " + prefix);
+        if (prefix > 0) {
+            String suffix = getString(bb);
+            message = prefix == 1 ? suffix : MESSAGE_PREFIXES[prefix - 1] + suffix;
+        }
+
+        int numArgs = getVarInt(bb);
+        if (numArgs > 30)
+            throw new IndexOutOfBoundsException("Too many arguments for Logitem to unmarschal");
+        Object[] args = null;
+        if (numArgs > 0) {
+            args = new Object[numArgs];
+            for (int i = 0; i < numArgs; i++) {
+                byte type = bb.get();
+                switch (type) {
+                    case ARG_NULL:
+                        args[i] = null;
+                        break;
+                    case ARG_STRING:
+                        args[i] = getString(bb);
+                        break;
+                    case ARG_INT:
+                        args[i] = unzigzag(getVarInt(bb));
+                        break;
+                    case ARG_LONG:
+                        args[i] = unzigzag(getVarLong(bb));
+                        break;
+                    case ARG_FLOAT:
+                        args[i] = Float.intBitsToFloat(bb.getInt());
+                        break;
+                    case ARG_DOUBLE:
+                        args[i] = Double.longBitsToDouble(bb.getLong());
+                        break;
+                    default:
+                        throw new UnsupportedEncodingException("Unknown format type: " + type);
+                }
+            }
+        }
+        if (bb.hasRemaining())
+            throw new UnsupportedEncodingException(bb.remaining() + " bytes left after unmarshaling everything");
+        return new LogItem(level, verbosity, message, resourceId, args, logtime);
+    }
+
+    private static int findPrefix(String message) {
+        int best = 0;
+        for (int i = 1; i < MESSAGE_PREFIXES.length; i++) {
+            String prefix = MESSAGE_PREFIXES[i];
+            if (prefix.length() > MESSAGE_PREFIXES[best].length() && message.startsWith(prefix))
+                best = i;
+        }
+        return best;
+    }
+
+    private static int zigzag(int v) {
+        return (v << 1) ^ (v >> 31);
+    }
+
+    private static long zigzag(long v) {
+        return (v << 1) ^ (v >> 63);
+    }
+
+    private static int unzigzag(int v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    private static long unzigzag(long v) {
+        return (v >>> 1) ^ -(v & 1);
+    }
+
+    static void putVarInt(ByteBuffer bb, int v) {
+        while ((v & ~0x7f) != 0) {
+            bb.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        bb.put((byte) v);
+    }
+
+    static void putVarLong(ByteBuffer bb, long v) {
+        while ((v & ~0x7fL) != 0) {
+            bb.put((byte) ((v & 0x7f) | 0x80));
+            v >>>= 7;
+        }
+        bb.put((byte) v);
+    }
+
+    static int getVarInt(ByteBuffer bb) throws UnsupportedEncodingException {
+        int result = 0;
+        for (int shift = 0; shift < 35; shift += 7) {
+            byte b = bb.get();
+            result |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new UnsupportedEncodingException("Malformed varint");
+    }
+
+    static long getVarLong(ByteBuffer bb) throws UnsupportedEncodingException {
+        long result = 0;
+        for (int shift = 0; shift < 70; shift += 7) {
+            byte b = bb.get();
+            result |= (long) (b & 0x7f) << shift;
+            if ((b & 0x80) == 0)
+                return result;
+        }
+        throw new UnsupportedEncodingException("Malformed varint");
+    }
+
+    /**
+     * Writes the UTF-8 length and bytes of str starting at char index from, without a temporary array
+     */
+    private static void putString(ByteBuffer bb, String str, int from) {
+        int len = str.length();
+        int utf8Length = 0;
+        for (int i = from; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                utf8Length++;
+            } else if (c < 0x800) {
+                utf8Length += 2;
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                utf8Length += 4;
+                i++;
+            } else if (Character.isSurrogate(c)) {
+                // Unpaired surrogate, replaced by '?' like String.getBytes does
+                utf8Length++;
+            } else {
+                utf8Length += 3;
+            }
+        }
+        putVarInt(bb, utf8Length);
+        if (bb.remaining() < utf8Length)
+            throw new BufferOverflowException();
+        for (int i = from; i < len; i++) {
+            char c = str.charAt(i);
+            if (c < 0x80) {
+                bb.put((byte) c);
+            } else if (c < 0x800) {
+                bb.put((byte) (0xc0 | (c >> 6)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < len && Character.isLowSurrogate(str.charAt(i + 1))) {
+                int cp = Character.toCodePoint(c, str.charAt(++i));
+                bb.put((byte) (0xf0 | (cp >> 18)));
+                bb.put((byte) (0x80 | ((cp >> 12) & 0x3f)));
+                bb.put((byte) (0x80 | ((cp >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (cp & 0x3f)));
+            } else if (Character.isSurrogate(c)) {
+                bb.put((byte) '?');
+            } else {
+                bb.put((byte) (0xe0 | (c >> 12)));
+                bb.put((byte) (0x80 | ((c >> 6) & 0x3f)));
+                bb.put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    private static String getString(ByteBuffer bb) throws UnsupportedEncodingException {
+        int len = getVarInt(bb);
+        if (len < 0 || len > bb.remaining())
+            throw new IndexOutOfBoundsException("String length " + len + " is bigger than remaining bytes " + bb.remaining());
+        String str = new String(bb.array(), bb.arrayOffset() + bb.position(), len, UTF8);
+        bb.position(bb.position() + len);
+        return str;
+    }
+}
@@ -0,0 +1,184 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed size ring of log items, each addressed by a sequence number.
+ *
+ * Writers are serialised on the monitor of the ring, which VpnStatus also holds to hand an item to
+ * the log cache and the listeners in ring order. Readers never lock and never copy the buffer, they
+ * walk a range of sequence numbers and every slot carries the sequence number of its item, so an
+ * entry that was overwritten while being read is detected and skipped instead of returned.
+ */
+class LogRing {
+    private static final long EMPTY = Long.MIN_VALUE;
+
+    private final AtomicReferenceArray<LogItem> mItems;
+    private final AtomicLongArray mSequences;
+    private final int mCapacity;
+    /* Oldest sequence number still retained */
+    private volatile long mFirst = 0;
+    /* Sequence number the next appended item gets */
+    private volatile long mNext = 0;
+
+    LogRing(int capacity) {
+        if (capacity < 1)
+            throw new IllegalArgumentException("Log capacity must be positive: " + capacity);
+        mCapacity = capacity;
+        mItems = new AtomicReferenceArray<>(capacity);
+        mSequences = new AtomicLongArray(capacity);
+        for (int i = 0; i < capacity; i++)
+            mSequences.set(i, EMPTY);
+    }
+
+    int getCapacity() {
+        return mCapacity;
+    }
+
+    long getFirstSequence() {
+        return mFirst;
+    }
+
+    long getNextSequence() {
+        return mNext;
+    }
+
+    int size() {
+        return (int) (mNext - mFirst);
+    }
+
+    private int slot(long seq) {
+        int slot = (int) (seq % mCapacity);
+        return slot < 0 ? slot + mCapacity : slot;
+    }
+
+    private void store(long seq, LogItem item) {
+        int slot = slot(seq);
+        // Ordered stores are enough, a reader only needs to see them in this order
+        mSequences.lazySet(slot, EMPTY);
+        mItems.lazySet(slot, item);
+        mSequences.lazySet(slot, seq);
+    }
+
+    /**
+     * Adds an item as the newest entry, overwriting the oldest one if the ring is full
+     */
+    synchronized void append(LogItem item) {
+        long seq = mNext;
+        if (seq - mFirst >= mCapacity)
+            // Retire the oldest entry before its slot is reused
+            mFirst = seq - mCapacity + 1;
+        store(seq, item);
+        mNext = seq + 1;
+    }
+
+    /**
+     * Adds an item as the oldest entry, used for items restored from the log cache.
+     *
+     * @return false if the ring is full and the item was dropped
+     */
+    synchronized boolean prepend(LogItem item) {
+        if (mNext - mFirst >= mCapacity)
+            return false;
+        long seq = mFirst - 1;
+        store(seq, item);
+        mFirst = seq;
+        return true;
+    }
+
+    synchronized void clear() {
+        mFirst = mNext;
+    }
+
+    /**
+     * @return a ring of the given capacity with the newest items of this one, every item keeps its
+     * sequence number and the next appended item gets the one it would have got here
+     */
+    synchronized LogRing resize(int capacity) {
+        LogRing ring = new LogRing(capacity);
+        long first = Math.max(mFirst, mNext - capacity);
+        for (long seq = first; seq < mNext; seq++)
+            ring.store(seq, mItems.get(slot(seq)));
+        ring.mFirst = first;
+        ring.mNext = mNext;
+        return ring;
+    }
+
+    /**
+     * @return the item with the given sequence number or null if it is not (or no longer) retained
+     */
+    LogItem get(long seq) {
+        if (seq < mFirst || seq >= mNext)
+            return null;
+        int slot = slot(seq);
+        if (mSequences.get(slot) != seq)
+            return null;
+        LogItem item = mItems.get(slot);
+        if (mSequences.get(slot) != seq)
+            return null;
+        return item;
+    }
+
+    /**
+     * Iterates all items from the oldest retained item up to the newest at the time of the call
+     */
+    Iterable<LogItem> items() {
+        return items(mFirst, mNext);
+    }
+
+    /**
+     * Iterates the items in [from, to). Items overwritten before the reader reaches them are skipped.
+     */
+    Iterable<LogItem> items(final long from, final long to) {
+        return new Iterable<LogItem>() {
+            @Override
+            public Iterator<LogItem> iterator() {
+                return new Cursor(from, to);
+            }
+        };
+    }
+
+    private class Cursor implements Iterator<LogItem> {
+        private final long mEnd;
+        private long mPosition;
+        private LogItem mPending;
+
+        Cursor(long from, long to) {
+            mPosition = from;
+            mEnd = to;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while (mPending == null && mPosition < mEnd) {
+                // Skip over everything that was already overwritten
+                mPosition = Math.max(mPosition, mFirst);
+                if (mPosition >= mEnd)
+                    break;
+                mPending = get(mPosition++);
+            }
+            return mPending != null;
+        }
+
+        @Override
+        public LogItem next() {
+            if (!hasNext())
+                throw new NoSuchElementException();
+            LogItem item = mPending;
+            mPending = null;
+            return item;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
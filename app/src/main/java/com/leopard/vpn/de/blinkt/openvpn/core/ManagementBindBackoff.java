@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import android.os.SystemClock;
+
+/**
+ * Retry schedule for binding the management socket, which can take a while after the previous
+ * openvpn process let go of it.
+ *
+ * The first retry comes after {@link #FIRST_DELAY_MS}, every further delay is doubled up to
+ * {@link #MAX_DELAY_MS}. No retry is started {@link #DEADLINE_MS} after the first attempt, the
+ * last delay is cut short so that one more attempt is made right at the deadline.
+ *
+ * Time is behind {@link Clock} so the schedule can be driven by a fake clock.
+ */
+class ManagementBindBackoff {
+    static final long FIRST_DELAY_MS = 10;
+    static final long MAX_DELAY_MS = 300;
+    static final long DEADLINE_MS = 2400;
+
+    interface Clock {
+        long elapsedRealtime();
+    }
+
+    private final Clock mClock;
+    private final long mDeadline;
+    private long mDelay = FIRST_DELAY_MS;
+
+    ManagementBindBackoff() {
+        this(new Clock() {
+            @Override
+            public long elapsedRealtime() {
+                return SystemClock.elapsedRealtime();
+            }
+        });
+    }
+
+    ManagementBindBackoff(Clock clock) {
+        mClock = clock;
+        mDeadline = clock.elapsedRealtime() + DEADLINE_MS;
+    }
+
+    /**
+     * Called after a failed attempt
+     *
+     * @return milliseconds to wait before the next attempt, -1 if the deadline has passed
+     */
+    long nextDelay() {
+        long left = mDeadline - mClock.elapsedRealtime();
+        if (left <= 0)
+            return -1;
+        long delay = Math.min(mDelay, left);
+        mDelay = Math.min(mDelay * 2, MAX_DELAY_MS);
+        return delay;
+    }
+}
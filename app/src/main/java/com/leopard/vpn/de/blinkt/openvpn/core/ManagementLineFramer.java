@@ -0,0 +1,158 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.Charset;
+
+/**
+ * Frames the byte stream of the OpenVPN management interface into lines.
+ *
+ * Bytes are read straight into one reusable buffer and lines are split on '\n' in place,
+ * so there is no intermediate String for the pending input. Real time notifications
+ * (">CMD:argument") are recognised by comparing their prefix on the raw bytes and
+ * >BYTECOUNT is parsed without creating any String at all.
+ */
+class ManagementLineFramer {
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int READ_SIZE = 2048;
+
+    /* Known real time commands, matched against the raw bytes to avoid allocating the name */
+    private static final String[] REALTIME_COMMANDS = {
+            "BYTECOUNT", "STATE", "LOG", "HOLD", "PASSWORD", "NEED-OK", "PROXY", "RSA_SIGN", "INFO"
+    };
+    private static final byte[][] REALTIME_COMMAND_BYTES = new byte[REALTIME_COMMANDS.length][];
+    private static final byte[] BYTECOUNT = "BYTECOUNT".getBytes(UTF8);
+    private static final byte[] SUCCESS = "SUCCESS:".getBytes(UTF8);
+
+    static {
+        for (int i = 0; i < REALTIME_COMMANDS.length; i++)
+            REALTIME_COMMAND_BYTES[i] = REALTIME_COMMANDS[i].getBytes(UTF8);
+    }
+
+    interface LineHandler {
+        void onByteCount(long in, long out);
+
+        /**
+         * @param cmd      name of the real time command without the leading '>'
+         * @param argument everything after the first ':'
+         */
+        void onRealtimeCommand(String cmd, String argument);
+
+        /* Any other line (PROTECTFD: etc.), SUCCESS: lines are swallowed */
+        void onLine(String line);
+    }
+
+    private final LineHandler mHandler;
+    private byte[] mBuffer = new byte[READ_SIZE * 2];
+    private int mLength = 0;
+    /* Everything before mScanned is known not to contain a newline */
+    private int mScanned = 0;
+
+    ManagementLineFramer(LineHandler handler) {
+        mHandler = handler;
+    }
+
+    /**
+     * Reads the next chunk from the stream directly into the internal buffer.
+     *
+     * @return number of bytes read or -1 on end of stream
+     */
+    int fill(InputStream in) throws IOException {
+        if (mBuffer.length - mLength < READ_SIZE) {
+            byte[] grown = new byte[Math.max(mBuffer.length * 2, mLength + READ_SIZE)];
+            System.arraycopy(mBuffer, 0, grown, 0, mLength);
+            mBuffer = grown;
+        }
+        int read = in.read(mBuffer, mLength, mBuffer.length - mLength);
+        if (read > 0) mLength += read;
+        return read;
+    }
+
+    /**
+     * Dispatches all complete lines in the buffer and keeps the incomplete tail for the next read
+     */
+    void processLines() {
+        int lineStart = 0;
+        for (int i = mScanned; i < mLength; i++) {
+            if (mBuffer[i] != '\n') continue;
+            int lineEnd = i;
+            if (lineEnd > lineStart && mBuffer[lineEnd - 1] == '\r') lineEnd--;
+            dispatch(lineStart, lineEnd);
+            lineStart = i + 1;
+        }
+        if (lineStart > 0) {
+            mLength -= lineStart;
+            System.arraycopy(mBuffer, lineStart, mBuffer, 0, mLength);
+        }
+        mScanned = mLength;
+    }
+
+    private void dispatch(int start, int end) {
+        if (end > start && mBuffer[start] == '>') {
+            int colon = indexOf(':', start + 1, end);
+            if (colon != -1) {
+                dispatchRealtime(start + 1, colon, end);
+                return;
+            }
+        } else if (regionMatches(start, end, SUCCESS)) {
+            /* Ignore this kind of message */
+            return;
+        }
+        mHandler.onLine(new String(mBuffer, start, end - start, UTF8));
+    }
+
+    private void dispatchRealtime(int cmdStart, int colon, int end) {
+        int cmdLen = colon - cmdStart;
+        if (cmdLen == BYTECOUNT.length && regionMatches(cmdStart, colon, BYTECOUNT)) {
+            //   >BYTECOUNT:{BYTES_IN},{BYTES_OUT}
+            int comma = indexOf(',', colon + 1, end);
+            if (comma != -1) {
+                mHandler.onByteCount(parseLong(colon + 1, comma), parseLong(comma + 1, end));
+                return;
+            }
+        }
+
+        String cmd = null;
+        for (int i = 0; i < REALTIME_COMMAND_BYTES.length; i++) {
+            byte[] candidate = REALTIME_COMMAND_BYTES[i];
+            if (candidate.length == cmdLen && regionMatches(cmdStart, colon, candidate)) {
+                cmd = REALTIME_COMMANDS[i];
+                break;
+            }
+        }
+        if (cmd == null) cmd = new String(mBuffer, cmdStart, cmdLen, UTF8);
+
+        mHandler.onRealtimeCommand(cmd, new String(mBuffer, colon + 1, end - colon - 1, UTF8));
+    }
+
+    private int indexOf(char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (mBuffer[i] == c) return i;
+        }
+        return -1;
+    }
+
+    private boolean regionMatches(int start, int end, byte[] prefix) {
+        if (end - start < prefix.length) return false;
+        for (int i = 0; i < prefix.length; i++) {
+            if (mBuffer[start + i] != prefix[i]) return false;
+        }
+        return true;
+    }
+
+    private long parseLong(int start, int end) {
+        if (start == end) throw new NumberFormatException("Empty number in management line");
+        long value = 0;
+        for (int i = start; i < end; i++) {
+            int digit = mBuffer[i] - '0';
+            if (digit < 0 || digit > 9)
+                throw new NumberFormatException("Invalid digit in management line: " + (char) mBuffer[i]);
+            value = value * 10 + digit;
+        }
+        return value;
+    }
+}
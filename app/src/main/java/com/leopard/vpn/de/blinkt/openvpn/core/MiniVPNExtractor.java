@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Extracts the minivpn binary and decides when an extracted binary can be reused.
+ *
+ * Next to the binary a stamp records the app version it was extracted by, the hash of the asset
+ * and the size of the binary. A binary is reused as long as the stamp matches. After an app
+ * update the asset is hashed again and an unchanged binary only gets a new stamp. A new binary is
+ * copied to a temporary file and checked before it is renamed over the old one, so a failed
+ * extraction leaves the previous binary in place.
+ *
+ * The asset is behind {@link Asset} so this can run without a Context.
+ */
+class MiniVPNExtractor {
+    static final String STAMP_SUFFIX = ".stamp";
+    static final String TMP_SUFFIX = ".tmp";
+    private static final int STAMP_VERSION = 1;
+
+    interface Asset {
+        String getName();
+
+        /**
+         * @return the SHA-256 hash of the asset, see {@link #toHex}
+         */
+        String hash() throws IOException;
+
+        /**
+         * Copies the asset to the end of dst
+         *
+         * @return the SHA-256 hash of what was read from the asset
+         */
+        String copyTo(FileChannel dst) throws IOException;
+    }
+
+    private MiniVPNExtractor() {
+    }
+
+    static File stampFile(File binary) {
+        return new File(binary.getPath() + STAMP_SUFFIX);
+    }
+
+    /**
+     * Checks the stamp written after the binary was extracted and verified
+     */
+    static boolean isExtracted(File binary, Asset asset, int versionCode, long lastUpdateTime) {
+        File stampFile = stampFile(binary);
+        if (!binary.canExecute() || !stampFile.exists())
+            return false;
+        try {
+            DataInputStream stamp = new DataInputStream(new FileInputStream(stampFile));
+            String assetHash;
+            try {
+                if (stamp.readInt() != STAMP_VERSION)
+                    return false;
+                int stampVersionCode = stamp.readInt();
+                long stampUpdateTime = stamp.readLong();
+                assetHash = stamp.readUTF();
+                if (stamp.readLong() != binary.length())
+                    return false;
+                if (stampVersionCode == versionCode && stampUpdateTime == lastUpdateTime)
+                    return true;
+            } finally {
+                stamp.close();
+            }
+            if (!assetHash.equals(asset.hash()))
+                return false;
+            writeStamp(stampFile, versionCode, lastUpdateTime, assetHash, binary.length());
+            return true;
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Copies the asset to a temporary file, checks that the copy has the hash of the asset and
+     * renames it into place
+     *
+     * @return false if the binary could not be extracted, a previous binary is kept then
+     */
+    static boolean extract(File binary, Asset asset, int versionCode, long lastUpdateTime) {
+        File tmp = new File(binary.getPath() + TMP_SUFFIX);
+        try {
+            String assetHash;
+            FileOutputStream fout = new FileOutputStream(tmp);
+            try {
+                FileChannel dst = fout.getChannel();
+                assetHash = asset.copyTo(dst);
+                dst.force(true);
+            } finally {
+                fout.close();
+            }
+            long size = tmp.length();
+            if (!assetHash.equals(hashFile(tmp))) {
+                VpnStatus.logError("Extracted OpenVPN binary does not match " + asset.getName());
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return false;
+            }
+            if (!tmp.setExecutable(true)) {
+                VpnStatus.logError("Failed to make OpenVPN executable");
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return false;
+            }
+            if (!tmp.renameTo(binary)) {
+                VpnStatus.logError("Failed to move OpenVPN binary into place");
+                //noinspection ResultOfMethodCallIgnored
+                tmp.delete();
+                return false;
+            }
+            writeStamp(stampFile(binary), versionCode, lastUpdateTime, assetHash, size);
+            return true;
+        } catch (IOException e) {
+            VpnStatus.logException(e);
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            return false;
+        }
+    }
+
+    private static void writeStamp(File stampFile, int versionCode, long lastUpdateTime, String assetHash, long size) throws IOException {
+        File tmp = new File(stampFile.getPath() + TMP_SUFFIX);
+        DataOutputStream stamp = new DataOutputStream(new FileOutputStream(tmp));
+        try {
+            stamp.writeInt(STAMP_VERSION);
+            stamp.writeInt(versionCode);
+            stamp.writeLong(lastUpdateTime);
+            stamp.writeUTF(assetHash);
+            stamp.writeLong(size);
+        } finally {
+            stamp.close();
+        }
+        if (!tmp.renameTo(stampFile))
+            throw new IOException("Could not write " + stampFile);
+    }
+
+    static String hashFile(File file) throws IOException {
+        FileInputStream in = new FileInputStream(file);
+        try {
+            MessageDigest digest = newDigest();
+            digest.update(in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length()));
+            return toHex(digest.digest());
+        } finally {
+            in.close();
+        }
+    }
+
+    static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    static String toHex(byte[] bytes) {
+        StringBuilder hex = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes)
+            hex.append(String.format("%02x", b & 0xff));
+        return hex.toString();
+    }
+}
@@ -7,15 +7,18 @@ import android.os.Build;
 import androidx.annotation.NonNull;
 import junit.framework.Assert;
 import com.leopard.vpn.BuildConfig;
-import java.math.BigInteger;
 import java.net.Inet6Address;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Locale;
-import java.util.PriorityQueue;
 import java.util.TreeSet;
 import java.util.Vector;
 public class NetworkSpace {
     TreeSet<ipAddress> mIpAddresses = new TreeSet<ipAddress>();
+    /* Built on the first generateIPList() and kept up to date from then on */
+    private RouteTrie mTrie;
+    /* Result of generateIPList, dropped whenever the set of networks changes */
+    private TreeSet<ipAddress> mGenerated;
     public Collection<ipAddress> getNetworks(boolean included) {
         Vector<ipAddress> ips = new Vector<ipAddress>();
         for (ipAddress ip : mIpAddresses) {
@@ -26,89 +29,65 @@ public class NetworkSpace {
     }
     public void clear() {
         mIpAddresses.clear();
+        mTrie = null;
+        mGenerated = null;
+    }
+    private void add(ipAddress ip) {
+        // Like the TreeSet, the first network added for a prefix wins
+        if (mIpAddresses.add(ip)) {
+            if (mTrie != null)
+                mTrie.insert(ip);
+            mGenerated = null;
+        }
+    }
+    private void remove(ipAddress ip) {
+        mIpAddresses.remove(ip);
+        if (mTrie != null)
+            mTrie.remove(ip);
+        mGenerated = null;
     }
     void addIP(CIDRIP cidrIp, boolean include) {
-        mIpAddresses.add(new ipAddress(cidrIp, include));
+        add(new ipAddress(cidrIp, include));
     }
     public void addIPSplit(CIDRIP cidrIp, boolean include) {
         ipAddress newIP = new ipAddress(cidrIp, include);
         ipAddress[] splitIps = newIP.split();
         for (ipAddress split : splitIps)
-            mIpAddresses.add(split);
+            add(split);
     }
     void addIPv6(Inet6Address address, int mask, boolean included) {
-        mIpAddresses.add(new ipAddress(address, mask, included));
+        add(new ipAddress(address, mask, included));
+    }
+    /**
+     * Makes this space hold the same networks as other. Only the differences are applied, so the
+     * resolved list of a reconnect that pushes the same routes again is not computed again.
+     */
+    void updateFrom(NetworkSpace other) {
+        for (ipAddress ip : new ArrayList<ipAddress>(mIpAddresses)) {
+            ipAddress newIp = other.mIpAddresses.ceiling(ip);
+            if (newIp == null || !newIp.equals(ip) || newIp.included != ip.included)
+                remove(ip);
+        }
+        for (ipAddress ip : other.mIpAddresses)
+            add(ip);
     }
+    /**
+     * Resolves overlapping included and excluded networks into a sorted set of disjoint
+     * networks. The more specific network wins, a network is only split where a network of the
+     * other type lies inside it.
+     */
     TreeSet<ipAddress> generateIPList() {
-        PriorityQueue<ipAddress> networks = new PriorityQueue<ipAddress>(mIpAddresses);
-        TreeSet<ipAddress> ipsDone = new TreeSet<ipAddress>();
-        ipAddress currentNet = networks.poll();
-        if (currentNet == null)
-            return ipsDone;
-        while (currentNet != null) {
-            // Check if it and the next of it are compatible
-            ipAddress nextNet = networks.poll();
-            if (BuildConfig.DEBUG) Assert.assertNotNull(currentNet);
-            if (nextNet == null || currentNet.getLastAddress().compareTo(nextNet.getFirstAddress()) == -1) {
-                // Everything good, no overlapping nothing to do
-                ipsDone.add(currentNet);
-                currentNet = nextNet;
-            } else {
-                // This network is smaller or equal to the next but has the same base address
-                if (currentNet.getFirstAddress().equals(nextNet.getFirstAddress()) && currentNet.networkMask >= nextNet.networkMask) {
-                    if (currentNet.included == nextNet.included) {
-                        // Included in the next next and same type
-                        // Simply forget our current network
-                        currentNet = nextNet;
-                    } else {
-                        // our currentNet is included in next and types differ. Need to split the next network
-                        ipAddress[] newNets = nextNet.split();
-                        // TODO: The contains method of the Priority is stupid linear search
-                        // First add the second half to keep the order in networks
-                        if (!networks.contains(newNets[1]))
-                            networks.add(newNets[1]);
-                        if (newNets[0].getLastAddress().equals(currentNet.getLastAddress())) {
-                            if (BuildConfig.DEBUG)
-                                Assert.assertEquals(newNets[0].networkMask, currentNet.networkMask);
-                            // Don't add the lower half that would conflict with currentNet
-                        } else {
-                            if (!networks.contains(newNets[0]))
-                                networks.add(newNets[0]);
-                        }
-                        // Keep currentNet as is
-                    }
-                } else {
-                    if (BuildConfig.DEBUG) {
-                        Assert.assertTrue(currentNet.networkMask < nextNet.networkMask);
-                        Assert.assertTrue(nextNet.getFirstAddress().compareTo(currentNet.getFirstAddress()) == 1);
-                        Assert.assertTrue(currentNet.getLastAddress().compareTo(nextNet.getLastAddress()) != -1);
-                    }
-                    // This network is bigger than the next and last ip of current >= next
-                    //noinspection StatementWithEmptyBody
-                    if (currentNet.included == nextNet.included) {
-                        // Next network is in included in our network with the same type,
-                        // simply ignore the next and move on
-                    } else {
-                        // We need to split our network
-                        ipAddress[] newNets = currentNet.split();
-                        if (newNets[1].networkMask == nextNet.networkMask) {
-                            if (BuildConfig.DEBUG) {
-                                Assert.assertTrue(newNets[1].getFirstAddress().equals(nextNet.getFirstAddress()));
-                                Assert.assertTrue(newNets[1].getLastAddress().equals(currentNet.getLastAddress()));
-                                // split second equal the next network, do not add it
-                            }
-                            networks.add(nextNet);
-                        } else {
-                            // Add the smaller network first
-                            networks.add(newNets[1]);
-                            networks.add(nextNet);
-                        }
-                        currentNet = newNets[0];
-                    }
-                }
+        if (mGenerated == null) {
+            if (mTrie == null) {
+                mTrie = new RouteTrie();
+                for (ipAddress ip : mIpAddresses)
+                    mTrie.insert(ip);
             }
+            TreeSet<ipAddress> ipsDone = new TreeSet<ipAddress>();
+            mTrie.collect(ipsDone);
+            mGenerated = ipsDone;
         }
-        return ipsDone;
+        return mGenerated;
     }
     Collection<ipAddress> getPositiveIPList() {
         TreeSet<ipAddress> ipsSorted = generateIPList();
@@ -142,34 +121,248 @@ public class NetworkSpace {
         }
         return ips;
     }
+    /**
+     * Binary radix (Patricia) trie over the networks of a NetworkSpace. Keys are the first
+     * addresses of the networks, left aligned in 128 bits so IPv4 and IPv6 share the code. Every
+     * node knows which network types exist below it, so {@link #collect} only splits a network
+     * along the paths that lead to a network of the other type and the result is built in a
+     * single traversal.
+     */
+    static class RouteTrie {
+        private static class Node {
+            final long high;
+            final long low;
+            final int len;
+            /* The network with exactly this prefix, null for pure branch nodes */
+            ipAddress network;
+            Node zero;
+            Node one;
+            /* Types of the networks in this subtree, including this node */
+            boolean hasIncluded;
+            boolean hasExcluded;
+            Node(long high, long low, int len) {
+                this.high = high & prefixMaskHigh(len);
+                this.low = low & prefixMaskLow(len);
+                this.len = len;
+            }
+            void update() {
+                hasIncluded = network != null && network.included;
+                hasExcluded = network != null && !network.included;
+                if (zero != null) {
+                    hasIncluded |= zero.hasIncluded;
+                    hasExcluded |= zero.hasExcluded;
+                }
+                if (one != null) {
+                    hasIncluded |= one.hasIncluded;
+                    hasExcluded |= one.hasExcluded;
+                }
+            }
+        }
+        private Node mRoot;
+        void insert(ipAddress ip) {
+            mRoot = insert(mRoot, keyHigh(ip), keyLow(ip), ip.networkMask, ip);
+        }
+        void remove(ipAddress ip) {
+            mRoot = remove(mRoot, keyHigh(ip), keyLow(ip), ip.networkMask);
+        }
+        private static long keyHigh(ipAddress ip) {
+            return ip.isV4 ? ip.firstLow << 32 : ip.firstHigh;
+        }
+        private static long keyLow(ipAddress ip) {
+            return ip.isV4 ? 0 : ip.firstLow;
+        }
+        private static long prefixMaskHigh(int len) {
+            if (len <= 0)
+                return 0;
+            return len >= 64 ? -1L : -1L << (64 - len);
+        }
+        private static long prefixMaskLow(int len) {
+            if (len <= 64)
+                return 0;
+            return len >= 128 ? -1L : -1L << (128 - len);
+        }
+        private static int bit(long high, long low, int index) {
+            if (index < 64)
+                return (int) (high >>> (63 - index)) & 1;
+            return (int) (low >>> (127 - index)) & 1;
+        }
+        private static int commonLength(Node n, long high, long low, int len) {
+            long diffHigh = n.high ^ high;
+            int common = diffHigh != 0 ? Long.numberOfLeadingZeros(diffHigh) : 64 + Long.numberOfLeadingZeros(n.low ^ low);
+            return Math.min(common, Math.min(n.len, len));
+        }
+        private static Node insert(Node n, long high, long low, int len, ipAddress ip) {
+            if (n == null) {
+                Node leaf = new Node(high, low, len);
+                leaf.network = ip;
+                leaf.update();
+                return leaf;
+            }
+            int common = commonLength(n, high, low, len);
+            if (common == n.len && common == len) {
+                if (n.network == null)
+                    n.network = ip;
+            } else if (common == n.len) {
+                if (bit(high, low, n.len) == 0)
+                    n.zero = insert(n.zero, high, low, len, ip);
+                else
+                    n.one = insert(n.one, high, low, len, ip);
+            } else {
+                // The new network or a new branch node goes above n
+                Node parent = new Node(high, low, common);
+                if (common == len)
+                    parent.network = ip;
+                else if (bit(high, low, common) == 0)
+                    parent.zero = insert(null, high, low, len, ip);
+                else
+                    parent.one = insert(null, high, low, len, ip);
+                if (bit(n.high, n.low, common) == 0)
+                    parent.zero = n;
+                else
+                    parent.one = n;
+                n = parent;
+            }
+            n.update();
+            return n;
+        }
+        private static Node remove(Node n, long high, long low, int len) {
+            if (n == null || commonLength(n, high, low, len) < n.len)
+                return n;
+            if (n.len == len)
+                n.network = null;
+            else if (bit(high, low, n.len) == 0)
+                n.zero = remove(n.zero, high, low, len);
+            else
+                n.one = remove(n.one, high, low, len);
+            // Drop branch nodes that no longer branch
+            if (n.network == null) {
+                if (n.zero == null)
+                    return n.one;
+                if (n.one == null)
+                    return n.zero;
+            }
+            n.update();
+            return n;
+        }
+        void collect(Collection<ipAddress> out) {
+            if (mRoot != null)
+                collect(out, mRoot.high, mRoot.low, mRoot.len, null, mRoot);
+        }
+        /**
+         * Emits the disjoint networks covering the prefix (high, low, len).
+         *
+         * @param cover the most specific network containing the prefix, null if there is none
+         * @param sub   the subtree of networks inside the prefix, may start below len
+         */
+        private static void collect(Collection<ipAddress> out, long high, long low, int len, ipAddress cover, Node sub) {
+            Node zero = null;
+            Node one = null;
+            if (sub != null && sub.len == len) {
+                if (sub.network != null)
+                    cover = sub.network;
+                zero = sub.zero;
+                one = sub.one;
+            } else if (sub != null) {
+                if (cover == null) {
+                    collect(out, sub.high, sub.low, sub.len, null, sub);
+                    return;
+                }
+                if (bit(sub.high, sub.low, len) == 0)
+                    zero = sub;
+                else
+                    one = sub;
+            }
+            if (cover == null) {
+                if (zero != null)
+                    collect(out, zero.high, zero.low, zero.len, null, zero);
+                if (one != null)
+                    collect(out, one.high, one.low, one.len, null, one);
+                return;
+            }
+            if (!conflicts(zero, cover.included) && !conflicts(one, cover.included)) {
+                if (sub != null && sub.network == cover && sub.len == len)
+                    out.add(cover);
+                else if (cover.isV4)
+                    out.add(new ipAddress(0, high >>> 32, len, cover.included, true));
+                else
+                    out.add(new ipAddress(high, low, len, cover.included, false));
+                return;
+            }
+            // Split into the two halves, only the half leading to the other type splits further
+            collect(out, high, low, len + 1, cover, zero);
+            if (len < 64)
+                collect(out, high | (1L << (63 - len)), low, len + 1, cover, one);
+            else
+                collect(out, high, low | (1L << (127 - len)), len + 1, cover, one);
+        }
+        private static boolean conflicts(Node n, boolean included) {
+            return n != null && (included ? n.hasExcluded : n.hasIncluded);
+        }
+    }
+    /**
+     * A network prefix. Addresses are kept as two longs (the upper and lower 64 bit of an IPv6
+     * address, IPv4 addresses only use the lower one), so all mask arithmetic is a few shifts
+     * instead of BigInteger operations.
+     */
     static class ipAddress implements Comparable<ipAddress> {
         public int networkMask;
-        private BigInteger netAddress;
-        private boolean included;
+        private long netHigh;
+        private long netLow;
+        boolean included;
         private boolean isV4;
-        private BigInteger firstAddress;
-        private BigInteger lastAddress;
+        private long firstHigh;
+        private long firstLow;
+        private long lastHigh;
+        private long lastLow;
         public ipAddress(CIDRIP ip, boolean include) {
-            included = include;
-            netAddress = BigInteger.valueOf(ip.getInt());
-            networkMask = ip.len;
-            isV4 = true;
+            this(0, ip.getInt(), ip.len, include, true);
         }
         public ipAddress(Inet6Address address, int mask, boolean include) {
-            networkMask = mask;
-            included = include;
-            int s = 128;
-            netAddress = BigInteger.ZERO;
-            for (byte b : address.getAddress()) {
-                s -= 8;
-                netAddress = netAddress.add(BigInteger.valueOf((b & 0xFF)).shiftLeft(s));
+            byte[] bytes = address.getAddress();
+            long high = 0;
+            long low = 0;
+            for (int i = 0; i < 8; i++) {
+                high = (high << 8) | (bytes[i] & 0xFF);
+                low = (low << 8) | (bytes[i + 8] & 0xFF);
             }
+            init(high, low, mask, include, false);
         }
-        ipAddress(BigInteger baseAddress, int mask, boolean included, boolean isV4) {
-            this.netAddress = baseAddress;
+        ipAddress(long high, long low, int mask, boolean included, boolean isV4) {
+            init(high, low, mask, included, isV4);
+        }
+        private void init(long high, long low, int mask, boolean included, boolean isV4) {
+            this.netHigh = high;
+            this.netLow = low;
             this.networkMask = mask;
             this.included = included;
             this.isV4 = isV4;
+            int hostBits = (isV4 ? 32 : 128) - mask;
+            long hostLow = hostMask(hostBits);
+            long hostHigh = hostMask(hostBits - 64);
+            firstHigh = high & ~hostHigh;
+            firstLow = low & ~hostLow;
+            lastHigh = high | hostHigh;
+            lastLow = low | hostLow;
+        }
+        /**
+         * @return a mask with the lowest bits set, clamped to [0, 64] bits
+         */
+        private static long hostMask(int bits) {
+            if (bits <= 0)
+                return 0;
+            if (bits >= 64)
+                return -1L;
+            return (1L << bits) - 1;
+        }
+        /**
+         * Compares two 128 bit values as unsigned numbers
+         */
+        static int compareAddress(long aHigh, long aLow, long bHigh, long bLow) {
+            if (aHigh != bHigh)
+                return (aHigh + Long.MIN_VALUE) < (bHigh + Long.MIN_VALUE) ? -1 : 1;
+            if (aLow != bLow)
+                return (aLow + Long.MIN_VALUE) < (bLow + Long.MIN_VALUE) ? -1 : 1;
+            return 0;
         }
         /**
          * sorts the networks with following criteria:
@@ -178,7 +371,7 @@ public class NetworkSpace {
          */
         @Override
         public int compareTo(@NonNull ipAddress another) {
-            int comp = getFirstAddress().compareTo(another.getFirstAddress());
+            int comp = compareAddress(firstHigh, firstLow, another.firstHigh, another.firstLow);
             if (comp != 0)
                 return comp;
             if (networkMask > another.networkMask)
@@ -198,33 +391,10 @@ public class NetworkSpace {
             if (!(o instanceof ipAddress))
                 return super.equals(o);
             ipAddress on = (ipAddress) o;
-            return (networkMask == on.networkMask) && on.getFirstAddress().equals(getFirstAddress());
-        }
-        public BigInteger getLastAddress() {
-            if (lastAddress == null)
-                lastAddress = getMaskedAddress(true);
-            return lastAddress;
-        }
-        public BigInteger getFirstAddress() {
-            if (firstAddress == null)
-                firstAddress = getMaskedAddress(false);
-            return firstAddress;
-        }
-        private BigInteger getMaskedAddress(boolean one) {
-            BigInteger numAddress = netAddress;
-            int numBits;
-            if (isV4) {
-                numBits = 32 - networkMask;
-            } else {
-                numBits = 128 - networkMask;
-            }
-            for (int i = 0; i < numBits; i++) {
-                if (one)
-                    numAddress = numAddress.setBit(i);
-                else
-                    numAddress = numAddress.clearBit(i);
-            }
-            return numAddress;
+            return (networkMask == on.networkMask) && on.firstHigh == firstHigh && on.firstLow == firstLow;
+        }
+        boolean sameLastAddress(ipAddress net) {
+            return lastHigh == net.lastHigh && lastLow == net.lastLow;
         }
         @Override
         public String toString() {
@@ -235,37 +405,42 @@ public class NetworkSpace {
                 return String.format(Locale.US, "%s/%d", getIPv6Address(), networkMask);
         }
         public ipAddress[] split() {
-            ipAddress firstHalf = new ipAddress(getFirstAddress(), networkMask + 1, included, isV4);
-            ipAddress secondHalf = new ipAddress(firstHalf.getLastAddress().add(BigInteger.ONE), networkMask + 1, included, isV4);
+            ipAddress firstHalf = new ipAddress(firstHigh, firstLow, networkMask + 1, included, isV4);
+            // Last address of the first half plus one
+            long secondLow = firstHalf.lastLow + 1;
+            long secondHigh = secondLow == 0 ? firstHalf.lastHigh + 1 : firstHalf.lastHigh;
+            ipAddress secondHalf = new ipAddress(secondHigh, secondLow, networkMask + 1, included, isV4);
             if (BuildConfig.DEBUG)
-                Assert.assertTrue(secondHalf.getLastAddress().equals(getLastAddress()));
+                Assert.assertTrue(secondHalf.sameLastAddress(this));
             return new ipAddress[]{firstHalf, secondHalf};
         }
         String getIPv4Address() {
             if (BuildConfig.DEBUG) {
                 Assert.assertTrue(isV4);
-                Assert.assertTrue(netAddress.longValue() <= 0xffffffffl);
-                Assert.assertTrue(netAddress.longValue() >= 0);
+                Assert.assertTrue(netLow <= 0xffffffffl);
+                Assert.assertTrue(netLow >= 0);
             }
-            long ip = netAddress.longValue();
+            long ip = netLow;
             return String.format(Locale.US, "%d.%d.%d.%d", (ip >> 24) % 256, (ip >> 16) % 256, (ip >> 8) % 256, ip % 256);
         }
         String getIPv6Address() {
             if (BuildConfig.DEBUG) Assert.assertTrue(!isV4);
-            BigInteger r = netAddress;
+            long high = netHigh;
+            long low = netLow;
             String ipv6str = null;
             boolean lastPart = true;
-            while (r.compareTo(BigInteger.ZERO) == 1) {
-                long part = r.mod(BigInteger.valueOf(0x10000)).longValue();
+            while (high != 0 || low != 0) {
+                long part = low & 0xffff;
                 if (ipv6str != null || part != 0) {
                     if (ipv6str == null && !lastPart)
                         ipv6str = ":";
                     if (lastPart)
-                        ipv6str = String.format(Locale.US, "%x", part, ipv6str);
+                        ipv6str = Long.toHexString(part);
                     else
-                        ipv6str = String.format(Locale.US, "%x:%s", part, ipv6str);
+                        ipv6str = Long.toHexString(part) + ":" + ipv6str;
                 }
-                r = r.shiftRight(16);
+                low = (low >>> 16) | (high << 48);
+                high >>>= 16;
                 lastPart = false;
             }
             if (ipv6str == null)
@@ -273,13 +448,9 @@ public class NetworkSpace {
             return ipv6str;
         }
         public boolean containsNet(ipAddress network) {
-            // this.first >= net.first &&  this.last <= net.last
-            BigInteger ourFirst = getFirstAddress();
-            BigInteger ourLast = getLastAddress();
-            BigInteger netFirst = network.getFirstAddress();
-            BigInteger netLast = network.getLastAddress();
-            boolean a = ourFirst.compareTo(netFirst) != 1;
-            boolean b = ourLast.compareTo(netLast) != -1;
+            // this.first <= net.first &&  this.last >= net.last
+            boolean a = compareAddress(firstHigh, firstLow, network.firstHigh, network.firstLow) <= 0;
+            boolean b = compareAddress(lastHigh, lastLow, network.lastHigh, network.lastLow) >= 0;
             return a && b;
         }
     }
@@ -57,6 +57,7 @@ import de.blinkt.openvpn.VpnProfile;
 import de.blinkt.openvpn.core.VpnStatus.ByteCountListener;
 import de.blinkt.openvpn.core.VpnStatus.StateListener;
 
+import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_AUTH_FAILED;
 import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_CONNECTED;
 import static de.blinkt.openvpn.core.ConnectionStatus.LEVEL_WAITING_FOR_USER_INPUT;
 import static de.blinkt.openvpn.core.NetworkSpace.ipAddress;
@@ -78,6 +79,9 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
     private final Vector<String> mDnslist = new Vector<>();
     private final NetworkSpace mRoutes = new NetworkSpace();
     private final NetworkSpace mRoutesv6 = new NetworkSpace();
+    /* Routes of the last tun device, updated from mRoutes/mRoutesv6 when the next one is opened */
+    private final NetworkSpace mTunRoutes = new NetworkSpace();
+    private final NetworkSpace mTunRoutesv6 = new NetworkSpace();
     private final Object mProcessLock = new Object();
     private String lastChannel;
     private Thread mProcessThread = null;
@@ -422,42 +426,61 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         shortcutManager.reportShortcutUsed(profile.getUUIDString());
     }
 
+    /**
+     * Connects in stages, overlapping the independent ones: the old process is asked to exit
+     * first and the config, the binary and the management socket are prepared while it shuts
+     * down. The timing of every stage is recorded in a {@link ConnectTrace}.
+     */
     private void startOpenVPN() {
+        ConnectTrace.begin();
+        // Set a flag that we are starting a new VPN
+        mStarting = true;
+        // Ask the previous session to exit, it does so while the new one is prepared
+        Thread oldProcessThread = requestStopOldOpenVPNProcess();
         VpnStatus.logInfo(R.string.building_configration);
         VpnStatus.updateStateString("VPN_GENERATE_CONFIG", "", R.string.building_configration, ConnectionStatus.LEVEL_START);
         try {
             mProfile.writeConfigFile(this);
         } catch (IOException e) {
             VpnStatus.logException("Error writing config file", e);
+            ConnectTrace.end("CONFIG_FAILED");
+            waitForOldOpenVPNProcess(oldProcessThread);
+            mStarting = false;
             endVpnService();
             return;
         }
+        ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN);
         String nativeLibraryDirectory = getApplicationInfo().nativeLibraryDir;
         // Write OpenVPN binary
         String[] argv = VPNLaunchHelper.buildOpenvpnArgv(this);
-        // Set a flag that we are starting a new VPN
-        mStarting = true;
-        // Stop the previous session by interrupting the thread.
-        stopOldOpenVPNProcess();
-        // An old running VPN should now be exited
-        mStarting = false;
-        // Start a new session by creating a new thread.
+        ConnectTrace.mark(ConnectTrace.Stage.ARGV_READY);
         SharedPreferences prefs = Preferences.getDefaultSharedPreferences(this);
         mOvpn3 = prefs.getBoolean("ovpn3", false);
         if (!"ovpn3".equals(BuildConfig.FLAVOR)) mOvpn3 = false;
         // Open the Management Interface
+        OpenVpnManagementThread ovpnManagementThread = null;
         if (!mOvpn3) {
-            // start a Thread that handles incoming messages of the managment socket
-            OpenVpnManagementThread ovpnManagementThread = new OpenVpnManagementThread(mProfile, this);
-            if (ovpnManagementThread.openManagementInterface(this)) {
-                Thread mSocketManagerThread = new Thread(ovpnManagementThread, "OpenVPNManagementThread");
-                mSocketManagerThread.start();
-                mManagement = ovpnManagementThread;
-                VpnStatus.logInfo("started Socket Thread");
-            } else {
+            ovpnManagementThread = new OpenVpnManagementThread(mProfile, this);
+            if (!ovpnManagementThread.openManagementInterface(this)) {
+                ConnectTrace.end("MANAGEMENT_BIND_FAILED");
+                waitForOldOpenVPNProcess(oldProcessThread);
+                mStarting = false;
                 endVpnService();
                 return;
             }
+            ConnectTrace.mark(ConnectTrace.Stage.MANAGEMENT_BOUND);
+        }
+        // The old process has to be gone before the new one may create its tun device
+        waitForOldOpenVPNProcess(oldProcessThread);
+        ConnectTrace.mark(ConnectTrace.Stage.OLD_PROCESS_STOPPED);
+        // An old running VPN should now be exited
+        mStarting = false;
+        if (ovpnManagementThread != null) {
+            // start a Thread that handles incoming messages of the managment socket
+            Thread mSocketManagerThread = new Thread(ovpnManagementThread, "OpenVPNManagementThread");
+            mSocketManagerThread.start();
+            mManagement = ovpnManagementThread;
+            VpnStatus.logInfo("started Socket Thread");
         }
         Runnable processThread;
         if (mOvpn3) {
@@ -472,6 +495,7 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
             mProcessThread = new Thread(processThread, "OpenVPNProcessThread");
             mProcessThread.start();
         }
+        ConnectTrace.mark(ConnectTrace.Stage.PROCESS_SPAWNED);
         new Handler(getMainLooper()).post(new Runnable() {
             @Override
             public void run() {
@@ -481,32 +505,44 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         });
     }
 
-    private void stopOldOpenVPNProcess() {
+    /**
+     * Asks the previous session to exit without waiting for it
+     *
+     * @return the thread of the old process, null if there is none
+     */
+    private Thread requestStopOldOpenVPNProcess() {
         if (mManagement != null) {
             if (mOpenVPNThread != null) {
                 ((OpenVPNThread) mOpenVPNThread).setReplaceConnection();
             }
-            if (mManagement.stopVPN(true)) {
-                // an old was asked to exit, wait 1s
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    //ignore
-                }
-            }
+            mManagement.stopVPN(true);
+        }
+        synchronized (mProcessLock) {
+            return mProcessThread;
         }
-        forceStopOpenVpnProcess();
+    }
+
+    /**
+     * Waits until the old process thread has exited, interrupting it if it does not exit on its own
+     */
+    private void waitForOldOpenVPNProcess(Thread oldProcessThread) {
+        if (oldProcessThread == null) return;
+        if (!OpenVPNThread.awaitExit(oldProcessThread, 1000))
+            VpnStatus.logWarning("Old OpenVPN process did not exit in time");
     }
 
     public void forceStopOpenVpnProcess() {
+        Thread processThread;
         synchronized (mProcessLock) {
-            if (mProcessThread != null) {
-                mProcessThread.interrupt();
-                try {
-                    Thread.sleep(1000);
-                } catch (InterruptedException e) {
-                    //ignore
-                }
+            processThread = mProcessThread;
+            if (processThread != null) processThread.interrupt();
+        }
+        // Not holding the lock, the exiting thread needs it to clean up
+        if (processThread != null) {
+            try {
+                processThread.join(1000);
+            } catch (InterruptedException e) {
+                //ignore
             }
         }
     }
@@ -603,8 +639,10 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         } else {
             builder.setMtu(mMtu);
         }
-        Collection<ipAddress> positiveIPv4Routes = mRoutes.getPositiveIPList();
-        Collection<ipAddress> positiveIPv6Routes = mRoutesv6.getPositiveIPList();
+        mTunRoutes.updateFrom(mRoutes);
+        mTunRoutesv6.updateFrom(mRoutesv6);
+        Collection<ipAddress> positiveIPv4Routes = mTunRoutes.getPositiveIPList();
+        Collection<ipAddress> positiveIPv6Routes = mTunRoutesv6.getPositiveIPList();
         if ("samsung".equals(Build.BRAND) && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && mDnslist.size() >= 1) {
             // Check if the first DNS Server is in the VPN range
             try {
@@ -842,6 +880,13 @@ public class OpenVPNService extends VpnService implements StateListener, Callbac
         // If the process is not running, ignore any state,
         // Notification should be invisible in this state
         doSendBroadcast(state, level);
+        // The attempt ends with the first of these, failures are traced as well
+        if (level == LEVEL_CONNECTED) {
+            ConnectTrace.mark(ConnectTrace.Stage.CONNECTED);
+            ConnectTrace.end(state);
+        } else if (level == LEVEL_AUTH_FAILED || "NOPROCESS".equals(state)) {
+            ConnectTrace.end(state);
+        }
         if (mProcessThread == null && !mNotificationAlwaysVisible) return;
         String channel = NOTIFICATION_CHANNEL_NEWSTATUS_ID;
         // Display byte count only after being connected
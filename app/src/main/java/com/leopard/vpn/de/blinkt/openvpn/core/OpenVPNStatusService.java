@@ -17,6 +17,8 @@ import android.util.Pair;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
 /**
  * Created by arne on 08.11.16.
  */
@@ -32,7 +34,8 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
     private static final IServiceStatus.Stub mBinder = new IServiceStatus.Stub() {
         @Override
         public ParcelFileDescriptor registerStatusCallback(IStatusCallbacks cb) throws RemoteException {
-            final LogItem[] logbuffer = VpnStatus.getlogbuffer();
+            // Everything logged after this point reaches the client through the callback
+            final Iterable<LogItem> logbuffer = VpnStatus.getlogbuffer(VpnStatus.getLogSequence());
             if (mLastUpdateMessage != null)
                 sendUpdate(cb, mLastUpdateMessage);
             mCallbacks.register(cb);
@@ -52,10 +55,18 @@ public class OpenVPNStatusService extends Service implements VpnStatus.LogListen
                             VpnStatus.logException(e);
                         }
                         try {
+                            // Items are sent as short length + LogItemCodec bytes, 0x7fff marks the end
+                            ByteBuffer encoded = ByteBuffer.allocate(0x7ffe);
                             for (LogItem logItem : logbuffer) {
-                                byte[] bytes = logItem.getMarschaledBytes();
-                                fd.writeShort(bytes.length);
-                                fd.write(bytes);
+                                encoded.clear();
+                                try {
+                                    LogItemCodec.encode(logItem, encoded);
+                                } catch (BufferOverflowException e) {
+                                    // Does not fit the length field, skip it
+                                    continue;
+                                }
+                                fd.writeShort(encoded.position());
+                                fd.write(encoded.array(), 0, encoded.position());
                             }
                             // Mark end
                             fd.writeShort(0x7fff);
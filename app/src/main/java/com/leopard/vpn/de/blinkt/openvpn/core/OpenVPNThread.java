@@ -11,6 +11,7 @@ import com.leopard.vpn.R;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.InputStream;
@@ -20,8 +21,6 @@ import java.util.Collections;
 import java.util.Date;
 import java.util.LinkedList;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 public class OpenVPNThread implements Runnable {
     public static final int M_FATAL = (1 << 4);
@@ -40,6 +39,7 @@ public class OpenVPNThread implements Runnable {
     private String mDumpPath;
     private boolean mBrokenPie = false;
     private boolean mNoProcessExitStatus = false;
+    private final ParsedLogLine mParsedLine = new ParsedLogLine();
 
     public OpenVPNThread(OpenVPNService service, String[] argv, String nativelibdir) {
         mArgv = argv;
@@ -112,9 +112,8 @@ public class OpenVPNThread implements Runnable {
         LinkedList<String> argvlist = new LinkedList<>();
         Collections.addAll(argvlist, argv);
         ProcessBuilder pb = new ProcessBuilder(argvlist);
-        // Hack O rama
-        String lbpath = genLibraryPath(argv, pb);
-        pb.environment().put("LD_LIBRARY_PATH", lbpath);
+        String appLibDir = new File(mService.getApplicationInfo().dataDir, "lib").getPath();
+        pb.environment().put("LD_LIBRARY_PATH", genLibraryPath(mNativeDir, appLibDir, pb.environment().get("LD_LIBRARY_PATH")));
         pb.redirectErrorStream(true);
         try {
             mProcess = pb.start();
@@ -127,41 +126,13 @@ public class OpenVPNThread implements Runnable {
                 if (logline == null) {
                     return;
                 }
-                if (logline.startsWith(DUMP_PATH_STRING)) {
-                    mDumpPath = logline.substring(DUMP_PATH_STRING.length());
-                }
-                if (logline.startsWith(BROKEN_PIE_SUPPORT) || logline.contains(BROKEN_PIE_SUPPORT2)) {
-                    mBrokenPie = true;
-                }
-                // 1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'
-                Pattern p = Pattern.compile("(\\d+).(\\d+) ([0-9a-f])+ (.*)");
-                Matcher m = p.matcher(logline);
-                int logerror = 0;
-                if (m.matches()) {
-                    int flags = Integer.parseInt(m.group(3), 16);
-                    String msg = m.group(4);
-                    int logLevel = flags & 0x0F;
-                    VpnStatus.LogLevel logStatus = VpnStatus.LogLevel.INFO;
-                    if ((flags & M_FATAL) != 0) {
-                        logStatus = VpnStatus.LogLevel.ERROR;
-                    } else if ((flags & M_NONFATAL) != 0) {
-                        logStatus = VpnStatus.LogLevel.WARNING;
-                    } else if ((flags & M_WARN) != 0) {
-                        logStatus = VpnStatus.LogLevel.WARNING;
-                    } else if ((flags & M_DEBUG) != 0) {
-                        logStatus = VpnStatus.LogLevel.VERBOSE;
-                    }
-                    if (msg.startsWith("MANAGEMENT: CMD")) {
-                        logLevel = Math.max(4, logLevel);
+                if (!processLogLine(logline)) {
+                    if (logline.startsWith(DUMP_PATH_STRING)) {
+                        mDumpPath = logline.substring(DUMP_PATH_STRING.length());
                     }
-                    if ((msg.endsWith("md too weak") && msg.startsWith("OpenSSL: error")) || msg.contains("error:140AB18E")) {
-                        logerror = 1;
+                    if (logline.startsWith(BROKEN_PIE_SUPPORT) || logline.contains(BROKEN_PIE_SUPPORT2)) {
+                        mBrokenPie = true;
                     }
-                    VpnStatus.logMessageOpenVPN(logStatus, logLevel, msg);
-                    if (logerror == 1) {
-                        VpnStatus.logError("OpenSSL reproted a certificate with a weak hash, please the in app FAQ about weak hashes");
-                    }
-                } else {
                     VpnStatus.logInfo("P:" + logline);
                 }
                 if (Thread.interrupted()) {
@@ -174,15 +145,117 @@ public class OpenVPNThread implements Runnable {
         }
     }
 
-    private String genLibraryPath(String[] argv, ProcessBuilder pb) {
-        // Hack until I find a good way to get the real library path
-        String applibpath = argv[0].replaceFirst("/cache/.*$", "/lib");
-        String lbpath = pb.environment().get("LD_LIBRARY_PATH");
-        if (lbpath == null) lbpath = applibpath;
-        else lbpath = applibpath + ":" + lbpath;
-        if (!applibpath.equals(mNativeDir)) {
-            lbpath = mNativeDir + ":" + lbpath;
+    private boolean processLogLine(String logline) {
+        if (!parseLogLine(logline, mParsedLine))
+            return false;
+        VpnStatus.logMessageOpenVPN(mParsedLine.level, mParsedLine.logLevel, logline.substring(mParsedLine.msgStart));
+        if (mParsedLine.weakHash) {
+            VpnStatus.logError("OpenSSL reproted a certificate with a weak hash, please the in app FAQ about weak hashes");
         }
-        return lbpath;
+        return true;
+    }
+
+    /**
+     * Parses a line of the form "timestamp flags message" in a single pass, e.g.
+     * 1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'
+     *
+     * @param out receives the result, only valid if true is returned
+     * @return false if the line is not in this format
+     */
+    static boolean parseLogLine(String logline, ParsedLogLine out) {
+        int len = logline.length();
+        int pos = skipDigits(logline, 0);
+        if (pos == 0 || pos >= len)
+            return false;
+        // Any separator between seconds and microseconds
+        int fraction = pos + 1;
+        pos = skipDigits(logline, fraction);
+        if (pos == fraction || pos >= len || logline.charAt(pos) != ' ')
+            return false;
+        int flagsStart = ++pos;
+        int flags = 0;
+        for (; pos < len; pos++) {
+            char c = logline.charAt(pos);
+            if (c >= '0' && c <= '9')
+                flags = (flags << 4) | (c - '0');
+            else if (c >= 'a' && c <= 'f')
+                flags = (flags << 4) | (c - 'a' + 10);
+            else
+                break;
+        }
+        if (pos == flagsStart || pos >= len || logline.charAt(pos) != ' ')
+            return false;
+        int msgStart = pos + 1;
+
+        int logLevel = flags & 0x0F;
+        VpnStatus.LogLevel logStatus = VpnStatus.LogLevel.INFO;
+        if ((flags & M_FATAL) != 0) {
+            logStatus = VpnStatus.LogLevel.ERROR;
+        } else if ((flags & M_NONFATAL) != 0) {
+            logStatus = VpnStatus.LogLevel.WARNING;
+        } else if ((flags & M_WARN) != 0) {
+            logStatus = VpnStatus.LogLevel.WARNING;
+        } else if ((flags & M_DEBUG) != 0) {
+            logStatus = VpnStatus.LogLevel.VERBOSE;
+        }
+        if (logline.startsWith("MANAGEMENT: CMD", msgStart)) {
+            logLevel = Math.max(4, logLevel);
+        }
+        out.level = logStatus;
+        out.logLevel = logLevel;
+        out.msgStart = msgStart;
+        out.weakHash = (logline.endsWith("md too weak") && logline.startsWith("OpenSSL: error", msgStart))
+                || logline.indexOf("error:140AB18E", msgStart) != -1;
+        return true;
+    }
+
+    private static int skipDigits(String str, int pos) {
+        int len = str.length();
+        while (pos < len && str.charAt(pos) >= '0' && str.charAt(pos) <= '9')
+            pos++;
+        return pos;
+    }
+
+    /**
+     * The binary lives in the files dir, its path says nothing about where the libraries are
+     *
+     * @param appLibDir lib dir in the app's data dir, older Android versions keep the libraries
+     *                  there or link it to nativeDir
+     * @param inherited LD_LIBRARY_PATH of this process, may be null
+     */
+    static String genLibraryPath(String nativeDir, String appLibDir, String inherited) {
+        StringBuilder path = new StringBuilder(nativeDir);
+        if (!appLibDir.equals(nativeDir))
+            path.append(':').append(appLibDir);
+        if (inherited != null && !inherited.isEmpty())
+            path.append(':').append(inherited);
+        return path.toString();
+    }
+
+    /**
+     * Waits for a process thread to end, it does so as soon as openvpn has exited. A thread
+     * still running after timeoutMs is interrupted and waited for once more.
+     *
+     * @return false if the thread was still running after that
+     */
+    static boolean awaitExit(Thread processThread, long timeoutMs) {
+        try {
+            processThread.join(timeoutMs);
+            if (processThread.isAlive()) {
+                processThread.interrupt();
+                processThread.join(timeoutMs);
+            }
+        } catch (InterruptedException e) {
+            //ignore
+        }
+        return !processThread.isAlive();
+    }
+
+    /* Result of {@link #parseLogLine}, reused for every line of the process output */
+    static class ParsedLogLine {
+        VpnStatus.LogLevel level;
+        int logLevel;
+        int msgStart;
+        boolean weakHash;
     }
 }
@@ -33,7 +33,7 @@ import java.util.Vector;
 
 import de.blinkt.openvpn.VpnProfile;
 
-public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
+public class OpenVpnManagementThread implements Runnable, OpenVPNManagement, ManagementLineFramer.LineHandler {
     private static final String TAG = "openvpn";
     private static final Vector<OpenVpnManagementThread> active = new Vector<>();
     private final Handler mResumeHandler;
@@ -43,7 +43,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
     private LinkedList<FileDescriptor> mFDList = new LinkedList<>();
     private LocalServerSocket mServerSocket;
     private boolean mWaitingForRelease = false;
-    private long mLastHoldRelease = 0;
+    private final HoldReleaseScheduler mHoldRelease;
     private pauseReason lastPauseReason = pauseReason.noNetwork;
     private PausedStateCallback mPauseCallback;
     private boolean mShuttingDown;
@@ -60,12 +60,20 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         mProfile = profile;
         mOpenVPNService = openVpnService;
         mResumeHandler = new Handler(openVpnService.getMainLooper());
+        mHoldRelease = new HoldReleaseScheduler(openVpnService.getMainLooper(), new Runnable() {
+            @Override
+            public void run() {
+                sendHoldRelease();
+            }
+        });
     }
 
     private static boolean stopOpenVPN() {
         synchronized (active) {
             boolean sendCMD = false;
             for (OpenVpnManagementThread mt : active) {
+                // A backoff release could otherwise restart the connection up to a minute later
+                mt.mHoldRelease.stop();
                 sendCMD = mt.managmentCommand("signal SIGINT\n");
                 try {
                     if (mt.mSocket != null) mt.mSocket.close();
@@ -79,21 +87,22 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     public boolean openManagementInterface(@NonNull Context c) {
         // Could take a while to open connection
-        int tries = 8;
+        ManagementBindBackoff backoff = new ManagementBindBackoff();
         String socketName = (c.getCacheDir().getAbsolutePath() + "/" + "mgmtsocket");
         // The mServerSocketLocal is transferred to the LocalServerSocket, ignore warning
         LocalSocket mServerSocketLocal = new LocalSocket();
-        while (tries > 0 && !mServerSocketLocal.isBound()) {
+        while (!mServerSocketLocal.isBound()) {
             try {
                 mServerSocketLocal.bind(new LocalSocketAddress(socketName, LocalSocketAddress.Namespace.FILESYSTEM));
             } catch (IOException e) {
-                // wait 300 ms before retrying
+                long delay = backoff.nextDelay();
+                if (delay < 0)
+                    break;
                 try {
-                    Thread.sleep(300);
+                    Thread.sleep(delay);
                 } catch (InterruptedException ignored) {
                 }
             }
-            tries--;
         }
         try {
             mServerSocket = new LocalServerSocket(mServerSocketLocal.getFileDescriptor());
@@ -123,15 +132,14 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     @Override
     public void run() {
-        byte[] buffer = new byte[2048];
-        //	mSocket.setSoTimeout(5); // Setting a timeout cannot be that bad
-        String pendingInput = "";
+        ManagementLineFramer framer = new ManagementLineFramer(this);
         synchronized (active) {
             active.add(this);
         }
         try {
             // Wait for a client to connect
             mSocket = mServerSocket.accept();
+            ConnectTrace.mark(ConnectTrace.Stage.MANAGEMENT_ACCEPTED);
             InputStream instream = mSocket.getInputStream();
             // Close the management socket after client connected
             try {
@@ -142,7 +150,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
             // Closing one of the two sockets also closes the other
             //mServerSocketLocal.close();
             while (true) {
-                int numbytesread = instream.read(buffer);
+                int numbytesread = framer.fill(instream);
                 if (numbytesread == -1) return;
                 FileDescriptor[] fds = null;
                 try {
@@ -153,9 +161,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
                 if (fds != null) {
                     Collections.addAll(mFDList, fds);
                 }
-                String input = new String(buffer, 0, numbytesread, "UTF-8");
-                pendingInput += input;
-                pendingInput = processInput(pendingInput);
+                framer.processLines();
             }
         } catch (IOException e) {
             if (!e.getMessage().equals("socket closed") && !e.getMessage().equals("Connection reset by peer")) VpnStatus.logException(e);
@@ -183,61 +189,52 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         Log.d("Openvpn", "Failed to retrieve fd from socket: " + fd);
     }
 
-    private String processInput(String pendingInput) {
-        while (pendingInput.contains("\n")) {
-            String[] tokens = pendingInput.split("\\r?\\n", 2);
-            processCommand(tokens[0]);
-            if (tokens.length == 1)
-                // No second part, newline was at the end
-                pendingInput = "";
-            else pendingInput = tokens[1];
+    @Override
+    public void onByteCount(long in, long out) {
+        VpnStatus.updateByteCount(in, out);
+    }
+
+    @Override
+    public void onRealtimeCommand(String cmd, String argument) {
+        switch (cmd) {
+            case "INFO":
+                /* Ignore greeting from management */
+                return;
+            case "PASSWORD":
+                processPWCommand(argument);
+                break;
+            case "HOLD":
+                handleHold(argument);
+                break;
+            case "NEED-OK":
+                processNeedCommand(argument);
+                break;
+            case "BYTECOUNT":
+                processByteCount(argument);
+                break;
+            case "STATE":
+                if (!mShuttingDown) processState(argument);
+                break;
+            case "PROXY":
+                processProxyCMD(argument);
+                break;
+            case "LOG":
+                processLogMessage(argument);
+                break;
+            case "RSA_SIGN":
+                processSignCommand(argument);
+                break;
+            default:
+                VpnStatus.logWarning("MGMT: Got unrecognized command>" + cmd + ":" + argument);
+                Log.i(TAG, "Got unrecognized command>" + cmd + ":" + argument);
+                break;
         }
-        return pendingInput;
     }
 
-    private void processCommand(String command) {
+    @Override
+    public void onLine(String command) {
         //Log.i(TAG, "Line from managment" + command);
-        if (command.startsWith(">") && command.contains(":")) {
-            String[] parts = command.split(":", 2);
-            String cmd = parts[0].substring(1);
-            String argument = parts[1];
-            switch (cmd) {
-                case "INFO":
-                /* Ignore greeting from management */
-                    return;
-                case "PASSWORD":
-                    processPWCommand(argument);
-                    break;
-                case "HOLD":
-                    handleHold(argument);
-                    break;
-                case "NEED-OK":
-                    processNeedCommand(argument);
-                    break;
-                case "BYTECOUNT":
-                    processByteCount(argument);
-                    break;
-                case "STATE":
-                    if (!mShuttingDown) processState(argument);
-                    break;
-                case "PROXY":
-                    processProxyCMD(argument);
-                    break;
-                case "LOG":
-                    processLogMessage(argument);
-                    break;
-                case "RSA_SIGN":
-                    processSignCommand(argument);
-                    break;
-                default:
-                    VpnStatus.logWarning("MGMT: Got unrecognized command" + command);
-                    Log.i(TAG, "Got unrecognized command" + command);
-                    break;
-            }
-        } else if (command.startsWith("SUCCESS:")) {
-            /* Ignore this kind of message too */
-            return;
-        } else if (command.startsWith("PROTECTFD: ")) {
+        if (command.startsWith("PROTECTFD: ")) {
             FileDescriptor fdtoprotect = mFDList.pollFirst();
             if (fdtoprotect != null) protectFileDescriptor(fdtoprotect);
         } else {
@@ -302,17 +299,18 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
         }
     }
 
+    /**
+     * Releases the hold, delayed without blocking if the last release was only a moment ago
+     */
     private void releaseHoldCmd() {
         mResumeHandler.removeCallbacks(mResumeHoldRunnable);
-        if ((System.currentTimeMillis() - mLastHoldRelease) < 5000) {
-            try {
-                Thread.sleep(3000);
-            } catch (InterruptedException ignored) {
-            }
-        }
+        mHoldRelease.requestRelease();
+    }
+
+    private void sendHoldRelease() {
         mWaitingForRelease = false;
-        mLastHoldRelease = System.currentTimeMillis();
         managmentCommand("hold release\n");
+        ConnectTrace.mark(ConnectTrace.Stage.HOLD_RELEASED);
         managmentCommand("bytecount " + mBytecountInterval + "\n");
         managmentCommand("state on\n");
         //managmentCommand("log on all\n");
@@ -503,6 +501,7 @@ public class OpenVpnManagementThread implements Runnable, OpenVPNManagement {
 
     public void signalusr1() {
         mResumeHandler.removeCallbacks(mResumeHoldRunnable);
+        mHoldRelease.cancel();
         if (!mWaitingForRelease) managmentCommand("signal SIGUSR1\n");
         else
             // If signalusr1 is called update the state string
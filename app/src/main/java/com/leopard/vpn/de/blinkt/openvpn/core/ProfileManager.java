@@ -4,22 +4,39 @@
  */
 package de.blinkt.openvpn.core;
 
-import android.app.Activity;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.Editor;
 
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.ObjectInputStream;
-import java.io.ObjectOutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import de.blinkt.openvpn.VpnProfile;
 
+/**
+ * Keeps the list of profiles.
+ *
+ * Only the index of the profile store (UUID, name, version, last use) is read when the manager is
+ * created. Profiles are decoded the first time they are asked for, and the remaining ones are
+ * decoded on a background thread, most recently used first, so the thread that first touches the
+ * manager does not have to wait for all of them.
+ */
 public class ProfileManager {
     private static final String PREFS_NAME = "VPNList";
     private static final String LAST_CONNECTED_PROFILE = "lastConnectedProfile";
@@ -27,21 +44,36 @@ public class ProfileManager {
     private static ProfileManager instance;
     private static VpnProfile mLastConnectedVpn = null;
     private static VpnProfile tmpprofile = null;
+    private static ProfileStore store;
+    private static final ExecutorService warmupExecutor = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "ProfileWarmup");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        }
+    });
+    /* Profiles that have been decoded or added */
     private HashMap<String, VpnProfile> profiles = new HashMap<>();
+    /* Index of the stored profiles, by UUID */
+    private HashMap<String, ProfileStore.Entry> index = new HashMap<>();
+    private ProfileStore mStore;
 
-    private ProfileManager() {
+    ProfileManager() {
     }
 
     private static VpnProfile get(String key) {
         if (tmpprofile != null && tmpprofile.getUUIDString().equals(key)) return tmpprofile;
-        if (instance == null) return null;
-        return instance.profiles.get(key);
+        if (instance == null || key == null) return null;
+        return instance.materialize(key);
     }
 
-    private static void checkInstance(Context context) {
+    synchronized private static void checkInstance(Context context) {
         if (instance == null) {
             instance = new ProfileManager();
             instance.loadVPNList(context);
+            instance.warmup();
         }
     }
 
@@ -89,20 +121,84 @@ public class ProfileManager {
 
     private static void saveProfile(Context context, VpnProfile profile, boolean updateVersion, boolean isTemporary) {
         if (updateVersion) profile.mVersion += 1;
-        ObjectOutputStream vpnFile;
-        String filename = profile.getUUID().toString() + ".vp";
-        if (isTemporary) filename = TEMPORARY_PROFILE_FILENAME + ".vp";
+        String key = profile.getUUID().toString();
+        if (isTemporary) key = TEMPORARY_PROFILE_FILENAME;
         try {
-            vpnFile = new ObjectOutputStream(context.openFileOutput(filename, Activity.MODE_PRIVATE));
-            vpnFile.writeObject(profile);
-            vpnFile.flush();
-            vpnFile.close();
+            getStore(context).put(key, profile);
         } catch (IOException e) {
             VpnStatus.logException("saving VPN profile", e);
             throw new RuntimeException(e);
         }
     }
 
+    /**
+     * Opens the profile store, moving profiles from the old one file per profile format into it
+     */
+    private static synchronized ProfileStore getStore(Context context) throws IOException {
+        if (store == null) {
+            ProfileStore newStore = new ProfileStore(context.getFilesDir());
+            newStore.open();
+            migrateLegacyProfiles(context, newStore);
+            store = newStore;
+        }
+        return store;
+    }
+
+    private static void migrateLegacyProfiles(Context context, ProfileStore newStore) throws IOException {
+        SharedPreferences listpref = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
+        Set<String> vlist = listpref.getStringSet("vpnlist", null);
+        HashSet<String> legacy = vlist == null ? new HashSet<String>() : new HashSet<>(vlist);
+        legacy.add(TEMPORARY_PROFILE_FILENAME);
+        // Profiles that could not be read stay listed and are tried again on the next start
+        if (migrateLegacyProfiles(context.getFilesDir(), legacy, newStore) && vlist != null)
+            listpref.edit().remove("vpnlist").apply();
+    }
+
+    /**
+     * Moves the profiles of the old .vp files into the store. A file is only deleted once its
+     * profile is in the store, files that cannot be read are kept. A failed write to the store
+     * aborts the migration with all remaining files still in place.
+     *
+     * @return true if no .vp file of the given keys is left
+     */
+    static boolean migrateLegacyProfiles(File filesDir, Collection<String> keys, ProfileStore newStore) throws IOException {
+        boolean complete = true;
+        for (String vpnentry : keys) {
+            File legacyFile = new File(filesDir, vpnentry + ".vp");
+            if (!legacyFile.exists())
+                continue;
+            // Unless the last migration was interrupted after the profile was stored
+            if (newStore.getEntry(vpnentry) == null) {
+                VpnProfile vp = readLegacyProfile(legacyFile, vpnentry);
+                if (vp == null) {
+                    complete = false;
+                    continue;
+                }
+                newStore.put(vpnentry, vp);
+            }
+            if (newStore.getEntry(vpnentry) == null || !legacyFile.delete())
+                complete = false;
+        }
+        return complete;
+    }
+
+    private static VpnProfile readLegacyProfile(File legacyFile, String vpnentry) {
+        try {
+            ObjectInputStream vpnfile = new ObjectInputStream(new FileInputStream(legacyFile));
+            try {
+                VpnProfile vp = ((VpnProfile) vpnfile.readObject());
+                // Sanity check
+                if (vp == null || vp.mName == null || vp.getUUID() == null) return null;
+                return vp;
+            } finally {
+                vpnfile.close();
+            }
+        } catch (IOException | ClassNotFoundException e) {
+            if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) VpnStatus.logException("Migrating VPN profile", e);
+            return null;
+        }
+    }
+
     public static VpnProfile get(Context context, String profileUUID) {
         return get(context, profileUUID, 0, 10);
     }
@@ -144,32 +240,123 @@ public class ProfileManager {
         if (profile != tmpprofile) saveProfile(c, profile, false, false);
     }
 
-    public Collection<VpnProfile> getProfiles() {
+    /**
+     * Decodes a stored profile unless it is already in memory
+     */
+    synchronized VpnProfile materialize(String key) {
+        VpnProfile vp = profiles.get(key);
+        if (vp != null || !index.containsKey(key)) return vp;
+        try {
+            vp = mStore.read(key);
+        } catch (IOException e) {
+            VpnStatus.logException("Loading VPN profile", e);
+            return null;
+        }
+        // Sanity check
+        if (vp == null || vp.mName == null || vp.getUUID() == null) {
+            index.remove(key);
+            return null;
+        }
+        vp.upgradeProfile();
+        profiles.put(key, vp);
+        return vp;
+    }
+
+    /**
+     * Decodes the profiles nobody asked for yet in the background, most recently used first
+     */
+    void warmup() {
+        final List<ProfileStore.Entry> entries;
+        synchronized (this) {
+            entries = new ArrayList<>(index.values());
+        }
+        Collections.sort(entries, new Comparator<ProfileStore.Entry>() {
+            @Override
+            public int compare(ProfileStore.Entry a, ProfileStore.Entry b) {
+                return a.lastUsed < b.lastUsed ? 1 : (a.lastUsed > b.lastUsed ? -1 : 0);
+            }
+        });
+        warmupExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (ProfileStore.Entry entry : entries)
+                    materialize(entry.key);
+            }
+        });
+    }
+
+    /**
+     * Waits until the warmups started so far are done
+     */
+    static void awaitWarmup() throws InterruptedException {
+        try {
+            warmupExecutor.submit(new Runnable() {
+                @Override
+                public void run() {
+                }
+            }).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Returns all profiles, decoding the ones that have not been used yet. Prefer the index based
+     * lookups where the profiles themselves are not needed.
+     */
+    public synchronized Collection<VpnProfile> getProfiles() {
+        for (String key : new ArrayList<>(index.keySet()))
+            materialize(key);
         return profiles.values();
     }
 
-    public VpnProfile getProfileByName(String name) {
+    public synchronized VpnProfile getProfileByName(String name) {
         for (VpnProfile vpnp : profiles.values()) {
             if (vpnp.getName().equals(name)) {
                 return vpnp;
             }
         }
+        // Only decode the profiles whose indexed name can match, getName() replaces empty names
+        for (ProfileStore.Entry entry : new ArrayList<>(index.values())) {
+            if (profiles.containsKey(entry.key) || !(name.equals(entry.name) || entry.name == null || entry.name.isEmpty()))
+                continue;
+            VpnProfile vpnp = materialize(entry.key);
+            if (vpnp != null && vpnp.getName().equals(name)) {
+                return vpnp;
+            }
+        }
         return null;
     }
 
+    /**
+     * Removes all profiles with the given name except keep. Stored profiles are found by the name
+     * in the index, they are not decoded for this.
+     */
+    public synchronized void removeProfilesByName(Context context, String name, VpnProfile keep) {
+        String keepKey = keep == null ? null : keep.getUUIDString();
+        HashSet<String> keys = new HashSet<>();
+        for (ProfileStore.Entry entry : index.values()) {
+            if (name.equals(entry.name) && !entry.key.equals(keepKey))
+                keys.add(entry.key);
+        }
+        // Profiles in memory may have been renamed since they were stored
+        for (Map.Entry<String, VpnProfile> profile : profiles.entrySet()) {
+            if (profile.getValue().getName().equals(name) && !profile.getKey().equals(keepKey))
+                keys.add(profile.getKey());
+            else
+                keys.remove(profile.getKey());
+        }
+        for (String key : keys)
+            removeProfile(context, key);
+    }
+
+    /**
+     * Kept for callers, the profile store persists additions and removals on its own
+     */
     public void saveProfileList(Context context) {
-        SharedPreferences sharedprefs = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
-        Editor editor = sharedprefs.edit();
-        editor.putStringSet("vpnlist", profiles.keySet());
-        // For reasing I do not understand at all
-        // Android saves my prefs file only one time
-        // if I remove the debug code below :(
-        int counter = sharedprefs.getInt("counter", 0);
-        editor.putInt("counter", counter + 1);
-        editor.apply();
-    }
-
-    public void addProfile(VpnProfile profile) {
+    }
+
+    public synchronized void addProfile(VpnProfile profile) {
         profiles.put(profile.getUUID().toString(), profile);
     }
 
@@ -177,38 +364,61 @@ public class ProfileManager {
         saveProfile(context, profile, true, false);
     }
 
-    private void loadVPNList(Context context) {
-        profiles = new HashMap<>();
-        SharedPreferences listpref = Preferences.getSharedPreferencesMulti(PREFS_NAME, context);
-        Set<String> vlist = listpref.getStringSet("vpnlist", null);
-        if (vlist == null) {
-            vlist = new HashSet<>();
+    /**
+     * Rereads the index of the store. Profiles already in memory are kept unless a newer version
+     * has been stored since they were decoded.
+     */
+    private synchronized void loadVPNList(Context context) {
+        try {
+            loadIndex(getStore(context));
+        } catch (IOException e) {
+            VpnStatus.logException("Loading VPN List", e);
+            index = new HashMap<>();
+            profiles = new HashMap<>();
         }
-        // Always try to load the temporary profile
-        vlist.add(TEMPORARY_PROFILE_FILENAME);
-        for (String vpnentry : vlist) {
-            try {
-                ObjectInputStream vpnfile = new ObjectInputStream(context.openFileInput(vpnentry + ".vp"));
-                VpnProfile vp = ((VpnProfile) vpnfile.readObject());
-                // Sanity check
-                if (vp == null || vp.mName == null || vp.getUUID() == null) continue;
-                vp.upgradeProfile();
-                if (vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) {
-                    tmpprofile = vp;
-                } else {
-                    profiles.put(vp.getUUID().toString(), vp);
-                }
-            } catch (IOException | ClassNotFoundException e) {
-                if (!vpnentry.equals(TEMPORARY_PROFILE_FILENAME)) VpnStatus.logException("Loading VPN List", e);
+    }
+
+    synchronized void loadIndex(ProfileStore profileStore) throws IOException {
+        HashMap<String, ProfileStore.Entry> loadedIndex = new HashMap<>();
+        HashMap<String, VpnProfile> loaded = new HashMap<>();
+        mStore = profileStore;
+        profileStore.refresh();
+        for (ProfileStore.Entry entry : profileStore.entries()) {
+            if (entry.key.equals(TEMPORARY_PROFILE_FILENAME)) {
+                if (tmpprofile == null || tmpprofile.mVersion != entry.version) loadTemporaryProfile(profileStore);
+                continue;
             }
+            loadedIndex.put(entry.key, entry);
+            VpnProfile vp = profiles.get(entry.key);
+            if (vp != null && vp.mVersion == entry.version) loaded.put(entry.key, vp);
+        }
+        index = loadedIndex;
+        profiles = loaded;
+    }
+
+    private static void loadTemporaryProfile(ProfileStore profileStore) {
+        try {
+            VpnProfile vp = profileStore.read(TEMPORARY_PROFILE_FILENAME);
+            // Sanity check
+            if (vp == null || vp.mName == null || vp.getUUID() == null) return;
+            vp.upgradeProfile();
+            tmpprofile = vp;
+        } catch (IOException ignored) {
         }
     }
 
-    public void removeProfile(Context context, VpnProfile profile) {
-        String vpnentry = profile.getUUID().toString();
+    public synchronized void removeProfile(Context context, VpnProfile profile) {
+        removeProfile(context, profile.getUUID().toString());
+    }
+
+    private synchronized void removeProfile(Context context, String vpnentry) {
         profiles.remove(vpnentry);
-        saveProfileList(context);
-        context.deleteFile(vpnentry + ".vp");
-        if (mLastConnectedVpn == profile) mLastConnectedVpn = null;
+        index.remove(vpnentry);
+        try {
+            getStore(context).delete(vpnentry);
+        } catch (IOException e) {
+            VpnStatus.logException("Removing VPN profile", e);
+        }
+        if (mLastConnectedVpn != null && mLastConnectedVpn.getUUIDString().equals(vpnentry)) mLastConnectedVpn = null;
     }
 }
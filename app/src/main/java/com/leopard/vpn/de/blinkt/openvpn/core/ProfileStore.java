@@ -0,0 +1,357 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.zip.CRC32;
+
+import de.blinkt.openvpn.VpnProfile;
+
+/**
+ * Append-only store of all profiles in a single file.
+ *
+ * Every save appends a record (int length, int crc32, payload) and the newest record of a key
+ * wins, deletions append a tombstone. Opening the store only reads the small record headers
+ * (key, name, version, last used) into an index, profiles are decoded from the memory mapped file
+ * when they are asked for. Once superseded records make up most of the file it is compacted by
+ * writing the live records to a new file that atomically replaces the old one.
+ */
+public class ProfileStore {
+    static final String STORE_NAME = "profiles.store";
+    private static final int MAGIC = 0x4f565053; // "OVPS"
+    private static final int STORE_VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+    /* Embedded files are limited to 2 MB each, a profile has a handful of them */
+    private static final int MAX_RECORD_SIZE = 32 * 1024 * 1024;
+    private static final int COMPACT_MIN_GARBAGE = 64 * 1024;
+    private static final byte RECORD_PUT = 1;
+    private static final byte RECORD_DELETE = 2;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /**
+     * Index entry of a stored profile, available without decoding the profile
+     */
+    public static class Entry {
+        public final String key;
+        public final String name;
+        public final int version;
+        public final long lastUsed;
+        final long offset;
+        final int length;
+
+        Entry(String key, String name, int version, long lastUsed, long offset, int length) {
+            this.key = key;
+            this.name = name;
+            this.version = version;
+            this.lastUsed = lastUsed;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final File mFile;
+    private final LinkedHashMap<String, Entry> mIndex = new LinkedHashMap<>();
+    private final CRC32 mCrc = new CRC32();
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mMap;
+    /* End of the last valid record */
+    private long mSize;
+    /* Bytes taken by superseded records and tombstones */
+    private long mGarbage;
+
+    public ProfileStore(File dir) {
+        mFile = new File(dir, STORE_NAME);
+    }
+
+    /**
+     * Opens the store or rereads its index if it is already open
+     */
+    public synchronized void open() throws IOException {
+        close();
+        mIndex.clear();
+        mGarbage = 0;
+        mRaf = new RandomAccessFile(mFile, "rw");
+        if (mRaf.length() < HEADER_SIZE) {
+            mRaf.setLength(0);
+            mRaf.writeInt(MAGIC);
+            mRaf.writeInt(STORE_VERSION);
+        }
+        mMap = null;
+        ByteBuffer map = map();
+        if (map.getInt(0) != MAGIC || map.getInt(4) != STORE_VERSION)
+            throw new IOException("Not a profile store: " + mFile);
+        long offset = HEADER_SIZE;
+        long fileSize = mRaf.length();
+        while (offset + RECORD_HEADER_SIZE <= fileSize) {
+            int length = map.getInt((int) offset);
+            long next = offset + RECORD_HEADER_SIZE + length;
+            boolean framed = length > 0 && length <= MAX_RECORD_SIZE && next <= fileSize;
+            // A torn write can only damage the last record, only check that one eagerly
+            if (framed && next + RECORD_HEADER_SIZE > fileSize && !checkRecord(map, offset, length))
+                framed = false;
+            if (!framed) {
+                // Only a damaged tail is dropped, records after a damaged header are kept
+                long found = findRecord(map, offset + 1, fileSize);
+                if (found < 0)
+                    break;
+                VpnStatus.logInfo(String.format("Skipping %d bytes of damaged data in the profile store", found - offset));
+                mGarbage += found - offset;
+                offset = found;
+                continue;
+            }
+            try {
+                indexRecord(map, offset, length);
+            } catch (IOException | RuntimeException e) {
+                // Damaged in the middle of the file, its length still leads to the next record
+                VpnStatus.logInfo(String.format("Skipping a damaged record of %d bytes in the profile store", length));
+                mGarbage += RECORD_HEADER_SIZE + length;
+            }
+            offset = next;
+        }
+        mSize = offset;
+        if (mSize < fileSize) {
+            VpnStatus.logInfo(String.format("Dropping %d bytes of incomplete data from the profile store", fileSize - mSize));
+            mRaf.setLength(mSize);
+            mMap = null;
+        }
+    }
+
+    /**
+     * Rereads the index if another process changed the file since it was read
+     */
+    public synchronized void refresh() throws IOException {
+        if (mRaf == null || mFile.length() != mSize)
+            open();
+    }
+
+    public synchronized void close() throws IOException {
+        if (mRaf != null) {
+            mRaf.close();
+            mRaf = null;
+            mMap = null;
+        }
+    }
+
+    private ByteBuffer map() throws IOException {
+        if (mMap == null || mMap.capacity() < mRaf.length())
+            mMap = mRaf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, mRaf.length());
+        return mMap;
+    }
+
+    /**
+     * Scans for the next record whose checksum matches, byte by byte since records are not aligned
+     *
+     * @return its offset or -1 if there is none up to end
+     */
+    private long findRecord(ByteBuffer map, long from, long end) {
+        for (long offset = from; offset + RECORD_HEADER_SIZE <= end; offset++) {
+            int length = map.getInt((int) offset);
+            if (length <= 0 || length > MAX_RECORD_SIZE || offset + RECORD_HEADER_SIZE + length > end)
+                continue;
+            if (checkRecord(map, offset, length))
+                return offset;
+        }
+        return -1;
+    }
+
+    private boolean checkRecord(ByteBuffer map, long offset, int length) {
+        byte[] payload = new byte[length];
+        ByteBuffer record = map.duplicate();
+        record.position((int) offset + RECORD_HEADER_SIZE);
+        record.get(payload);
+        return crc(payload, length) == map.getInt((int) offset + 4);
+    }
+
+    private int crc(byte[] bytes, int length) {
+        mCrc.reset();
+        mCrc.update(bytes, 0, length);
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * Adds a record to the index, the index is left unchanged if the record cannot be parsed
+     */
+    private void indexRecord(ByteBuffer map, long offset, int length) throws IOException {
+        ByteBuffer payload = map.duplicate();
+        payload.position((int) offset + RECORD_HEADER_SIZE);
+        payload.limit((int) offset + RECORD_HEADER_SIZE + length);
+        byte type = payload.get();
+        if (type != RECORD_PUT && type != RECORD_DELETE)
+            throw new IOException("Unknown record type " + type);
+        String key = readString(payload);
+        if (key == null)
+            throw new IOException("Record without a key");
+        Entry old;
+        if (type == RECORD_PUT) {
+            String name = readString(payload);
+            int version = payload.getInt();
+            long lastUsed = payload.getLong();
+            old = mIndex.put(key, new Entry(key, name, version, lastUsed, offset, length));
+        } else {
+            old = mIndex.remove(key);
+            mGarbage += RECORD_HEADER_SIZE + length;
+        }
+        if (old != null)
+            mGarbage += RECORD_HEADER_SIZE + old.length;
+    }
+
+    public synchronized Collection<Entry> entries() {
+        return new ArrayList<>(mIndex.values());
+    }
+
+    public synchronized Entry getEntry(String key) {
+        return mIndex.get(key);
+    }
+
+    /**
+     * Decodes a stored profile
+     *
+     * @return the profile or null if there is no profile with this key
+     */
+    public synchronized VpnProfile read(String key) throws IOException {
+        Entry entry = mIndex.get(key);
+        if (entry == null)
+            return null;
+        ByteBuffer record = map().duplicate();
+        record.position((int) entry.offset + RECORD_HEADER_SIZE);
+        byte[] payload = new byte[entry.length];
+        record.get(payload);
+        if (crc(payload, entry.length) != map().getInt((int) entry.offset + 4))
+            throw new IOException("Profile " + key + " is corrupted");
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+        try {
+            // Skip the index fields
+            in.readByte();
+            readString(in);
+            readString(in);
+            in.readInt();
+            in.readLong();
+            return VpnProfile.readFrom(in);
+        } catch (RuntimeException e) {
+            throw new IOException("Profile " + key + " is corrupted", e);
+        }
+    }
+
+    public synchronized void put(String key, VpnProfile profile) throws IOException {
+        refresh();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_PUT);
+        writeString(out, key);
+        writeString(out, profile.mName);
+        out.writeInt(profile.mVersion);
+        out.writeLong(profile.mLastUsed);
+        profile.writeTo(out);
+        out.close();
+        append(bytes.toByteArray());
+    }
+
+    public synchronized void delete(String key) throws IOException {
+        refresh();
+        if (!mIndex.containsKey(key))
+            return;
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(RECORD_DELETE);
+        writeString(out, key);
+        out.close();
+        append(bytes.toByteArray());
+    }
+
+    private void append(byte[] payload) throws IOException {
+        if (payload.length > MAX_RECORD_SIZE)
+            throw new IOException("Profile too large to store: " + payload.length);
+        ByteBuffer record = ByteBuffer.allocate(RECORD_HEADER_SIZE + payload.length);
+        record.putInt(payload.length).putInt(crc(payload, payload.length)).put(payload).flip();
+        FileChannel channel = mRaf.getChannel();
+        long offset = mSize;
+        while (record.hasRemaining())
+            channel.write(record, offset + record.position());
+        channel.force(false);
+        mSize = offset + RECORD_HEADER_SIZE + payload.length;
+        indexRecord(map(), offset, payload.length);
+        compactIfNeeded();
+    }
+
+    private void compactIfNeeded() throws IOException {
+        if (mGarbage < COMPACT_MIN_GARBAGE || mGarbage < mSize / 2)
+            return;
+        File tmp = new File(mFile.getParentFile(), STORE_NAME + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(tmp, "rw");
+        try {
+            out.setLength(0);
+            out.writeInt(MAGIC);
+            out.writeInt(STORE_VERSION);
+            ByteBuffer map = map();
+            FileChannel channel = out.getChannel();
+            for (Entry entry : mIndex.values()) {
+                ByteBuffer record = map.duplicate();
+                record.position((int) entry.offset);
+                record.limit((int) entry.offset + RECORD_HEADER_SIZE + entry.length);
+                while (record.hasRemaining())
+                    channel.write(record);
+            }
+            channel.force(true);
+        } finally {
+            out.close();
+        }
+        close();
+        if (!tmp.renameTo(mFile)) {
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+            VpnStatus.logError("Could not replace the profile store with its compacted version");
+        }
+        open();
+    }
+
+    /**
+     * Writes a string that may be null and longer than {@link DataOutputStream#writeUTF} allows
+     */
+    public static void writeString(DataOutputStream out, String str) throws IOException {
+        if (str == null) {
+            out.writeInt(-1);
+            return;
+        }
+        byte[] bytes = str.getBytes(UTF8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    public static String readString(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length < 0)
+            return null;
+        if (length > MAX_RECORD_SIZE)
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, UTF8);
+    }
+
+    private static String readString(ByteBuffer in) throws IOException {
+        int length = in.getInt();
+        if (length < 0)
+            return null;
+        if (length > in.remaining())
+            throw new IOException("Invalid string length " + length);
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, UTF8);
+    }
+}
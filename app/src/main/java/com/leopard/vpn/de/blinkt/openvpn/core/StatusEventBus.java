@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Multi producer event bus used by {@link VpnStatus} to fan out log, state and byte count events.
+ *
+ * Producers claim a sequence number and write into a bounded ring without taking any lock. Every
+ * subscriber has its own cursor into the ring and is drained by its own task on a shared executor,
+ * so a slow listener only falls behind itself and never stalls the thread that produced the event.
+ * A subscriber that falls more than the ring capacity behind loses the oldest events. A bus with a
+ * {@link Merger} hands a subscriber that is behind one event that merges all events it missed.
+ */
+public class StatusEventBus<L, E> {
+    private static final ExecutorService sDispatcher = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger mCount = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "VpnStatusDispatch-" + mCount.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    interface Deliverer<L, E> {
+        void deliver(L listener, E event);
+    }
+
+    interface Merger<E> {
+        /**
+         * @return one event that stands for older followed by newer
+         */
+        E merge(E older, E newer);
+    }
+
+    private final String mName;
+    private final AtomicReferenceArray<E> mRing;
+    /* Sequence number of the event currently stored in each slot, -1 if empty */
+    private final AtomicLongArray mSlotSequence;
+    private final int mMask;
+    /* Next sequence number to be claimed by a producer */
+    private final AtomicLong mClaimed = new AtomicLong();
+    private final Merger<E> mMerger;
+    private final Deliverer<L, E> mDeliverer;
+    private final CopyOnWriteArrayList<Subscriber> mSubscribers = new CopyOnWriteArrayList<>();
+
+    /**
+     * @param capacity number of events kept for lagging subscribers, rounded up to a power of two
+     * @param merger   merges the events a subscriber is behind on into one, null to deliver every event
+     */
+    StatusEventBus(String name, int capacity, Merger<E> merger, Deliverer<L, E> deliverer) {
+        int size = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        mName = name;
+        mRing = new AtomicReferenceArray<>(size);
+        mSlotSequence = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++)
+            mSlotSequence.set(i, -1);
+        mMask = size - 1;
+        mMerger = merger;
+        mDeliverer = deliverer;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    void publish(E event) {
+        long seq = mClaimed.getAndIncrement();
+        int slot = (int) (seq & mMask);
+        // Invalidate the slot first so a reader cannot pair the new event with the old sequence
+        mSlotSequence.set(slot, -1);
+        mRing.set(slot, event);
+        mSlotSequence.set(slot, seq);
+        for (Subscriber s : mSubscribers)
+            s.signal();
+    }
+
+    /**
+     * Registers a listener that receives every event published from now on.
+     *
+     * @param initial event delivered to this listener before any published event, may be null
+     * @return false if the listener was already subscribed
+     */
+    boolean subscribe(L listener, E initial) {
+        synchronized (mSubscribers) {
+            if (find(listener) != null)
+                return false;
+            Subscriber s = new Subscriber(listener, mClaimed.get(), initial);
+            mSubscribers.add(s);
+            s.signal();
+            return true;
+        }
+    }
+
+    void unsubscribe(L listener) {
+        synchronized (mSubscribers) {
+            Subscriber s = find(listener);
+            if (s != null) {
+                s.mActive = false;
+                mSubscribers.remove(s);
+            }
+        }
+    }
+
+    boolean isSubscribed(L listener) {
+        return find(listener) != null;
+    }
+
+    private Subscriber find(L listener) {
+        for (Subscriber s : mSubscribers) {
+            if (s.mListener == listener)
+                return s;
+        }
+        return null;
+    }
+
+    /**
+     * @return number of events published but not yet delivered to the slowest subscriber
+     */
+    public long getQueueDepth() {
+        long published = mClaimed.get();
+        long depth = 0;
+        for (Subscriber s : mSubscribers)
+            depth = Math.max(depth, published - s.mCursor);
+        return depth;
+    }
+
+    /**
+     * @return number of undelivered events for each subscribed listener
+     */
+    public Map<L, Long> getListenerLag() {
+        long published = mClaimed.get();
+        Map<L, Long> lag = new LinkedHashMap<>();
+        for (Subscriber s : mSubscribers)
+            lag.put(s.mListener, published - s.mCursor);
+        return lag;
+    }
+
+    /**
+     * @return number of events each subscribed listener skipped because it fell behind
+     */
+    public Map<L, Long> getDroppedEvents() {
+        Map<L, Long> dropped = new LinkedHashMap<>();
+        for (Subscriber s : mSubscribers)
+            dropped.put(s.mListener, s.mDropped);
+        return dropped;
+    }
+
+    private class Subscriber implements Runnable {
+        private final L mListener;
+        private final AtomicBoolean mScheduled = new AtomicBoolean();
+        private volatile boolean mActive = true;
+        /* Only written by the draining task, read by the metric getters */
+        private volatile long mCursor;
+        private volatile long mDropped;
+        private E mInitial;
+
+        Subscriber(L listener, long cursor, E initial) {
+            mListener = listener;
+            mCursor = cursor;
+            mInitial = initial;
+        }
+
+        void signal() {
+            if (mScheduled.compareAndSet(false, true))
+                sDispatcher.execute(this);
+        }
+
+        @Override
+        public void run() {
+            do {
+                drain();
+                mScheduled.set(false);
+                // A producer may have published after the last drain but before we cleared the flag
+            } while (mActive && mCursor < mClaimed.get() && mScheduled.compareAndSet(false, true));
+        }
+
+        private void drain() {
+            if (mInitial != null) {
+                E initial = mInitial;
+                mInitial = null;
+                deliver(initial);
+            }
+            while (mActive) {
+                long published = mClaimed.get();
+                long cursor = mCursor;
+                if (cursor >= published)
+                    return;
+                long oldest = Math.max(0, published - mRing.length());
+                if (cursor < oldest) {
+                    mDropped += oldest - cursor;
+                    cursor = oldest;
+                }
+                E pending = null;
+                boolean incomplete = false;
+                while (cursor < published) {
+                    int slot = (int) (cursor & mMask);
+                    long slotSeq = mSlotSequence.get(slot);
+                    if (slotSeq < cursor) {
+                        // Claimed but the producer has not finished writing yet, it will signal us
+                        incomplete = true;
+                        break;
+                    }
+                    E event = mRing.get(slot);
+                    if (slotSeq > cursor || mSlotSequence.get(slot) != cursor) {
+                        // Overwritten while we were reading it
+                        mDropped++;
+                        cursor++;
+                        continue;
+                    }
+                    cursor++;
+                    if (mMerger == null) {
+                        pending = event;
+                        break;
+                    }
+                    pending = pending == null ? event : mMerger.merge(pending, event);
+                }
+                mCursor = cursor;
+                if (pending != null)
+                    deliver(pending);
+                if (incomplete)
+                    return;
+            }
+        }
+
+        private void deliver(E event) {
+            try {
+                mDeliverer.deliver(mListener, event);
+            } catch (RuntimeException e) {
+                // A broken listener must not take down the dispatcher. Not logged through
+                // VpnStatus, a failing log listener would be handed its own failure again.
+                Log.e("StatusEventBus", "Listener of the " + mName + " bus failed", e);
+            }
+        }
+    }
+}
@@ -59,7 +59,7 @@ public class StatusListener {
                     byte[] buf = new byte[65336];
                     while (len != 0x7fff) {
                         fd.readFully(buf, 0, len);
-                        LogItem logitem = new LogItem(buf, len);
+                        LogItem logitem = LogItemCodec.decode(buf, 0, len);
                         VpnStatus.newLogItem(logitem, false);
                         len = fd.readShort();
                     }
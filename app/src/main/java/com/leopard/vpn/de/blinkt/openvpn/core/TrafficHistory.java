@@ -5,17 +5,26 @@
 package de.blinkt.openvpn.core;
 import android.os.Parcel;
 import android.os.Parcelable;
-import java.util.HashSet;
+import java.util.AbstractList;
 import java.util.LinkedList;
-import java.util.Vector;
+import java.util.List;
 import static java.lang.Math.max;
 /**
  * Created by arne on 23.05.17.
+ *
+ * Every tier is a fixed size ring of primitive timestamp/in/out values, so appending a data point
+ * and rolling it up into the next tier never allocates and never scans the whole tier.
  */
 public class TrafficHistory implements Parcelable {
     public static final long PERIODS_TO_KEEP = 5;
     public static final int TIME_PERIOD_MINTUES = 60 * 1000;
     public static final int TIME_PERIOD_HOURS = 3600 * 1000;
+    /* One data point per second for PERIODS_TO_KEEP + 1 minutes, with room for a faster bytecount interval */
+    static final int SECONDS_CAPACITY = 1024;
+    /* One data point per minute for PERIODS_TO_KEEP + 1 hours */
+    static final int MINUTES_CAPACITY = 512;
+    /* Hours are never expired by time, keep roughly the last month */
+    static final int HOURS_CAPACITY = 768;
     public static final Creator<TrafficHistory> CREATOR = new Creator<TrafficHistory>() {
         @Override
         public TrafficHistory createFromParcel(Parcel in) {
@@ -26,41 +35,37 @@ public class TrafficHistory implements Parcelable {
             return new TrafficHistory[size];
         }
     };
-    private LinkedList<TrafficDatapoint> trafficHistorySeconds = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryMinutes = new LinkedList<>();
-    private LinkedList<TrafficDatapoint> trafficHistoryHours = new LinkedList<>();
-    private TrafficDatapoint lastSecondUsedForMinute;
-    private TrafficDatapoint lastMinuteUsedForHours;
+    private final Tier trafficHistorySeconds = new Tier(SECONDS_CAPACITY);
+    private final Tier trafficHistoryMinutes = new Tier(MINUTES_CAPACITY);
+    private final Tier trafficHistoryHours = new Tier(HOURS_CAPACITY);
+    private long lastSecondUsedForMinute = -1;
+    private long lastMinuteUsedForHours = -1;
     public TrafficHistory() {
     }
     protected TrafficHistory(Parcel in) {
-        in.readList(trafficHistorySeconds, getClass().getClassLoader());
-        in.readList(trafficHistoryMinutes, getClass().getClassLoader());
-        in.readList(trafficHistoryHours, getClass().getClassLoader());
-        lastSecondUsedForMinute = in.readParcelable(getClass().getClassLoader());
-        lastMinuteUsedForHours = in.readParcelable(getClass().getClassLoader());
+        trafficHistorySeconds.readFromParcel(in);
+        trafficHistoryMinutes.readFromParcel(in);
+        trafficHistoryHours.readFromParcel(in);
+        lastSecondUsedForMinute = in.readLong();
+        lastMinuteUsedForHours = in.readLong();
     }
     public static LinkedList<TrafficDatapoint> getDummyList() {
         LinkedList<TrafficDatapoint> list = new LinkedList<>();
         list.add(new TrafficDatapoint(0, 0, System.currentTimeMillis()));
         return list;
     }
-    public LastDiff getLastDiff(TrafficDatapoint tdp) {
-        TrafficDatapoint lasttdp;
-        if (trafficHistorySeconds.size() == 0)
-            lasttdp = new TrafficDatapoint(0, 0, System.currentTimeMillis());
-        else
-            lasttdp = trafficHistorySeconds.getLast();
-        if (tdp == null) {
-            tdp = lasttdp;
-            if (trafficHistorySeconds.size() < 2)
-                lasttdp = tdp;
-            else {
-                trafficHistorySeconds.descendingIterator().next();
-                tdp = trafficHistorySeconds.descendingIterator().next();
-            }
-        }
-        return new LastDiff(lasttdp, tdp);
+    /**
+     * @return the difference between the last two data points, or zero if there are fewer than two
+     */
+    public LastDiff getLastDiff() {
+        Tier seconds = trafficHistorySeconds;
+        if (seconds.size == 0)
+            return new LastDiff(0, 0, 0, 0);
+        int last = seconds.physical(seconds.size - 1);
+        if (seconds.size < 2)
+            return new LastDiff(seconds.in[last], seconds.out[last], seconds.in[last], seconds.out[last]);
+        int previous = seconds.physical(seconds.size - 2);
+        return new LastDiff(seconds.in[previous], seconds.out[previous], seconds.in[last], seconds.out[last]);
     }
     @Override
     public int describeContents() {
@@ -68,65 +73,114 @@ public class TrafficHistory implements Parcelable {
     }
     @Override
     public void writeToParcel(Parcel dest, int flags) {
-        dest.writeList(trafficHistorySeconds);
-        dest.writeList(trafficHistoryMinutes);
-        dest.writeList(trafficHistoryHours);
-        dest.writeParcelable(lastSecondUsedForMinute, 0);
-        dest.writeParcelable(lastMinuteUsedForHours, 0);
+        trafficHistorySeconds.writeToParcel(dest);
+        trafficHistoryMinutes.writeToParcel(dest);
+        trafficHistoryHours.writeToParcel(dest);
+        dest.writeLong(lastSecondUsedForMinute);
+        dest.writeLong(lastMinuteUsedForHours);
     }
-    public LinkedList<TrafficDatapoint> getHours() {
+    public List<TrafficDatapoint> getHours() {
         return trafficHistoryHours;
     }
-    public LinkedList<TrafficDatapoint> getMinutes() {
+    public List<TrafficDatapoint> getMinutes() {
         return trafficHistoryMinutes;
     }
-    public LinkedList<TrafficDatapoint> getSeconds() {
+    public List<TrafficDatapoint> getSeconds() {
         return trafficHistorySeconds;
     }
     LastDiff add(long in, long out) {
-        TrafficDatapoint tdp = new TrafficDatapoint(in, out, System.currentTimeMillis());
-        LastDiff diff = getLastDiff(tdp);
-        addDataPoint(tdp);
+        long now = System.currentTimeMillis();
+        LastDiff diff;
+        if (trafficHistorySeconds.size == 0) {
+            diff = new LastDiff(0, 0, in, out);
+        } else {
+            int last = trafficHistorySeconds.physical(trafficHistorySeconds.size - 1);
+            diff = new LastDiff(trafficHistorySeconds.in[last], trafficHistorySeconds.out[last], in, out);
+        }
+        addDataPoint(now, in, out);
         return diff;
     }
-    private void addDataPoint(TrafficDatapoint tdp) {
-        trafficHistorySeconds.add(tdp);
-        if (lastSecondUsedForMinute == null) {
-            lastSecondUsedForMinute = new TrafficDatapoint(0, 0, 0);
-            lastMinuteUsedForHours = new TrafficDatapoint(0, 0, 0);
+    void addDataPoint(long timestamp, long in, long out) {
+        trafficHistorySeconds.append(timestamp, in, out);
+        if (lastSecondUsedForMinute < 0) {
+            lastSecondUsedForMinute = 0;
+            lastMinuteUsedForHours = 0;
+        }
+        if (timestamp / TIME_PERIOD_MINTUES > lastSecondUsedForMinute / TIME_PERIOD_MINTUES) {
+            trafficHistoryMinutes.append(timestamp, in, out);
+            lastSecondUsedForMinute = timestamp;
+            if (timestamp / TIME_PERIOD_HOURS > lastMinuteUsedForHours / TIME_PERIOD_HOURS) {
+                trafficHistoryHours.append(timestamp, in, out);
+                lastMinuteUsedForHours = timestamp;
+                trafficHistoryMinutes.expire(timestamp, TIME_PERIOD_HOURS);
+            }
+            trafficHistorySeconds.expire(timestamp, TIME_PERIOD_MINTUES);
         }
-        removeAndAverage(tdp, true);
     }
-    private void removeAndAverage(TrafficDatapoint newTdp, boolean seconds) {
-        HashSet<TrafficDatapoint> toRemove = new HashSet<>();
-        Vector<TrafficDatapoint> toAverage = new Vector<>();
-        long timePeriod;
-        LinkedList<TrafficDatapoint> tpList, nextList;
-        TrafficDatapoint lastTsPeriod;
-        if (seconds) {
-            timePeriod = TIME_PERIOD_MINTUES;
-            tpList = trafficHistorySeconds;
-            nextList = trafficHistoryMinutes;
-            lastTsPeriod = lastSecondUsedForMinute;
-        } else {
-            timePeriod = TIME_PERIOD_HOURS;
-            tpList = trafficHistoryMinutes;
-            nextList = trafficHistoryHours;
-            lastTsPeriod = lastMinuteUsedForHours;
-        }
-        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
-            nextList.add(newTdp);
-            if (seconds) {
-                lastSecondUsedForMinute = newTdp;
-                removeAndAverage(newTdp, false);
-            } else
-                lastMinuteUsedForHours = newTdp;
-            for (TrafficDatapoint tph : tpList) {
-                // List is iteratered from oldest to newest, remembert first one that we did not
-                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= PERIODS_TO_KEEP)
-                    toRemove.add(tph);
+    /**
+     * Struct of arrays ring buffer, oldest entry at head. Exposed read only as a List so callers
+     * can keep iterating it like the old lists, the data points are created on access.
+     */
+    private static class Tier extends AbstractList<TrafficDatapoint> {
+        private final long[] ts;
+        private final long[] in;
+        private final long[] out;
+        private int head = 0;
+        private int size = 0;
+        Tier(int capacity) {
+            ts = new long[capacity];
+            in = new long[capacity];
+            out = new long[capacity];
+        }
+        private int physical(int index) {
+            int pos = head + index;
+            return pos >= ts.length ? pos - ts.length : pos;
+        }
+        void append(long timestamp, long inBytes, long outBytes) {
+            int pos;
+            if (size == ts.length) {
+                // Full, overwrite the oldest entry
+                pos = head;
+                head = physical(1);
+            } else {
+                pos = physical(size);
+                size++;
             }
-            tpList.removeAll(toRemove);
+            ts[pos] = timestamp;
+            in[pos] = inBytes;
+            out[pos] = outBytes;
+        }
+        /* Entries are ordered by time, so everything too old sits at the head */
+        void expire(long now, long timePeriod) {
+            while (size > 0 && (now - ts[head]) / timePeriod >= PERIODS_TO_KEEP) {
+                head = physical(1);
+                size--;
+            }
+        }
+        @Override
+        public TrafficDatapoint get(int index) {
+            if (index < 0 || index >= size)
+                throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+            int pos = physical(index);
+            return new TrafficDatapoint(in[pos], out[pos], ts[pos]);
+        }
+        @Override
+        public int size() {
+            return size;
+        }
+        void writeToParcel(Parcel dest) {
+            dest.writeInt(size);
+            for (int i = 0; i < size; i++) {
+                int pos = physical(i);
+                dest.writeLong(ts[pos]);
+                dest.writeLong(in[pos]);
+                dest.writeLong(out[pos]);
+            }
+        }
+        void readFromParcel(Parcel src) {
+            int count = src.readInt();
+            for (int i = 0; i < count; i++)
+                append(src.readLong(), src.readLong(), src.readLong());
         }
     }
     public static class TrafficDatapoint implements Parcelable {
@@ -165,23 +219,27 @@ public class TrafficHistory implements Parcelable {
         }
     }
     static class LastDiff {
-        final private TrafficDatapoint tdp;
-        final private TrafficDatapoint lasttdp;
-        private LastDiff(TrafficDatapoint lasttdp, TrafficDatapoint tdp) {
-            this.lasttdp = lasttdp;
-            this.tdp = tdp;
+        final private long lastIn;
+        final private long lastOut;
+        final private long in;
+        final private long out;
+        private LastDiff(long lastIn, long lastOut, long in, long out) {
+            this.lastIn = lastIn;
+            this.lastOut = lastOut;
+            this.in = in;
+            this.out = out;
         }
         public long getDiffOut() {
-            return max(0, tdp.out - lasttdp.out);
+            return max(0, out - lastOut);
         }
         public long getDiffIn() {
-            return max(0, tdp.in - lasttdp.in);
+            return max(0, in - lastIn);
         }
         public long getIn() {
-            return tdp.in;
+            return in;
         }
         public long getOut() {
-            return tdp.out;
+            return out;
         }
     }
-}
\ No newline at end of file
+}
@@ -6,20 +6,70 @@ package de.blinkt.openvpn.core;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.Intent;
+import android.content.pm.PackageInfo;
+import android.content.pm.PackageManager;
+import android.content.res.AssetFileDescriptor;
 import android.os.Build;
+import android.os.SystemClock;
 import com.leopard.vpn.R;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
 import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
 import java.util.Vector;
 import de.blinkt.openvpn.VpnProfile;
 public class VPNLaunchHelper {
     private static final String MININONPIEVPN = "nopie_openvpn";
     private static final String MINIPIEVPN = "pie_openvpn";
     private static final String OVPNCONFIGFILE = "android.conf";
+    /* Kept in the files dir, the cache dir is wiped when switching servers */
+    private static final String MINIVPN_DIR = "minivpn";
+    private static final Object sExtractLock = new Object();
+    private static String sMiniVPNPath;
+    private static volatile long sExtractMillis = -1;
+
+    /**
+     * Extracts the minivpn binary on a background thread, so connecting does not have to wait for it
+     */
+    public static void prepareMiniVPN(Context context) {
+        final Context appContext = context.getApplicationContext();
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                writeMiniVPN(appContext);
+            }
+        }, "MiniVPNExtract").start();
+    }
+
+    /**
+     * @return how long checking and if needed extracting the minivpn binary took, -1 if it did not run yet
+     */
+    public static long getExtractMillis() {
+        return sExtractMillis;
+    }
+
     private static String writeMiniVPN(Context context) {
+        synchronized (sExtractLock) {
+            if (sMiniVPNPath != null && new File(sMiniVPNPath).canExecute())
+                return sMiniVPNPath;
+            long start = SystemClock.elapsedRealtime();
+            sMiniVPNPath = findMiniVPN(context);
+            sExtractMillis = SystemClock.elapsedRealtime() - start;
+            if (sMiniVPNPath != null)
+                VpnStatus.logDebug(String.format(Locale.US, "Prepared %s in %d ms", sMiniVPNPath, sExtractMillis));
+            return sMiniVPNPath;
+        }
+    }
+
+    private static String findMiniVPN(Context context) {
         String[] abis;
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP)
             abis = getSupportedABIsLollipop();
@@ -31,14 +81,45 @@ public class VPNLaunchHelper {
             VpnStatus.logWarning(R.string.abi_mismatch, Arrays.toString(abis), nativeAPI);
             abis = new String[]{nativeAPI};
         }
+        // One listing instead of trying to open the asset of every ABI in turn
+        HashSet<String> assets = new HashSet<>();
+        try {
+            String[] list = context.getAssets().list("");
+            if (list != null)
+                assets.addAll(Arrays.asList(list));
+        } catch (IOException e) {
+            VpnStatus.logException(e);
+        }
+        PackageInfo packageInfo;
+        try {
+            packageInfo = context.getPackageManager().getPackageInfo(context.getPackageName(), 0);
+        } catch (PackageManager.NameNotFoundException e) {
+            VpnStatus.logException(e);
+            return null;
+        }
+        File dir = new File(context.getFilesDir(), MINIVPN_DIR);
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            VpnStatus.logError("Could not create " + dir);
+            return null;
+        }
         for (String abi : abis) {
-            File vpnExecutable = new File(context.getCacheDir(), "c_" + getMiniVPNExecutableName() + "." + abi);
-            if ((vpnExecutable.exists() && vpnExecutable.canExecute()) || writeMiniVPNBinary(context, abi, vpnExecutable)) {
+            String assetName = getMiniVPNExecutableName() + "." + abi;
+            if (!assets.contains(assetName)) {
+                VpnStatus.logInfo("Failed getting assets for archicture " + abi);
+                continue;
+            }
+            File vpnExecutable = new File(dir, "c_" + assetName);
+            MiniVPNExtractor.Asset asset = apkAsset(context, assetName);
+            //noinspection deprecation
+            int versionCode = packageInfo.versionCode;
+            if (MiniVPNExtractor.isExtracted(vpnExecutable, asset, versionCode, packageInfo.lastUpdateTime)
+                    || MiniVPNExtractor.extract(vpnExecutable, asset, versionCode, packageInfo.lastUpdateTime)) {
                 return vpnExecutable.getPath();
             }
         }
         return null;
     }
+
     @TargetApi(Build.VERSION_CODES.LOLLIPOP)
     private static String[] getSupportedABIsLollipop() {
         return Build.SUPPORTED_ABIS;
@@ -67,33 +148,88 @@ public class VPNLaunchHelper {
         args.add(getConfigFilePath(c));
         return args.toArray(new String[args.size()]);
     }
-    private static boolean writeMiniVPNBinary(Context context, String abi, File mvpnout) {
-        try {
-            InputStream mvpn;
-            try {
-                mvpn = context.getAssets().open(getMiniVPNExecutableName() + "." + abi);
-            } catch (IOException errabi) {
-                VpnStatus.logInfo("Failed getting assets for archicture " + abi);
-                return false;
+    /**
+     * The minivpn asset in the APK. Uncompressed assets are copied and hashed straight from the
+     * APK with channel transfers and a memory map.
+     */
+    private static MiniVPNExtractor.Asset apkAsset(final Context context, final String assetName) {
+        return new MiniVPNExtractor.Asset() {
+            @Override
+            public String getName() {
+                return assetName;
             }
-            FileOutputStream fout = new FileOutputStream(mvpnout);
-            byte buf[] = new byte[4096];
-            int lenread = mvpn.read(buf);
-            while (lenread > 0) {
-                fout.write(buf, 0, lenread);
-                lenread = mvpn.read(buf);
+
+            @Override
+            public String hash() throws IOException {
+                MessageDigest digest = MiniVPNExtractor.newDigest();
+                AssetFileDescriptor afd = openUncompressed(context, assetName);
+                if (afd != null) {
+                    FileInputStream in = afd.createInputStream();
+                    try {
+                        digest.update(in.getChannel().map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), afd.getLength()));
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    InputStream in = context.getAssets().open(assetName);
+                    try {
+                        byte[] buf = new byte[65536];
+                        int read;
+                        while ((read = in.read(buf)) > 0)
+                            digest.update(buf, 0, read);
+                    } finally {
+                        in.close();
+                    }
+                }
+                return MiniVPNExtractor.toHex(digest.digest());
             }
-            fout.close();
-            if (!mvpnout.setExecutable(true)) {
-                VpnStatus.logError("Failed to make OpenVPN executable");
-                return false;
+
+            @Override
+            public String copyTo(FileChannel dst) throws IOException {
+                MessageDigest digest = MiniVPNExtractor.newDigest();
+                long size = 0;
+                AssetFileDescriptor afd = openUncompressed(context, assetName);
+                if (afd != null) {
+                    FileInputStream in = afd.createInputStream();
+                    try {
+                        FileChannel src = in.getChannel();
+                        long length = afd.getLength();
+                        while (size < length) {
+                            long copied = src.transferTo(afd.getStartOffset() + size, length - size, dst);
+                            if (copied <= 0)
+                                throw new IOException("Short copy of " + assetName);
+                            size += copied;
+                        }
+                        digest.update(src.map(FileChannel.MapMode.READ_ONLY, afd.getStartOffset(), length));
+                    } finally {
+                        in.close();
+                    }
+                } else {
+                    ReadableByteChannel src = Channels.newChannel(new DigestInputStream(context.getAssets().open(assetName), digest));
+                    try {
+                        long copied;
+                        while ((copied = dst.transferFrom(src, size, 1 << 20)) > 0)
+                            size += copied;
+                    } finally {
+                        src.close();
+                    }
+                }
+                return MiniVPNExtractor.toHex(digest.digest());
             }
-            return true;
-        } catch (IOException e) {
-            VpnStatus.logException(e);
-            return false;
+        };
+    }
+
+    /**
+     * @return the descriptor of the asset inside the APK or null if the asset is compressed
+     */
+    private static AssetFileDescriptor openUncompressed(Context context, String assetName) {
+        try {
+            return context.getAssets().openFd(assetName);
+        } catch (IOException compressed) {
+            return null;
         }
     }
+
     public static void startOpenVpn(VpnProfile startprofile, Context context) {
         Intent startVPN = startprofile.prepareStartService(context);
         if (startVPN != null) {
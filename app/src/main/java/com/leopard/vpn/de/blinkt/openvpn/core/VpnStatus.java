@@ -14,24 +14,27 @@ import com.leopard.vpn.R;
 import java.io.File;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.LinkedList;
 import java.util.Locale;
-import java.util.Vector;
 
 public class VpnStatus {
     final static java.lang.Object readFileLock = new Object();
+    private final static Object stateLock = new Object();
+    private final static Object trafficLock = new Object();
     static final int MAXLOGENTRIES = 1000;
     // keytool -printcert -jarfile de.blinkt.openvpn_85.apk
     static final byte[] officalkey = {-58, -42, -44, -106, 90, -88, -87, -88, -52, -124, 84, 117, 66, 79, -112, -111, -46, 86, -37, 109};
     static final byte[] officaldebugkey = {-99, -69, 45, 71, 114, -116, 82, 66, -99, -122, 50, -70, -56, -111, 98, -35, -65, 105, 82, 43};
     static final byte[] amazonkey = {-116, -115, -118, -89, -116, -112, 120, 55, 79, -8, -119, -23, 106, -114, -85, -56, -4, 105, 26, -57};
     static final byte[] fdroidkey = {-92, 111, -42, -46, 123, -96, -60, 79, -27, -31, 49, 103, 11, -54, -68, -27, 17, 2, 121, 104};
-    private static final LinkedList<LogItem> logbuffer;
+    private static volatile LogRing logbuffer;
     public static TrafficHistory trafficHistory;
     static boolean readFileLog = false;
-    private static Vector<LogListener> logListener;
-    private static Vector<StateListener> stateListener;
-    private static Vector<ByteCountListener> byteCountListener;
+    private static final int LOG_EVENT_CAPACITY = 1024;
+    private static final int STATE_EVENT_CAPACITY = 256;
+    private static final int BYTECOUNT_EVENT_CAPACITY = 64;
+    private static final StatusEventBus<LogListener, LogItem> logListener;
+    private static final StatusEventBus<StateListener, StateEvent> stateListener;
+    private static final StatusEventBus<ByteCountListener, ByteCountEvent> byteCountListener;
     private static String mLaststatemsg = "";
     private static String mLaststate = "NOPROCESS";
     private static int mLastStateresid = R.string.state_noprocess;
@@ -39,12 +42,37 @@ public class VpnStatus {
     private static String mLastConnectedVPNUUID;
     private static ConnectionStatus mLastLevel = ConnectionStatus.LEVEL_NOTCONNECTED;
     private static LogFileHandler mLogFileHandler;
+    private static LogDurability mLogDurability = LogDurability.ON_FLUSH;
 
     static {
-        logbuffer = new LinkedList<>();
-        logListener = new Vector<>();
-        stateListener = new Vector<>();
-        byteCountListener = new Vector<>();
+        logbuffer = new LogRing(MAXLOGENTRIES);
+        logListener = new StatusEventBus<>("log", LOG_EVENT_CAPACITY, null, new StatusEventBus.Deliverer<LogListener, LogItem>() {
+            @Override
+            public void deliver(LogListener listener, LogItem logItem) {
+                listener.newLog(logItem);
+            }
+        });
+        stateListener = new StatusEventBus<>("state", STATE_EVENT_CAPACITY, null, new StatusEventBus.Deliverer<StateListener, StateEvent>() {
+            @Override
+            public void deliver(StateListener listener, StateEvent event) {
+                if (event.connectedVPN != null)
+                    listener.setConnectedVPN(event.connectedVPN);
+                else
+                    listener.updateState(event.state, event.msg, event.resid, event.level);
+            }
+        });
+        // A listener that is behind gets one event with the traffic of all events it missed
+        byteCountListener = new StatusEventBus<>("bytecount", BYTECOUNT_EVENT_CAPACITY, new StatusEventBus.Merger<ByteCountEvent>() {
+            @Override
+            public ByteCountEvent merge(ByteCountEvent older, ByteCountEvent newer) {
+                return new ByteCountEvent(newer.in, newer.out, older.diffIn + newer.diffIn, older.diffOut + newer.diffOut);
+            }
+        }, new StatusEventBus.Deliverer<ByteCountListener, ByteCountEvent>() {
+            @Override
+            public void deliver(ByteCountListener listener, ByteCountEvent event) {
+                listener.updateByteCount(event.in, event.out, event.diffIn, event.diffOut);
+            }
+        });
         trafficHistory = new TrafficHistory();
         logInformation();
     }
@@ -110,6 +138,7 @@ public class VpnStatus {
         mHandlerThread = new HandlerThread("LogFileWriter", Thread.MIN_PRIORITY);
         mHandlerThread.start();
         mLogFileHandler = new LogFileHandler(mHandlerThread.getLooper());
+        mLogFileHandler.setDurability(mLogDurability);
         Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_INIT, cacheDir);
         mLogFileHandler.sendMessage(m);
     }
@@ -118,10 +147,17 @@ public class VpnStatus {
         if (mLogFileHandler != null) mLogFileHandler.sendEmptyMessage(LogFileHandler.FLUSH_TO_DISK);
     }
 
+    /**
+     * Sets when the log cache is synced to the storage device, see {@link LogDurability}
+     */
+    public static void setLogDurability(LogDurability durability) {
+        mLogDurability = durability;
+        if (mLogFileHandler != null) mLogFileHandler.setDurability(durability);
+    }
+
     public static void setConnectedVPNProfile(String uuid) {
         mLastConnectedVPNUUID = uuid;
-        for (StateListener sl : stateListener)
-            sl.setConnectedVPN(uuid);
+        stateListener.publish(new StateEvent(uuid));
     }
 
     public static String getLastConnectedVPNProfile() {
@@ -129,17 +165,28 @@ public class VpnStatus {
     }
 
     public static void setTrafficHistory(TrafficHistory trafficHistory) {
-        VpnStatus.trafficHistory = trafficHistory;
+        synchronized (trafficLock) {
+            VpnStatus.trafficHistory = trafficHistory;
+        }
     }
 
-    public synchronized static void logMessage(LogLevel level, String prefix, String message) {
+    public static void logMessage(LogLevel level, String prefix, String message) {
         newLogItem(new LogItem(level, prefix + message));
     }
 
-    public synchronized static void clearLog() {
-        logbuffer.clear();
+    public static void clearLog() {
+        while (true) {
+            LogRing ring = logbuffer;
+            synchronized (ring) {
+                if (ring != logbuffer)
+                    continue;
+                ring.clear();
+                // Items logged before this reach the log cache before the trim and are dropped by it
+                if (mLogFileHandler != null) mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE, ring.getNextSequence()));
+                break;
+            }
+        }
         logInformation();
-        if (mLogFileHandler != null) mLogFileHandler.sendEmptyMessage(LogFileHandler.TRIM_LOG_FILE);
     }
 
     private static void logInformation() {
@@ -152,29 +199,61 @@ public class VpnStatus {
         logInfo(R.string.mobile_info, Build.MODEL, Build.BOARD, Build.BRAND, Build.VERSION.SDK_INT, nativeAPI, Build.VERSION.RELEASE, Build.ID, Build.FINGERPRINT, "", "");
     }
 
-    public synchronized static void addLogListener(LogListener ll) {
-        logListener.add(ll);
+    public static void addLogListener(LogListener ll) {
+        logListener.subscribe(ll, null);
     }
 
-    public synchronized static void removeLogListener(LogListener ll) {
-        logListener.remove(ll);
+    public static void removeLogListener(LogListener ll) {
+        logListener.unsubscribe(ll);
     }
 
-    public synchronized static void addByteCountListener(ByteCountListener bcl) {
-        TrafficHistory.LastDiff diff = trafficHistory.getLastDiff(null);
-        bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut());
-        byteCountListener.add(bcl);
+    /**
+     * Registers a listener for the traffic counts. The current count is handed to it before this
+     * returns, on the calling thread. Later counts arrive on a dispatch thread of the
+     * {@link StatusEventBus}.
+     */
+    public static void addByteCountListener(ByteCountListener bcl) {
+        // Like the states, subscribe under the lock the counts are published under
+        synchronized (trafficLock) {
+            if (byteCountListener.isSubscribed(bcl))
+                return;
+            TrafficHistory.LastDiff diff = trafficHistory.getLastDiff();
+            bcl.updateByteCount(diff.getIn(), diff.getOut(), diff.getDiffIn(), diff.getDiffOut());
+            byteCountListener.subscribe(bcl, null);
+        }
     }
 
-    public synchronized static void removeByteCountListener(ByteCountListener bcl) {
-        byteCountListener.remove(bcl);
+    public static void removeByteCountListener(ByteCountListener bcl) {
+        byteCountListener.unsubscribe(bcl);
+    }
+
+    /**
+     * Registers a listener for the connection state. The current state is handed to it before
+     * this returns, on the calling thread. Later states arrive on a dispatch thread of the
+     * {@link StatusEventBus}.
+     */
+    public static void addStateListener(StateListener sl) {
+        // States are published under stateLock, so no state can be set between the current state
+        // and the start of the subscription
+        synchronized (stateLock) {
+            if (stateListener.isSubscribed(sl))
+                return;
+            if (mLaststate != null)
+                sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel);
+            stateListener.subscribe(sl, null);
+        }
     }
 
-    public synchronized static void addStateListener(StateListener sl) {
-        if (!stateListener.contains(sl)) {
-            stateListener.add(sl);
-            if (mLaststate != null) sl.updateState(mLaststate, mLaststatemsg, mLastStateresid, mLastLevel);
-        }
+    public static StatusEventBus<LogListener, LogItem> getLogEventBus() {
+        return logListener;
+    }
+
+    public static StatusEventBus<StateListener, StateEvent> getStateEventBus() {
+        return stateListener;
+    }
+
+    public static StatusEventBus<ByteCountListener, ByteCountEvent> getByteCountEventBus() {
+        return byteCountListener;
     }
 
     private static int getLocalizedState(String state) {
@@ -238,14 +317,54 @@ public class VpnStatus {
         return ConnectionStatus.UNKNOWN_LEVEL;
     }
 
-    public synchronized static void removeStateListener(StateListener sl) {
-        stateListener.remove(sl);
+    public static void removeStateListener(StateListener sl) {
+        stateListener.unsubscribe(sl);
+    }
+
+    /**
+     * @return the currently retained log items, oldest first. Readers do not lock the log,
+     * items that are overwritten while iterating are skipped.
+     */
+    public static Iterable<LogItem> getlogbuffer() {
+        return logbuffer.items();
+    }
+
+    /**
+     * @return the retained log items up to the sequence number returned by {@link #getLogSequence()}
+     */
+    static Iterable<LogItem> getlogbuffer(long endSequence) {
+        LogRing ring = logbuffer;
+        return ring.items(ring.getFirstSequence(), endSequence);
+    }
+
+    /**
+     * @return sequence number that the next log item will get
+     */
+    static long getLogSequence() {
+        return logbuffer.getNextSequence();
     }
 
-    synchronized public static LogItem[] getlogbuffer() {
-        // The stoned way of java to return an array from a vector
-        // brought to you by eclipse auto complete
-        return logbuffer.toArray(new LogItem[logbuffer.size()]);
+    public static int getLogBufferCapacity() {
+        return logbuffer.getCapacity();
+    }
+
+    /**
+     * Changes the number of log items kept in memory, keeping the newest existing items
+     */
+    public static void setLogBufferCapacity(int capacity) {
+        while (true) {
+            LogRing old = logbuffer;
+            // Writers wait on the old ring and move on to the new one once it is in place
+            synchronized (old) {
+                if (old != logbuffer)
+                    continue;
+                if (old.getCapacity() == capacity)
+                    return;
+                // Same sequence numbers, a pending trim of the log cache still finds its end
+                logbuffer = old.resize(capacity);
+                return;
+            }
+        }
     }
 
     static void updateStateString(String state, String msg) {
@@ -254,21 +373,26 @@ public class VpnStatus {
         updateStateString(state, msg, rid, level);
     }
 
-    public synchronized static void updateStateString(String state, String msg, int resid, ConnectionStatus level) {
-        // Workound for OpenVPN doing AUTH and wait and being connected
-        // Simply ignore these state
-        if (mLastLevel == ConnectionStatus.LEVEL_CONNECTED && (state.equals("WAIT") || state.equals("AUTH"))) {
-            newLogItem(new LogItem((LogLevel.DEBUG), String.format("Ignoring OpenVPN Status in CONNECTED state (%s->%s): %s", state, level.toString(), msg)));
-            return;
-        }
-        mLaststate = state;
-        mLaststatemsg = msg;
-        mLastStateresid = resid;
-        mLastLevel = level;
-        for (StateListener sl : stateListener) {
-            sl.updateState(state, msg, resid, level);
+    public static void updateStateString(String state, String msg, int resid, ConnectionStatus level) {
+        boolean ignored;
+        synchronized (stateLock) {
+            // Workound for OpenVPN doing AUTH and wait and being connected
+            // Simply ignore these state
+            ignored = mLastLevel == ConnectionStatus.LEVEL_CONNECTED && (state.equals("WAIT") || state.equals("AUTH"));
+            if (!ignored) {
+                mLaststate = state;
+                mLaststatemsg = msg;
+                mLastStateresid = resid;
+                mLastLevel = level;
+                // Publish under the lock so listeners see the states in the order they were set
+                stateListener.publish(new StateEvent(state, msg, resid, level));
+            }
         }
-        newLogItem(new LogItem((LogLevel.DEBUG), String.format("New OpenVPN Status (%s->%s): %s", state, level.toString(), msg)));
+        // Logged after the lock is released, the log must never wait for the state
+        if (ignored)
+            newLogItem(new LogItem((LogLevel.DEBUG), String.format("Ignoring OpenVPN Status in CONNECTED state (%s->%s): %s", state, level.toString(), msg)));
+        else
+            newLogItem(new LogItem((LogLevel.DEBUG), String.format("New OpenVPN Status (%s->%s): %s", state, level.toString(), msg)));
     }
 
     public static void logInfo(String message) {
@@ -291,25 +415,33 @@ public class VpnStatus {
         newLogItem(logItem, false);
     }
 
-    synchronized static void newLogItem(LogItem logItem, boolean cachedLine) {
-        if (cachedLine) {
-            logbuffer.addFirst(logItem);
-        } else {
-            logbuffer.addLast(logItem);
-            if (mLogFileHandler != null) {
-                Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
-                mLogFileHandler.sendMessage(m);
+    /**
+     * Adds an item to the log. Writers are serialised on the log ring alone, so the log cache and
+     * the listeners get the items in the order of the ring.
+     */
+    static void newLogItem(LogItem logItem, boolean cachedLine) {
+        while (true) {
+            LogRing ring = logbuffer;
+            synchronized (ring) {
+                // Replaced by setLogBufferCapacity while we were waiting for it
+                if (ring != logbuffer)
+                    continue;
+                if (cachedLine) {
+                    ring.prepend(logItem);
+                } else {
+                    ring.append(logItem);
+                    if (mLogFileHandler != null) {
+                        Message m = mLogFileHandler.obtainMessage(LogFileHandler.LOG_MESSAGE, logItem);
+                        mLogFileHandler.sendMessage(m);
+                    }
+                }
+                // The ring drops old items by itself and the log cache rotates its segments
+                //if (BuildConfig.DEBUG && !cachedLine && !BuildConfig.FLAVOR.equals("test"))
+                //    Log.d("OpenVPN", logItem.getString(null));
+                logListener.publish(logItem);
+                return;
             }
         }
-        if (logbuffer.size() > MAXLOGENTRIES + MAXLOGENTRIES / 2) {
-            while (logbuffer.size() > MAXLOGENTRIES) logbuffer.removeFirst();
-            if (mLogFileHandler != null) mLogFileHandler.sendMessage(mLogFileHandler.obtainMessage(LogFileHandler.TRIM_LOG_FILE));
-        }
-        //if (BuildConfig.DEBUG && !cachedLine && !BuildConfig.FLAVOR.equals("test"))
-        //    Log.d("OpenVPN", logItem.getString(null));
-        for (LogListener ll : logListener) {
-            ll.newLog(logItem);
-        }
     }
 
     public static void logError(String msg) {
@@ -336,10 +468,10 @@ public class VpnStatus {
         newLogItem(new LogItem(level, ovpnlevel, message));
     }
 
-    public static synchronized void updateByteCount(long in, long out) {
-        TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
-        for (ByteCountListener bcl : byteCountListener) {
-            bcl.updateByteCount(in, out, diff.getDiffIn(), diff.getDiffOut());
+    public static void updateByteCount(long in, long out) {
+        synchronized (trafficLock) {
+            TrafficHistory.LastDiff diff = trafficHistory.add(in, out);
+            byteCountListener.publish(new ByteCountEvent(in, out, diff.getDiffIn(), diff.getDiffOut()));
         }
     }
 
@@ -373,6 +505,15 @@ public class VpnStatus {
         }
     }
 
+    public enum LogDurability {
+        /* Batches are handed to the OS, no sync to the storage device */
+        NONE,
+        /* Sync when the log is flushed explicitly, e.g. when the VPN service goes away */
+        ON_FLUSH,
+        /* Sync after every written batch */
+        EVERY_BATCH
+    }
+
     public interface LogListener {
         void newLog(LogItem logItem);
     }
@@ -386,4 +527,42 @@ public class VpnStatus {
     public interface ByteCountListener {
         void updateByteCount(long in, long out, long diffIn, long diffOut);
     }
+
+    public static class StateEvent {
+        final String state;
+        final String msg;
+        final int resid;
+        final ConnectionStatus level;
+        final String connectedVPN;
+
+        StateEvent(String state, String msg, int resid, ConnectionStatus level) {
+            this.state = state;
+            this.msg = msg;
+            this.resid = resid;
+            this.level = level;
+            this.connectedVPN = null;
+        }
+
+        StateEvent(String connectedVPN) {
+            this.state = null;
+            this.msg = null;
+            this.resid = 0;
+            this.level = null;
+            this.connectedVPN = connectedVPN;
+        }
+    }
+
+    public static class ByteCountEvent {
+        final long in;
+        final long out;
+        final long diffIn;
+        final long diffOut;
+
+        ByteCountEvent(long in, long out, long diffIn, long diffOut) {
+            this.in = in;
+            this.out = out;
+            this.diffIn = diffIn;
+            this.diffOut = diffOut;
+        }
+    }
 }
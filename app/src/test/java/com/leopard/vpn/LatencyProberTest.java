@@ -0,0 +1,249 @@
+package com.leopard.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.SocketException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.Connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LatencyProberTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private ServerSocket tcpServer;
+    private DatagramSocket udpServer;
+    private Thread udpEcho;
+
+    @Before
+    public void setUp() throws IOException {
+        tcpServer = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        udpServer = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        udpEcho = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1500];
+                try {
+                    while (true) {
+                        DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
+                        udpServer.receive(packet);
+                        // Only answer what looks like an openvpn hard reset
+                        if (packet.getLength() == 14 && buffer[0] == 7 << 3)
+                            udpServer.send(packet);
+                    }
+                } catch (IOException ignored) {
+                    // Closed by tearDown
+                }
+            }
+        });
+        udpEcho.start();
+    }
+
+    @After
+    public void tearDown() throws IOException, InterruptedException {
+        tcpServer.close();
+        udpServer.close();
+        udpEcho.join();
+    }
+
+    /* A port nobody listens on */
+    private static int closedPort() throws IOException {
+        ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        return port;
+    }
+
+    private static String loopback() {
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    private LatencyProber.Endpoint tcp() {
+        return new LatencyProber.Endpoint(loopback(), tcpServer.getLocalPort(), false);
+    }
+
+    private LatencyProber.Endpoint udp() {
+        return new LatencyProber.Endpoint(loopback(), udpServer.getLocalPort(), true);
+    }
+
+    /* Resolves urls from a map and counts the lookups */
+    private static class FakeResolver implements LatencyProber.EndpointResolver {
+        final HashMap<String, List<LatencyProber.Endpoint>> remotes = new HashMap<>();
+        final AtomicInteger lookups = new AtomicInteger();
+
+        @Override
+        public List<LatencyProber.Endpoint> resolve(String url) throws IOException {
+            lookups.incrementAndGet();
+            List<LatencyProber.Endpoint> endpoints = remotes.get(url);
+            if (endpoints == null)
+                throw new IOException("No profile for " + url);
+            return endpoints;
+        }
+    }
+
+    private static class Recorder implements LatencyProber.Listener {
+        final HashMap<String, Long> latencies = new HashMap<>();
+        final CountDownLatch finished = new CountDownLatch(1);
+
+        @Override
+        public synchronized void onLatency(String url, long rttMs) {
+            latencies.put(url, rttMs);
+        }
+
+        @Override
+        public void onFinished() {
+            finished.countDown();
+        }
+
+        synchronized long get(String url) {
+            return latencies.get(url);
+        }
+    }
+
+    private static Recorder probe(LatencyProber prober, String... urls) throws InterruptedException {
+        Recorder recorder = new Recorder();
+        prober.probe(Arrays.asList(urls), recorder);
+        assertTrue(recorder.finished.await(10, TimeUnit.SECONDS));
+        return recorder;
+    }
+
+    @Test
+    public void tcpHandshakeIsTimed() throws IOException {
+        assertNotEquals(LatencyProber.UNREACHABLE, LatencyProber.probeTcp(tcp()));
+        assertEquals(LatencyProber.UNREACHABLE, LatencyProber.probeTcp(new LatencyProber.Endpoint(loopback(), closedPort(), false)));
+    }
+
+    @Test
+    public void udpAnswerToTheHardResetIsTimed() throws IOException {
+        assertNotEquals(LatencyProber.UNREACHABLE, LatencyProber.probeUdp(udp()));
+    }
+
+    @Test
+    public void closedUdpPortIsUnreachable() throws SocketException {
+        DatagramSocket socket = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+        int port = socket.getLocalPort();
+        socket.close();
+        assertEquals(LatencyProber.UNREACHABLE, LatencyProber.probeUdp(new LatencyProber.Endpoint(loopback(), port, true)));
+    }
+
+    @Test
+    public void endpointsComeFromTheEnabledConnections() {
+        VpnProfile vp = new VpnProfile("servers");
+        Connection a = new Connection();
+        a.mServerName = "a.example.com";
+        a.mServerPort = "443 ";
+        a.mUseUdp = false;
+        Connection disabled = new Connection();
+        disabled.mEnabled = false;
+        Connection badPort = new Connection();
+        badPort.mServerPort = "openvpn";
+        Connection b = new Connection();
+        b.mServerName = "b.example.com";
+        vp.mConnections = new Connection[]{a, disabled, badPort, b};
+
+        List<LatencyProber.Endpoint> endpoints = LatencyProber.endpointsOf(vp);
+        assertEquals(2, endpoints.size());
+        assertEquals("a.example.com", endpoints.get(0).host);
+        assertEquals(443, endpoints.get(0).port);
+        assertTrue(!endpoints.get(0).udp);
+        assertEquals("b.example.com", endpoints.get(1).host);
+        assertEquals(1194, endpoints.get(1).port);
+        assertTrue(endpoints.get(1).udp);
+    }
+
+    @Test
+    public void serversAreProbedOnceWithinTheTtl() throws Exception {
+        FakeResolver resolver = new FakeResolver();
+        resolver.remotes.put("tcp", Collections.singletonList(tcp()));
+        resolver.remotes.put("udp", Collections.singletonList(udp()));
+        LatencyProber prober = new LatencyProber(resolver, DIRECT);
+
+        Recorder first = probe(prober, "tcp", "udp", "missing", "tcp");
+        assertNotEquals(LatencyProber.UNREACHABLE, first.get("tcp"));
+        assertNotEquals(LatencyProber.UNREACHABLE, first.get("udp"));
+        assertEquals(LatencyProber.UNREACHABLE, first.get("missing"));
+        assertEquals(3, first.latencies.size());
+        assertEquals(3, resolver.lookups.get());
+
+        Recorder second = probe(prober, "tcp", "udp");
+        assertEquals(first.get("tcp"), second.get("tcp"));
+        assertEquals(3, resolver.lookups.get());
+        assertEquals(first.get("udp"), prober.getLatency("udp"));
+    }
+
+    @Test
+    public void nextRemoteIsTriedWhenTheFirstIsDown() throws Exception {
+        FakeResolver resolver = new FakeResolver();
+        resolver.remotes.put("server", Arrays.asList(new LatencyProber.Endpoint(loopback(), closedPort(), false), tcp()));
+        LatencyProber prober = new LatencyProber(resolver, DIRECT);
+
+        assertNotEquals(LatencyProber.UNREACHABLE, probe(prober, "server").get("server"));
+    }
+
+    @Test
+    public void expiredResultIsProbedAgain() throws Exception {
+        FakeResolver resolver = new FakeResolver();
+        resolver.remotes.put("server", Collections.singletonList(tcp()));
+        LatencyProber prober = new LatencyProber(resolver, DIRECT);
+        prober.seed("server", 1, System.currentTimeMillis() - LatencyProber.TTL_MS - 1);
+
+        long rtt = probe(prober, "server").get("server");
+        assertNotEquals(LatencyProber.UNREACHABLE, rtt);
+        assertTrue(prober.getMeasuredAt("server") > System.currentTimeMillis() - LatencyProber.TTL_MS);
+        assertEquals(1, resolver.lookups.get());
+    }
+
+    @Test
+    public void fastestReachableServerIsPicked() {
+        LatencyProber prober = new LatencyProber(new FakeResolver(), DIRECT);
+        long now = System.currentTimeMillis();
+        prober.seed("slow", 80, now);
+        prober.seed("fast", 20, now);
+        prober.seed("down", LatencyProber.UNREACHABLE, now);
+        ServerList.Server slow = new ServerList.Server("1", "Slow", "slow", "", true);
+        ServerList.Server fast = new ServerList.Server("2", "Fast", "fast", "", true);
+        ServerList.Server down = new ServerList.Server("3", "Down", "down", "", true);
+
+        assertSame(fast, prober.getFastest(Arrays.asList(down, slow, fast)));
+        assertEquals(null, prober.getFastest(Collections.singletonList(down)));
+        ArrayList<Long> latencies = new ArrayList<>(Arrays.asList(LatencyProber.UNREACHABLE, 80L, 20L));
+        Collections.sort(latencies, new Comparator<Long>() {
+            @Override
+            public int compare(Long a, Long b) {
+                return LatencyProber.compareLatency(a, b);
+            }
+        });
+        assertEquals(Arrays.asList(20L, 80L, LatencyProber.UNREACHABLE), latencies);
+    }
+
+    @Test
+    public void emptyProbeFinishes() throws InterruptedException {
+        probe(new LatencyProber(new FakeResolver(), DIRECT));
+    }
+}
@@ -0,0 +1,218 @@
+package com.leopard.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import de.blinkt.openvpn.VpnProfile;
+import de.blinkt.openvpn.core.ConfigParser;
+import okhttp3.OkHttpClient;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProfileAsyncTest {
+    private static final String PROFILE = "client\ndev tun\nproto udp\nremote vpn.example.com 1194\n<ca>\nCA\n</ca>\n";
+
+    private final OkHttpClient client = new OkHttpClient.Builder()
+            .connectTimeout(2, TimeUnit.SECONDS)
+            .readTimeout(2, TimeUnit.SECONDS)
+            .build();
+    private MockWebServer server;
+    private File dir;
+    private ProfileCache cache;
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+        dir = File.createTempFile("profilecache", "");
+        assertTrue(dir.delete());
+        cache = new ProfileCache(dir);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        dir.delete();
+    }
+
+    private String url(String path) {
+        return server.url(path).toString();
+    }
+
+    private VpnProfile load(String url) throws IOException, ConfigParser.ConfigParseError {
+        return ProfileAsync.loadProfile(client, cache, url);
+    }
+
+    /* Makes the cached entry old enough to be revalidated */
+    private void expire(String url) {
+        cache.get(url).validatedAt = 0;
+    }
+
+    @Test
+    public void downloadIsParsedOnceAndThenServedFromTheCache() throws Exception {
+        String url = url("/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE).setHeader("ETag", "\"v1\""));
+        int misses = ProfileCache.getMisses();
+        int hits = ProfileCache.getHits();
+
+        VpnProfile first = load(url);
+        assertEquals("vpn.example.com", first.mConnections[0].mServerName);
+        assertEquals(misses + 1, ProfileCache.getMisses());
+        RecordedRequest request = server.takeRequest();
+        assertNull(request.getHeader("If-None-Match"));
+        assertEquals("\"v1\"", cache.get(url).getETag());
+
+        VpnProfile second = load(url);
+        assertEquals(first.getUUID(), second.getUUID());
+        assertEquals(hits + 1, ProfileCache.getHits());
+        assertEquals(1, server.getRequestCount());
+
+        // A new instance finds the entry on disk
+        assertTrue(new ProfileCache(dir).contains(url));
+    }
+
+    @Test
+    public void staleEntryIsRevalidatedWithAConditionalRequest() throws Exception {
+        String url = url("/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE).setHeader("ETag", "\"v1\"")
+                .setHeader("Last-Modified", "Mon, 05 Oct 2026 10:00:00 GMT"));
+        VpnProfile first = load(url);
+        server.takeRequest();
+        expire(url);
+
+        server.enqueue(new MockResponse().setResponseCode(304).setHeader("ETag", "\"v2\""));
+        int revalidated = ProfileCache.getRevalidated();
+        VpnProfile second = load(url);
+        RecordedRequest request = server.takeRequest();
+        assertEquals("\"v1\"", request.getHeader("If-None-Match"));
+        assertEquals("Mon, 05 Oct 2026 10:00:00 GMT", request.getHeader("If-Modified-Since"));
+        assertEquals(first.getUUID(), second.getUUID());
+        assertEquals(revalidated + 1, ProfileCache.getRevalidated());
+        assertEquals("\"v2\"", cache.get(url).getETag());
+        assertTrue(cache.get(url).isFresh());
+    }
+
+    @Test
+    public void sameContentFromAnotherUrlIsNotParsedAgain() throws Exception {
+        String url = url("/de.ovpn");
+        String mirror = url("/mirror/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        VpnProfile first = load(url);
+        int misses = ProfileCache.getMisses();
+
+        VpnProfile second = load(mirror);
+        assertEquals(misses, ProfileCache.getMisses());
+        assertEquals(first.getUUID(), second.getUUID());
+        assertTrue(cache.contains(mirror));
+    }
+
+    @Test
+    public void httpErrorDoesNotFallBackToTheStaleProfile() throws Exception {
+        String url = url("/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        load(url);
+        expire(url);
+
+        server.enqueue(new MockResponse().setResponseCode(404));
+        int fallbacks = ProfileCache.getFallbacks();
+        int hits = ProfileCache.getHits();
+        try {
+            load(url);
+            fail("HTTP 404 must not be answered from the cache");
+        } catch (IOException e) {
+            assertTrue(e.getMessage(), e.getMessage().startsWith("HTTP 404"));
+        }
+        assertEquals(fallbacks, ProfileCache.getFallbacks());
+        assertEquals(hits, ProfileCache.getHits());
+    }
+
+    @Test
+    public void unreachableServerFallsBackToTheStaleProfile() throws Exception {
+        String url = url("/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        VpnProfile first = load(url);
+        expire(url);
+        server.shutdown();
+
+        int fallbacks = ProfileCache.getFallbacks();
+        int hits = ProfileCache.getHits();
+        VpnProfile stale = load(url);
+        assertEquals(first.getUUID(), stale.getUUID());
+        assertEquals(fallbacks + 1, ProfileCache.getFallbacks());
+        assertEquals(hits, ProfileCache.getHits());
+        // Still stale, the next load tries the server again
+        assertTrue(!cache.get(url).isFresh());
+    }
+
+    @Test
+    public void unreadableCachedProfileIsDownloadedAgain() throws Exception {
+        String url = url("/de.ovpn");
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        load(url);
+        File[] files = dir.listFiles();
+        assertEquals(1, files.length);
+
+        // Same entry, but a profile written with another profile format version
+        DataInputStream in = new DataInputStream(new FileInputStream(files[0]));
+        int version = in.readInt();
+        String entryUrl = in.readUTF();
+        String etag = in.readUTF();
+        String lastModified = in.readUTF();
+        String contentHash = in.readUTF();
+        long validatedAt = in.readLong();
+        byte[] profile = new byte[in.readInt()];
+        in.readFully(profile);
+        in.close();
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(files[0]));
+        out.writeInt(version);
+        out.writeUTF(entryUrl);
+        out.writeUTF(etag);
+        out.writeUTF(lastModified);
+        out.writeUTF(contentHash);
+        out.writeLong(validatedAt);
+        out.writeInt(profile.length);
+        out.writeInt(Integer.MAX_VALUE);
+        out.write(profile, 4, profile.length - 4);
+        out.close();
+        cache = new ProfileCache(dir);
+        assertTrue(cache.get(url).isFresh());
+
+        server.enqueue(new MockResponse().setBody(PROFILE));
+        int misses = ProfileCache.getMisses();
+        VpnProfile reloaded = load(url);
+        assertEquals("vpn.example.com", reloaded.mConnections[0].mServerName);
+        assertEquals(misses + 1, ProfileCache.getMisses());
+        assertEquals(2, server.getRequestCount());
+        assertEquals(reloaded.getUUID(), cache.read(cache.get(url)).getUUID());
+    }
+
+    @Test(expected = IOException.class)
+    public void unreachableServerWithoutCachedProfileFails() throws Exception {
+        String url = url("/de.ovpn");
+        server.shutdown();
+        load(url);
+    }
+}
@@ -0,0 +1,288 @@
+package com.leopard.vpn;
+
+import com.google.gson.reflect.TypeToken;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import javax.net.ssl.SSLException;
+
+import okhttp3.Headers;
+import okhttp3.Request;
+import okhttp3.mockwebserver.Dispatcher;
+import okhttp3.mockwebserver.MockResponse;
+import okhttp3.mockwebserver.MockWebServer;
+import okhttp3.mockwebserver.RecordedRequest;
+import okhttp3.tls.HandshakeCertificates;
+import okhttp3.tls.HeldCertificate;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class RequestNetworkControllerTest {
+    private static final TypeToken<HashMap<String, String>> IP = new TypeToken<HashMap<String, String>>() {};
+
+    private MockWebServer server;
+    /* Everything the listeners were called with, in order */
+    private final LinkedBlockingQueue<Object> answers = new LinkedBlockingQueue<>();
+    private Thread listenerThread;
+    /* Listeners of the requests run on the thread that read the response */
+    private final RequestNetwork requestNetwork = new RequestNetwork(new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            listenerThread = Thread.currentThread();
+            command.run();
+        }
+    });
+    private final RequestNetwork.JsonListener<HashMap<String, String>> jsonListener = new RequestNetwork.JsonListener<HashMap<String, String>>() {
+        @Override
+        public void onResponse(String tag, HashMap<String, String> response, Headers responseHeaders) {
+            answers.add(response);
+        }
+
+        @Override
+        public void onErrorResponse(String tag, String message) {
+            answers.add("error: " + message);
+        }
+    };
+    private final RequestNetwork.RequestListener textListener = new RequestNetwork.RequestListener() {
+        @Override
+        public void onResponse(String tag, String response, Headers responseHeaders) {
+            answers.add(response);
+        }
+
+        @Override
+        public void onErrorResponse(String tag, String message) {
+            answers.add("error: " + message);
+        }
+    };
+
+    @Before
+    public void setUp() throws IOException {
+        server = new MockWebServer();
+        server.start();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        server.shutdown();
+    }
+
+    /**
+     * Answers every request with body once release is counted down, so calls stay in flight
+     */
+    private CountDownLatch holdResponses(final String body) {
+        final CountDownLatch release = new CountDownLatch(1);
+        server.setDispatcher(new Dispatcher() {
+            @Override
+            public MockResponse dispatch(RecordedRequest request) throws InterruptedException {
+                release.await(10, TimeUnit.SECONDS);
+                return new MockResponse().setBody(body);
+            }
+        });
+        return release;
+    }
+
+    private Object answer() throws InterruptedException {
+        Object answer = answers.poll(10, TimeUnit.SECONDS);
+        assertNotNull("No answer", answer);
+        return answer;
+    }
+
+    @Test
+    public void jsonIsDecodedOffTheCallingThread() throws Exception {
+        server.enqueue(new MockResponse().setBody("{\"ip\":\"203.0.113.7\"}"));
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, server.url("/?format=json").toString(), "ip", IP, jsonListener);
+
+        HashMap<String, String> answer = (HashMap<String, String>) answer();
+        assertEquals("203.0.113.7", answer.get("ip"));
+        assertNotSame(Thread.currentThread(), listenerThread);
+        assertEquals("/?format=json", server.takeRequest().getPath());
+    }
+
+    @Test
+    public void backgroundListenersRunOnTheDispatchThread() throws Exception {
+        RequestNetwork background = new RequestNetwork(RequestNetworkController.BACKGROUND);
+        final LinkedBlockingQueue<String> threads = new LinkedBlockingQueue<>();
+        server.enqueue(new MockResponse().setBody("203.0.113.7").addHeader("X-Served-By", "mock"));
+        background.startRequestNetwork(RequestNetworkController.GET, server.url("/?format=txt&background").toString(), "ip", new RequestNetwork.RequestListener() {
+            @Override
+            public void onResponse(String tag, String response, Headers responseHeaders) {
+                threads.add(Thread.currentThread().getName() + " " + response + " " + responseHeaders.get("X-Served-By"));
+            }
+
+            @Override
+            public void onErrorResponse(String tag, String message) {
+                threads.add("error: " + message);
+            }
+        });
+        assertEquals("RequestNetwork 203.0.113.7 mock", threads.poll(10, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void malformedJsonAndHttpErrorsReachTheErrorListener() throws Exception {
+        server.enqueue(new MockResponse().setBody("203.0.113.7 is not JSON"));
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, server.url("/").toString(), "ip", IP, jsonListener);
+        assertTrue(((String) answer()).startsWith("error: "));
+
+        server.enqueue(new MockResponse().setResponseCode(500));
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, server.url("/").toString(), "ip", IP, jsonListener);
+        assertEquals("error: HTTP 500", answer());
+    }
+
+    @Test
+    public void repeatedGetIsAnsweredFromTheMemo() throws Exception {
+        server.enqueue(new MockResponse().setBody("203.0.113.7"));
+        String url = server.url("/?format=txt&memo").toString();
+        requestNetwork.startRequestNetwork(RequestNetworkController.GET, url, "ip", textListener);
+        assertEquals("203.0.113.7", answer());
+        requestNetwork.startRequestNetwork(RequestNetworkController.GET, url, "ip", textListener);
+        assertEquals("203.0.113.7", answer());
+        assertEquals(1, server.getRequestCount());
+    }
+
+    @Test
+    public void noStoreAndNoCacheRequestsAlwaysReachTheServer() throws Exception {
+        String url = server.url("/?format=txt&fresh").toString();
+        for (String cacheControl : new String[]{"no-store", "no-cache", "no-store", "no-cache"}) {
+            HashMap<String, Object> headers = new HashMap<>();
+            headers.put("Cache-Control", cacheControl);
+            requestNetwork.setHeaders(headers);
+            server.enqueue(new MockResponse().setBody(cacheControl));
+            requestNetwork.startRequestNetwork(RequestNetworkController.GET, url, "ip", textListener);
+            assertEquals(cacheControl, answer());
+        }
+        assertEquals(4, server.getRequestCount());
+    }
+
+    @Test
+    public void concurrentNoStoreGetsShareOneCall() throws Exception {
+        CountDownLatch release = holdResponses("{\"ip\":\"203.0.113.7\"}");
+        // Like the IP lookup of HomeActivity
+        HashMap<String, Object> headers = new HashMap<>();
+        headers.put("Cache-Control", "no-store");
+        requestNetwork.setHeaders(headers);
+        String url = server.url("/?format=json&shared").toString();
+        int saved = RequestNetworkController.getInstance().getSavedCallCount();
+
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, url, "first", IP, jsonListener);
+        server.takeRequest();
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, url, "second", IP, jsonListener);
+        release.countDown();
+
+        assertEquals("203.0.113.7", ((HashMap<String, String>) answer()).get("ip"));
+        assertEquals("203.0.113.7", ((HashMap<String, String>) answer()).get("ip"));
+        assertEquals(1, server.getRequestCount());
+        assertEquals(saved + 1, RequestNetworkController.getInstance().getSavedCallCount());
+
+        // Not kept after the call, a later lookup asks again
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, url, "third", IP, jsonListener);
+        assertEquals("203.0.113.7", ((HashMap<String, String>) answer()).get("ip"));
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void cancelledJsonRequestIsNotAnswered() throws Exception {
+        CountDownLatch release = holdResponses("{\"ip\":\"203.0.113.7\"}");
+        requestNetwork.startJsonRequest(RequestNetworkController.GET, server.url("/?format=json&cancel").toString(), "ip", IP, jsonListener);
+        server.takeRequest();
+        requestNetwork.cancel();
+        release.countDown();
+
+        assertNull(answers.poll(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void throwingStreamListenerEndsTheCall() throws Exception {
+        final String url = server.url("/de.ovpn").toString();
+        server.enqueue(new MockResponse().setBody("client\n"));
+        server.enqueue(new MockResponse().setBody("client\n"));
+        RequestNetwork.StreamListener throwing = new RequestNetwork.StreamListener() {
+            @Override
+            public void onResponse(String tag, InputStream body, Headers responseHeaders) {
+                throw new IllegalStateException("listener failed");
+            }
+
+            @Override
+            public void onErrorResponse(String tag, String message) {
+                answers.add("error: " + message);
+            }
+        };
+        requestNetwork.startStreamRequest(RequestNetworkController.GET, url, "first", throwing);
+        assertEquals("error: listener failed", answer());
+
+        requestNetwork.startStreamRequest(RequestNetworkController.GET, url, "second", new RequestNetwork.StreamListener() {
+            @Override
+            public void onResponse(String tag, InputStream body, Headers responseHeaders) throws IOException {
+                answers.add(tag + " " + body.read());
+            }
+
+            @Override
+            public void onErrorResponse(String tag, String message) {
+                answers.add("error: " + message);
+            }
+        });
+        assertEquals("second " + (int) 'c', answer());
+        assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void requestsThatCannotBeBuiltAreAnsweredThroughTheDispatchExecutor() throws Exception {
+        final ArrayList<Runnable> queued = new ArrayList<>();
+        RequestNetwork queueing = new RequestNetwork(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        queueing.startRequestNetwork(RequestNetworkController.GET, "not a url", "text", textListener);
+        queueing.startJsonRequest(RequestNetworkController.GET, "not a url", "json", IP, jsonListener);
+        queueing.startStreamRequest(RequestNetworkController.GET, "not a url", "stream", new RequestNetwork.StreamListener() {
+            @Override
+            public void onResponse(String tag, InputStream body, Headers responseHeaders) {
+                answers.add(tag);
+            }
+
+            @Override
+            public void onErrorResponse(String tag, String message) {
+                answers.add("error: " + message);
+            }
+        });
+        assertTrue(answers.isEmpty());
+        assertEquals(3, queued.size());
+
+        for (Runnable command : queued)
+            command.run();
+        for (int i = 0; i < 3; i++)
+            assertTrue(((String) answer()).startsWith("error: "));
+    }
+
+    @Test
+    public void untrustedCertificateIsRejected() throws Exception {
+        HeldCertificate certificate = new HeldCertificate.Builder()
+                .addSubjectAlternativeName(server.getHostName())
+                .build();
+        server.useHttps(new HandshakeCertificates.Builder().heldCertificate(certificate).build().sslSocketFactory(), false);
+        server.enqueue(new MockResponse().setBody("client\nremote evil.example.com\n"));
+
+        try {
+            RequestNetworkController.getInstance().getClient().newCall(new Request.Builder().url(server.url("/de.ovpn")).build()).execute();
+            fail("A self-signed certificate must not be trusted");
+        } catch (SSLException expected) {
+        }
+    }
+}
@@ -0,0 +1,163 @@
+package com.leopard.vpn;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class ServerCatalogTest {
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File file;
+    private LatencyProber prober;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("servers", ".catalog");
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+        prober = new LatencyProber(new LatencyProber.EndpointResolver() {
+            @Override
+            public List<LatencyProber.Endpoint> resolve(String url) throws IOException {
+                throw new IOException("Not probed in this test");
+            }
+        }, DIRECT);
+    }
+
+    @After
+    public void tearDown() {
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    private static ServerList list(String... keys) {
+        ServerList list = new ServerList();
+        for (String key : keys)
+            list.put(new ServerList.Server(key, "Server " + key, "https://example.com/" + key + ".ovpn", "", true));
+        return list;
+    }
+
+    private static String keys(List<ServerList.Server> servers) {
+        StringBuilder sb = new StringBuilder();
+        for (ServerList.Server server : servers)
+            sb.append(server.key).append(' ');
+        return sb.toString().trim();
+    }
+
+    private ArrayList<ServerList.Server> restore(ServerCatalog catalog, LatencyProber prober) throws InterruptedException {
+        final LinkedBlockingQueue<ArrayList<ServerList.Server>> restored = new LinkedBlockingQueue<>();
+        catalog.restore(ServerCatalog.TIER_FREE, prober, new ServerCatalog.RestoreListener() {
+            @Override
+            public void onRestored(ArrayList<ServerList.Server> servers) {
+                restored.add(servers);
+            }
+        });
+        ArrayList<ServerList.Server> servers = restored.poll(10, TimeUnit.SECONDS);
+        assertNotNull("Not restored", servers);
+        return servers;
+    }
+
+    private static void awaitRevision(ServerCatalog catalog, long revision) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000;
+        while (catalog.getRevision() < revision) {
+            assertTrue("Not saved", System.currentTimeMillis() < deadline);
+            Thread.sleep(50);
+        }
+    }
+
+    @Test
+    public void nothingIsRestoredWithoutAFile() throws InterruptedException {
+        assertEquals(0, restore(new ServerCatalog(file, DIRECT), prober).size());
+    }
+
+    @Test
+    public void savedServersAndLatenciesAreRestored() throws InterruptedException {
+        long now = System.currentTimeMillis();
+        prober.seed("https://example.com/b.ovpn", 20, now);
+        prober.seed("https://example.com/a.ovpn", 80, now);
+        ServerCatalog catalog = new ServerCatalog(file, DIRECT);
+        catalog.update(ServerCatalog.TIER_FREE, list("b", "a"), prober);
+        awaitRevision(catalog, 1);
+        assertTrue(file.exists());
+
+        LatencyProber fresh = new LatencyProber(null, DIRECT);
+        ServerCatalog next = new ServerCatalog(file, DIRECT);
+        assertEquals("b a", keys(restore(next, fresh)));
+        assertEquals(20, fresh.getLatency("https://example.com/b.ovpn"));
+        assertEquals(now, fresh.getMeasuredAt("https://example.com/a.ovpn"));
+        assertEquals(1, next.getRevision());
+    }
+
+    @Test
+    public void fileIsReadOnTheCatalogThread() throws Exception {
+        ServerCatalog writer = new ServerCatalog(file, DIRECT);
+        writer.update(ServerCatalog.TIER_FREE, list("old"), prober);
+        awaitRevision(writer, 1);
+
+        // Holds the catalog thread until the next catalog was created and updated
+        final CountDownLatch release = new CountDownLatch(1);
+        new ServerCatalog(file, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                try {
+                    release.await();
+                } catch (InterruptedException ignored) {
+                }
+            }
+        }).restore(ServerCatalog.TIER_FREE, prober, new ServerCatalog.RestoreListener() {
+            @Override
+            public void onRestored(ArrayList<ServerList.Server> servers) {
+            }
+        });
+        ServerCatalog catalog = new ServerCatalog(file, DIRECT);
+        assertEquals(0, catalog.getRevision());
+        // The database answered before the file was read, its servers are newer
+        catalog.update(ServerCatalog.TIER_FREE, list("new"), prober);
+        assertEquals(1, release.getCount());
+        release.countDown();
+
+        assertEquals("new", keys(restore(catalog, prober)));
+    }
+
+    @Test
+    public void unchangedServersAreNotWrittenAgain() throws InterruptedException {
+        ServerCatalog catalog = new ServerCatalog(file, DIRECT);
+        catalog.update(ServerCatalog.TIER_FREE, list("a"), prober);
+        awaitRevision(catalog, 1);
+        long modified = file.lastModified();
+
+        catalog.update(ServerCatalog.TIER_FREE, list("a"), prober);
+        Thread.sleep(ServerCatalog.SAVE_DELAY_MS + 200);
+        assertEquals(1, catalog.getRevision());
+        assertEquals(modified, file.lastModified());
+    }
+
+    @Test
+    public void corruptFileIsDropped() throws IOException, InterruptedException {
+        FileOutputStream out = new FileOutputStream(file);
+        out.write("not a catalog".getBytes("UTF-8"));
+        out.close();
+
+        assertEquals(0, restore(new ServerCatalog(file, DIRECT), prober).size());
+        assertFalse(file.exists());
+    }
+}
@@ -0,0 +1,205 @@
+package com.leopard.vpn;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class ServerListTest {
+    /**
+     * Stands in for the servers node of the database: keeps the children and sends the child
+     * events a ChildEventListener would get to the list, the way FreeFragmentActivity applies them
+     */
+    private static class FakeServers {
+        final LinkedHashMap<String, Map<String, Object>> children = new LinkedHashMap<>();
+        final ServerList list;
+
+        FakeServers(ServerList list) {
+            this.list = list;
+        }
+
+        ServerList.Change set(String key, String title, String url, boolean condition) {
+            HashMap<String, Object> value = new HashMap<>();
+            value.put("title", title);
+            value.put("url", url);
+            value.put("country_icon", "https://example.com/" + key + ".png");
+            value.put("condition", String.valueOf(condition));
+            children.put(key, value);
+            return list.put(key, value);
+        }
+
+        boolean remove(String key) {
+            children.remove(key);
+            return list.remove(key);
+        }
+
+        /**
+         * @return the list a full read of the node gives
+         */
+        ServerList read() {
+            ServerList read = new ServerList();
+            for (Map.Entry<String, Map<String, Object>> child : children.entrySet())
+                read.put(child.getKey(), child.getValue());
+            return read;
+        }
+    }
+
+    private ServerList list;
+    private FakeServers db;
+
+    @Before
+    public void setUp() {
+        list = new ServerList();
+        db = new FakeServers(list);
+    }
+
+    private static String keys(ServerList list) {
+        StringBuilder sb = new StringBuilder();
+        for (ServerList.Server server : list.getServers())
+            sb.append(server.key).append(' ');
+        return sb.toString().trim();
+    }
+
+    @Test
+    public void addedChildrenAreAppended() {
+        assertEquals(ServerList.Change.ADDED, db.set("a", "Germany", "https://example.com/de.ovpn", true));
+        assertEquals(ServerList.Change.ADDED, db.set("b", "France", "https://example.com/fr.ovpn", false));
+
+        assertEquals(2, list.size());
+        assertEquals("a b", keys(list));
+        ServerList.Server b = list.get(1);
+        assertEquals("France", b.title);
+        assertEquals("https://example.com/fr.ovpn", b.url);
+        assertEquals("https://example.com/b.png", b.icon);
+        assertFalse(b.condition);
+        assertEquals(1, list.indexOf("b"));
+    }
+
+    @Test
+    public void changedChildKeepsItsRow() {
+        db.set("a", "Germany", "https://example.com/de.ovpn", true);
+        db.set("b", "France", "https://example.com/fr.ovpn", true);
+        long id = list.getId(0);
+
+        assertEquals(ServerList.Change.UNCHANGED, db.set("a", "Germany", "https://example.com/de.ovpn", true));
+        assertEquals(ServerList.Change.CHANGED, db.set("a", "Germany", "https://example.com/de.ovpn", false));
+        assertEquals("a b", keys(list));
+        assertFalse(list.get("a").condition);
+        assertEquals(id, list.getId(0));
+    }
+
+    @Test
+    public void removedChildLeavesTheList() {
+        db.set("a", "Germany", "https://example.com/de.ovpn", true);
+        db.set("b", "France", "https://example.com/fr.ovpn", true);
+        db.set("c", "Japan", "https://example.com/jp.ovpn", true);
+
+        assertTrue(db.remove("b"));
+        assertFalse(db.remove("b"));
+        assertEquals("a c", keys(list));
+        assertEquals(-1, list.indexOf("b"));
+        assertEquals(null, list.get("b"));
+        assertEquals(Arrays.asList("https://example.com/de.ovpn", "https://example.com/jp.ovpn"), list.getUrls());
+    }
+
+    @Test
+    public void readdedChildKeepsItsIdAndGoesToTheEnd() {
+        db.set("a", "Germany", "https://example.com/de.ovpn", true);
+        db.set("b", "France", "https://example.com/fr.ovpn", true);
+        long id = list.getId(list.indexOf("a"));
+
+        db.remove("a");
+        assertEquals(ServerList.Change.ADDED, db.set("a", "Germany", "https://example.com/de2.ovpn", true));
+        assertEquals("b a", keys(list));
+        assertEquals(id, list.getId(list.indexOf("a")));
+        assertEquals("https://example.com/de2.ovpn", list.get("a").url);
+    }
+
+    @Test
+    public void idsAreStableAndUnique() {
+        HashSet<Long> ids = new HashSet<>();
+        for (int i = 0; i < 50; i++) {
+            db.set("k" + i, "Server " + i, "https://example.com/" + i + ".ovpn", true);
+            ids.add(list.getId(i));
+        }
+        assertEquals(50, ids.size());
+
+        HashMap<String, Long> before = new HashMap<>();
+        for (int i = 0; i < list.size(); i++)
+            before.put(list.get(i).key, list.getId(i));
+        for (int i = 0; i < 50; i += 3)
+            db.remove("k" + i);
+        for (int i = 1; i < 50; i += 3)
+            db.set("k" + i, "Renamed " + i, "https://example.com/" + i + ".ovpn", false);
+        for (int i = 0; i < list.size(); i++)
+            assertEquals(before.get(list.get(i).key), Long.valueOf(list.getId(i)));
+    }
+
+    @Test
+    public void retainDropsTheServersThatAreGone() {
+        db.set("a", "Germany", "https://example.com/de.ovpn", true);
+        db.set("b", "France", "https://example.com/fr.ovpn", true);
+        db.set("c", "Japan", "https://example.com/jp.ovpn", true);
+
+        assertFalse(list.retain(new HashSet<>(Arrays.asList("a", "b", "c", "d"))));
+        assertEquals("a b c", keys(list));
+        assertTrue(list.retain(new HashSet<>(Arrays.asList("c", "a"))));
+        assertEquals("a c", keys(list));
+        assertEquals(null, list.get("b"));
+        assertTrue(list.retain(new HashSet<String>()));
+        assertEquals(0, list.size());
+    }
+
+    @Test
+    public void onlyAConditionOtherThanTrueMarksTheServerBusy() {
+        HashMap<String, Object> value = new HashMap<>();
+        value.put("title", "Germany");
+        list.put("missing", value);
+        value.put("condition", true);
+        list.put("true", value);
+        value.put("condition", "false");
+        list.put("false", value);
+        // Like before the server list, a server without a condition shows the neutral icon
+        assertTrue(list.get("missing").condition);
+        assertTrue(list.get("true").condition);
+        assertFalse(list.get("false").condition);
+        list.put("empty", null);
+        assertTrue(list.get("empty").condition);
+    }
+
+    @Test
+    public void incompleteChildrenAreKeptButMarked() {
+        list.put("empty", null);
+        db.set("a", "", "https://example.com/de.ovpn", true);
+        assertEquals(2, list.size());
+        assertFalse(list.get("empty").isComplete());
+        assertFalse(list.get("a").isComplete());
+        db.set("a", "Germany", "https://example.com/de.ovpn", true);
+        assertTrue(list.get("a").isComplete());
+    }
+
+    @Test
+    public void randomEventsEndLikeAFullRead() {
+        Random random = new Random(24);
+        for (int i = 0; i < 5000; i++) {
+            String key = "k" + random.nextInt(40);
+            if (random.nextInt(3) == 0)
+                db.remove(key);
+            else
+                db.set(key, "Server " + random.nextInt(3), "https://example.com/" + key + ".ovpn", random.nextBoolean());
+        }
+        ServerList read = db.read();
+        assertEquals(keys(read), keys(list));
+        for (ServerList.Server server : read.getServers())
+            assertEquals(server, list.get(server.key));
+    }
+}
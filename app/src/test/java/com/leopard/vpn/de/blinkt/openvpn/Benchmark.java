@@ -0,0 +1,12 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn;
+
+/**
+ * JUnit category of the benchmarks. They are slow and only report what they measured, so the
+ * test tasks leave them out unless the build is run with -Pbenchmark.
+ */
+public interface Benchmark {
+}
@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn;
+
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+
+/**
+ * Timing, allocation and heap measurements shared by the benchmarks. Results are reported, never
+ * asserted, as they depend on the machine and the JVM.
+ */
+public final class BenchmarkHarness {
+    /* Keeps the JIT from dropping the work of a task */
+    private static volatile Object sink;
+
+    public interface Task {
+        /**
+         * @return a result of the work, so it is not optimised away
+         */
+        Object run() throws Exception;
+    }
+
+    private BenchmarkHarness() {
+    }
+
+    /**
+     * Runs the task warmups times, then measures runs more
+     *
+     * @return ns per measured run
+     */
+    public static double nanosPerRun(int warmups, int runs, Task task) throws Exception {
+        for (int i = 0; i < warmups; i++)
+            sink = task.run();
+        long time = System.nanoTime();
+        for (int i = 0; i < runs; i++)
+            sink = task.run();
+        return (double) (System.nanoTime() - time) / runs;
+    }
+
+    /**
+     * @return bytes allocated by the current thread so far
+     */
+    public static long allocatedBytes() {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean())
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    public static long cpuNanos() {
+        return ManagementFactory.getThreadMXBean().getCurrentThreadCpuTime();
+    }
+
+    /**
+     * @return the used heap after a few collections
+     */
+    public static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++)
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    public static void report(String format, Object... args) {
+        System.out.println(String.format(Locale.US, format, args));
+    }
+}
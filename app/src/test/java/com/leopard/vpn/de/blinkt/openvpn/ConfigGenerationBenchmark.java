@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.Writer;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Renders the config of a profile with 12 KB inline certificates and 200 routes: with the old
+ * String += generator, streamed by writeConfig, and from the cache of getConfigFile for an
+ * unchanged profile, which still compares all inputs.
+ */
+@Category(Benchmark.class)
+public class ConfigGenerationBenchmark {
+    private static final int RUNS = 2000;
+
+    private static double microsPerRun(BenchmarkHarness.Task render) throws Exception {
+        return BenchmarkHarness.nanosPerRun(RUNS, RUNS, render) / 1e3;
+    }
+
+    private static String cert(int lines) {
+        StringBuilder sb = new StringBuilder(VpnProfile.INLINE_TAG).append("-----BEGIN CERTIFICATE-----\n");
+        for (int i = 0; i < lines; i++)
+            sb.append("MIIDdzCCAl+gAwIBAgIEAgAAuTANBgkqhkiG9w0BAQUFADBaMQswCQYDVQQGEwJJ").append('\n');
+        return sb.append("-----END CERTIFICATE-----").toString();
+    }
+
+    @Test
+    public void render() throws Exception {
+        final VpnProfile vp = new VpnProfile("benchmark");
+        vp.mAuthenticationType = VpnProfile.TYPE_USERPASS_CERTIFICATES;
+        vp.mCaFilename = cert(190);
+        vp.mClientCertFilename = cert(190);
+        vp.mClientKeyFilename = cert(190);
+        vp.mUseTLSAuth = true;
+        vp.mTLSAuthDirection = "tls-crypt";
+        vp.mTLSAuthFilename = cert(20);
+        vp.mUseDefaultRoute = false;
+        StringBuilder routes = new StringBuilder();
+        for (int i = 0; i < 200; i++)
+            routes.append("10.").append(i).append(".0.0/16 ");
+        vp.mCustomRoutes = routes.toString();
+        vp.mCustomRoutesv6 = "2001:db8::/32";
+
+        final String expected = LegacyConfigGenerator.getConfigFile(vp, null, VpnProfileConfigTest.ENV, false);
+        assertEquals(expected, VpnProfileConfigTest.render(vp, false));
+
+        double legacy = microsPerRun(new BenchmarkHarness.Task() {
+            @Override
+            public Object run() {
+                return LegacyConfigGenerator.getConfigFile(vp, null, VpnProfileConfigTest.ENV, false);
+            }
+        });
+        double streamed = microsPerRun(new BenchmarkHarness.Task() {
+            @Override
+            public Object run() throws IOException {
+                Writer out = new StringWriter();
+                vp.writeConfig(out, null, VpnProfileConfigTest.ENV, false);
+                return out.toString();
+            }
+        });
+        double cached = microsPerRun(new BenchmarkHarness.Task() {
+            @Override
+            public Object run() {
+                return VpnProfileConfigTest.render(vp, false);
+            }
+        });
+
+        report("Config of %d chars: String += %.1f us, writeConfig %.1f us, cached %.2f us",
+                expected.length(), legacy, streamed, cached);
+    }
+}
@@ -0,0 +1,317 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn;
+
+import android.content.Context;
+import android.os.Build;
+
+import com.leopard.vpn.R;
+
+import java.util.Collection;
+import java.util.Locale;
+import java.util.Vector;
+
+import de.blinkt.openvpn.core.Connection;
+
+/**
+ * VpnProfile.getConfigFile as it was before it streamed into a Writer, to compare the output
+ * with. The inputs that came from the Context are taken from a {@link VpnProfile.ConfigEnvironment}.
+ */
+class LegacyConfigGenerator {
+    private static boolean isEmpty(String s) {
+        return s == null || s.length() == 0;
+    }
+
+    static String getConfigFile(VpnProfile vp, Context context, VpnProfile.ConfigEnvironment env, boolean configForOvpn3) {
+        String cfg = "";
+        // Enable management interface
+        cfg += "# Enables connection to GUI\n";
+        cfg += "management ";
+        cfg += env.cacheDir + "/" + "mgmtsocket";
+        cfg += " unix\n";
+        cfg += "management-client\n";
+        // Not needed, see updated man page in 2.3
+        //cfg += "management-signal\n";
+        cfg += "management-query-passwords\n";
+        cfg += "management-hold\n\n";
+        if (!configForOvpn3) {
+            cfg += String.format("setenv IV_GUI_VER %s \n", VpnProfile.openVpnEscape(env.guiVersion));
+            String versionString = env.platformVersion;
+            cfg += String.format("setenv IV_PLAT_VER %s\n", VpnProfile.openVpnEscape(versionString));
+        }
+        cfg += "machine-readable-output\n";
+        cfg += "allow-recursive-routing\n";
+        // Users are confused by warnings that are misleading...
+        cfg += "ifconfig-nowarn\n";
+        boolean useTLSClient = (vp.mAuthenticationType != VpnProfile.TYPE_STATICKEYS);
+        if (useTLSClient && vp.mUsePull) cfg += "client\n";
+        else if (vp.mUsePull) cfg += "pull\n";
+        else if (useTLSClient) cfg += "tls-client\n";
+        //cfg += "verb " + mVerb + "\n";
+        cfg += "verb " + VpnProfile.MAXLOGLEVEL + "\n";
+        if (vp.mConnectRetryMax == null) {
+            vp.mConnectRetryMax = "-1";
+        }
+        if (!vp.mConnectRetryMax.equals("-1")) cfg += "connect-retry-max " + vp.mConnectRetryMax + "\n";
+        if (isEmpty(vp.mConnectRetry)) vp.mConnectRetry = "2";
+        if (isEmpty(vp.mConnectRetryMaxTime)) vp.mConnectRetryMaxTime = "300";
+        if (!vp.mIsOpenVPN22) cfg += "connect-retry " + vp.mConnectRetry + " " + vp.mConnectRetryMaxTime + "\n";
+        else if (vp.mIsOpenVPN22 && vp.mUseUdp) cfg += "connect-retry " + vp.mConnectRetry + "\n";
+        cfg += "resolv-retry 60\n";
+        // We cannot use anything else than tun
+        cfg += "dev tun\n";
+        boolean canUsePlainRemotes = true;
+        if (vp.mConnections.length == 1) {
+            cfg += connectionBlock(vp.mConnections[0]);
+        } else {
+            for (Connection conn : vp.mConnections) {
+                canUsePlainRemotes = canUsePlainRemotes && conn.isOnlyRemote();
+            }
+            if (vp.mRemoteRandom) cfg += "remote-random\n";
+            if (canUsePlainRemotes) {
+                for (Connection conn : vp.mConnections) {
+                    if (conn.mEnabled) {
+                        cfg += connectionBlock(conn);
+                    }
+                }
+            }
+        }
+        switch (vp.mAuthenticationType) {
+            case VpnProfile.TYPE_USERPASS_CERTIFICATES:
+                cfg += "auth-user-pass\n";
+            case VpnProfile.TYPE_CERTIFICATES:
+                // Ca
+                cfg += insertFileData("ca", vp.mCaFilename);
+                // Client Cert + Key
+                cfg += insertFileData("key", vp.mClientKeyFilename);
+                cfg += insertFileData("cert", vp.mClientCertFilename);
+                break;
+            case VpnProfile.TYPE_USERPASS_PKCS12:
+                cfg += "auth-user-pass\n";
+            case VpnProfile.TYPE_PKCS12:
+                cfg += insertFileData("pkcs12", vp.mPKCS12Filename);
+                break;
+            case VpnProfile.TYPE_USERPASS_KEYSTORE:
+                cfg += "auth-user-pass\n";
+            case VpnProfile.TYPE_KEYSTORE:
+                if (!configForOvpn3) {
+                    String[] ks = vp.getKeyStoreCertificates(context);
+                    cfg += "### From Keystore ####\n";
+                    if (ks != null) {
+                        cfg += "<ca>\n" + ks[0] + "\n</ca>\n";
+                        if (ks[1] != null) cfg += "<extra-certs>\n" + ks[1] + "\n</extra-certs>\n";
+                        cfg += "<cert>\n" + ks[2] + "\n</cert>\n";
+                        cfg += "management-external-key\n";
+                    } else {
+                        cfg += context.getString(R.string.keychain_access) + "\n";
+                        if (Build.VERSION.SDK_INT == Build.VERSION_CODES.JELLY_BEAN) if (!vp.mAlias.matches("^[a-zA-Z0-9]$")) cfg += context.getString(R.string.jelly_keystore_alphanumeric_bug) + "\n";
+                    }
+                }
+                break;
+            case VpnProfile.TYPE_USERPASS:
+                cfg += "auth-user-pass\n";
+                cfg += insertFileData("ca", vp.mCaFilename);
+        }
+        if (vp.isUserPWAuth()) {
+            if (vp.mAuthenticationType == VpnProfile.AUTH_RETRY_NOINTERACT) cfg += "auth-retry nointeract";
+        }
+        if (!isEmpty(vp.mCrlFilename)) cfg += insertFileData("crl-verify", vp.mCrlFilename);
+        if (vp.mUseLzo) {
+            cfg += "comp-lzo\n";
+        }
+        if (vp.mUseTLSAuth) {
+            boolean useTlsCrypt = vp.mTLSAuthDirection.equals("tls-crypt");
+            if (vp.mAuthenticationType == VpnProfile.TYPE_STATICKEYS) cfg += insertFileData("secret", vp.mTLSAuthFilename);
+            else if (useTlsCrypt) cfg += insertFileData("tls-crypt", vp.mTLSAuthFilename);
+            else cfg += insertFileData("tls-auth", vp.mTLSAuthFilename);
+            if (!isEmpty(vp.mTLSAuthDirection) && !useTlsCrypt) {
+                cfg += "key-direction ";
+                cfg += vp.mTLSAuthDirection;
+                cfg += "\n";
+            }
+        }
+        if (!vp.mUsePull) {
+            if (!isEmpty(vp.mIPv4Address)) cfg += "ifconfig " + cidrToIPAndNetmask(vp.mIPv4Address) + "\n";
+            if (!isEmpty(vp.mIPv6Address)) cfg += "ifconfig-ipv6 " + vp.mIPv6Address + "\n";
+        }
+        if (vp.mUsePull && vp.mRoutenopull) cfg += "route-nopull\n";
+        String routes = "";
+        if (vp.mUseDefaultRoute) routes += "route 0.0.0.0 0.0.0.0 vpn_gateway\n";
+        else {
+            for (String route : getCustomRoutes(vp.mCustomRoutes)) {
+                routes += "route " + route + " vpn_gateway\n";
+            }
+            for (String route : getCustomRoutes(vp.mExcludedRoutes)) {
+                routes += "route " + route + " net_gateway\n";
+            }
+        }
+        if (vp.mUseDefaultRoutev6) cfg += "route-ipv6 ::/0\n";
+        else for (String route : getCustomRoutesv6(vp.mCustomRoutesv6)) {
+            routes += "route-ipv6 " + route + "\n";
+        }
+        cfg += routes;
+        if (vp.mOverrideDNS || !vp.mUsePull) {
+            if (!isEmpty(vp.mDNS1)) {
+                if (vp.mDNS1.contains(":")) cfg += "dhcp-option DNS6 " + vp.mDNS1 + "\n";
+                else cfg += "dhcp-option DNS " + vp.mDNS1 + "\n";
+            }
+            if (!isEmpty(vp.mDNS2)) {
+                if (vp.mDNS2.contains(":")) cfg += "dhcp-option DNS6 " + vp.mDNS2 + "\n";
+                else cfg += "dhcp-option DNS " + vp.mDNS2 + "\n";
+            }
+            if (!isEmpty(vp.mSearchDomain)) cfg += "dhcp-option DOMAIN " + vp.mSearchDomain + "\n";
+        }
+        if (vp.mMssFix != 0) {
+            if (vp.mMssFix != 1450) {
+                cfg += String.format(Locale.US, "mssfix %d\n", vp.mMssFix);
+            } else cfg += "mssfix\n";
+        }
+        if (vp.mTunMtu >= 48 && vp.mTunMtu != 1500) {
+            cfg += String.format(Locale.US, "tun-mtu %d\n", vp.mTunMtu);
+        }
+        if (vp.mNobind) cfg += "nobind\n";
+        // Authentication
+        if (vp.mAuthenticationType != VpnProfile.TYPE_STATICKEYS) {
+            if (vp.mCheckRemoteCN) {
+                if (vp.mRemoteCN == null || vp.mRemoteCN.equals("")) cfg += "verify-x509-name " + VpnProfile.openVpnEscape(vp.mConnections[0].mServerName) + " name\n";
+                else switch (vp.mX509AuthType) {
+                    // 2.2 style x509 checks
+                    case VpnProfile.X509_VERIFY_TLSREMOTE_COMPAT_NOREMAPPING:
+                        cfg += "compat-names no-remapping\n";
+                    case VpnProfile.X509_VERIFY_TLSREMOTE:
+                        cfg += "tls-remote " + VpnProfile.openVpnEscape(vp.mRemoteCN) + "\n";
+                        break;
+                    case VpnProfile.X509_VERIFY_TLSREMOTE_RDN:
+                        cfg += "verify-x509-name " + VpnProfile.openVpnEscape(vp.mRemoteCN) + " name\n";
+                        break;
+                    case VpnProfile.X509_VERIFY_TLSREMOTE_RDN_PREFIX:
+                        cfg += "verify-x509-name " + VpnProfile.openVpnEscape(vp.mRemoteCN) + " name-prefix\n";
+                        break;
+                    case VpnProfile.X509_VERIFY_TLSREMOTE_DN:
+                        cfg += "verify-x509-name " + VpnProfile.openVpnEscape(vp.mRemoteCN) + "\n";
+                        break;
+                }
+                if (!isEmpty(vp.mx509UsernameField)) cfg += "x509-username-field " + VpnProfile.openVpnEscape(vp.mx509UsernameField) + "\n";
+            }
+            if (vp.mExpectTLSCert) cfg += "remote-cert-tls server\n";
+        }
+        if (!isEmpty(vp.mCipher)) {
+            cfg += "cipher " + vp.mCipher + "\n";
+        }
+        if (!isEmpty(vp.mAuth)) {
+            cfg += "auth " + vp.mAuth + "\n";
+        }
+        // Obscure Settings dialog
+        if (vp.mUseRandomHostname) cfg += "#my favorite options :)\nremote-random-hostname\n";
+        if (vp.mUseFloat) cfg += "float\n";
+        if (vp.mPersistTun) {
+            cfg += "persist-tun\n";
+            cfg += "# persist-tun also enables pre resolving to avoid DNS resolve problem\n";
+            cfg += "preresolve\n";
+        }
+        if (vp.mPushPeerInfo) cfg += "push-peer-info\n";
+        boolean usesystemproxy = env.useSystemProxy;
+        if (usesystemproxy && !vp.mIsOpenVPN22) {
+            cfg += "# Use system proxy setting\n";
+            cfg += "management-query-proxy\n";
+        }
+        if (vp.mUseCustomConfig) {
+            cfg += "# Custom configuration options\n";
+            cfg += "# You are on your on own here :)\n";
+            cfg += vp.mCustomConfigOptions;
+            cfg += "\n";
+        }
+        if (!canUsePlainRemotes) {
+            cfg += "# Connection Options are at the end to allow global options (and global custom options) to influence connection blocks\n";
+            for (Connection conn : vp.mConnections) {
+                if (conn.mEnabled) {
+                    cfg += "<connection>\n";
+                    cfg += connectionBlock(conn);
+                    cfg += "</connection>\n";
+                }
+            }
+        }
+        return cfg;
+    }
+
+    private static String insertFileData(String cfgentry, String filedata) {
+        if (filedata == null) {
+            return String.format("%s %s\n", cfgentry, "file missing in config profile");
+        } else if (VpnProfile.isEmbedded(filedata)) {
+            String dataWithOutHeader = VpnProfile.getEmbeddedContent(filedata);
+            return String.format(Locale.ENGLISH, "<%s>\n%s\n</%s>\n", cfgentry, dataWithOutHeader, cfgentry);
+        } else {
+            return String.format(Locale.ENGLISH, "%s %s\n", cfgentry, VpnProfile.openVpnEscape(filedata));
+        }
+    }
+
+    private static Collection<String> getCustomRoutes(String routes) {
+        Vector<String> cidrRoutes = new Vector<>();
+        if (routes == null) {
+            // No routes set, return empty vector
+            return cidrRoutes;
+        }
+        for (String route : routes.split("[\n \t]")) {
+            if (!route.equals("")) {
+                String cidrroute = cidrToIPAndNetmask(route);
+                if (cidrroute == null) return cidrRoutes;
+                cidrRoutes.add(cidrroute);
+            }
+        }
+        return cidrRoutes;
+    }
+
+    private static Collection<String> getCustomRoutesv6(String routes) {
+        Vector<String> cidrRoutes = new Vector<>();
+        if (routes == null) {
+            // No routes set, return empty vector
+            return cidrRoutes;
+        }
+        for (String route : routes.split("[\n \t]")) {
+            if (!route.equals("")) {
+                cidrRoutes.add(route);
+            }
+        }
+        return cidrRoutes;
+    }
+
+    private static String cidrToIPAndNetmask(String route) {
+        String[] parts = route.split("/");
+        // No /xx, assume /32 as netmask
+        if (parts.length == 1) parts = (route + "/32").split("/");
+        if (parts.length != 2) return null;
+        int len;
+        try {
+            len = Integer.parseInt(parts[1]);
+        } catch (NumberFormatException ne) {
+            return null;
+        }
+        if (len < 0 || len > 32) return null;
+        long nm = 0xffffffffL;
+        nm = (nm << (32 - len)) & 0xffffffffL;
+        String netmask = String.format(Locale.ENGLISH, "%d.%d.%d.%d", (nm & 0xff000000) >> 24, (nm & 0xff0000) >> 16, (nm & 0xff00) >> 8, nm & 0xff);
+        return parts[0] + "  " + netmask;
+    }
+
+    private static String connectionBlock(Connection conn) {
+        String cfg = "";
+        // Server Address
+        cfg += "remote ";
+        cfg += conn.mServerName;
+        cfg += " ";
+        cfg += conn.mServerPort;
+        if (conn.mUseUdp)
+            cfg += " udp\n";
+        else
+            cfg += " tcp-client\n";
+        if (conn.mConnectTimeout != 0)
+            cfg += String.format(Locale.US, " connect-timeout  %d\n", conn.mConnectTimeout);
+        if (!isEmpty(conn.mCustomConfiguration) && conn.mUseCustomConfig) {
+            cfg += conn.mCustomConfiguration;
+            cfg += "\n";
+        }
+        return cfg;
+    }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import de.blinkt.openvpn.core.ConfigParser;
+import de.blinkt.openvpn.core.ConfigParserTest;
+import de.blinkt.openvpn.core.Connection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VpnProfileConfigTest {
+    static final VpnProfile.ConfigEnvironment ENV = new VpnProfile.ConfigEnvironment(
+            "/data/user/0/com.leopard.vpn/cache", "com.leopard.vpn 1.0",
+            "28 9 uname arm64-v8a google walleye Pixel 2", true);
+
+    private static String pick(Random random, String... values) {
+        return values[random.nextInt(values.length)];
+    }
+
+    private static String file(Random random, String name) {
+        switch (random.nextInt(4)) {
+            case 0:
+                return null;
+            case 1:
+                return "/sdcard/" + name;
+            default:
+                StringBuilder sb = new StringBuilder(random.nextBoolean() ? VpnProfile.INLINE_TAG : VpnProfile.DISPLAYNAME_TAG + name + VpnProfile.INLINE_TAG);
+                sb.append("-----BEGIN CERTIFICATE-----\n");
+                for (int i = 0; i < 1 + random.nextInt(20); i++)
+                    sb.append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong())).append('\n');
+                return sb.append("-----END CERTIFICATE-----").toString();
+        }
+    }
+
+    /**
+     * A profile with a random value for everything the config is rendered from
+     */
+    static VpnProfile randomProfile(Random random) {
+        VpnProfile vp = new VpnProfile("random");
+        vp.mAuthenticationType = random.nextInt(8);
+        vp.mUsePull = random.nextInt(4) != 0;
+        vp.mConnectRetryMax = pick(random, null, "-1", "5");
+        vp.mConnectRetry = pick(random, null, "", "5");
+        vp.mConnectRetryMaxTime = pick(random, null, "", "60");
+        vp.mUseUdp = random.nextBoolean();
+        vp.mConnections = new Connection[1 + random.nextInt(3)];
+        for (int i = 0; i < vp.mConnections.length; i++) {
+            Connection conn = new Connection();
+            conn.mServerName = "vpn" + random.nextInt(100) + ".example.com";
+            conn.mServerPort = pick(random, "1194", "443");
+            conn.mUseUdp = random.nextBoolean();
+            conn.mConnectTimeout = random.nextBoolean() ? 0 : 30;
+            conn.mUseCustomConfig = random.nextInt(3) == 0;
+            conn.mCustomConfiguration = pick(random, "", "http-proxy proxy 8080", "float");
+            conn.mEnabled = random.nextInt(4) != 0;
+            vp.mConnections[i] = conn;
+        }
+        vp.mRemoteRandom = random.nextBoolean();
+        vp.mCaFilename = file(random, "ca.crt");
+        vp.mClientKeyFilename = file(random, "client.key");
+        vp.mClientCertFilename = file(random, "client.crt");
+        vp.mPKCS12Filename = file(random, "client.p12");
+        vp.mCrlFilename = random.nextInt(4) == 0 ? file(random, "crl.pem") : null;
+        vp.mUseLzo = random.nextBoolean();
+        vp.mUseTLSAuth = random.nextBoolean();
+        vp.mTLSAuthDirection = pick(random, "", "0", "1", "tls-crypt");
+        vp.mTLSAuthFilename = file(random, "ta.key");
+        vp.mIPv4Address = pick(random, "", "10.8.0.2/24", "10.8.0.2");
+        vp.mIPv6Address = pick(random, "", "2001:db8::2/64");
+        vp.mRoutenopull = random.nextBoolean();
+        vp.mUseDefaultRoute = random.nextBoolean();
+        vp.mUseDefaultRoutev6 = random.nextBoolean();
+        vp.mCustomRoutes = pick(random, null, "", "10.0.0.0/8 192.168.1.0/24", "10.1.0.0/16\n10.2.0.0/16 bogus/99");
+        vp.mExcludedRoutes = pick(random, null, "", "192.168.0.0/16");
+        vp.mCustomRoutesv6 = pick(random, null, "", "2001:db8::/32 fd00::/8");
+        vp.mOverrideDNS = random.nextBoolean();
+        vp.mDNS1 = pick(random, "", "8.8.8.8", "2001:4860:4860::8888");
+        vp.mDNS2 = pick(random, "", "8.8.4.4", "2001:4860:4860::8844");
+        vp.mSearchDomain = pick(random, "", "corp.example.com");
+        vp.mMssFix = random.nextInt(3) == 0 ? 0 : random.nextBoolean() ? 1450 : 1300;
+        vp.mTunMtu = random.nextInt(3) == 0 ? 0 : random.nextBoolean() ? 1500 : 1400;
+        vp.mNobind = random.nextBoolean();
+        vp.mCheckRemoteCN = random.nextBoolean();
+        vp.mRemoteCN = pick(random, null, "", "server", "CN=vpn server");
+        vp.mX509AuthType = random.nextInt(5);
+        vp.mx509UsernameField = pick(random, null, "", "emailAddress");
+        vp.mExpectTLSCert = random.nextBoolean();
+        vp.mCipher = pick(random, null, "", "AES-256-GCM");
+        vp.mAuth = pick(random, null, "", "SHA256");
+        vp.mUseRandomHostname = random.nextBoolean();
+        vp.mUseFloat = random.nextBoolean();
+        vp.mPersistTun = random.nextBoolean();
+        vp.mPushPeerInfo = random.nextBoolean();
+        vp.mUseCustomConfig = random.nextBoolean();
+        vp.mCustomConfigOptions = pick(random, "", "reneg-sec 0\nping 10");
+        return vp;
+    }
+
+    static String render(VpnProfile vp, boolean configForOvpn3) {
+        return vp.getConfigFile(null, ENV, configForOvpn3);
+    }
+
+    private static void assertRendersLikeBefore(VpnProfile vp, boolean configForOvpn3) throws CloneNotSupportedException {
+        // Both generators fill in the connect-retry defaults, each gets its own copy
+        String before = LegacyConfigGenerator.getConfigFile(vp.clone(), null, ENV, configForOvpn3);
+        assertEquals(before, render(vp.clone(), configForOvpn3));
+    }
+
+    private static boolean usesKeystore(VpnProfile vp) {
+        return vp.mAuthenticationType == VpnProfile.TYPE_KEYSTORE || vp.mAuthenticationType == VpnProfile.TYPE_USERPASS_KEYSTORE;
+    }
+
+    @Test
+    public void randomProfilesRenderLikeBefore() throws CloneNotSupportedException {
+        Random random = new Random(16);
+        for (int i = 0; i < 5000; i++) {
+            VpnProfile vp = randomProfile(random);
+            // Keystore certificates need the KeyChain, only the ovpn3 config leaves them out
+            if (!usesKeystore(vp))
+                assertRendersLikeBefore(vp, false);
+            assertRendersLikeBefore(vp, true);
+        }
+    }
+
+    @Test
+    public void importedProfilesRenderLikeBefore() throws CloneNotSupportedException, IOException, ConfigParser.ConfigParseError {
+        Random random = new Random(16);
+        for (int i = 0; i < 500; i++) {
+            ConfigParser cp = new ConfigParser();
+            cp.parseConfig(new StringReader(ConfigParserTest.providerConfig(random)));
+            VpnProfile vp = cp.convertProfile();
+            assertRendersLikeBefore(vp, false);
+            assertRendersLikeBefore(vp, true);
+        }
+    }
+
+    @Test
+    public void routesKeepTheirOrder() {
+        VpnProfile vp = new VpnProfile("routes");
+        vp.mAuthenticationType = VpnProfile.TYPE_USERPASS;
+        vp.mUseDefaultRoute = true;
+        vp.mUseDefaultRoutev6 = true;
+        assertTrue(render(vp, false).contains("route-ipv6 ::/0\nroute 0.0.0.0 0.0.0.0 vpn_gateway\n"));
+
+        vp.mUseDefaultRoute = false;
+        vp.mUseDefaultRoutev6 = false;
+        vp.mCustomRoutes = "10.0.0.0/8";
+        vp.mExcludedRoutes = "192.168.0.0/16";
+        vp.mCustomRoutesv6 = "2001:db8::/32";
+        assertTrue(render(vp, false).contains("route 10.0.0.0  255.0.0.0 vpn_gateway\n"
+                + "route 192.168.0.0  255.255.0.0 net_gateway\nroute-ipv6 2001:db8::/32\n"));
+    }
+
+    @Test
+    public void cachedConfigIsRenderedAgainWhenAnInputChanges() {
+        VpnProfile vp = randomProfile(new Random(16));
+        vp.mAuthenticationType = VpnProfile.TYPE_CERTIFICATES;
+        String first = render(vp, false);
+        assertSame(first, render(vp, false));
+
+        // Changed in memory, without saveProfile and a new version
+        vp.mCipher = "CHACHA20-POLY1305";
+        String cipher = render(vp, false);
+        assertNotSame(first, cipher);
+        assertTrue(cipher.contains("cipher CHACHA20-POLY1305\n"));
+
+        vp.mConnections[0].mServerName = "moved.example.com";
+        assertTrue(render(vp, false).contains("moved.example.com"));
+
+        String config = render(vp, false);
+        VpnProfile.ConfigEnvironment noProxy = new VpnProfile.ConfigEnvironment(ENV.cacheDir, ENV.guiVersion, ENV.platformVersion, false);
+        String other = vp.getConfigFile(null, noProxy, false);
+        assertTrue(!other.contains("management-query-proxy"));
+        assertNotSame(config, render(vp, false));
+        assertEquals(config, render(vp, false));
+    }
+}
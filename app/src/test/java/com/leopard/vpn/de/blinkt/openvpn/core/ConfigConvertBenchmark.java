@@ -0,0 +1,103 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.Random;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Imports 1,000 distinct provider profiles, parse and convertProfile, with the option registry
+ * and with the getOption lookups it replaced. The conversion alone is timed on profiles parsed
+ * beforehand, as the old conversion consumes the parsed options.
+ */
+@Category(Benchmark.class)
+public class ConfigConvertBenchmark {
+    private static final int CONFIGS = 1000;
+    private static final int RUNS = 10;
+
+    private static String[] configs() {
+        Random random = new Random(1000);
+        String[] configs = new String[CONFIGS];
+        for (int i = 0; i < CONFIGS; i++)
+            configs[i] = ConfigParserTest.providerConfig(random);
+        return configs;
+    }
+
+    private interface Import {
+        /**
+         * @return ns spent in convertProfile
+         */
+        long run(String[] configs) throws IOException, ConfigParser.ConfigParseError;
+    }
+
+    private static final Import REGISTRY = new Import() {
+        @Override
+        public long run(String[] configs) throws IOException, ConfigParser.ConfigParseError {
+            ConfigParser[] parsers = new ConfigParser[configs.length];
+            for (int i = 0; i < configs.length; i++) {
+                parsers[i] = new ConfigParser();
+                parsers[i].parseConfig(new StringReader(configs[i]));
+            }
+            long time = System.nanoTime();
+            for (ConfigParser cp : parsers)
+                cp.convertProfile();
+            return System.nanoTime() - time;
+        }
+    };
+
+    private static final Import LEGACY = new Import() {
+        @Override
+        public long run(String[] configs) throws IOException, ConfigParser.ConfigParseError {
+            LegacyConfigParser[] parsers = new LegacyConfigParser[configs.length];
+            for (int i = 0; i < configs.length; i++) {
+                parsers[i] = new LegacyConfigParser();
+                parsers[i].parseConfig(new StringReader(configs[i]));
+            }
+            long time = System.nanoTime();
+            for (LegacyConfigParser cp : parsers)
+                cp.convertProfile();
+            return System.nanoTime() - time;
+        }
+    };
+
+    /**
+     * @return {ms per import of all configs, ms per conversion of all configs}
+     */
+    private static double[] measure(Import imp, String[] configs) throws IOException, ConfigParser.ConfigParseError {
+        for (int i = 0; i < RUNS; i++)
+            imp.run(configs);
+        long converting = 0;
+        long time = System.nanoTime();
+        for (int i = 0; i < RUNS; i++)
+            converting += imp.run(configs);
+        return new double[]{(System.nanoTime() - time) / 1e6 / RUNS, converting / 1e6 / RUNS};
+    }
+
+    @Test
+    public void importThousandProfiles() throws IOException, ConfigParser.ConfigParseError {
+        String[] configs = configs();
+        long bytes = 0;
+        for (String config : configs)
+            bytes += config.length();
+        for (int i = 0; i < 50; i++)
+            assertEquals(ConfigParserTest.convert(configs[i], true), ConfigParserTest.convert(configs[i], false));
+
+        double[] registry = measure(REGISTRY, configs);
+        double[] legacy = measure(LEGACY, configs);
+        report("Import of %d profiles (%d KB): option registry %.1f ms, of which convertProfile %.1f ms (%.1f us/profile); "
+                        + "getOption lookups %.1f ms, of which convertProfile %.1f ms (%.1f us/profile)",
+                CONFIGS, bytes / 1024, registry[0], registry[1], registry[1] * 1000 / CONFIGS,
+                legacy[0], legacy[1], legacy[1] * 1000 / CONFIGS);
+    }
+}
@@ -0,0 +1,76 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.StringReader;
+import java.util.Locale;
+
+import de.blinkt.openvpn.Benchmark;
+import de.blinkt.openvpn.BenchmarkHarness;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Parses a synthetic 5 MB profile, a long route list followed by a large CA bundle, with
+ * ConfigParser. The String concatenating parser it replaced is quadratic in the size of the CA
+ * bundle and needs about a minute for 5 MB, so both are compared on a 1 MB profile.
+ */
+@Category(Benchmark.class)
+public class ConfigParserBenchmark {
+    private static final int PROFILE_SIZE = 5 * 1024 * 1024;
+    private static final int COMPARED_SIZE = 1024 * 1024;
+    private static final int RUNS = 5;
+
+    static String largeProfile(int size) {
+        StringBuilder sb = new StringBuilder(size + 1024);
+        sb.append("client\ndev tun\nproto udp\nremote vpn.example.com 1194\nverb 3\n");
+        for (int i = 0; sb.length() < size / 2; i++)
+            sb.append(String.format(Locale.US, "route 10.%d.%d.0 255.255.255.0 net_gateway\n", (i >> 8) & 0xff, i & 0xff));
+        sb.append("<ca>\n");
+        while (sb.length() < size - 64) {
+            sb.append("-----BEGIN CERTIFICATE-----\n");
+            for (int i = 0; i < 20; i++)
+                sb.append("MIIDdzCCAl+gAwIBAgIEAgAAuTANBgkqhkiG9w0BAQUFADBaMQswCQYDVQQGEwJJ\n");
+            sb.append("-----END CERTIFICATE-----\n");
+        }
+        sb.append("</ca>\n");
+        return sb.toString();
+    }
+
+    /**
+     * @return ms per parse of the profile with ConfigParser
+     */
+    private static double parse(final String profile) throws Exception {
+        return BenchmarkHarness.nanosPerRun(RUNS, RUNS, new BenchmarkHarness.Task() {
+            @Override
+            public Object run() throws Exception {
+                ConfigParser cp = new ConfigParser();
+                cp.parseConfig(new StringReader(profile));
+                return cp;
+            }
+        }) / 1e6;
+    }
+
+    @Test
+    public void parseLargeProfiles() throws Exception {
+        String profile = largeProfile(PROFILE_SIZE);
+        String compared = largeProfile(COMPARED_SIZE);
+        double large = parse(profile);
+        double small = parse(compared);
+
+        // The old parser is slow enough that a single run says enough
+        long time = System.nanoTime();
+        int lines = LegacyConfigTokenizer.parseConfig(new StringReader(compared)).size();
+        double legacy = (System.nanoTime() - time) / 1e6;
+        assertEquals(ConfigTokenizerTest.tokenize(new StringReader(compared)).size(), lines);
+
+        report("ConfigParser: 5 MB profile %.0f ms (%.1f MB/s); 1 MB profile %.0f ms, old parser %.0f ms",
+                large, PROFILE_SIZE / 1048576.0 / large * 1000, small, legacy);
+    }
+}
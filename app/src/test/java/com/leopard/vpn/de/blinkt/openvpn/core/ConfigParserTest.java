@@ -0,0 +1,222 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ConfigParserTest {
+    private static final String[] CIPHERS = {"AES-256-GCM", "AES-128-CBC", "BF-CBC", "CHACHA20-POLY1305"};
+    private static final String[] CUSTOM = {"reneg-sec 0", "ping 10", "ping-restart 60", "sndbuf 393216",
+            "rcvbuf 393216", "fast-io", "tun-mtu 1500", "explicit-exit-notify 2", "setenv CLIENT_CERT 0",
+            "setenv opt block-outside-dns", "route-delay 2", "script-security 2", "resolv-retry infinite",
+            "persist-key", "mute-replay-warnings", "auth-nocache", "server-poll-timeout 4"};
+
+    private static String pem(String tag, Random random) {
+        StringBuilder sb = new StringBuilder("<").append(tag).append(">\n-----BEGIN CERTIFICATE-----\n");
+        for (int i = 0; i < 4; i++)
+            sb.append(Long.toHexString(random.nextLong())).append(Long.toHexString(random.nextLong())).append('\n');
+        return sb.append("-----END CERTIFICATE-----\n</").append(tag).append(">\n").toString();
+    }
+
+    /**
+     * A client profile the way VPN providers ship them, with a random choice of the common
+     * options, some options without a matching setting and an occasional &lt;connection&gt; block
+     */
+    public static String providerConfig(Random random) {
+        StringBuilder sb = new StringBuilder();
+        if (random.nextInt(4) == 0)
+            sb.append("# OVPN_ACCESS_SERVER_FRIENDLY_NAME=server").append(random.nextInt(1000)).append('\n');
+        sb.append(random.nextBoolean() ? "client\n" : "pull\n");
+        sb.append(random.nextBoolean() ? "dev tun\n" : "dev-type tun\ndev tun0\n");
+        boolean udp = random.nextBoolean();
+        boolean blocks = random.nextInt(5) == 0;
+        if (blocks) {
+            for (int i = 0; i <= random.nextInt(2); i++)
+                sb.append(String.format(Locale.US, "<connection>\nremote %d.%d.example.com %d %s\nconnect-retry 5\n</connection>\n",
+                        random.nextInt(50), i, 443 + i, i == 0 ? "tcp" : "udp"));
+        } else {
+            sb.append(udp ? "proto udp\n" : "proto tcp-client\n");
+            for (int i = 0; i <= random.nextInt(3); i++)
+                sb.append(String.format(Locale.US, "remote vpn%d-%d.example.net %d\n", random.nextInt(1000), i, udp ? 1194 : 443));
+            if (random.nextBoolean())
+                sb.append("remote-random\n");
+        }
+        if (random.nextBoolean())
+            sb.append("nobind\n");
+        sb.append("persist-tun\n");
+        sb.append(random.nextBoolean() ? "remote-cert-tls server\n" : "ns-cert-type server\n");
+        sb.append("cipher ").append(CIPHERS[random.nextInt(CIPHERS.length)]).append('\n');
+        sb.append("auth SHA").append(random.nextBoolean() ? "256" : "512").append('\n');
+        sb.append("verb ").append(random.nextInt(5)).append('\n');
+        if (random.nextBoolean())
+            sb.append("comp-lzo\n");
+        if (random.nextBoolean())
+            sb.append("redirect-gateway def1").append(random.nextBoolean() ? " ipv6" : "").append('\n');
+        for (int i = 0; i < random.nextInt(3); i++)
+            sb.append("dhcp-option DNS 10.8.0.").append(i + 1).append('\n');
+        if (random.nextInt(4) == 0)
+            sb.append("dhcp-option DOMAIN corp.example.com\n");
+        for (int i = 0; i < random.nextInt(4); i++)
+            sb.append(String.format(Locale.US, "route 10.%d.0.0 255.255.0.0%s\n", i, random.nextBoolean() ? " net_gateway" : ""));
+        if (random.nextInt(4) == 0)
+            sb.append("route-ipv6 2001:db8::/32\n");
+        if (random.nextInt(3) == 0)
+            sb.append("mssfix ").append(1300 + random.nextInt(150)).append('\n');
+        if (random.nextInt(3) == 0)
+            sb.append("verify-x509-name server_").append(random.nextInt(100)).append(random.nextBoolean() ? " name" : "").append('\n');
+        if (random.nextInt(3) == 0)
+            sb.append("auth-retry nointeract\n");
+        if (random.nextInt(4) == 0)
+            sb.append("connect-retry 2 300\nconnect-retry-max 10\n");
+        for (int i = 0; i < random.nextInt(5); i++)
+            sb.append(CUSTOM[random.nextInt(CUSTOM.length)]).append('\n');
+        sb.append(pem("ca", random));
+        boolean certs = random.nextBoolean();
+        if (certs)
+            sb.append(pem("cert", random)).append(pem("key", random));
+        if (!certs || random.nextBoolean())
+            sb.append(random.nextInt(4) == 0 ? "auth-user-pass\n" : "auth-user-pass login.conf\n");
+        switch (random.nextInt(3)) {
+            case 0:
+                sb.append("key-direction 1\n").append(pem("tls-auth", random));
+                break;
+            case 1:
+                sb.append(pem("tls-crypt", random));
+                break;
+        }
+        return sb.toString();
+    }
+
+    private static void describeFields(StringBuilder sb, Object o) throws IllegalAccessException {
+        for (Field field : o.getClass().getDeclaredFields()) {
+            int modifiers = field.getModifiers();
+            if (Modifier.isStatic(modifiers) || Modifier.isTransient(modifiers)
+                    || field.getName().equals("mUuid") || field.getName().equals("mLastUsed"))
+                continue;
+            field.setAccessible(true);
+            Object value = field.get(o);
+            sb.append(field.getName()).append('=');
+            if (value instanceof Connection[]) {
+                for (Connection conn : (Connection[]) value) {
+                    sb.append("\n  {");
+                    describeFields(sb, conn);
+                    sb.append('}');
+                }
+            } else if (field.getName().equals("mCustomConfigOptions") || field.getName().equals("mCustomConfiguration")) {
+                // The order of the custom options is not significant
+                String[] lines = ((String) value).split("\n");
+                Arrays.sort(lines);
+                sb.append(Arrays.toString(lines));
+            } else {
+                sb.append(value);
+            }
+            sb.append(", ");
+        }
+    }
+
+    static String convert(String config, boolean legacy) throws IOException {
+        try {
+            VpnProfile np;
+            String authUserPassFile;
+            if (legacy) {
+                LegacyConfigParser cp = new LegacyConfigParser();
+                cp.parseConfig(new StringReader(config));
+                np = cp.convertProfile();
+                authUserPassFile = cp.getAuthUserPassFile();
+            } else {
+                ConfigParser cp = new ConfigParser();
+                cp.parseConfig(new StringReader(config));
+                np = cp.convertProfile();
+                authUserPassFile = cp.getAuthUserPassFile();
+            }
+            StringBuilder sb = new StringBuilder("authUserPassFile=").append(authUserPassFile).append(", ");
+            describeFields(sb, np);
+            return sb.toString();
+        } catch (ConfigParser.ConfigParseError e) {
+            return "error: " + e.getMessage();
+        } catch (IllegalAccessException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    private static void assertConvertsLikeBefore(String config) throws IOException {
+        assertEquals(config, convert(config, true), convert(config, false));
+    }
+
+    @Test
+    public void providerConfigsConvertLikeBefore() throws IOException {
+        Random random = new Random(12);
+        for (int i = 0; i < 2000; i++)
+            assertConvertsLikeBefore(providerConfig(random));
+    }
+
+    @Test
+    public void lessCommonOptionsConvertLikeBefore() throws IOException {
+        assertConvertsLikeBefore("client\nremote a.example.com 1194 udp\nremote b.example.com 443 tcp\nport 1195\n"
+                + "proto-force udp\nsecret static.key 1\nifconfig 10.1.0.2 255.255.255.0\nmtu 1400\n"
+                + "mode p2p\nfloat\nremote-random-hostname\npush-peer-info\nx509-username-field CN\n"
+                + "route-nopull x\nrequire-extra-certs\n<extra-certs>\nABC\n</extra-certs>\n");
+        assertConvertsLikeBefore("client\nremote a.example.com\ntls-remote server\ncompat-names no-remapping x\n"
+                + "pkcs12 client.p12\nauth-user-pass\ncrl-verify crls dir\nredirect-private def1\n"
+                + "redirect-gateway !ipv4 block-local\nremote-cert-tls client\nconnect-timeout 30\n");
+        assertConvertsLikeBefore("client\n<connection>\nremote a.example.com 1194\nport 1196\nhttp-proxy proxy 8080\n"
+                + "float\n</connection>\nconnect-timeout 5\nproto tcp\ncryptoapicert SUBJ:x\nverb 4\n");
+    }
+
+    @Test
+    public void errorsLikeBefore() throws IOException {
+        String[] configs = {
+                "client\ndev tap\n",
+                "client\ndev-type tap\ndev tap0\n",
+                "client\ncipher\n",
+                "client\nroute 10.0.0.0 255.0.0.0 vpn_gateway 5 6\n",
+                "client\nmssfix abc\n",
+                "client\nmode server\n",
+                "client\nproto icmp\nremote a\n",
+                "client\nremote a\n<connection>\nremote b\n</connection>\n",
+                "client\n<connection>\nport 5\n</connection>\n",
+                "client\nverify-x509-name a b\n",
+                "client\nconfig other.conf\n",
+                "client\ntls-server\nremote a\n",
+                "client\nconnect-timeout x\n",
+        };
+        for (String config : configs) {
+            String before = convert(config, true);
+            assertTrue(before, before.startsWith("error: "));
+            assertEquals(config, before, convert(config, false));
+        }
+    }
+
+    @Test
+    public void customOptionsKeepTheOrderOfTheConfig() throws IOException, ConfigParser.ConfigParseError {
+        ConfigParser cp = new ConfigParser();
+        cp.parseConfig(new StringReader("client\nsndbuf 0\nremote a\nping 10\nrcvbuf 0\nping 20\nsetenv CLIENT_CERT 0\n"));
+        VpnProfile np = cp.convertProfile();
+        assertTrue(np.mUseCustomConfig);
+        assertEquals("# These options found in the config file do not map to config settings:\n"
+                + "sndbuf 0 \nping 10 \nping 20 \nrcvbuf 0 \n", np.mCustomConfigOptions);
+    }
+
+    @Test
+    public void wrongNumberOfArgumentsIsReported() throws IOException {
+        assertEquals("error: Option cipher has 2 parameters, expected between 1 and 1",
+                convert("client\ncipher a b\n", false));
+        // client and pull take any arguments
+        assertTrue(convert("client x y z\npull 1\n", false).startsWith("authUserPassFile="));
+    }
+}
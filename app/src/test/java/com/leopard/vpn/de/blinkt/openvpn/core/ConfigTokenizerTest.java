@@ -0,0 +1,127 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConfigTokenizerTest {
+    /* Hands out at most a few chars per read, like a slow stream */
+    static class ShortReader extends Reader {
+        private final Reader mReader;
+        private final Random mRandom;
+
+        ShortReader(String str, Random random) {
+            mReader = new StringReader(str);
+            mRandom = random;
+        }
+
+        @Override
+        public int read(char[] cbuf, int off, int len) throws IOException {
+            return mReader.read(cbuf, off, Math.min(len, 1 + mRandom.nextInt(7)));
+        }
+
+        @Override
+        public void close() throws IOException {
+            mReader.close();
+        }
+    }
+
+    /**
+     * Splits a config with ConfigTokenizer the way ConfigParser.parseConfig does, in the shape
+     * returned by {@link LegacyConfigTokenizer#parseConfig}
+     */
+    static List<Vector<String>> tokenize(Reader reader) throws IOException, ConfigParser.ConfigParseError {
+        List<Vector<String>> lines = new ArrayList<>();
+        ConfigTokenizer tokenizer = new ConfigTokenizer(reader);
+        int lineno = 0;
+        while (tokenizer.nextLine()) {
+            lineno++;
+            if (lineno == 1) {
+                if (tokenizer.lineStartsWith("PK\003\004") || tokenizer.lineStartsWith("PK\007\008"))
+                    throw new ConfigParser.ConfigParseError("Input looks like a ZIP Archive. Import is only possible for OpenVPN config files (.ovpn/.conf)");
+                if (tokenizer.lineStartsWith("\uFEFF"))
+                    tokenizer.skipChars(1);
+            }
+            if (tokenizer.lineStartsWith("# OVPN_ACCESS_SERVER_")) {
+                lines.add(new Vector<>(Arrays.asList("# OVPN_ACCESS_SERVER_", tokenizer.getLine())));
+                continue;
+            }
+            Vector<String> args = new Vector<>(tokenizer.parseLine());
+            if (args.size() == 0)
+                continue;
+            if (args.get(0).startsWith("--"))
+                args.set(0, args.get(0).substring(2));
+            String arg0 = args.get(0).trim();
+            if (arg0.startsWith("<") && arg0.endsWith(">")) {
+                String argname = arg0.substring(1, arg0.length() - 1);
+                String inline = tokenizer.readInlineBlock(argname);
+                args.clear();
+                args.add(argname);
+                args.add(inline);
+            }
+            lines.add(args);
+        }
+        return lines;
+    }
+
+    private static String result(Reader reader, boolean legacy) throws IOException {
+        try {
+            return (legacy ? LegacyConfigTokenizer.parseConfig(reader) : tokenize(reader)).toString();
+        } catch (ConfigParser.ConfigParseError e) {
+            return "error: " + e.getMessage();
+        }
+    }
+
+    private static final String[] FRAGMENTS = {
+            "remote", " ", "\t", "vpn.example.com", "1194", "\"", "'", "\\", "\\\\", "\\\"", "\\ ", "#", ";",
+            "\n", "\r\n", "\r", "<ca>", "</ca>", "  </ca>  ", "<tls-auth>", "</tls-auth>", "--", "-----BEGIN CERTIFICATE-----",
+            "MIIB", "\0", "ä", "# OVPN_ACCESS_SERVER_USERNAME=bob", "route 10.0.0.0 255.0.0.0",
+    };
+
+    @Test
+    public void matchesTheOldParserOnRandomConfigs() throws IOException {
+        Random random = new Random(11);
+        for (int run = 0; run < 20000; run++) {
+            StringBuilder config = new StringBuilder();
+            if (random.nextInt(20) == 0)
+                config.append('\uFEFF');
+            int fragments = random.nextInt(40);
+            for (int i = 0; i < fragments; i++)
+                config.append(FRAGMENTS[random.nextInt(FRAGMENTS.length)]);
+            String str = config.toString();
+            String expected = result(new StringReader(str), true);
+            assertEquals(str, expected, result(new StringReader(str), false));
+            assertEquals(str, expected, result(new ShortReader(str, random), false));
+        }
+    }
+
+    @Test
+    public void inlineBlocksAreSlicedWithUnixLineEndings() throws IOException, ConfigParser.ConfigParseError {
+        String config = "client\r\n<ca>\r\nline one\r\nline two\rline three\n</ca>\r\n<key>\n</key>\nverb 3";
+        List<Vector<String>> lines = tokenize(new ShortReader(config, new Random(1)));
+        assertEquals(4, lines.size());
+        assertEquals(Arrays.asList("ca", VpnProfile.INLINE_TAG + "line one\nline two\nline three"), lines.get(1));
+        assertEquals(Arrays.asList("key", VpnProfile.INLINE_TAG), lines.get(2));
+        assertEquals(Arrays.asList("verb", "3"), lines.get(3));
+    }
+
+    @Test(expected = ConfigParser.ConfigParseError.class)
+    public void missingEndTagFails() throws IOException, ConfigParser.ConfigParseError {
+        tokenize(new StringReader("<ca>\nline\n</cert>\n"));
+    }
+}
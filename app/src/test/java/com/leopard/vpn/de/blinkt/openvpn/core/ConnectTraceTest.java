@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ConnectTraceTest {
+    private static class FakeClock implements ConnectTrace.Clock {
+        long mNanos = 5000000000L;
+
+        @Override
+        public long nanoTime() {
+            return mNanos;
+        }
+
+        void advanceMillis(double ms) {
+            mNanos += (long) (ms * 1000000);
+        }
+    }
+
+    private FakeClock mClock;
+    private ConnectTrace mTrace;
+
+    @Before
+    public void begin() {
+        mClock = new FakeClock();
+        mTrace = ConnectTrace.begin(mClock);
+    }
+
+    private JSONArray stages() throws JSONException {
+        return new JSONObject(mTrace.toJson()).getJSONArray("stages");
+    }
+
+    @Test
+    public void stagesAreRecordedOnce() {
+        mClock.advanceMillis(12);
+        assertTrue(ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN));
+        mClock.advanceMillis(5);
+        assertFalse(ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN));
+        assertEquals(12, mTrace.getStageMillis(ConnectTrace.Stage.CONFIG_WRITTEN));
+        assertEquals(-1, mTrace.getStageMillis(ConnectTrace.Stage.CONNECTED));
+    }
+
+    @Test
+    public void jsonListsTheStagesInTheOrderTheyWereReached() throws JSONException {
+        mClock.advanceMillis(2.5);
+        ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN);
+        mClock.advanceMillis(1);
+        ConnectTrace.mark(ConnectTrace.Stage.ARGV_READY);
+        mClock.advanceMillis(40);
+        // The management thread can accept before the spawn of the process is marked
+        ConnectTrace.mark(ConnectTrace.Stage.MANAGEMENT_ACCEPTED);
+        mClock.advanceMillis(0.5);
+        ConnectTrace.mark(ConnectTrace.Stage.PROCESS_SPAWNED);
+
+        JSONObject json = new JSONObject(mTrace.toJson());
+        assertTrue(json.has("start"));
+        assertFalse(json.has("outcome"));
+        JSONArray stages = json.getJSONArray("stages");
+        assertEquals(4, stages.length());
+        String[] order = {"CONFIG_WRITTEN", "ARGV_READY", "MANAGEMENT_ACCEPTED", "PROCESS_SPAWNED"};
+        double[] at = {2.5, 3.5, 43.5, 44};
+        double[] delta = {2.5, 1, 40, 0.5};
+        for (int i = 0; i < order.length; i++) {
+            JSONObject stage = stages.getJSONObject(i);
+            assertEquals(order[i], stage.getString("stage"));
+            assertEquals(at[i], stage.getDouble("atMs"), 1e-9);
+            assertEquals(delta[i], stage.getDouble("deltaMs"), 1e-9);
+        }
+    }
+
+    @Test
+    public void onlyTheFirstOutcomeEndsTheAttempt() throws JSONException {
+        ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN);
+        ConnectTrace.mark(ConnectTrace.Stage.CONNECTED);
+        ConnectTrace.end("CONNECTED");
+        // The session ending later does not change the trace of the attempt
+        ConnectTrace.end("NOPROCESS");
+        assertFalse(ConnectTrace.mark(ConnectTrace.Stage.HOLD_RELEASED));
+
+        assertEquals("CONNECTED", mTrace.getOutcome());
+        assertEquals("CONNECTED", new JSONObject(mTrace.toJson()).getString("outcome"));
+        assertEquals(2, stages().length());
+    }
+
+    @Test
+    public void failedAttemptKeepsTheStagesItReached() throws JSONException {
+        mClock.advanceMillis(3);
+        ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN);
+        ConnectTrace.end("MANAGEMENT_BIND_FAILED");
+
+        JSONObject json = new JSONObject(mTrace.toJson());
+        assertEquals("MANAGEMENT_BIND_FAILED", json.getString("outcome"));
+        assertEquals(1, json.getJSONArray("stages").length());
+        assertEquals(-1, mTrace.getStageMillis(ConnectTrace.Stage.MANAGEMENT_BOUND));
+    }
+
+    @Test
+    public void newAttemptStartsAFreshTrace() {
+        ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN);
+        ConnectTrace.end("NOPROCESS");
+
+        ConnectTrace next = ConnectTrace.begin(mClock);
+        assertSame(next, ConnectTrace.getCurrent());
+        assertNull(next.getOutcome());
+        assertTrue(ConnectTrace.mark(ConnectTrace.Stage.CONFIG_WRITTEN));
+        assertEquals("NOPROCESS", mTrace.getOutcome());
+    }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HoldReleaseSchedulerTest {
+    /* A clock that only moves when the test advances it, running the tasks that become due */
+    private static class FakeTime implements HoldReleaseScheduler.Clock, HoldReleaseScheduler.Scheduler {
+        private long mNow = 100000;
+        private final ArrayList<Runnable> mTasks = new ArrayList<>();
+        private final ArrayList<Long> mDue = new ArrayList<>();
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+
+        @Override
+        public void postDelayed(Runnable task, long delayMs) {
+            mTasks.add(task);
+            mDue.add(mNow + delayMs);
+        }
+
+        @Override
+        public void cancel(Runnable task) {
+            int i;
+            while ((i = mTasks.indexOf(task)) >= 0) {
+                mTasks.remove(i);
+                mDue.remove(i);
+            }
+        }
+
+        /**
+         * @return the delay of the only scheduled task
+         */
+        long scheduledDelay() {
+            assertEquals(1, mTasks.size());
+            return mDue.get(0) - mNow;
+        }
+
+        void advance(long ms) {
+            mNow += ms;
+            ArrayList<Runnable> due = new ArrayList<>();
+            Iterator<Long> times = mDue.iterator();
+            Iterator<Runnable> tasks = mTasks.iterator();
+            while (times.hasNext()) {
+                Runnable task = tasks.next();
+                if (times.next() <= mNow) {
+                    due.add(task);
+                    times.remove();
+                    tasks.remove();
+                }
+            }
+            for (Runnable task : due)
+                task.run();
+        }
+    }
+
+    /* nextDouble() of 0.5 means no jitter */
+    private static class FixedRandom extends Random {
+        double mValue = 0.5;
+
+        @Override
+        public double nextDouble() {
+            return mValue;
+        }
+    }
+
+    private FakeTime mTime;
+    private FixedRandom mRandom;
+    private int mReleases;
+    private HoldReleaseScheduler mScheduler;
+
+    @Before
+    public void setUp() {
+        mTime = new FakeTime();
+        mRandom = new FixedRandom();
+        mReleases = 0;
+        mScheduler = new HoldReleaseScheduler(mTime, mTime, mRandom, new Runnable() {
+            @Override
+            public void run() {
+                mReleases++;
+            }
+        });
+    }
+
+    /* Requests a release and lets the scheduled one run */
+    private void releaseAfterDelay() {
+        mScheduler.requestRelease();
+        mTime.advance(mTime.scheduledDelay());
+    }
+
+    @Test
+    public void firstAndInfrequentReleasesAreImmediate() {
+        mScheduler.requestRelease();
+        assertEquals(1, mReleases);
+        assertFalse(mScheduler.isPending());
+
+        mTime.advance(HoldReleaseScheduler.THROTTLE_WINDOW_MS);
+        mScheduler.requestRelease();
+        assertEquals(2, mReleases);
+        assertFalse(mScheduler.isPending());
+    }
+
+    @Test
+    public void burstIsCoalescedIntoOneDelayedRelease() {
+        mScheduler.requestRelease();
+        mTime.advance(1000);
+        for (int i = 0; i < 10; i++) {
+            mScheduler.requestRelease();
+            mTime.advance(100);
+        }
+        assertEquals(1, mReleases);
+        assertTrue(mScheduler.isPending());
+        assertEquals(HoldReleaseScheduler.BASE_DELAY_MS - 1000, mTime.scheduledDelay());
+
+        mTime.advance(mTime.scheduledDelay());
+        assertEquals(2, mReleases);
+        assertFalse(mScheduler.isPending());
+    }
+
+    @Test
+    public void delayDoublesUpToTheCap() {
+        mScheduler.requestRelease();
+        long expected = HoldReleaseScheduler.BASE_DELAY_MS;
+        for (int i = 0; i < 8; i++) {
+            mScheduler.requestRelease();
+            assertEquals(Math.min(expected, HoldReleaseScheduler.MAX_DELAY_MS), mTime.scheduledDelay());
+            mTime.advance(mTime.scheduledDelay());
+            assertEquals(i + 2, mReleases);
+            expected *= 2;
+        }
+        // Long past the cap, the shift must not overflow
+        for (int i = 0; i < 70; i++)
+            releaseAfterDelay();
+        mScheduler.requestRelease();
+        assertEquals(HoldReleaseScheduler.MAX_DELAY_MS, mTime.scheduledDelay());
+    }
+
+    @Test
+    public void jitterStaysWithinItsBounds() {
+        mScheduler.requestRelease();
+        mRandom.mValue = 0;
+        assertEquals((long) (HoldReleaseScheduler.BASE_DELAY_MS * (1 - HoldReleaseScheduler.JITTER)), mScheduler.nextDelay());
+        mRandom.mValue = 0.999999;
+        long max = (long) (HoldReleaseScheduler.BASE_DELAY_MS * (1 + HoldReleaseScheduler.JITTER));
+        assertTrue(mScheduler.nextDelay() <= max);
+        assertTrue(mScheduler.nextDelay() >= max - 1);
+    }
+
+    @Test
+    public void cancelledReleaseNeverRuns() {
+        mScheduler.requestRelease();
+        mScheduler.requestRelease();
+        assertTrue(mScheduler.isPending());
+
+        mScheduler.cancel();
+        assertFalse(mScheduler.isPending());
+        mTime.advance(HoldReleaseScheduler.MAX_DELAY_MS * 2);
+        assertEquals(1, mReleases);
+
+        // The cancelled release does not count as one, the window has passed
+        mScheduler.requestRelease();
+        assertEquals(2, mReleases);
+        assertFalse(mScheduler.isPending());
+    }
+
+    @Test
+    public void releaseScheduledBeforeAStopNeverRuns() {
+        mScheduler.requestRelease();
+        mScheduler.requestRelease();
+        assertEquals(HoldReleaseScheduler.BASE_DELAY_MS, mTime.scheduledDelay());
+
+        mScheduler.stop();
+        assertFalse(mScheduler.isPending());
+        mTime.advance(HoldReleaseScheduler.MAX_DELAY_MS * 2);
+        assertEquals(1, mReleases);
+
+        // Late network callbacks after the stop release nothing either
+        mScheduler.requestRelease();
+        assertEquals(1, mReleases);
+        assertFalse(mScheduler.isPending());
+    }
+
+    @Test
+    public void quietPeriodResetsTheBackoff() {
+        mScheduler.requestRelease();
+        for (int i = 0; i < 4; i++)
+            releaseAfterDelay();
+        assertEquals(5, mReleases);
+
+        mTime.advance(HoldReleaseScheduler.THROTTLE_WINDOW_MS);
+        mScheduler.requestRelease();
+        assertEquals(6, mReleases);
+        mScheduler.requestRelease();
+        assertEquals(HoldReleaseScheduler.BASE_DELAY_MS, mTime.scheduledDelay());
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2012-2017 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Vector;
+
+/**
+ * The LinkedList based TrafficHistory before the ring buffers, without the Parcelable part.
+ * Kept as the reference for TrafficHistoryTest and TrafficHistoryBenchmark.
+ */
+class LegacyTrafficHistory {
+    static class Datapoint {
+        final long timestamp;
+        final long in;
+        final long out;
+
+        Datapoint(long in, long out, long timestamp) {
+            this.in = in;
+            this.out = out;
+            this.timestamp = timestamp;
+        }
+    }
+
+    final LinkedList<Datapoint> trafficHistorySeconds = new LinkedList<>();
+    final LinkedList<Datapoint> trafficHistoryMinutes = new LinkedList<>();
+    final LinkedList<Datapoint> trafficHistoryHours = new LinkedList<>();
+    private Datapoint lastSecondUsedForMinute;
+    private Datapoint lastMinuteUsedForHours;
+
+    void addDataPoint(long timestamp, long in, long out) {
+        Datapoint tdp = new Datapoint(in, out, timestamp);
+        trafficHistorySeconds.add(tdp);
+        if (lastSecondUsedForMinute == null) {
+            lastSecondUsedForMinute = new Datapoint(0, 0, 0);
+            lastMinuteUsedForHours = new Datapoint(0, 0, 0);
+        }
+        removeAndAverage(tdp, true);
+    }
+
+    private void removeAndAverage(Datapoint newTdp, boolean seconds) {
+        HashSet<Datapoint> toRemove = new HashSet<>();
+        Vector<Datapoint> toAverage = new Vector<>();
+        long timePeriod;
+        LinkedList<Datapoint> tpList, nextList;
+        Datapoint lastTsPeriod;
+        if (seconds) {
+            timePeriod = TrafficHistory.TIME_PERIOD_MINTUES;
+            tpList = trafficHistorySeconds;
+            nextList = trafficHistoryMinutes;
+            lastTsPeriod = lastSecondUsedForMinute;
+        } else {
+            timePeriod = TrafficHistory.TIME_PERIOD_HOURS;
+            tpList = trafficHistoryMinutes;
+            nextList = trafficHistoryHours;
+            lastTsPeriod = lastMinuteUsedForHours;
+        }
+        if (newTdp.timestamp / timePeriod > (lastTsPeriod.timestamp / timePeriod)) {
+            nextList.add(newTdp);
+            if (seconds) {
+                lastSecondUsedForMinute = newTdp;
+                removeAndAverage(newTdp, false);
+            } else
+                lastMinuteUsedForHours = newTdp;
+            for (Datapoint tph : tpList) {
+                if ((newTdp.timestamp - tph.timestamp) / timePeriod >= TrafficHistory.PERIODS_TO_KEEP)
+                    toRemove.add(tph);
+            }
+            tpList.removeAll(toRemove);
+        }
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2012-2015 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+import de.blinkt.openvpn.Benchmark;
+import de.blinkt.openvpn.BenchmarkHarness;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Restores the newest log items at startup from the segmented log cache and from the single file
+ * of the old format, which had to be read and unescaped in full before the items could be
+ * shown. Both hold the same items, 20 times as many as the replay keeps.
+ */
+@Category(Benchmark.class)
+public class LogCacheBenchmark {
+    private static final int KEEP = VpnStatus.MAXLOGENTRIES;
+    private static final int ITEMS = 20 * KEEP;
+    private static final int RUNS = 20;
+
+    private static LogItem item(int i) {
+        return new LogItem(VpnStatus.LogLevel.INFO, 3, "MANAGEMENT: >BYTECOUNT:" + i * 1500 + "," + i * 200
+                + " data channel: peer-id " + (i & 7));
+    }
+
+    private static double millisPerRun(BenchmarkHarness.Task restore) throws Exception {
+        assertEquals(KEEP, restore.run());
+        return BenchmarkHarness.nanosPerRun(RUNS, RUNS, restore) / 1e6;
+    }
+
+    @Test
+    public void restoreTheNewestItems() throws Exception {
+        final File dir = File.createTempFile("logcachebench", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        try {
+            ByteBuffer bb = ByteBuffer.allocate(LogCacheFile.MAX_RECORD_SIZE);
+            LogCacheFile cache = new LogCacheFile(dir, KEEP * 10, 16 * 1024);
+            cache.open();
+            ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+            for (int i = 0; i < ITEMS; i++) {
+                LogItem item = item(i);
+                bb.clear();
+                int length = LogItemCodec.encode(item, bb);
+                cache.append(bb.array(), length);
+                LogCacheFileTest.writeLegacy(legacy, item.getMarschaledBytes());
+            }
+            cache.close();
+            final File legacyFile = new File(dir, LogFileHandler.LOGFILE_NAME);
+            FileOutputStream out = new FileOutputStream(legacyFile);
+            legacy.writeTo(out);
+            out.close();
+            long segmentBytes = 0;
+            for (long segment : cache.listSegments())
+                segmentBytes += LogCacheFile.dataFile(dir, segment).length();
+
+            final LogCacheFile replayCache = new LogCacheFile(dir, KEEP * 10, 16 * 1024);
+            double segments = millisPerRun(new BenchmarkHarness.Task() {
+                @Override
+                public Object run() throws IOException {
+                    final int[] restored = {0};
+                    replayCache.replayNewestFirst(new LogCacheFile.RecordVisitor() {
+                        @Override
+                        public boolean onRecord(byte[] payload, int length) throws IOException {
+                            LogItemCodec.decode(payload, 0, length);
+                            return ++restored[0] < KEEP;
+                        }
+                    });
+                    return restored[0];
+                }
+            });
+            double legacyFormat = millisPerRun(new BenchmarkHarness.Task() {
+                @Override
+                public Object run() throws IOException {
+                    ArrayDeque<byte[]> records = new ArrayDeque<>();
+                    InputStream in = new BufferedInputStream(new FileInputStream(legacyFile));
+                    try {
+                        LogCacheFile.readLegacyRecords(in, records, Integer.MAX_VALUE);
+                    } finally {
+                        in.close();
+                    }
+                    int restored = 0;
+                    while (restored < KEEP) {
+                        byte[] record = records.removeLast();
+                        new LogItem(record, record.length);
+                        restored++;
+                    }
+                    return restored;
+                }
+            });
+
+            report("Log cache restore of the newest %d of %d items: segments %.2f ms (%d bytes on disk), "
+                            + "old format %.2f ms (%d bytes on disk)",
+                    KEEP, ITEMS, segments, segmentBytes, legacyFormat, legacyFile.length());
+        } finally {
+            File[] files = dir.listFiles();
+            if (files != null) {
+                for (File f : files)
+                    //noinspection ResultOfMethodCallIgnored
+                    f.delete();
+            }
+            //noinspection ResultOfMethodCallIgnored
+            dir.delete();
+        }
+    }
+}
@@ -0,0 +1,199 @@
+/*
+ * Copyright (c) 2012-2015 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogCacheFileTest {
+    private File mDir;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("logcache", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    static byte[] record(int i) {
+        // Contains the legacy magic byte and its escape so both get exercised
+        return ("record " + i + " UV").getBytes();
+    }
+
+    /**
+     * @return the replayed records, oldest first
+     */
+    static List<String> replay(LogCacheFile cache, final int max) throws IOException {
+        final List<String> records = new ArrayList<>();
+        cache.replayNewestFirst(new LogCacheFile.RecordVisitor() {
+            @Override
+            public boolean onRecord(byte[] payload, int length) {
+                records.add(new String(payload, 0, length));
+                return records.size() < max;
+            }
+        });
+        Collections.reverse(records);
+        return records;
+    }
+
+    private static List<String> expected(int from, int to) {
+        List<String> records = new ArrayList<>();
+        for (int i = from; i < to; i++)
+            records.add(new String(record(i)));
+        return records;
+    }
+
+    private LogCacheFile write(int recordsPerSegment, int count) throws IOException {
+        LogCacheFile cache = new LogCacheFile(mDir, recordsPerSegment, 256);
+        cache.open();
+        for (int i = 0; i < count; i++) {
+            byte[] record = record(i);
+            cache.append(record, record.length);
+        }
+        return cache;
+    }
+
+    @Test
+    public void replaysNewestFirstIncludingThePendingBatch() throws IOException {
+        LogCacheFile cache = write(100, 30);
+        assertEquals(expected(0, 30), replay(cache, 1000));
+        assertEquals(expected(20, 30), replay(cache, 10));
+        cache.close();
+        assertEquals(expected(0, 30), replay(new LogCacheFile(mDir, 100, 256), 1000));
+    }
+
+    @Test
+    public void keepsOnlyTheCurrentAndThePreviousSegment() throws IOException {
+        LogCacheFile cache = write(10, 35);
+        cache.close();
+        assertEquals(2, cache.listSegments().length);
+        assertEquals(expected(20, 35), replay(cache, 1000));
+
+        // Reopening for writing keeps the newest segment
+        cache.open();
+        assertEquals(expected(30, 35), replay(cache, 1000));
+    }
+
+    @Test
+    public void recordsMissingFromTheIndexAreRecovered() throws IOException {
+        LogCacheFile cache = write(100, 20);
+        cache.close();
+        long segment = cache.listSegments()[0];
+        // Lose the index entries of the last five records
+        RandomAccessFile index = new RandomAccessFile(LogCacheFile.indexFile(mDir, segment), "rw");
+        index.setLength(15 * 4);
+        index.close();
+        assertEquals(expected(0, 20), replay(cache, 1000));
+
+        assertTrue(LogCacheFile.indexFile(mDir, segment).delete());
+        assertEquals(expected(0, 20), replay(cache, 1000));
+    }
+
+    @Test
+    public void tornAndCorruptRecordsAreSkipped() throws IOException {
+        LogCacheFile cache = write(100, 10);
+        cache.close();
+        File data = LogCacheFile.dataFile(mDir, cache.listSegments()[0]);
+        RandomAccessFile raf = new RandomAccessFile(data, "rw");
+        // Torn write of the last record
+        raf.setLength(raf.length() - 3);
+        // Flip a payload byte of the first record, its crc no longer matches
+        raf.seek(LogCacheFile.HEADER_SIZE + LogCacheFile.RECORD_HEADER_SIZE);
+        raf.write('R');
+        raf.close();
+
+        assertEquals(expected(1, 9), replay(cache, 1000));
+    }
+
+    /* Writes items the way LogFileHandler did before the segments */
+    static void writeLegacy(ByteArrayOutputStream out, byte[] payload) {
+        out.write(LogCacheFile.LEGACY_MAGIC_BYTE);
+        out.write(ByteBuffer.allocate(4).putInt(payload.length).array(), 0, 4);
+        for (byte b : payload) {
+            if (b == LogCacheFile.LEGACY_MAGIC_BYTE || b == LogCacheFile.LEGACY_MAGIC_BYTE + 1) {
+                out.write(LogCacheFile.LEGACY_MAGIC_BYTE + 1);
+                out.write(b - LogCacheFile.LEGACY_MAGIC_BYTE);
+            } else {
+                out.write(b);
+            }
+        }
+    }
+
+    @Test
+    public void migratesTheLegacyLogCache() throws IOException {
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        legacy.write(new byte[]{1, 2, 3}, 0, 3);
+        for (int i = 0; i < 50; i++)
+            writeLegacy(legacy, record(i));
+        // An item with a broken escape and a torn last item
+        legacy.write(new byte[]{LogCacheFile.LEGACY_MAGIC_BYTE, 0, 0, 0, 4, 'a', LogCacheFile.LEGACY_MAGIC_BYTE + 1, 7}, 0, 8);
+        writeLegacy(legacy, record(50));
+        legacy.write(new byte[]{LogCacheFile.LEGACY_MAGIC_BYTE, 0, 0, 0, 100, 'x'}, 0, 6);
+        File legacyFile = new File(mDir, LogFileHandler.LOGFILE_NAME);
+        FileOutputStream out = new FileOutputStream(legacyFile);
+        legacy.writeTo(out);
+        out.close();
+
+        LogCacheFile cache = new LogCacheFile(mDir, 1000, 256);
+        cache.open();
+        assertEquals(40, cache.migrateLegacy(legacyFile, 40));
+        cache.close();
+
+        assertEquals(expected(11, 51), replay(new LogCacheFile(mDir, 1000, 256), 1000));
+    }
+
+    @Test
+    public void legacyLogItemsDecodeAfterMigration() throws IOException {
+        LogItem item = new LogItem(VpnStatus.LogLevel.WARNING, 3, "WARNING: U in the message");
+        ByteArrayOutputStream legacy = new ByteArrayOutputStream();
+        writeLegacy(legacy, item.getMarschaledBytes());
+        File legacyFile = new File(mDir, LogFileHandler.LOGFILE_NAME);
+        FileOutputStream out = new FileOutputStream(legacyFile);
+        legacy.writeTo(out);
+        out.close();
+
+        LogCacheFile cache = new LogCacheFile(mDir, 1000, 256);
+        cache.open();
+        assertEquals(1, cache.migrateLegacy(legacyFile, 1000));
+        final List<LogItem> items = new ArrayList<>();
+        cache.replayNewestFirst(new LogCacheFile.RecordVisitor() {
+            @Override
+            public boolean onRecord(byte[] payload, int length) throws IOException {
+                items.add(LogItemCodec.decode(payload, 0, length));
+                return true;
+            }
+        });
+        assertEquals(1, items.size());
+        assertEquals(item.getString(null), items.get(0).getString(null));
+        assertEquals(item.getLogtime(), items.get(0).getLogtime());
+        assertEquals(VpnStatus.LogLevel.WARNING, items.get(0).getLogLevel());
+    }
+}
@@ -0,0 +1,213 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class LogCacheWriterTest {
+    /* Small batches, so a handful of items fill one */
+    private static final int BATCH_BYTES = 512;
+
+    /* Stands in for the FLUSH_BATCH message of LogFileHandler */
+    private static class FakeScheduler implements LogCacheWriter.Scheduler {
+        LogCacheWriter mWriter;
+        long mNow;
+        /* -1 if no flush is scheduled */
+        long mDue = -1;
+
+        @Override
+        public void scheduleFlush(long delayMs) {
+            assertEquals("Only one flush may be scheduled", -1, mDue);
+            mDue = mNow + delayMs;
+        }
+
+        @Override
+        public void cancelFlush() {
+            mDue = -1;
+        }
+
+        void advance(long ms) throws IOException {
+            mNow += ms;
+            if (mDue >= 0 && mDue <= mNow) {
+                mDue = -1;
+                mWriter.writeBatch();
+            }
+        }
+    }
+
+    /* Counts the syncs to the storage device */
+    private static class CountingLogCacheFile extends LogCacheFile {
+        int mForces;
+
+        CountingLogCacheFile(File dir) {
+            super(dir, 1000, BATCH_BYTES);
+        }
+
+        @Override
+        void force() throws IOException {
+            mForces++;
+            super.force();
+        }
+    }
+
+    private File mDir;
+    private CountingLogCacheFile mFile;
+    private FakeScheduler mScheduler;
+    private LogCacheWriter mWriter;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("logcache", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        if (mFile != null)
+            mFile.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private void open(VpnStatus.LogDurability durability) throws IOException {
+        mFile = new CountingLogCacheFile(mDir);
+        mFile.open();
+        mScheduler = new FakeScheduler();
+        mWriter = new LogCacheWriter(mFile, durability, mScheduler);
+        mScheduler.mWriter = mWriter;
+    }
+
+    private void write(int count) throws IOException {
+        for (int i = 0; i < count; i++)
+            mWriter.write(new LogItem(VpnStatus.LogLevel.INFO, 1, "item " + i));
+    }
+
+    /**
+     * @return number of items a fresh reader finds in the files
+     */
+    private int itemsOnDisk() throws IOException {
+        return LogCacheFileTest.replay(new LogCacheFile(mDir, 1000, BATCH_BYTES), Integer.MAX_VALUE).size();
+    }
+
+    @Test
+    public void itemsReachTheFileAtTheDeadline() throws IOException {
+        open(VpnStatus.LogDurability.ON_FLUSH);
+        write(3);
+        assertEquals(0, itemsOnDisk());
+        assertEquals(LogCacheWriter.BATCH_FLUSH_DELAY_MS, mScheduler.mDue);
+
+        // Later items join the batch without moving the deadline
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS - 1);
+        write(1);
+        assertEquals(0, itemsOnDisk());
+        mScheduler.advance(1);
+        assertEquals(4, itemsOnDisk());
+        assertEquals(0, mFile.mForces);
+
+        // The next item starts a new batch with its own deadline
+        write(1);
+        assertEquals(mScheduler.mNow + LogCacheWriter.BATCH_FLUSH_DELAY_MS, mScheduler.mDue);
+    }
+
+    @Test
+    public void fullBatchIsWrittenBeforeTheDeadline() throws IOException {
+        open(VpnStatus.LogDurability.ON_FLUSH);
+        int written = 0;
+        while (itemsOnDisk() == 0) {
+            write(1);
+            written++;
+            assertTrue("Batch never filled up", written < BATCH_BYTES);
+        }
+        assertEquals(written, itemsOnDisk());
+        assertEquals(-1, mScheduler.mDue);
+    }
+
+    @Test
+    public void noneNeverSyncs() throws IOException {
+        open(VpnStatus.LogDurability.NONE);
+        write(2);
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS);
+        write(2);
+        mWriter.flushToDisk();
+        assertEquals(4, itemsOnDisk());
+        assertEquals(0, mFile.mForces);
+    }
+
+    @Test
+    public void onFlushSyncsOnlyWhenFlushed() throws IOException {
+        open(VpnStatus.LogDurability.ON_FLUSH);
+        write(2);
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS);
+        assertEquals(0, mFile.mForces);
+
+        write(2);
+        mWriter.flushToDisk();
+        assertEquals(4, itemsOnDisk());
+        assertEquals(1, mFile.mForces);
+        // The flush took the pending batch, its deadline is gone
+        assertEquals(-1, mScheduler.mDue);
+    }
+
+    @Test
+    public void everyBatchSyncsEachWrittenBatch() throws IOException {
+        open(VpnStatus.LogDurability.EVERY_BATCH);
+        write(2);
+        assertEquals(0, mFile.mForces);
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS);
+        assertEquals(2, itemsOnDisk());
+        assertEquals(1, mFile.mForces);
+
+        write(2);
+        mWriter.flushToDisk();
+        assertEquals(4, itemsOnDisk());
+        assertEquals(2, mFile.mForces);
+        // Nothing new to sync
+        mWriter.flushToDisk();
+        assertEquals(2, mFile.mForces);
+    }
+
+    @Test
+    public void durabilityCanChangeWhileWriting() throws IOException {
+        open(VpnStatus.LogDurability.NONE);
+        write(1);
+        mWriter.setDurability(VpnStatus.LogDurability.EVERY_BATCH);
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS);
+        assertEquals(1, mFile.mForces);
+
+        mWriter.setDurability(VpnStatus.LogDurability.NONE);
+        write(1);
+        mWriter.flushToDisk();
+        assertEquals(2, itemsOnDisk());
+        assertEquals(1, mFile.mForces);
+    }
+
+    @Test
+    public void resetDropsThePendingBatchAndItsDeadline() throws IOException {
+        open(VpnStatus.LogDurability.ON_FLUSH);
+        write(2);
+        mScheduler.advance(LogCacheWriter.BATCH_FLUSH_DELAY_MS);
+        write(2);
+        mWriter.reset();
+        assertEquals(-1, mScheduler.mDue);
+        assertEquals(0, itemsOnDisk());
+        assertFalse(mFile.mForces > 0);
+    }
+}
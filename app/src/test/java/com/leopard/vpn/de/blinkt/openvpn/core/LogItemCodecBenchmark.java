@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.allocatedBytes;
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+
+/**
+ * Compares LogItemCodec with the format of {@link LogItem#getMarschaledBytes()} it replaced on the
+ * log lines of a captured management session: bytes per item, encode and decode throughput and
+ * the allocations of encoding.
+ */
+@Category(Benchmark.class)
+public class LogItemCodecBenchmark {
+    private static final int RUNS = 500;
+
+    private static LogItem[] transcriptItems() throws IOException {
+        String[] lines = ManagementLineFramerBenchmark.readTranscript().split("\r\n");
+        LogItem[] items = new LogItem[lines.length + LogItemCodecTest.sampleItems().length];
+        for (int i = 0; i < lines.length; i++)
+            items[i] = new LogItem(VpnStatus.LogLevel.INFO, 3, "MANAGEMENT: " + lines[i]);
+        System.arraycopy(LogItemCodecTest.sampleItems(), 0, items, lines.length, LogItemCodecTest.sampleItems().length);
+        return items;
+    }
+
+    @Test
+    public void compactCodecAgainstLegacyFormat() throws IOException {
+        LogItem[] items = transcriptItems();
+        ByteBuffer bb = ByteBuffer.allocate(16384);
+        int[] offsets = new int[items.length + 1];
+        byte[][] legacy = new byte[items.length][];
+        long compactBytes = 0;
+        long legacyBytes = 0;
+        for (int i = 0; i < items.length; i++) {
+            offsets[i] = bb.position();
+            compactBytes += LogItemCodec.encode(items[i], bb);
+            legacy[i] = items[i].getMarschaledBytes();
+            legacyBytes += legacy[i].length;
+        }
+        offsets[items.length] = bb.position();
+        byte[] encoded = bb.array();
+
+        // Warm up
+        for (int r = 0; r < RUNS; r++) {
+            bb.clear();
+            for (LogItem item : items) {
+                LogItemCodec.encode(item, bb);
+                item.getMarschaledBytes();
+            }
+            for (int i = 0; i < items.length; i++) {
+                LogItemCodec.decode(encoded, offsets[i], offsets[i + 1] - offsets[i]);
+                new LogItem(legacy[i], legacy[i].length);
+            }
+        }
+
+        long allocated = allocatedBytes();
+        long time = System.nanoTime();
+        for (int r = 0; r < RUNS; r++) {
+            bb.clear();
+            for (LogItem item : items)
+                LogItemCodec.encode(item, bb);
+        }
+        long compactEncode = System.nanoTime() - time;
+        long compactAllocated = allocatedBytes() - allocated;
+
+        allocated = allocatedBytes();
+        time = System.nanoTime();
+        for (int r = 0; r < RUNS; r++) {
+            for (LogItem item : items)
+                item.getMarschaledBytes();
+        }
+        long legacyEncode = System.nanoTime() - time;
+        long legacyAllocated = allocatedBytes() - allocated;
+
+        time = System.nanoTime();
+        for (int r = 0; r < RUNS; r++) {
+            for (int i = 0; i < items.length; i++)
+                LogItemCodec.decode(encoded, offsets[i], offsets[i + 1] - offsets[i]);
+        }
+        long compactDecode = System.nanoTime() - time;
+
+        time = System.nanoTime();
+        for (int r = 0; r < RUNS; r++) {
+            for (byte[] l : legacy)
+                new LogItem(l, l.length);
+        }
+        long legacyDecode = System.nanoTime() - time;
+
+        double n = (double) RUNS * items.length;
+        report("LogItem codec, %d items: compact %.1f bytes/item, encode %.2f M items/s %.1f bytes allocated/item, decode %.2f M items/s; "
+                        + "legacy %.1f bytes/item, encode %.2f M items/s %.1f bytes allocated/item, decode %.2f M items/s",
+                items.length, (double) compactBytes / items.length, n / compactEncode * 1e3, compactAllocated / n,
+                n / compactDecode * 1e3, (double) legacyBytes / items.length, n / legacyEncode * 1e3,
+                legacyAllocated / n, n / legacyDecode * 1e3);
+    }
+}
@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class LogItemCodecTest {
+    /* Typical items: prefixed messages, plain messages, resource ids with every argument type */
+    static LogItem[] sampleItems() {
+        return new LogItem[]{
+                new LogItem(VpnStatus.LogLevel.INFO, 3, "MANAGEMENT: >BYTECOUNT:123456,7890"),
+                new LogItem(VpnStatus.LogLevel.INFO, 1, "Initialization Sequence Completed"),
+                new LogItem(VpnStatus.LogLevel.WARNING, 1, "WARNING: this configuration may cache passwords in memory"),
+                new LogItem(VpnStatus.LogLevel.DEBUG, 5, "Data Channel: using negotiated cipher 'AES-256-GCM'"),
+                new LogItem(VpnStatus.LogLevel.ERROR, -2, "No prefix here, but Ümlauts, 日本語 and 😀"),
+                new LogItem(VpnStatus.LogLevel.VERBOSE, 0x7f0e0042, "a string", 42, -7L, 1.5f, 2.25, null),
+                new LogItem(VpnStatus.LogLevel.INFO, 0x7f0e0001),
+                new LogItem(VpnStatus.LogLevel.ERROR, 0x01040000, "framework resource"),
+        };
+    }
+
+    private static LogItem roundTrip(LogItem item) throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        bb.position(7);
+        int length = LogItemCodec.encode(item, bb);
+        assertEquals(7 + length, bb.position());
+        return LogItemCodec.decode(bb.array(), 7, length);
+    }
+
+    @Test
+    public void itemsSurviveTheRoundTrip() throws UnsupportedEncodingException {
+        for (LogItem item : sampleItems()) {
+            LogItem decoded = roundTrip(item);
+            assertEquals(item, decoded);
+            assertEquals(item.getMessage(), decoded.getMessage());
+            assertEquals(item.getRawVerbosityLevel(), decoded.getRawVerbosityLevel());
+            assertEquals(item.getLogLevel(), decoded.getLogLevel());
+            assertEquals(item.getLogtime(), decoded.getLogtime());
+        }
+    }
+
+    @Test
+    public void legacyItemsStillDecode() throws UnsupportedEncodingException {
+        for (LogItem item : sampleItems()) {
+            byte[] legacy = item.getMarschaledBytes();
+            assertEquals(item, LogItemCodec.decode(legacy, 0, legacy.length));
+
+            byte[] shifted = new byte[legacy.length + 3];
+            System.arraycopy(legacy, 0, shifted, 3, legacy.length);
+            assertEquals(item, LogItemCodec.decode(shifted, 3, legacy.length));
+        }
+    }
+
+    @Test
+    public void compactFormatIsSmaller() throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.allocate(1024);
+        for (LogItem item : sampleItems()) {
+            bb.clear();
+            int length = LogItemCodec.encode(item, bb);
+            assertTrue(length < item.getMarschaledBytes().length);
+        }
+    }
+
+    @Test
+    public void varintsUseOneByteForSmallValues() throws UnsupportedEncodingException {
+        ByteBuffer bb = ByteBuffer.allocate(16);
+        LogItemCodec.putVarInt(bb, 127);
+        LogItemCodec.putVarInt(bb, 128);
+        LogItemCodec.putVarInt(bb, -1);
+        assertArrayEquals(new byte[]{0x7f, (byte) 0x80, 0x01, (byte) 0xff, (byte) 0xff, (byte) 0xff, (byte) 0xff, 0x0f},
+                java.util.Arrays.copyOf(bb.array(), bb.position()));
+        bb.flip();
+        assertEquals(127, LogItemCodec.getVarInt(bb));
+        assertEquals(128, LogItemCodec.getVarInt(bb));
+        assertEquals(-1, LogItemCodec.getVarInt(bb));
+    }
+
+    @Test(expected = BufferOverflowException.class)
+    public void encodeFailsOnAFullBuffer() {
+        LogItemCodec.encode(sampleItems()[2], ByteBuffer.allocate(20));
+    }
+
+    @Test(expected = UnsupportedEncodingException.class)
+    public void unknownVersionIsRejected() throws UnsupportedEncodingException {
+        LogItemCodec.decode(new byte[]{0x7, 0, 0}, 0, 3);
+    }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.LinkedList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+
+/**
+ * Measures how many log items a producer appends per second while 4 readers keep following the
+ * log, for the sequence numbered ring and for the locked LinkedList it replaced, whose readers
+ * copied the whole buffer under the lock.
+ */
+@Category(Benchmark.class)
+public class LogRingBenchmark {
+    private static final int READERS = 4;
+    private static final int ITEMS = 2000000;
+    private static final int CAPACITY = VpnStatus.MAXLOGENTRIES;
+
+    private interface LogBuffer {
+        void append(LogItem item);
+
+        /**
+         * Reads everything newer than cursor
+         *
+         * @return the new cursor
+         */
+        long readFrom(long cursor, AtomicLong read);
+    }
+
+    private static class RingLog implements LogBuffer {
+        final LogRing ring = new LogRing(CAPACITY);
+
+        @Override
+        public void append(LogItem item) {
+            ring.append(item);
+        }
+
+        @Override
+        public long readFrom(long cursor, AtomicLong read) {
+            long end = ring.getNextSequence();
+            long count = 0;
+            for (LogItem ignored : ring.items(Math.max(cursor, ring.getFirstSequence()), end))
+                count++;
+            read.addAndGet(count);
+            return end;
+        }
+    }
+
+    /* VpnStatus.logbuffer before the ring: trimmed LinkedList, copied out by getlogbuffer() */
+    private static class LockedListLog implements LogBuffer {
+        final LinkedList<LogItem> buffer = new LinkedList<>();
+        long appended;
+
+        @Override
+        public synchronized void append(LogItem item) {
+            buffer.addLast(item);
+            appended++;
+            if (buffer.size() > CAPACITY + 25) {
+                while (buffer.size() > CAPACITY)
+                    buffer.removeFirst();
+            }
+        }
+
+        @Override
+        public long readFrom(long cursor, AtomicLong read) {
+            LogItem[] copy;
+            long end;
+            synchronized (this) {
+                copy = buffer.toArray(new LogItem[buffer.size()]);
+                end = appended;
+            }
+            read.addAndGet(Math.min(copy.length, end - cursor));
+            return end;
+        }
+    }
+
+    /**
+     * @return items appended per second by the producer
+     */
+    private static double producerThroughput(final LogBuffer log, int readers, AtomicLong read) throws InterruptedException {
+        final LogItem[] items = new LogItem[1024];
+        for (int i = 0; i < items.length; i++)
+            items[i] = LogRingTest.item(i);
+
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicBoolean stop = new AtomicBoolean();
+        Thread[] threads = new Thread[readers];
+        for (int r = 0; r < readers; r++) {
+            final AtomicLong counter = read;
+            threads[r] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    long cursor = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (!stop.get())
+                        cursor = log.readFrom(cursor, counter);
+                }
+            });
+            threads[r].start();
+        }
+
+        start.countDown();
+        long time = System.nanoTime();
+        for (int i = 0; i < ITEMS; i++)
+            log.append(items[i & 1023]);
+        time = System.nanoTime() - time;
+        stop.set(true);
+        for (Thread t : threads)
+            t.join();
+        return ITEMS * 1e9 / time;
+    }
+
+    @Test
+    public void producerThroughputWithFourReaders() throws InterruptedException {
+        // Warm up both implementations
+        producerThroughput(new RingLog(), READERS, new AtomicLong());
+        producerThroughput(new LockedListLog(), READERS, new AtomicLong());
+
+        double ringAlone = producerThroughput(new RingLog(), 0, new AtomicLong());
+        AtomicLong ringRead = new AtomicLong();
+        double ring = producerThroughput(new RingLog(), READERS, ringRead);
+        double listAlone = producerThroughput(new LockedListLog(), 0, new AtomicLong());
+        AtomicLong listRead = new AtomicLong();
+        double list = producerThroughput(new LockedListLog(), READERS, listRead);
+
+        report("Log producer, %d items, capacity %d: ring %.2f M items/s alone, %.2f M items/s with %d readers (%d items read); "
+                        + "locked LinkedList %.2f M items/s alone, %.2f M items/s with %d readers (%d items read)",
+                ITEMS, CAPACITY, ringAlone / 1e6, ring / 1e6, READERS, ringRead.get(),
+                listAlone / 1e6, list / 1e6, READERS, listRead.get());
+    }
+}
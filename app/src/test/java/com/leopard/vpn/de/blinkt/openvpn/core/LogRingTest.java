@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class LogRingTest {
+    static LogItem item(int i) {
+        return new LogItem(VpnStatus.LogLevel.INFO, 3, "line " + i);
+    }
+
+    private static List<String> messages(Iterable<LogItem> items) {
+        List<String> messages = new ArrayList<>();
+        for (LogItem item : items)
+            messages.add(item.getString(null));
+        return messages;
+    }
+
+    @Test
+    public void fullRingOverwritesTheOldestItems() {
+        LogRing ring = new LogRing(4);
+        for (int i = 0; i < 6; i++)
+            ring.append(item(i));
+
+        assertEquals(4, ring.size());
+        assertEquals(2, ring.getFirstSequence());
+        assertEquals(6, ring.getNextSequence());
+        assertNull(ring.get(1));
+        assertEquals("line 2", ring.get(2).getString(null));
+        assertEquals(java.util.Arrays.asList("line 2", "line 3", "line 4", "line 5"), messages(ring.items()));
+    }
+
+    @Test
+    public void prependFillsFromTheFront() {
+        LogRing ring = new LogRing(3);
+        ring.append(item(2));
+        assertTrue(ring.prepend(item(1)));
+        assertTrue(ring.prepend(item(0)));
+        assertFalse(ring.prepend(item(-1)));
+        assertEquals(java.util.Arrays.asList("line 0", "line 1", "line 2"), messages(ring.items()));
+    }
+
+    @Test
+    public void cursorSkipsItemsOverwrittenWhileReading() {
+        LogRing ring = new LogRing(4);
+        for (int i = 0; i < 4; i++)
+            ring.append(item(i));
+
+        Iterator<LogItem> cursor = ring.items().iterator();
+        assertEquals("line 0", cursor.next().getString(null));
+        // Three more items push out 1 and 2 before the reader gets to them
+        ring.append(item(4));
+        ring.append(item(5));
+        ring.append(item(6));
+        assertEquals("line 3", cursor.next().getString(null));
+        // The range was fixed when the cursor was created
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void readerFollowsTheTailBySequence() {
+        LogRing ring = new LogRing(8);
+        long cursor = ring.getNextSequence();
+        LogItem first = item(0);
+        ring.append(first);
+        ring.append(item(1));
+
+        List<String> read = messages(ring.items(cursor, ring.getNextSequence()));
+        assertEquals(java.util.Arrays.asList("line 0", "line 1"), read);
+        assertSame(first, ring.get(cursor));
+
+        ring.clear();
+        assertEquals(0, ring.size());
+        assertFalse(ring.items().iterator().hasNext());
+    }
+
+    @Test
+    public void resizeKeepsTheSequenceNumbers() {
+        LogRing ring = new LogRing(4);
+        for (int i = 0; i < 6; i++)
+            ring.append(item(i));
+
+        LogRing smaller = ring.resize(2);
+        assertEquals(4, smaller.getFirstSequence());
+        assertEquals(6, smaller.getNextSequence());
+        assertEquals("line 5", smaller.get(5).getString(null));
+        assertEquals(java.util.Arrays.asList("line 4", "line 5"), messages(smaller.items()));
+
+        LogRing larger = ring.resize(8);
+        assertEquals(2, larger.getFirstSequence());
+        assertEquals(java.util.Arrays.asList("line 2", "line 3", "line 4", "line 5"), messages(larger.items(2, 6)));
+        larger.append(item(6));
+        assertEquals(7, larger.getNextSequence());
+        assertEquals("line 6", larger.get(6).getString(null));
+        assertEquals(5, larger.size());
+    }
+
+    @Test
+    public void resizeKeepsPrependedItems() {
+        LogRing ring = new LogRing(3);
+        ring.append(item(1));
+        assertTrue(ring.prepend(item(0)));
+
+        LogRing larger = ring.resize(5);
+        assertEquals(-1, larger.getFirstSequence());
+        assertEquals(java.util.Arrays.asList("line 0", "line 1"), messages(larger.items()));
+        // Room for more restored items in front of them
+        assertTrue(larger.prepend(item(-1)));
+        assertEquals("line -1", larger.get(-2).getString(null));
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+public class ManagementBindBackoffTest {
+    private static class FakeClock implements ManagementBindBackoff.Clock {
+        long mNow = 100000;
+
+        @Override
+        public long elapsedRealtime() {
+            return mNow;
+        }
+    }
+
+    /**
+     * Fails every attempt instantly, sleeping the delays on the fake clock
+     *
+     * @return the delays, until the deadline
+     */
+    private static ArrayList<Long> failEveryAttempt(FakeClock clock, long attemptMs) {
+        ManagementBindBackoff backoff = new ManagementBindBackoff(clock);
+        ArrayList<Long> delays = new ArrayList<>();
+        while (true) {
+            clock.mNow += attemptMs;
+            long delay = backoff.nextDelay();
+            if (delay < 0)
+                return delays;
+            delays.add(delay);
+            clock.mNow += delay;
+        }
+    }
+
+    @Test
+    public void delayDoublesUpToTheMaximum() {
+        ArrayList<Long> delays = failEveryAttempt(new FakeClock(), 0);
+        assertEquals(Arrays.asList(10L, 20L, 40L, 80L, 160L, 300L, 300L), delays.subList(0, 7));
+    }
+
+    @Test
+    public void givesUpAtTheDeadline() {
+        FakeClock clock = new FakeClock();
+        long start = clock.mNow;
+        ArrayList<Long> delays = failEveryAttempt(clock, 0);
+        // 10 + 20 + 40 + 80 + 160 = 310, then 300 ms steps, the last one cut short to hit 2400
+        assertEquals(12, delays.size());
+        assertEquals(290L, (long) delays.get(11));
+        assertEquals(start + ManagementBindBackoff.DEADLINE_MS, clock.mNow);
+    }
+
+    @Test
+    public void slowAttemptsCountTowardsTheDeadline() {
+        FakeClock clock = new FakeClock();
+        long start = clock.mNow;
+        ArrayList<Long> delays = failEveryAttempt(clock, 1000);
+        // Attempts end at 1000 and 2010, the third ends past the deadline
+        assertEquals(Arrays.asList(10L, 20L), delays);
+        assertEquals(start + 3030, clock.mNow);
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.allocatedBytes;
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a recorded management interface transcript through the line framer and through the
+ * String based loop it replaced, and reports the heap allocated per line for both.
+ */
+@Category(Benchmark.class)
+public class ManagementLineFramerBenchmark {
+    private static final int REPLAYS = 2000;
+    private static final int WARMUP_REPLAYS = 500;
+
+    static String readTranscript() throws IOException {
+        InputStream in = ManagementLineFramerBenchmark.class.getResourceAsStream("/management-transcript.txt");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        try {
+            while ((read = in.read(buf)) != -1)
+                out.write(buf, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8");
+    }
+
+    /* Counts the dispatched lines, so the JIT cannot drop the work */
+    private static class CountingHandler implements ManagementLineFramer.LineHandler {
+        long lines;
+        long bytes;
+
+        @Override
+        public void onByteCount(long in, long out) {
+            lines++;
+            bytes += in + out;
+        }
+
+        @Override
+        public void onRealtimeCommand(String cmd, String argument) {
+            lines++;
+        }
+
+        @Override
+        public void onLine(String line) {
+            lines++;
+        }
+    }
+
+    private static long framerReplay(byte[] transcript, int replays, CountingHandler handler) throws IOException {
+        ManagementLineFramer framer = new ManagementLineFramer(handler);
+        for (int r = 0; r < replays; r++) {
+            InputStream in = new ManagementLineFramerTest.ChunkedInputStream(transcript, 2048);
+            while (framer.fill(in) != -1)
+                framer.processLines();
+        }
+        return handler.lines;
+    }
+
+    /* The loop of OpenVpnManagementThread before the framer */
+    private static long stringReplay(byte[] transcript, int replays) throws IOException {
+        long lines = 0;
+        byte[] buffer = new byte[2048];
+        for (int r = 0; r < replays; r++) {
+            InputStream in = new ByteArrayInputStream(transcript);
+            String pendingInput = "";
+            int numbytesread;
+            while ((numbytesread = in.read(buffer)) != -1) {
+                pendingInput += new String(buffer, 0, numbytesread, "UTF-8");
+                while (pendingInput.contains("\n")) {
+                    String[] tokens = pendingInput.split("\\r?\\n", 2);
+                    String command = tokens[0];
+                    if (command.startsWith(">") && command.contains(":")) {
+                        String[] parts = command.split(":", 2);
+                        if (parts[0].substring(1).equals("BYTECOUNT")) {
+                            String[] counts = parts[1].split(",");
+                            Long.parseLong(counts[0]);
+                            Long.parseLong(counts[1]);
+                        }
+                        lines++;
+                    } else if (!command.startsWith("SUCCESS:")) {
+                        lines++;
+                    }
+                    pendingInput = tokens.length == 1 ? "" : tokens[1];
+                }
+            }
+        }
+        return lines;
+    }
+
+    @Test
+    public void allocationsPerLine() throws IOException {
+        String transcript = readTranscript();
+        byte[] bytes = transcript.getBytes("UTF-8");
+        int linesPerReplay = transcript.split("\n").length;
+
+        framerReplay(bytes, WARMUP_REPLAYS, new CountingHandler());
+        stringReplay(bytes, WARMUP_REPLAYS);
+
+        CountingHandler handler = new CountingHandler();
+        long start = allocatedBytes();
+        long time = System.nanoTime();
+        long framerLines = framerReplay(bytes, REPLAYS, handler);
+        long framerNanos = System.nanoTime() - time;
+        long framerAllocated = allocatedBytes() - start;
+
+        start = allocatedBytes();
+        time = System.nanoTime();
+        long stringLines = stringReplay(bytes, REPLAYS);
+        long stringNanos = System.nanoTime() - time;
+        long stringAllocated = allocatedBytes() - start;
+
+        assertEquals(stringLines, framerLines);
+        long totalLines = (long) linesPerReplay * REPLAYS;
+        report("Management transcript, %d lines: framer %.1f bytes/line %.0f ns/line, "
+                        + "String split %.1f bytes/line %.0f ns/line",
+                totalLines, (double) framerAllocated / totalLines, (double) framerNanos / totalLines,
+                (double) stringAllocated / totalLines, (double) stringNanos / totalLines);
+    }
+
+    @Test
+    public void byteCountLineAllocations() throws IOException {
+        StringBuilder transcript = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            transcript.append(">BYTECOUNT:").append(1000000L + i * 1500L).append(',').append(20000 + i).append("\r\n");
+        byte[] bytes = transcript.toString().getBytes("UTF-8");
+
+        CountingHandler handler = new CountingHandler();
+        ManagementLineFramer framer = new ManagementLineFramer(handler);
+        ByteArrayInputStream in = new ByteArrayInputStream(bytes);
+        // Warm up, the buffer keeps the size it grew to
+        for (int r = 0; r < WARMUP_REPLAYS; r++) {
+            in.reset();
+            while (framer.fill(in) != -1)
+                framer.processLines();
+        }
+
+        long start = allocatedBytes();
+        for (int r = 0; r < REPLAYS; r++) {
+            in.reset();
+            while (framer.fill(in) != -1)
+                framer.processLines();
+        }
+        long allocated = allocatedBytes() - start;
+        double perLine = (double) allocated / (1000L * REPLAYS);
+        report(">BYTECOUNT lines: %.3f bytes/line", perLine);
+    }
+}
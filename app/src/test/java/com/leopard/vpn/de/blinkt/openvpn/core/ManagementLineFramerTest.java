@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class ManagementLineFramerTest {
+    /* Records every callback as one string */
+    static class RecordingHandler implements ManagementLineFramer.LineHandler {
+        final List<String> events = new ArrayList<>();
+
+        @Override
+        public void onByteCount(long in, long out) {
+            events.add("bytecount " + in + " " + out);
+        }
+
+        @Override
+        public void onRealtimeCommand(String cmd, String argument) {
+            events.add(cmd + " " + argument);
+        }
+
+        @Override
+        public void onLine(String line) {
+            events.add("line " + line);
+        }
+    }
+
+    /* Hands out at most chunk bytes per read, like a socket that delivers partial lines */
+    static class ChunkedInputStream extends InputStream {
+        private final ByteArrayInputStream in;
+        private final int chunk;
+
+        ChunkedInputStream(byte[] data, int chunk) {
+            in = new ByteArrayInputStream(data);
+            this.chunk = chunk;
+        }
+
+        @Override
+        public int read() {
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            return in.read(b, off, Math.min(len, chunk));
+        }
+    }
+
+    private static List<String> frame(String input, int chunk) throws IOException {
+        RecordingHandler handler = new RecordingHandler();
+        ManagementLineFramer framer = new ManagementLineFramer(handler);
+        InputStream in = new ChunkedInputStream(input.getBytes("UTF-8"), chunk);
+        while (framer.fill(in) != -1)
+            framer.processLines();
+        return handler.events;
+    }
+
+    @Test
+    public void dispatchesEveryKindOfLine() throws IOException {
+        List<String> events = frame(">BYTECOUNT:1234,56\r\n"
+                + ">STATE:1700000000,CONNECTED,SUCCESS,10.8.0.2,203.0.113.17,1194,,\r\n"
+                + "SUCCESS: hold release succeeded\r\n"
+                + "PROTECTFD: 5\r\n"
+                + ">FOO:bar:baz\r\n", 4096);
+
+        assertEquals(4, events.size());
+        assertEquals("bytecount 1234 56", events.get(0));
+        assertEquals("STATE 1700000000,CONNECTED,SUCCESS,10.8.0.2,203.0.113.17,1194,,", events.get(1));
+        assertEquals("line PROTECTFD: 5", events.get(2));
+        assertEquals("FOO bar:baz", events.get(3));
+    }
+
+    @Test
+    public void linesSplitAcrossReadsAreJoined() throws IOException {
+        String input = ">LOG:1700000000,I,TLS: Initial packet from [AF_INET]203.0.113.17:1194\r\n"
+                + ">BYTECOUNT:9876543210,42\n"
+                + ">HOLD:Waiting for hold release:0\r\n";
+        List<String> whole = frame(input, 4096);
+        for (int chunk = 1; chunk < 16; chunk++)
+            assertEquals("chunk size " + chunk, whole, frame(input, chunk));
+        assertEquals("bytecount 9876543210 42", whole.get(1));
+    }
+
+    @Test
+    public void incompleteLineIsKeptUntilItsNewline() throws IOException {
+        RecordingHandler handler = new RecordingHandler();
+        ManagementLineFramer framer = new ManagementLineFramer(handler);
+
+        framer.fill(new ByteArrayInputStream(">STATE:1,WAIT".getBytes("UTF-8")));
+        framer.processLines();
+        assertEquals(0, handler.events.size());
+
+        framer.fill(new ByteArrayInputStream(",,,,,,\r\n".getBytes("UTF-8")));
+        framer.processLines();
+        assertEquals(1, handler.events.size());
+        assertEquals("STATE 1,WAIT,,,,,,", handler.events.get(0));
+    }
+
+    @Test
+    public void longLinesGrowTheBuffer() throws IOException {
+        StringBuilder argument = new StringBuilder();
+        for (int i = 0; i < 10000; i++)
+            argument.append((char) ('a' + i % 26));
+        List<String> events = frame(">LOG:" + argument + "\n>BYTECOUNT:1,2\n", 1500);
+        assertEquals(2, events.size());
+        assertEquals("LOG " + argument, events.get(0));
+        assertEquals("bytecount 1 2", events.get(1));
+    }
+
+    @Test
+    public void replaysTheRecordedTranscript() throws IOException {
+        List<String> events = frame(ManagementLineFramerBenchmark.readTranscript(), 2048);
+        int byteCounts = 0;
+        int successLines = 0;
+        for (String event : events) {
+            if (event.startsWith("bytecount "))
+                byteCounts++;
+            if (event.startsWith("line SUCCESS"))
+                successLines++;
+        }
+        assertEquals(150, byteCounts);
+        assertEquals(0, successLines);
+    }
+}
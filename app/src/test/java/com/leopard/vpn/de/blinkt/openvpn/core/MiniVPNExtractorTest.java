@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MiniVPNExtractorTest {
+    private static final int VERSION_CODE = 42;
+    private static final long UPDATE_TIME = 1700000000000L;
+
+    /* An asset in memory that counts how often it is read and can fail half way */
+    private static class FakeAsset implements MiniVPNExtractor.Asset {
+        byte[] mContent;
+        int mHashes;
+        int mCopies;
+        boolean mFailHalfWay;
+
+        FakeAsset(String content) {
+            mContent = content.getBytes();
+        }
+
+        @Override
+        public String getName() {
+            return "pie_openvpn.arm64-v8a";
+        }
+
+        @Override
+        public String hash() {
+            mHashes++;
+            return MiniVPNExtractor.toHex(MiniVPNExtractor.newDigest().digest(mContent));
+        }
+
+        @Override
+        public String copyTo(FileChannel dst) throws IOException {
+            mCopies++;
+            if (mFailHalfWay) {
+                dst.write(ByteBuffer.wrap(mContent, 0, mContent.length / 2));
+                throw new IOException("Asset went away");
+            }
+            dst.write(ByteBuffer.wrap(mContent));
+            return MiniVPNExtractor.toHex(MiniVPNExtractor.newDigest().digest(mContent));
+        }
+    }
+
+    private File mDir;
+    private File mBinary;
+    private FakeAsset mAsset;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("minivpn", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mBinary = new File(mDir, "c_pie_openvpn.arm64-v8a");
+        mAsset = new FakeAsset("minivpn v1");
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private void extract() {
+        assertTrue(MiniVPNExtractor.extract(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+    }
+
+    @Test
+    public void matchingStampReusesTheBinary() {
+        assertFalse(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+        extract();
+        assertTrue(mBinary.canExecute());
+
+        assertTrue(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+        // Same version, the asset is not even hashed
+        assertEquals(0, mAsset.mHashes);
+        assertEquals(1, mAsset.mCopies);
+    }
+
+    @Test
+    public void updateWithTheSameBinaryOnlyRenewsTheStamp() {
+        extract();
+        assertTrue(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME + 1));
+        assertEquals(1, mAsset.mHashes);
+
+        // The new stamp matches without hashing again
+        assertTrue(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME + 1));
+        assertEquals(1, mAsset.mHashes);
+        assertEquals(1, mAsset.mCopies);
+    }
+
+    @Test
+    public void updateWithANewBinaryExtractsAgain() throws IOException {
+        extract();
+        mAsset.mContent = "minivpn v2".getBytes();
+        assertFalse(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME));
+
+        assertTrue(MiniVPNExtractor.extract(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME));
+        assertArrayEquals(mAsset.mContent, Files.readAllBytes(mBinary.toPath()));
+        assertTrue(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME));
+    }
+
+    @Test
+    public void binaryOfAnotherSizeIsNotReused() throws IOException {
+        extract();
+        RandomAccessFile raf = new RandomAccessFile(mBinary, "rw");
+        raf.setLength(3);
+        raf.close();
+        assertFalse(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+    }
+
+    @Test
+    public void missingStampIsNotReused() {
+        extract();
+        assertTrue(MiniVPNExtractor.stampFile(mBinary).delete());
+        assertFalse(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+    }
+
+    @Test
+    public void failedExtractionKeepsTheOldBinary() throws IOException {
+        extract();
+        byte[] old = Files.readAllBytes(mBinary.toPath());
+
+        mAsset.mContent = "minivpn v2, a lot longer than v1".getBytes();
+        mAsset.mFailHalfWay = true;
+        assertFalse(MiniVPNExtractor.extract(mBinary, mAsset, VERSION_CODE + 1, UPDATE_TIME));
+
+        assertArrayEquals(old, Files.readAllBytes(mBinary.toPath()));
+        assertTrue(mBinary.canExecute());
+        assertFalse(new File(mBinary.getPath() + MiniVPNExtractor.TMP_SUFFIX).exists());
+        // Still good for the version that extracted it
+        assertTrue(MiniVPNExtractor.isExtracted(mBinary, mAsset, VERSION_CODE, UPDATE_TIME));
+    }
+
+    @Test
+    public void corruptCopyIsNotMovedIntoPlace() throws IOException {
+        extract();
+        byte[] old = Files.readAllBytes(mBinary.toPath());
+        FakeAsset corrupt = new FakeAsset("minivpn v2") {
+            @Override
+            public String copyTo(FileChannel dst) throws IOException {
+                super.copyTo(dst);
+                dst.write(ByteBuffer.wrap(new byte[]{0}));
+                return hash();
+            }
+        };
+        assertFalse(MiniVPNExtractor.extract(mBinary, corrupt, VERSION_CODE + 1, UPDATE_TIME));
+        assertArrayEquals(old, Files.readAllBytes(mBinary.toPath()));
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.util.List;
+import java.util.Random;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.allocatedBytes;
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Resolves 10k and 100k random overlapping IPv4 routes, a third of them excluded, with
+ * NetworkSpace and with the BigInteger/PriorityQueue version it replaced. The old version only
+ * runs on 10k prefixes, on 100k it takes about a minute. Only generateIPList() is measured, the
+ * pre KitKat part of getPositiveIPList() is quadratic in both and never runs with minSdk 21.
+ */
+@Category(Benchmark.class)
+public class NetworkSpaceBenchmark {
+    /**
+     * @return ms and allocated MB to add the prefixes and resolve them
+     */
+    private static double[] measure(List<NetworkSpaceTest.Prefix> prefixes, boolean legacy) {
+        long allocated = allocatedBytes();
+        long time = System.nanoTime();
+        int resolved;
+        if (legacy)
+            resolved = NetworkSpaceTest.legacyNetworkSpace(prefixes).generateIPList().size();
+        else
+            resolved = NetworkSpaceTest.networkSpace(prefixes).generateIPList().size();
+        time = System.nanoTime() - time;
+        allocated = allocatedBytes() - allocated;
+        assertTrue(resolved > 0);
+        return new double[]{time / 1e6, allocated / 1e6};
+    }
+
+    @Test
+    public void resolveRandomPrefixes() {
+        List<NetworkSpaceTest.Prefix> small = NetworkSpaceTest.randomV4(new Random(1), 10000, 8, 28, false);
+        List<NetworkSpaceTest.Prefix> large = NetworkSpaceTest.randomV4(new Random(2), 100000, 8, 28, false);
+        // Warm up
+        for (int i = 0; i < 3; i++) {
+            measure(small, false);
+            measure(small, true);
+        }
+        double[] trie10k = measure(small, false);
+        double[] legacy10k = measure(small, true);
+        double[] trie100k = measure(large, false);
+        report("NetworkSpace random prefixes: 10k trie %.1f ms %.1f MB, 10k old %.1f ms %.1f MB, 100k trie %.1f ms %.1f MB",
+                trie10k[0], trie10k[1], legacy10k[0], legacy10k[1], trie100k[0], trie100k[1]);
+    }
+
+    /* A reconnect pushes the same routes again, openTun() updates the routes of the last tun from them */
+    @Test
+    public void reconnectWithTheSameRoutes() {
+        List<NetworkSpaceTest.Prefix> prefixes = NetworkSpaceTest.randomV4(new Random(3), 10000, 8, 28, false);
+        NetworkSpace tun = new NetworkSpace();
+        for (int i = 0; i < 3; i++) {
+            tun.updateFrom(NetworkSpaceTest.networkSpace(prefixes));
+            tun.generateIPList();
+        }
+        long time = System.nanoTime();
+        NetworkSpace pushed = NetworkSpaceTest.networkSpace(prefixes);
+        tun.updateFrom(pushed);
+        int resolved = tun.generateIPList().size();
+        double update = (System.nanoTime() - time) / 1e6;
+
+        time = System.nanoTime();
+        resolved -= NetworkSpaceTest.networkSpace(prefixes).generateIPList().size();
+        double fresh = (System.nanoTime() - time) / 1e6;
+        assertEquals(0, resolved);
+        report("NetworkSpace reconnect with the same 10k routes: update %.1f ms, resolve from scratch %.1f ms", update, fresh);
+    }
+}
@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.IOException;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.allocatedBytes;
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Replays a minivpn stdout log through the single pass parser of OpenVPNThread and through the
+ * regex parser it replaced, which compiled its pattern for every line. Both cut out the message,
+ * like the read loop has to for the log item.
+ */
+@Category(Benchmark.class)
+public class OpenVPNThreadBenchmark {
+    private static final int REPLAYS = 200;
+
+    private static int singlePass(String[] lines, int replays) {
+        OpenVPNThread.ParsedLogLine parsed = new OpenVPNThread.ParsedLogLine();
+        int messageChars = 0;
+        for (int r = 0; r < replays; r++) {
+            for (String line : lines) {
+                if (OpenVPNThread.parseLogLine(line, parsed))
+                    messageChars += line.substring(parsed.msgStart).length() + (parsed.weakHash ? 1 : 0) + parsed.logLevel;
+            }
+        }
+        return messageChars;
+    }
+
+    private static int regex(String[] lines, int replays) {
+        int messageChars = 0;
+        for (int r = 0; r < replays; r++) {
+            for (String line : lines) {
+                Pattern p = Pattern.compile("(\\d+).(\\d+) ([0-9a-f])+ (.*)");
+                Matcher m = p.matcher(line);
+                if (m.matches()) {
+                    int flags = Integer.parseInt(m.group(3), 16);
+                    String msg = m.group(4);
+                    int logLevel = flags & 0x0F;
+                    if (msg.startsWith("MANAGEMENT: CMD"))
+                        logLevel = Math.max(4, logLevel);
+                    boolean weakHash = (msg.endsWith("md too weak") && msg.startsWith("OpenSSL: error")) || msg.contains("error:140AB18E");
+                    messageChars += msg.length() + (weakHash ? 1 : 0) + logLevel;
+                }
+            }
+        }
+        return messageChars;
+    }
+
+    @Test
+    public void replayStdoutLog() throws IOException {
+        String[] lines = OpenVPNThreadTest.readStdoutLog();
+        assertEquals(regex(lines, 20), singlePass(lines, 20));
+
+        long allocated = allocatedBytes();
+        long time = System.nanoTime();
+        singlePass(lines, REPLAYS);
+        long singlePassTime = System.nanoTime() - time;
+        long singlePassAllocated = allocatedBytes() - allocated;
+
+        allocated = allocatedBytes();
+        time = System.nanoTime();
+        regex(lines, REPLAYS);
+        long regexTime = System.nanoTime() - time;
+        long regexAllocated = allocatedBytes() - allocated;
+
+        double n = (double) REPLAYS * lines.length;
+        report("minivpn stdout, %d lines: single pass %.0f ns/line %.1f bytes/line, regex %.0f ns/line %.1f bytes/line",
+                (int) n, singlePassTime / n, singlePassAllocated / n, regexTime / n, regexAllocated / n);
+    }
+}
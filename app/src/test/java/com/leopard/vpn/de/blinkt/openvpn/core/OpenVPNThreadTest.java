@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class OpenVPNThreadTest {
+    static String[] readStdoutLog() throws IOException {
+        InputStream in = OpenVPNThreadTest.class.getResourceAsStream("/minivpn-stdout.txt");
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[4096];
+        int read;
+        try {
+            while ((read = in.read(buf)) != -1)
+                out.write(buf, 0, read);
+        } finally {
+            in.close();
+        }
+        return out.toString("UTF-8").split("\n");
+    }
+
+    private static OpenVPNThread.ParsedLogLine parse(String line) {
+        OpenVPNThread.ParsedLogLine parsed = new OpenVPNThread.ParsedLogLine();
+        assertTrue(line, OpenVPNThread.parseLogLine(line, parsed));
+        return parsed;
+    }
+
+    @Test
+    public void parsesTimestampFlagsAndMessage() {
+        String line = "1380308330.240114 18000002 Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'";
+        OpenVPNThread.ParsedLogLine parsed = parse(line);
+        assertEquals("Send to HTTP proxy: 'X-Online-Host: bla.blabla.com'", line.substring(parsed.msgStart));
+        assertEquals(2, parsed.logLevel);
+        assertEquals(VpnStatus.LogLevel.INFO, parsed.level);
+        assertFalse(parsed.weakHash);
+
+        parsed = parse("1380308330.240114 2 ");
+        assertEquals(20, parsed.msgStart);
+    }
+
+    @Test
+    public void classifiesByTheFlags() {
+        assertEquals(VpnStatus.LogLevel.ERROR, parse("1.2 13 fatal").level);
+        assertEquals(VpnStatus.LogLevel.WARNING, parse("1.2 21 nonfatal").level);
+        assertEquals(VpnStatus.LogLevel.WARNING, parse("1.2 43 warn").level);
+        assertEquals(VpnStatus.LogLevel.VERBOSE, parse("1.2 85 debug").level);
+        assertEquals(VpnStatus.LogLevel.ERROR, parse("1.2 f3 fatal wins").level);
+        assertEquals(5, parse("1.2 85 debug").logLevel);
+        assertEquals(4, parse("1.2 2 MANAGEMENT: CMD 'state on'").logLevel);
+        assertEquals(7, parse("1.2 7 MANAGEMENT: CMD 'state on'").logLevel);
+    }
+
+    @Test
+    public void detectsWeakHashes() {
+        assertTrue(parse("1.2 10000003 OpenSSL: error:0A00018E:SSL routines::ca md too weak").weakHash);
+        assertTrue(parse("1.2 3 certificate: error:140AB18E:SSL routines").weakHash);
+        assertFalse(parse("1.2 3 ca md too weak").weakHash);
+        // The error code has to be in the message, not in the prefix
+        assertFalse(parse("1.2 3 OpenSSL: fine").weakHash);
+    }
+
+    @Test
+    public void rejectsOtherLines() {
+        OpenVPNThread.ParsedLogLine parsed = new OpenVPNThread.ParsedLogLine();
+        assertFalse(OpenVPNThread.parseLogLine("Dump path: /data/cache/1.dmp", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("1380308330", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("1380308330.240114", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("1380308330.240114 18000002", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("1380308330.240114 xyz message", parsed));
+        assertFalse(OpenVPNThread.parseLogLine("1380308330.240114  message", parsed));
+    }
+
+    /**
+     * The regex parser in the read loop before the single pass parser. Its ([0-9a-f])+ group only
+     * captured the last hex digit of the flags, so the fatal/warning/debug bits were never seen and
+     * every line was logged as INFO. The single pass parser uses all digits; everything else has
+     * to be the same.
+     */
+    @Test
+    public void matchesTheRegexParserOnACapturedLog() throws IOException {
+        Pattern p = Pattern.compile("(\\d+).(\\d+) ([0-9a-f])+ (.*)");
+        OpenVPNThread.ParsedLogLine parsed = new OpenVPNThread.ParsedLogLine();
+        int matched = 0;
+        for (String line : readStdoutLog()) {
+            Matcher m = p.matcher(line);
+            assertEquals(line, m.matches(), OpenVPNThread.parseLogLine(line, parsed));
+            if (!m.matches())
+                continue;
+            matched++;
+            String msg = m.group(4);
+            int logLevel = Integer.parseInt(m.group(3), 16) & 0x0F;
+            if (msg.startsWith("MANAGEMENT: CMD"))
+                logLevel = Math.max(4, logLevel);
+            boolean weakHash = (msg.endsWith("md too weak") && msg.startsWith("OpenSSL: error")) || msg.contains("error:140AB18E");
+            assertEquals(msg, line.substring(parsed.msgStart));
+            assertEquals(line, logLevel, parsed.logLevel);
+            assertEquals(line, weakHash, parsed.weakHash);
+        }
+        assertTrue(matched > 2000);
+    }
+
+    @Test
+    public void libraryPathComesFromTheNativeDir() {
+        String nativeDir = "/data/app/com.leopard.vpn-1/lib/arm64";
+        String appLibDir = "/data/user/0/com.leopard.vpn/lib";
+        assertEquals(nativeDir + ":" + appLibDir, OpenVPNThread.genLibraryPath(nativeDir, appLibDir, null));
+        assertEquals(nativeDir + ":" + appLibDir + ":/system/lib64",
+                OpenVPNThread.genLibraryPath(nativeDir, appLibDir, "/system/lib64"));
+        // Older Android versions keep the libraries in the app's lib dir
+        assertEquals(appLibDir, OpenVPNThread.genLibraryPath(appLibDir, appLibDir, ""));
+    }
+
+    @Test
+    public void awaitExitReturnsOnceTheProcessThreadEnds() {
+        Thread exiting = new Thread(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+        exiting.start();
+        assertTrue(OpenVPNThread.awaitExit(exiting, 1000));
+    }
+
+    @Test
+    public void awaitExitInterruptsAThreadThatDoesNotEnd() {
+        final Object lock = new Object();
+        Thread stuck = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (lock) {
+                    try {
+                        // Like a process thread in waitFor(), ends when interrupted
+                        lock.wait();
+                    } catch (InterruptedException ignored) {
+                    }
+                }
+            }
+        });
+        stuck.start();
+        long start = System.nanoTime();
+        assertTrue(OpenVPNThread.awaitExit(stuck, 100));
+        assertTrue(System.nanoTime() - start >= 100 * 1000000L);
+
+        Thread ignoring = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long end = System.nanoTime() + 5000 * 1000000L;
+                while (System.nanoTime() < end) {
+                    synchronized (lock) {
+                        try {
+                            lock.wait(10);
+                        } catch (InterruptedException ignored) {
+                            // Keeps going
+                        }
+                    }
+                }
+            }
+        });
+        ignoring.setDaemon(true);
+        ignoring.start();
+        assertFalse(OpenVPNThread.awaitExit(ignoring, 50));
+    }
+}
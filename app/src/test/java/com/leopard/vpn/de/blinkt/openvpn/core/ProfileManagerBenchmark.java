@@ -0,0 +1,120 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.IOException;
+
+import de.blinkt.openvpn.Benchmark;
+import de.blinkt.openvpn.VpnProfile;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * What ProfileManager costs the thread that touches it first, with 500 stored profiles:
+ * <ul>
+ * <li>first frame: getInstance, which loads the index and starts the warmup, before the UI
+ * thread can draw</li>
+ * <li>connect: getInstance and get() of the least recently used profile, the one the warmup
+ * decodes last, while the warmup is running</li>
+ * </ul>
+ * Before the index, getInstance deserialized every .vp file, which covered both. Measured on
+ * the JVM with the files in the page cache, not on a device.
+ */
+@Category(Benchmark.class)
+public class ProfileManagerBenchmark {
+    private static final int PROFILES = 500;
+    private static final int RUNS = 20;
+
+    private interface Step {
+        void run() throws IOException;
+    }
+
+    private static double millisPerRun(Step step) throws IOException, InterruptedException {
+        long total = 0;
+        for (int i = 0; i < 2 * RUNS; i++) {
+            long time = System.nanoTime();
+            step.run();
+            if (i >= RUNS)
+                total += System.nanoTime() - time;
+            // The warmup of this run must not slow down the next one
+            ProfileManager.awaitWarmup();
+        }
+        return total / 1e6 / RUNS;
+    }
+
+    @Test
+    public void firstFrameAndConnect() throws IOException, InterruptedException {
+        final File dir = File.createTempFile("profilemanagerbench", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        final File legacyDir = new File(dir, "legacy");
+        if (!legacyDir.mkdir())
+            throw new IOException("Cannot create " + legacyDir);
+        try {
+            ProfileStore store = new ProfileStore(dir);
+            store.open();
+            final String[] keys = new String[PROFILES];
+            for (int i = 0; i < PROFILES; i++) {
+                VpnProfile vp = ProfileStoreBenchmark.profile(i);
+                keys[i] = vp.getUUIDString();
+                store.put(keys[i], vp);
+                ProfileManagerTest.writeLegacy(legacyDir, vp);
+            }
+            store.close();
+
+            double firstFrame = millisPerRun(new Step() {
+                @Override
+                public void run() throws IOException {
+                    ProfileManager pm = new ProfileManager();
+                    ProfileStore cold = new ProfileStore(dir);
+                    cold.open();
+                    pm.loadIndex(cold);
+                    pm.warmup();
+                }
+            });
+            double connect = millisPerRun(new Step() {
+                @Override
+                public void run() throws IOException {
+                    ProfileManager pm = new ProfileManager();
+                    ProfileStore cold = new ProfileStore(dir);
+                    cold.open();
+                    pm.loadIndex(cold);
+                    pm.warmup();
+                    VpnProfile vp = pm.materialize(keys[0]);
+                    assertNotNull(vp);
+                    assertEquals(0, vp.mVersion);
+                }
+            });
+            double legacy = millisPerRun(new Step() {
+                @Override
+                public void run() throws IOException {
+                    for (String key : keys)
+                        ProfileStoreBenchmark.readLegacy(new File(legacyDir, key + ".vp"));
+                }
+            });
+
+            report("ProfileManager with %d profiles: first frame %.2f ms, connect %.2f ms; "
+                            + "all .vp files deserialized %.2f ms for both",
+                    PROFILES, firstFrame, connect, legacy);
+        } finally {
+            for (File d : new File[]{legacyDir, dir}) {
+                File[] files = d.listFiles();
+                if (files != null) {
+                    for (File f : files)
+                        //noinspection ResultOfMethodCallIgnored
+                        f.delete();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                d.delete();
+            }
+        }
+    }
+}
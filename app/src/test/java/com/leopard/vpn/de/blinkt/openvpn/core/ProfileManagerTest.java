@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.ObjectOutputStream;
+import java.util.Arrays;
+import java.util.List;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ProfileManagerTest {
+    private File mDir;
+
+    @Before
+    public void createDir() throws IOException {
+        mDir = File.createTempFile("profiles", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+    }
+
+    @After
+    public void deleteDir() {
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    /* Writes a profile the way ProfileManager did before the profile store */
+    static void writeLegacy(File dir, VpnProfile vp) throws IOException {
+        ObjectOutputStream out = new ObjectOutputStream(new FileOutputStream(new File(dir, vp.getUUIDString() + ".vp")));
+        out.writeObject(vp);
+        out.close();
+    }
+
+    static VpnProfile profile(int i) {
+        VpnProfile vp = new VpnProfile("server " + i);
+        vp.mConnections[0].mServerName = "vpn" + i + ".example.com";
+        vp.mCaFilename = VpnProfile.INLINE_TAG + "-----BEGIN CERTIFICATE-----\nMIIB" + i + "\n-----END CERTIFICATE-----";
+        vp.mVersion = i;
+        return vp;
+    }
+
+    private File legacyFile(VpnProfile vp) {
+        return new File(mDir, vp.getUUIDString() + ".vp");
+    }
+
+    @Test
+    public void profilesMoveIntoTheStore() throws IOException {
+        VpnProfile a = profile(1);
+        VpnProfile b = profile(2);
+        writeLegacy(mDir, a);
+        writeLegacy(mDir, b);
+        ProfileStore store = new ProfileStore(mDir);
+        store.open();
+
+        List<String> keys = Arrays.asList(a.getUUIDString(), b.getUUIDString(), "missing");
+        assertTrue(ProfileManager.migrateLegacyProfiles(mDir, keys, store));
+        assertFalse(legacyFile(a).exists());
+        assertFalse(legacyFile(b).exists());
+        assertEquals("vpn2.example.com", store.read(b.getUUIDString()).mConnections[0].mServerName);
+        assertEquals(2, store.entries().size());
+        store.close();
+    }
+
+    @Test
+    public void unreadableProfilesKeepTheirFile() throws IOException {
+        VpnProfile a = profile(1);
+        writeLegacy(mDir, a);
+        File broken = new File(mDir, "broken.vp");
+        FileOutputStream out = new FileOutputStream(broken);
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+        ProfileStore store = new ProfileStore(mDir);
+        store.open();
+
+        assertFalse(ProfileManager.migrateLegacyProfiles(mDir, Arrays.asList("broken", a.getUUIDString()), store));
+        assertTrue(broken.exists());
+        assertNull(store.getEntry("broken"));
+        assertFalse(legacyFile(a).exists());
+        assertNotNull(store.getEntry(a.getUUIDString()));
+        store.close();
+    }
+
+    @Test
+    public void failedStoreWriteAbortsAndKeepsTheFiles() throws IOException {
+        VpnProfile a = profile(1);
+        VpnProfile b = profile(2);
+        writeLegacy(mDir, a);
+        writeLegacy(mDir, b);
+        ProfileStore store = new ProfileStore(mDir) {
+            @Override
+            public synchronized void put(String key, VpnProfile profile) throws IOException {
+                throw new IOException("No space left on device");
+            }
+        };
+        store.open();
+
+        try {
+            ProfileManager.migrateLegacyProfiles(mDir, Arrays.asList(a.getUUIDString(), b.getUUIDString()), store);
+            fail("The write error has to abort the migration");
+        } catch (IOException e) {
+            assertEquals("No space left on device", e.getMessage());
+        }
+        assertTrue(legacyFile(a).exists());
+        assertTrue(legacyFile(b).exists());
+        assertTrue(store.entries().isEmpty());
+        store.close();
+    }
+
+    @Test
+    public void interruptedMigrationOnlyDeletesTheLeftoverFile() throws IOException {
+        VpnProfile a = profile(1);
+        ProfileStore store = new ProfileStore(mDir);
+        store.open();
+        store.put(a.getUUIDString(), a);
+        // The file is not read again, its profile is already in the store
+        FileOutputStream out = new FileOutputStream(legacyFile(a));
+        out.write(new byte[]{1, 2, 3});
+        out.close();
+
+        assertTrue(ProfileManager.migrateLegacyProfiles(mDir, Arrays.asList(a.getUUIDString()), store));
+        assertFalse(legacyFile(a).exists());
+        assertEquals(1, store.read(a.getUUIDString()).mVersion);
+        store.close();
+    }
+}
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+
+import de.blinkt.openvpn.Benchmark;
+import de.blinkt.openvpn.BenchmarkHarness;
+import de.blinkt.openvpn.VpnProfile;
+
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+
+/**
+ * Cold load of 200 stored profiles with about 12 KB of inline certificates each: the time until
+ * the most recently used profile can be used, and until all of them are decoded. The old format
+ * deserialized every .vp file before the first profile was available. The files are in the page
+ * cache, so this measures the decoding, not the flash storage.
+ */
+@Category(Benchmark.class)
+public class ProfileStoreBenchmark {
+    private static final int PROFILES = 200;
+    private static final int RUNS = 20;
+
+    static VpnProfile profile(int i) {
+        VpnProfile vp = ProfileManagerTest.profile(i);
+        StringBuilder cert = new StringBuilder(VpnProfile.INLINE_TAG).append("-----BEGIN CERTIFICATE-----\n");
+        for (int line = 0; line < 60; line++)
+            cert.append("MIIDdzCCAl+gAwIBAgIEAgAAuTANBgkqhkiG9w0BAQUFADBaMQswCQYDVQQGEwJJ").append(i).append('\n');
+        cert.append("-----END CERTIFICATE-----");
+        vp.mCaFilename = cert.toString();
+        vp.mClientCertFilename = cert.toString();
+        vp.mClientKeyFilename = cert.toString();
+        vp.mLastUsed = i;
+        return vp;
+    }
+
+    /**
+     * @param load returns a decoded profile
+     */
+    private static double millisPerRun(BenchmarkHarness.Task load) throws Exception {
+        assertNotNull(load.run());
+        return BenchmarkHarness.nanosPerRun(RUNS, RUNS, load) / 1e6;
+    }
+
+    static VpnProfile readLegacy(File file) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new FileInputStream(file));
+        try {
+            VpnProfile vp = (VpnProfile) in.readObject();
+            vp.upgradeProfile();
+            return vp;
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
+
+    @Test
+    public void coldLoad() throws Exception {
+        final File dir = File.createTempFile("profilebench", "");
+        if (!dir.delete() || !dir.mkdir())
+            throw new IOException("Cannot create " + dir);
+        final File legacyDir = new File(dir, "legacy");
+        if (!legacyDir.mkdir())
+            throw new IOException("Cannot create " + legacyDir);
+        try {
+            ProfileStore store = new ProfileStore(dir);
+            store.open();
+            final String[] keys = new String[PROFILES];
+            for (int i = 0; i < PROFILES; i++) {
+                VpnProfile vp = profile(i);
+                keys[i] = vp.getUUIDString();
+                store.put(keys[i], vp);
+                ProfileManagerTest.writeLegacy(legacyDir, vp);
+            }
+            store.close();
+            long legacyBytes = 0;
+            for (File f : legacyDir.listFiles())
+                legacyBytes += f.length();
+
+            double firstProfile = millisPerRun(new BenchmarkHarness.Task() {
+                @Override
+                public Object run() throws IOException {
+                    ProfileStore cold = new ProfileStore(dir);
+                    cold.open();
+                    ProfileStore.Entry newest = null;
+                    for (ProfileStore.Entry entry : cold.entries()) {
+                        if (newest == null || entry.lastUsed > newest.lastUsed)
+                            newest = entry;
+                    }
+                    VpnProfile vp = cold.read(newest.key);
+                    vp.upgradeProfile();
+                    cold.close();
+                    assertEquals(PROFILES - 1, vp.mVersion);
+                    return vp;
+                }
+            });
+            double allProfiles = millisPerRun(new BenchmarkHarness.Task() {
+                @Override
+                public Object run() throws IOException {
+                    ProfileStore cold = new ProfileStore(dir);
+                    cold.open();
+                    VpnProfile vp = null;
+                    for (ProfileStore.Entry entry : cold.entries()) {
+                        vp = cold.read(entry.key);
+                        vp.upgradeProfile();
+                    }
+                    cold.close();
+                    return vp;
+                }
+            });
+            double legacy = millisPerRun(new BenchmarkHarness.Task() {
+                @Override
+                public Object run() throws IOException {
+                    VpnProfile vp = null;
+                    for (String key : keys)
+                        vp = readLegacy(new File(legacyDir, key + ".vp"));
+                    return vp;
+                }
+            });
+
+            report("Cold load of %d profiles: store %.2f ms to the most recent profile, %.2f ms to all (%d bytes); "
+                            + ".vp files %.2f ms to all (%d bytes)",
+                    PROFILES, firstProfile, allProfiles, new File(dir, ProfileStore.STORE_NAME).length(),
+                    legacy, legacyBytes);
+        } finally {
+            for (File d : new File[]{legacyDir, dir}) {
+                File[] files = d.listFiles();
+                if (files != null) {
+                    for (File f : files)
+                        //noinspection ResultOfMethodCallIgnored
+                        f.delete();
+                }
+                //noinspection ResultOfMethodCallIgnored
+                d.delete();
+            }
+        }
+    }
+}
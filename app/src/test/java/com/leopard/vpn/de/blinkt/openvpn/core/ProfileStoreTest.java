@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import de.blinkt.openvpn.VpnProfile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class ProfileStoreTest {
+    private File mDir;
+    private ProfileStore mStore;
+
+    @Before
+    public void createStore() throws IOException {
+        mDir = File.createTempFile("profiles", "");
+        assertTrue(mDir.delete());
+        assertTrue(mDir.mkdir());
+        mStore = new ProfileStore(mDir);
+        mStore.open();
+    }
+
+    @After
+    public void deleteDir() throws IOException {
+        mStore.close();
+        File[] files = mDir.listFiles();
+        if (files != null) {
+            for (File f : files)
+                //noinspection ResultOfMethodCallIgnored
+                f.delete();
+        }
+        //noinspection ResultOfMethodCallIgnored
+        mDir.delete();
+    }
+
+    private void overwriteInt(long offset, int value) throws IOException {
+        mStore.close();
+        RandomAccessFile raf = new RandomAccessFile(new File(mDir, ProfileStore.STORE_NAME), "rw");
+        raf.seek(offset);
+        raf.writeInt(value);
+        raf.close();
+    }
+
+    /* Overwrites an int inside the key of a stored record, the record length stays intact */
+    private void corruptKey(String key, int value) throws IOException {
+        // Record header (length, crc), then the record type
+        overwriteInt(mStore.getEntry(key).offset + 8 + 1, value);
+    }
+
+    private void corruptLength(String key, int value) throws IOException {
+        overwriteInt(mStore.getEntry(key).offset, value);
+    }
+
+    private VpnProfile[] putThree() throws IOException {
+        VpnProfile[] profiles = {ProfileManagerTest.profile(1), ProfileManagerTest.profile(2), ProfileManagerTest.profile(3)};
+        for (VpnProfile vp : profiles)
+            mStore.put(vp.getUUIDString(), vp);
+        return profiles;
+    }
+
+    private void assertSkipsTheDamagedRecord(int keyLength) throws IOException {
+        VpnProfile a = ProfileManagerTest.profile(1);
+        VpnProfile b = ProfileManagerTest.profile(2);
+        VpnProfile c = ProfileManagerTest.profile(3);
+        mStore.put(a.getUUIDString(), a);
+        mStore.put(b.getUUIDString(), b);
+        mStore.put(c.getUUIDString(), c);
+        long size = new File(mDir, ProfileStore.STORE_NAME).length();
+        corruptKey(b.getUUIDString(), keyLength);
+
+        mStore.open();
+        assertEquals(2, mStore.entries().size());
+        assertNull(mStore.getEntry(b.getUUIDString()));
+        assertEquals("vpn1.example.com", mStore.read(a.getUUIDString()).mConnections[0].mServerName);
+        // The record after the damaged one is still found, nothing was truncated
+        assertEquals("vpn3.example.com", mStore.read(c.getUUIDString()).mConnections[0].mServerName);
+        assertEquals(size, new File(mDir, ProfileStore.STORE_NAME).length());
+
+        // The store stays writable
+        mStore.put(b.getUUIDString(), b);
+        mStore.open();
+        assertEquals(3, mStore.entries().size());
+        assertEquals("vpn2.example.com", mStore.read(b.getUUIDString()).mConnections[0].mServerName);
+    }
+
+    private void assertResyncsAfterTheDamagedLength(int length) throws IOException {
+        VpnProfile[] profiles = putThree();
+        long size = new File(mDir, ProfileStore.STORE_NAME).length();
+        corruptLength(profiles[1].getUUIDString(), length);
+
+        mStore.open();
+        assertEquals(2, mStore.entries().size());
+        assertNull(mStore.getEntry(profiles[1].getUUIDString()));
+        assertEquals("vpn1.example.com", mStore.read(profiles[0].getUUIDString()).mConnections[0].mServerName);
+        assertEquals("vpn3.example.com", mStore.read(profiles[2].getUUIDString()).mConnections[0].mServerName);
+        assertEquals(size, new File(mDir, ProfileStore.STORE_NAME).length());
+
+        // Appends go after the last record, the next open finds them too
+        mStore.put(profiles[1].getUUIDString(), profiles[1]);
+        mStore.open();
+        assertEquals(3, mStore.entries().size());
+        assertEquals("vpn2.example.com", mStore.read(profiles[1].getUUIDString()).mConnections[0].mServerName);
+    }
+
+    @Test
+    public void recordsAfterAnOversizedLengthSurvive() throws IOException {
+        assertResyncsAfterTheDamagedLength(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void recordsAfterAZeroLengthSurvive() throws IOException {
+        assertResyncsAfterTheDamagedLength(0);
+    }
+
+    @Test
+    public void recordsAfterAShortenedLengthSurvive() throws IOException {
+        // Frames a record that ends inside the damaged one
+        assertResyncsAfterTheDamagedLength(12);
+    }
+
+    @Test
+    public void damagedLastRecordIsTruncated() throws IOException {
+        VpnProfile[] profiles = putThree();
+        long end = mStore.getEntry(profiles[2].getUUIDString()).offset;
+        corruptLength(profiles[2].getUUIDString(), Integer.MAX_VALUE);
+
+        mStore.open();
+        assertEquals(2, mStore.entries().size());
+        assertEquals(end, new File(mDir, ProfileStore.STORE_NAME).length());
+        assertEquals("vpn2.example.com", mStore.read(profiles[1].getUUIDString()).mConnections[0].mServerName);
+    }
+
+    @Test
+    public void keyLengthPastTheRecordIsSkipped() throws IOException {
+        assertSkipsTheDamagedRecord(Integer.MAX_VALUE);
+    }
+
+    @Test
+    public void recordWithoutKeyIsSkipped() throws IOException {
+        assertSkipsTheDamagedRecord(-1);
+    }
+}
@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class StatusEventBusTest {
+    /* Stands in for a byte count event: a running total and the delta since the previous one */
+    static class Count {
+        final long total;
+        final long delta;
+
+        Count(long total, long delta) {
+            this.total = total;
+            this.delta = delta;
+        }
+    }
+
+    /* Blocks in the first delivery until released, so the bus has to queue up behind it */
+    static class SlowListener {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final List<Count> received = Collections.synchronizedList(new ArrayList<Count>());
+        final CountDownLatch done;
+        final long expectedTotal;
+
+        SlowListener(long expectedTotal) {
+            this.expectedTotal = expectedTotal;
+            done = new CountDownLatch(1);
+        }
+
+        void onEvent(Count event) {
+            entered.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                throw new RuntimeException(e);
+            }
+            received.add(event);
+            if (event.total == expectedTotal)
+                done.countDown();
+        }
+    }
+
+    private static final StatusEventBus.Deliverer<SlowListener, Count> DELIVERER = new StatusEventBus.Deliverer<SlowListener, Count>() {
+        @Override
+        public void deliver(SlowListener listener, Count event) {
+            listener.onEvent(event);
+        }
+    };
+
+    private static final StatusEventBus.Merger<Count> SUM = new StatusEventBus.Merger<Count>() {
+        @Override
+        public Count merge(Count older, Count newer) {
+            return new Count(newer.total, older.delta + newer.delta);
+        }
+    };
+
+    private static long publishCounts(StatusEventBus<SlowListener, Count> bus, int count) {
+        long total = 0;
+        for (int i = 1; i <= count; i++) {
+            total += i;
+            bus.publish(new Count(total, i));
+        }
+        return total;
+    }
+
+    private static long sumOfDeltas(List<Count> events) {
+        long sum = 0;
+        for (Count event : events)
+            sum += event.delta;
+        return sum;
+    }
+
+    @Test
+    public void mergedEventsKeepTheSkippedDeltas() throws InterruptedException {
+        StatusEventBus<SlowListener, Count> bus = new StatusEventBus<>("test", 64, SUM, DELIVERER);
+        SlowListener listener = new SlowListener(55);
+        bus.subscribe(listener, null);
+
+        bus.publish(new Count(1, 1));
+        assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+        // The listener is stuck in the first event while the other nine are published
+        long total = 1;
+        for (int i = 2; i <= 10; i++) {
+            total += i;
+            bus.publish(new Count(total, i));
+        }
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(2, listener.received.size());
+        assertEquals(55, sumOfDeltas(listener.received));
+        assertEquals(0L, (long) bus.getDroppedEvents().get(listener));
+    }
+
+    @Test
+    public void withoutMergerEveryEventIsDeliveredInOrder() throws InterruptedException {
+        StatusEventBus<SlowListener, Count> bus = new StatusEventBus<>("test", 128, null, DELIVERER);
+        SlowListener listener = new SlowListener(5050);
+        bus.subscribe(listener, null);
+        listener.release.countDown();
+
+        assertEquals(5050, publishCounts(bus, 100));
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(100, listener.received.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i + 1, listener.received.get(i).delta);
+    }
+
+    @Test
+    public void subscriberBehindTheRingLosesTheOldestEvents() throws InterruptedException {
+        StatusEventBus<SlowListener, Count> bus = new StatusEventBus<>("test", 8, null, DELIVERER);
+        SlowListener listener = new SlowListener(210);
+        bus.subscribe(listener, null);
+
+        bus.publish(new Count(1, 1));
+        assertTrue(listener.entered.await(5, TimeUnit.SECONDS));
+        long total = 1;
+        for (int i = 2; i <= 20; i++) {
+            total += i;
+            bus.publish(new Count(total, i));
+        }
+        assertEquals(19, bus.getQueueDepth());
+        listener.release.countDown();
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+        // The first event plus the eight still in the ring
+        assertEquals(9, listener.received.size());
+        assertEquals(11, (long) bus.getDroppedEvents().get(listener));
+        assertEquals(13, listener.received.get(1).delta);
+    }
+
+    @Test
+    public void initialEventComesFirst() throws InterruptedException {
+        StatusEventBus<SlowListener, Count> bus = new StatusEventBus<>("test", 64, SUM, DELIVERER);
+        SlowListener listener = new SlowListener(3);
+        listener.release.countDown();
+        bus.subscribe(listener, new Count(0, 0));
+        bus.publish(new Count(3, 3));
+        assertTrue(listener.done.await(5, TimeUnit.SECONDS));
+
+        assertEquals(0, listener.received.get(0).total);
+        assertEquals(3, listener.received.get(listener.received.size() - 1).total);
+        assertEquals(3, sumOfDeltas(listener.received));
+    }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2012-2017 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+import org.junit.experimental.categories.Category;
+
+import de.blinkt.openvpn.Benchmark;
+
+import static de.blinkt.openvpn.BenchmarkHarness.allocatedBytes;
+import static de.blinkt.openvpn.BenchmarkHarness.cpuNanos;
+import static de.blinkt.openvpn.BenchmarkHarness.report;
+import static de.blinkt.openvpn.BenchmarkHarness.usedHeap;
+
+/**
+ * Feeds 24 hours of one second BYTECOUNT updates into the ring buffer TrafficHistory and the
+ * LinkedList implementation it replaced, and reports CPU time, allocations and retained heap.
+ */
+@Category(Benchmark.class)
+public class TrafficHistoryBenchmark {
+    private static final int UPDATES = 24 * 3600;
+    private static final int RUNS = 5;
+    /* Histories kept alive at the same time to measure the retained heap */
+    private static final int RETAINED_INSTANCES = 50;
+
+    private interface Feed {
+        Object run();
+    }
+
+    private static final Feed RING = new Feed() {
+        @Override
+        public Object run() {
+            TrafficHistory history = new TrafficHistory();
+            long in = 0;
+            for (int s = 0; s < UPDATES; s++) {
+                in += 1500 + (s & 1023);
+                history.addDataPoint(TrafficHistoryTest.START + s * 1000L, in, in / 8);
+            }
+            return history;
+        }
+    };
+
+    private static final Feed LINKED_LIST = new Feed() {
+        @Override
+        public Object run() {
+            LegacyTrafficHistory history = new LegacyTrafficHistory();
+            long in = 0;
+            for (int s = 0; s < UPDATES; s++) {
+                in += 1500 + (s & 1023);
+                history.addDataPoint(TrafficHistoryTest.START + s * 1000L, in, in / 8);
+            }
+            return history;
+        }
+    };
+
+    /**
+     * @return cpu ns per update, bytes allocated per update, retained bytes per history
+     */
+    private static double[] measure(Feed feed) {
+        for (int i = 0; i < RUNS; i++)
+            feed.run();
+
+        long cpu = cpuNanos();
+        long allocated = allocatedBytes();
+        for (int i = 0; i < RUNS; i++)
+            feed.run();
+        cpu = cpuNanos() - cpu;
+        allocated = allocatedBytes() - allocated;
+
+        Object[] keep = new Object[RETAINED_INSTANCES];
+        long before = usedHeap();
+        for (int i = 0; i < keep.length; i++)
+            keep[i] = feed.run();
+        long retained = usedHeap() - before;
+        if (keep[keep.length - 1] == null)
+            throw new AssertionError();
+
+        return new double[]{(double) cpu / RUNS / UPDATES, (double) allocated / RUNS / UPDATES,
+                (double) retained / RETAINED_INSTANCES};
+    }
+
+    @Test
+    public void oneDayOfSecondUpdates() {
+        double[] ring = measure(RING);
+        double[] linkedList = measure(LINKED_LIST);
+        report("TrafficHistory, 24h of 1s updates: ring %.0f ns/update %.1f bytes/update %.0f bytes retained, "
+                        + "LinkedList %.0f ns/update %.1f bytes/update %.0f bytes retained",
+                ring[0], ring[1], ring[2], linkedList[0], linkedList[1], linkedList[2]);
+    }
+}
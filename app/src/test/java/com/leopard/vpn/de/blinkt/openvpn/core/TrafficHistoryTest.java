@@ -0,0 +1,83 @@
+/*
+ * Copyright (c) 2012-2017 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+public class TrafficHistoryTest {
+    static final long START = 1700000000000L;
+
+    static void assertSameTier(String name, List<LegacyTrafficHistory.Datapoint> expected,
+                               List<TrafficHistory.TrafficDatapoint> actual) {
+        assertEquals(name + " size", expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            LegacyTrafficHistory.Datapoint e = expected.get(i);
+            TrafficHistory.TrafficDatapoint a = actual.get(i);
+            assertEquals(name + "[" + i + "].timestamp", e.timestamp, a.timestamp);
+            assertEquals(name + "[" + i + "].in", e.in, a.in);
+            assertEquals(name + "[" + i + "].out", e.out, a.out);
+        }
+    }
+
+    @Test
+    public void tiersMatchTheLinkedListImplementation() {
+        Random random = new Random(2);
+        TrafficHistory history = new TrafficHistory();
+        LegacyTrafficHistory legacy = new LegacyTrafficHistory();
+        long now = START;
+        long in = 0;
+        long out = 0;
+        // Six hours with irregular intervals, including bursts faster than the bytecount interval
+        while (now < START + 6 * TrafficHistory.TIME_PERIOD_HOURS) {
+            now += random.nextInt(10) == 0 ? random.nextInt(200) : 1000 + random.nextInt(3000);
+            in += random.nextInt(100000);
+            out += random.nextInt(20000);
+            history.addDataPoint(now, in, out);
+            legacy.addDataPoint(now, in, out);
+
+            assertEquals(legacy.trafficHistorySeconds.size(), history.getSeconds().size());
+        }
+        assertSameTier("seconds", legacy.trafficHistorySeconds, history.getSeconds());
+        assertSameTier("minutes", legacy.trafficHistoryMinutes, history.getMinutes());
+        assertSameTier("hours", legacy.trafficHistoryHours, history.getHours());
+    }
+
+    @Test
+    public void lastDiffIsTheDifferenceOfTheLastTwoPoints() {
+        TrafficHistory history = new TrafficHistory();
+        assertEquals(0, history.getLastDiff().getDiffIn());
+
+        history.addDataPoint(START, 100, 10);
+        TrafficHistory.LastDiff diff = history.getLastDiff();
+        assertEquals(0, diff.getDiffIn());
+        assertEquals(100, diff.getIn());
+
+        history.addDataPoint(START + 1000, 250, 40);
+        diff = history.getLastDiff();
+        assertEquals(150, diff.getDiffIn());
+        assertEquals(30, diff.getDiffOut());
+        assertEquals(250, diff.getIn());
+        assertEquals(40, diff.getOut());
+    }
+
+    @Test
+    public void fullTierDropsTheOldestPoint() {
+        TrafficHistory history = new TrafficHistory();
+        // More points than the seconds ring holds within one minute
+        int points = TrafficHistory.SECONDS_CAPACITY + 10;
+        for (int i = 0; i < points; i++)
+            history.addDataPoint(START + i * 10, i, i);
+
+        List<TrafficHistory.TrafficDatapoint> seconds = history.getSeconds();
+        assertEquals(TrafficHistory.SECONDS_CAPACITY, seconds.size());
+        assertEquals(10, seconds.get(0).in);
+        assertEquals(points - 1, seconds.get(seconds.size() - 1).in);
+    }
+}
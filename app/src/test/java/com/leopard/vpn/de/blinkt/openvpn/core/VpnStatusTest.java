@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2012-2016 Arne Schwabe
+ * Distributed under the GNU GPL v2 with additional terms. For full terms see the file doc/LICENSE.txt
+ */
+package de.blinkt.openvpn.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class VpnStatusTest {
+    private static final String PREFIX = "order ";
+
+    private static class RecordingStateListener implements VpnStatus.StateListener {
+        final List<String> states = Collections.synchronizedList(new ArrayList<String>());
+        volatile Thread firstThread;
+
+        @Override
+        public void updateState(String state, String logmessage, int localizedResId, ConnectionStatus level) {
+            if (firstThread == null)
+                firstThread = Thread.currentThread();
+            states.add(state);
+            // Listeners may log, the log never waits for the state
+            VpnStatus.logDebug("state listener saw " + state);
+        }
+
+        @Override
+        public void setConnectedVPN(String uuid) {
+        }
+    }
+
+    @Test
+    public void currentStateIsHandedOverOnRegistration() {
+        VpnStatus.updateStateString("TCP_CONNECT", "");
+        RecordingStateListener listener = new RecordingStateListener();
+        VpnStatus.addStateListener(listener);
+        try {
+            assertEquals(Collections.singletonList("TCP_CONNECT"), listener.states);
+            assertSame(Thread.currentThread(), listener.firstThread);
+        } finally {
+            VpnStatus.removeStateListener(listener);
+        }
+    }
+
+    @Test
+    public void currentByteCountIsHandedOverOnRegistration() {
+        VpnStatus.updateByteCount(1000, 2000);
+        final List<Long> counts = new ArrayList<>();
+        VpnStatus.ByteCountListener listener = new VpnStatus.ByteCountListener() {
+            @Override
+            public void updateByteCount(long in, long out, long diffIn, long diffOut) {
+                counts.add(in);
+                counts.add(out);
+            }
+        };
+        VpnStatus.addByteCountListener(listener);
+        try {
+            assertEquals(2, counts.size());
+            assertEquals(1000, (long) counts.get(0));
+            assertEquals(2000, (long) counts.get(1));
+        } finally {
+            VpnStatus.removeByteCountListener(listener);
+        }
+    }
+
+    @Test
+    public void capacityChangeKeepsTheLogSequence() {
+        VpnStatus.logDebug("before the resize");
+        long next = VpnStatus.getLogSequence();
+        try {
+            VpnStatus.setLogBufferCapacity(10);
+            assertEquals(next, VpnStatus.getLogSequence());
+            assertEquals("before the resize", last(VpnStatus.getlogbuffer(next)).getString(null));
+            VpnStatus.logDebug("after the resize");
+            assertEquals(next + 1, VpnStatus.getLogSequence());
+        } finally {
+            VpnStatus.setLogBufferCapacity(VpnStatus.MAXLOGENTRIES);
+        }
+        assertEquals(next + 1, VpnStatus.getLogSequence());
+    }
+
+    private static LogItem last(Iterable<LogItem> items) {
+        LogItem last = null;
+        for (LogItem li : items)
+            last = li;
+        return last;
+    }
+
+    @Test
+    public void listenersGetConcurrentLogItemsInTheOrderOfTheLog() throws InterruptedException {
+        final int threads = 4;
+        final int perThread = 200;
+        final List<LogItem> received = Collections.synchronizedList(new ArrayList<LogItem>());
+        final CountDownLatch all = new CountDownLatch(threads * perThread);
+        VpnStatus.LogListener listener = new VpnStatus.LogListener() {
+            @Override
+            public void newLog(LogItem logItem) {
+                if (logItem.getString(null).startsWith(PREFIX)) {
+                    received.add(logItem);
+                    all.countDown();
+                }
+            }
+        };
+        VpnStatus.addLogListener(listener);
+        try {
+            Thread[] writers = new Thread[threads];
+            for (int t = 0; t < threads; t++) {
+                final int id = t;
+                writers[t] = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        for (int i = 0; i < perThread; i++)
+                            VpnStatus.logDebug(PREFIX + id + " " + i);
+                    }
+                });
+                writers[t].start();
+            }
+            for (Thread writer : writers)
+                writer.join();
+            assertTrue(all.await(10, TimeUnit.SECONDS));
+        } finally {
+            VpnStatus.removeLogListener(listener);
+        }
+
+        List<LogItem> logged = new ArrayList<>();
+        for (LogItem li : VpnStatus.getlogbuffer()) {
+            if (li.getString(null).startsWith(PREFIX))
+                logged.add(li);
+        }
+        assertEquals(threads * perThread, logged.size());
+        for (int i = 0; i < logged.size(); i++)
+            assertSame(logged.get(i), received.get(i));
+    }
+}